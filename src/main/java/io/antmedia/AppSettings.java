@@ -138,6 +138,54 @@ public class AppSettings {
 
 	private static final String SETTINGS_DISABLE_IPV6_CANDIDATES = "settings.disableIPv6Candidates";
 
+	private static final String SETTINGS_RTMP_INGEST_QUEUE_CAPACITY = "settings.rtmp.ingestQueueCapacity";
+
+	private static final String SETTINGS_RTMP_INGEST_QUEUE_OVERFLOW_POLICY = "settings.rtmp.ingestQueueOverflowPolicy";
+
+	private static final String SETTINGS_MUXER_QUEUE_CAPACITY = "settings.muxerQueueCapacity";
+
+	private static final String SETTINGS_MUXER_LAG_POLICY = "settings.muxerLagPolicy";
+
+	private static final String SETTINGS_QUALITY_MAX_PUBLISH_PERIOD_MS = "settings.qualityMaxPublishPeriodMS";
+
+	private static final String SETTINGS_RTMP_DIRECT_DEMUX_ENABLED = "settings.rtmp.directDemuxEnabled";
+
+	private static final String SETTINGS_MP4_FRAGMENTED_ENABLED = "settings.mp4FragmentedEnabled";
+
+	private static final String SETTINGS_HLS_LOW_LATENCY_ENABLED = "settings.hlsLowLatencyEnabled";
+
+	private static final String SETTINGS_HLS_PART_DURATION_MS = "settings.hlsPartDurationMS";
+
+	private static final String SETTINGS_RTMP_ADAPTIVE_CHUNK_SIZE_ENABLED = "settings.rtmp.adaptiveChunkSizeEnabled";
+
+	private static final String SETTINGS_RTMP_MIN_CHUNK_SIZE = "settings.rtmp.minChunkSize";
+
+	private static final String SETTINGS_RTMP_MAX_CHUNK_SIZE = "settings.rtmp.maxChunkSize";
+
+	private static final String SETTINGS_RTMP_CHUNK_DURATION_MS = "settings.rtmp.chunkDurationMS";
+
+	private static final String SETTINGS_RTMP_AGGREGATE_WINDOW_MS = "settings.rtmp.aggregateWindowMS";
+
+	private static final String SETTINGS_RTMP_AGGREGATE_MAX_SIZE = "settings.rtmp.aggregateMaxSize";
+
+	private static final String SETTINGS_RTMP_AGGREGATE_CLIENTS = "settings.rtmp.aggregateClients";
+
+	private static final String SETTINGS_VIEWER_COUNT_FLUSH_PERIOD_MS = "settings.viewerCountFlushPeriodMS";
+
+	private static final String SETTINGS_VIEWER_COUNT_MAX_PENDING_DELTA = "settings.viewerCountMaxPendingDelta";
+
+	private static final String SETTINGS_BROADCAST_CACHE_SIZE = "settings.broadcastCacheSize";
+
+	private static final String SETTINGS_BROADCAST_CACHE_TTL_MS = "settings.broadcastCacheTtlMS";
+
+	private static final String SETTINGS_ANALYTICS_WRITE_BATCH_PERIOD_MS = "settings.analyticsWriteBatchPeriodMS";
+
+	private static final String SETTINGS_ANALYTICS_WRITE_BATCH_SIZE = "settings.analyticsWriteBatchSize";
+
+	private static final String SETTINGS_ANALYTICS_WRITE_QUEUE_SIZE = "settings.analyticsWriteQueueSize";
+
+	private static final String SETTINGS_ANALYTICS_WRITE_OFFER_TIMEOUT_MS = "settings.analyticsWriteOfferTimeoutMS";
+
 
 	
 	
@@ -562,6 +610,167 @@ public class AppSettings {
 	@Value("${" + SETTINGS_DISABLE_IPV6_CANDIDATES+ ":true}")
 	private boolean disableIPv6Candidates;
 
+	/**
+	 * Max number of frames waiting to be muxed for each RTMP stream. 
+	 * It's rounded up to the next power of two
+	 */
+	@Value("${" + SETTINGS_RTMP_INGEST_QUEUE_CAPACITY+ ":1024}")
+	private int ingestQueueCapacity;
+
+	/**
+	 * What to do when ingest queue of a stream is full.
+	 * "drop" drops the oldest non-keyframe video frame, "backpressure" blocks the RTMP reader
+	 */
+	@Value("${" + SETTINGS_RTMP_INGEST_QUEUE_OVERFLOW_POLICY+ ":drop}")
+	private String ingestQueueOverflowPolicy;
+
+	/**
+	 * Max number of packets waiting to be written for each muxer(HLS, MP4, RTMP) of a stream
+	 */
+	@Value("${" + SETTINGS_MUXER_QUEUE_CAPACITY+ ":256}")
+	private int muxerQueueCapacity;
+
+	/**
+	 * What to do when a muxer falls behind and its queue is full.
+	 * "drop" drops the packets of that muxer until the next key frame, "detach" stops that muxer
+	 */
+	@Value("${" + SETTINGS_MUXER_LAG_POLICY+ ":drop}")
+	private String muxerLagPolicy;
+
+	/**
+	 * Quality parameters of a stream(quality, speed, pending packet size) are published when they change.
+	 * They're also published in this period even if they don't change
+	 */
+	@Value("${" + SETTINGS_QUALITY_MAX_PUBLISH_PERIOD_MS+ ":10000}")
+	private long qualityMaxPublishPeriodMS;
+
+	/**
+	 * If it's true, H.264 and AAC packets of RTMP streams are converted to AVPackets directly 
+	 * instead of being parsed by FLV demuxer. Streams are started as soon as codec configurations arrive.
+	 * Other codecs are not supported in this mode
+	 */
+	@Value("${" + SETTINGS_RTMP_DIRECT_DEMUX_ENABLED+ ":false}")
+	private boolean directDemuxEnabled;
+
+	/**
+	 * If it's true, MP4 recordings are written as fragmented MP4 that is flushed at every key frame.
+	 * Recording is playable while it's being written and at most one fragment is lost in a crash
+	 */
+	@Value("${" + SETTINGS_MP4_FRAGMENTED_ENABLED+ ":false}")
+	private boolean mp4FragmentedEnabled;
+
+	/**
+	 * If it's true, HLS is written as low latency HLS with CMAF partial segments. 
+	 * Players poll the playlist, blocking reload is not supported
+	 */
+	@Value("${" + SETTINGS_HLS_LOW_LATENCY_ENABLED+ ":false}")
+	private boolean hlsLowLatencyEnabled;
+
+	/**
+	 * Target duration of the partial segments in low latency HLS
+	 */
+	@Value("${" + SETTINGS_HLS_PART_DURATION_MS+ ":500}")
+	private long hlsPartDurationMS;
+
+	/**
+	 * If it's true, chunk size of each RTMP player is adapted to the bitrate of the stream 
+	 * between rtmpMinChunkSize and rtmpMaxChunkSize
+	 */
+	@Value("${" + SETTINGS_RTMP_ADAPTIVE_CHUNK_SIZE_ENABLED+ ":false}")
+	private boolean rtmpAdaptiveChunkSizeEnabled;
+
+	/**
+	 * Lower bound of the adaptive RTMP chunk size
+	 */
+	@Value("${" + SETTINGS_RTMP_MIN_CHUNK_SIZE+ ":1024}")
+	private int rtmpMinChunkSize;
+
+	/**
+	 * Upper bound of the adaptive RTMP chunk size
+	 */
+	@Value("${" + SETTINGS_RTMP_MAX_CHUNK_SIZE+ ":65536}")
+	private int rtmpMaxChunkSize;
+
+	/**
+	 * Adaptive RTMP chunk size is the number of bytes sent in this duration at the bitrate of the stream. 
+	 * Longer durations mean fewer chunks but audio waits longer behind video chunks
+	 */
+	@Value("${" + SETTINGS_RTMP_CHUNK_DURATION_MS+ ":10}")
+	private int rtmpChunkDurationMS;
+
+	/**
+	 * Audio and video tags of this duration are sent to RTMP players in a single aggregate message. 
+	 * It's disabled if it's 0
+	 */
+	@Value("${" + SETTINGS_RTMP_AGGREGATE_WINDOW_MS+ ":0}")
+	private int rtmpAggregateWindowMS;
+
+	/**
+	 * Max size of an aggregate message in bytes
+	 */
+	@Value("${" + SETTINGS_RTMP_AGGREGATE_MAX_SIZE+ ":65536}")
+	private int rtmpAggregateMaxSize;
+
+	/**
+	 * Comma separated flashVer prefixes of the players that receive aggregate messages, * for all players. 
+	 * Other players receive each tag in a separate message unless they ask for aggregates in the connect parameters
+	 */
+	@Value("${" + SETTINGS_RTMP_AGGREGATE_CLIENTS+ ":WIN,MAC,LNX}")
+	private String rtmpAggregateClients;
+
+	/**
+	 * Viewer count changes are collected in memory and written to the datastore in this period.
+	 * Viewer counts are written for each viewer if it's 0
+	 */
+	@Value("${" + SETTINGS_VIEWER_COUNT_FLUSH_PERIOD_MS+ ":0}")
+	private long viewerCountFlushPeriodMS;
+
+	/**
+	 * Viewer count changes of a stream are written without waiting the flush period when they reach this number.
+	 * It's the max number of viewer changes per stream that may be lost if the server stops unexpectedly
+	 */
+	@Value("${" + SETTINGS_VIEWER_COUNT_MAX_PENDING_DELTA+ ":1000}")
+	private long viewerCountMaxPendingDelta;
+
+	/**
+	 * Max number of broadcasts cached in front of the datastore. 
+	 * Broadcasts are not cached if it's 0
+	 */
+	@Value("${" + SETTINGS_BROADCAST_CACHE_SIZE+ ":0}")
+	private int broadcastCacheSize;
+
+	/**
+	 * Time to live of a cached broadcast. Changes on other nodes are seen after this time 
+	 * if cluster does not notify them
+	 */
+	@Value("${" + SETTINGS_BROADCAST_CACHE_TTL_MS+ ":5000}")
+	private long broadcastCacheTtlMS;
+
+	/**
+	 * Stream info and detection writes are queued and written to the datastore in batches 
+	 * at most this period apart. They are written synchronously if it's 0
+	 */
+	@Value("${" + SETTINGS_ANALYTICS_WRITE_BATCH_PERIOD_MS+ ":0}")
+	private long analyticsWriteBatchPeriodMS;
+
+	/**
+	 * Max number of queued stream info and detection writes in a batch
+	 */
+	@Value("${" + SETTINGS_ANALYTICS_WRITE_BATCH_SIZE+ ":100}")
+	private int analyticsWriteBatchSize;
+
+	/**
+	 * Max number of stream info and detection writes waiting in the queue
+	 */
+	@Value("${" + SETTINGS_ANALYTICS_WRITE_QUEUE_SIZE+ ":10000}")
+	private int analyticsWriteQueueSize;
+
+	/**
+	 * Time a writer waits for space in a full queue before the write is rejected
+	 */
+	@Value("${" + SETTINGS_ANALYTICS_WRITE_OFFER_TIMEOUT_MS+ ":100}")
+	private long analyticsWriteOfferTimeoutMS;
+
 	@JsonIgnore
 	@NotSaved
 	private List<NetMask> allowedPublisherCIDRList = new ArrayList<>();
@@ -1248,5 +1457,197 @@ public class AppSettings {
 		this.disableIPv6Candidates = disableIPv6Candidates;
 	}
 
+	public int getIngestQueueCapacity() {
+		return ingestQueueCapacity;
+	}
+
+	public void setIngestQueueCapacity(int ingestQueueCapacity) {
+		this.ingestQueueCapacity = ingestQueueCapacity;
+	}
+
+	public String getIngestQueueOverflowPolicy() {
+		return ingestQueueOverflowPolicy;
+	}
+
+	public void setIngestQueueOverflowPolicy(String ingestQueueOverflowPolicy) {
+		this.ingestQueueOverflowPolicy = ingestQueueOverflowPolicy;
+	}
+
+	public int getMuxerQueueCapacity() {
+		return muxerQueueCapacity;
+	}
+
+	public void setMuxerQueueCapacity(int muxerQueueCapacity) {
+		this.muxerQueueCapacity = muxerQueueCapacity;
+	}
+
+	public String getMuxerLagPolicy() {
+		return muxerLagPolicy;
+	}
+
+	public void setMuxerLagPolicy(String muxerLagPolicy) {
+		this.muxerLagPolicy = muxerLagPolicy;
+	}
+
+	public long getQualityMaxPublishPeriodMS() {
+		return qualityMaxPublishPeriodMS;
+	}
+
+	public void setQualityMaxPublishPeriodMS(long qualityMaxPublishPeriodMS) {
+		this.qualityMaxPublishPeriodMS = qualityMaxPublishPeriodMS;
+	}
+
+	public boolean isDirectDemuxEnabled() {
+		return directDemuxEnabled;
+	}
+
+	public void setDirectDemuxEnabled(boolean directDemuxEnabled) {
+		this.directDemuxEnabled = directDemuxEnabled;
+	}
+
+	public boolean isMp4FragmentedEnabled() {
+		return mp4FragmentedEnabled;
+	}
+
+	public void setMp4FragmentedEnabled(boolean mp4FragmentedEnabled) {
+		this.mp4FragmentedEnabled = mp4FragmentedEnabled;
+	}
+
+	public boolean isHlsLowLatencyEnabled() {
+		return hlsLowLatencyEnabled;
+	}
+
+	public void setHlsLowLatencyEnabled(boolean hlsLowLatencyEnabled) {
+		this.hlsLowLatencyEnabled = hlsLowLatencyEnabled;
+	}
+
+	public long getHlsPartDurationMS() {
+		return hlsPartDurationMS;
+	}
+
+	public void setHlsPartDurationMS(long hlsPartDurationMS) {
+		this.hlsPartDurationMS = hlsPartDurationMS;
+	}
+
+	public boolean isRtmpAdaptiveChunkSizeEnabled() {
+		return rtmpAdaptiveChunkSizeEnabled;
+	}
+
+	public void setRtmpAdaptiveChunkSizeEnabled(boolean rtmpAdaptiveChunkSizeEnabled) {
+		this.rtmpAdaptiveChunkSizeEnabled = rtmpAdaptiveChunkSizeEnabled;
+	}
+
+	public int getRtmpMinChunkSize() {
+		return rtmpMinChunkSize;
+	}
+
+	public void setRtmpMinChunkSize(int rtmpMinChunkSize) {
+		this.rtmpMinChunkSize = rtmpMinChunkSize;
+	}
+
+	public int getRtmpMaxChunkSize() {
+		return rtmpMaxChunkSize;
+	}
+
+	public void setRtmpMaxChunkSize(int rtmpMaxChunkSize) {
+		this.rtmpMaxChunkSize = rtmpMaxChunkSize;
+	}
+
+	public int getRtmpChunkDurationMS() {
+		return rtmpChunkDurationMS;
+	}
+
+	public void setRtmpChunkDurationMS(int rtmpChunkDurationMS) {
+		this.rtmpChunkDurationMS = rtmpChunkDurationMS;
+	}
+
+	public int getRtmpAggregateWindowMS() {
+		return rtmpAggregateWindowMS;
+	}
+
+	public void setRtmpAggregateWindowMS(int rtmpAggregateWindowMS) {
+		this.rtmpAggregateWindowMS = rtmpAggregateWindowMS;
+	}
+
+	public int getRtmpAggregateMaxSize() {
+		return rtmpAggregateMaxSize;
+	}
+
+	public void setRtmpAggregateMaxSize(int rtmpAggregateMaxSize) {
+		this.rtmpAggregateMaxSize = rtmpAggregateMaxSize;
+	}
+
+	public String getRtmpAggregateClients() {
+		return rtmpAggregateClients;
+	}
+
+	public void setRtmpAggregateClients(String rtmpAggregateClients) {
+		this.rtmpAggregateClients = rtmpAggregateClients;
+	}
+
+	public long getViewerCountFlushPeriodMS() {
+		return viewerCountFlushPeriodMS;
+	}
+
+	public void setViewerCountFlushPeriodMS(long viewerCountFlushPeriodMS) {
+		this.viewerCountFlushPeriodMS = viewerCountFlushPeriodMS;
+	}
+
+	public long getViewerCountMaxPendingDelta() {
+		return viewerCountMaxPendingDelta;
+	}
+
+	public void setViewerCountMaxPendingDelta(long viewerCountMaxPendingDelta) {
+		this.viewerCountMaxPendingDelta = viewerCountMaxPendingDelta;
+	}
+
+	public int getBroadcastCacheSize() {
+		return broadcastCacheSize;
+	}
+
+	public void setBroadcastCacheSize(int broadcastCacheSize) {
+		this.broadcastCacheSize = broadcastCacheSize;
+	}
+
+	public long getBroadcastCacheTtlMS() {
+		return broadcastCacheTtlMS;
+	}
+
+	public void setBroadcastCacheTtlMS(long broadcastCacheTtlMS) {
+		this.broadcastCacheTtlMS = broadcastCacheTtlMS;
+	}
+
+	public long getAnalyticsWriteBatchPeriodMS() {
+		return analyticsWriteBatchPeriodMS;
+	}
+
+	public void setAnalyticsWriteBatchPeriodMS(long analyticsWriteBatchPeriodMS) {
+		this.analyticsWriteBatchPeriodMS = analyticsWriteBatchPeriodMS;
+	}
+
+	public int getAnalyticsWriteBatchSize() {
+		return analyticsWriteBatchSize;
+	}
+
+	public void setAnalyticsWriteBatchSize(int analyticsWriteBatchSize) {
+		this.analyticsWriteBatchSize = analyticsWriteBatchSize;
+	}
+
+	public int getAnalyticsWriteQueueSize() {
+		return analyticsWriteQueueSize;
+	}
+
+	public void setAnalyticsWriteQueueSize(int analyticsWriteQueueSize) {
+		this.analyticsWriteQueueSize = analyticsWriteQueueSize;
+	}
+
+	public long getAnalyticsWriteOfferTimeoutMS() {
+		return analyticsWriteOfferTimeoutMS;
+	}
+
+	public void setAnalyticsWriteOfferTimeoutMS(long analyticsWriteOfferTimeoutMS) {
+		this.analyticsWriteOfferTimeoutMS = analyticsWriteOfferTimeoutMS;
+	}
+
 
 }
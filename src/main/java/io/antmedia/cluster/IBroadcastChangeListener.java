@@ -0,0 +1,10 @@
+package io.antmedia.cluster;
+
+public interface IBroadcastChangeListener 
+{
+	/**
+	 * Called when a broadcast is changed or deleted on another node of the cluster
+	 * @param streamId id of the broadcast
+	 */
+	void broadcastChanged(String streamId);
+}
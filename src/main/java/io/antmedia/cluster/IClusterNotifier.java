@@ -9,5 +9,25 @@ public interface IClusterNotifier {
 	public IClusterStore getClusterStore();
 	
 	public void registerSettingUpdateListener(String appName, IAppSettingsUpdateListener listener);
+
+	/**
+	 * Registers the listener to be notified when a broadcast of the app is changed on another node.
+	 * Default implementation does not notify
+	 * @param appName
+	 * @param listener
+	 */
+	public default void registerBroadcastChangeListener(String appName, IBroadcastChangeListener listener) {
+		//no default implementation
+	}
+
+	/**
+	 * Notifies the other nodes that a broadcast of the app is changed on this node
+	 * so that they drop the cached copies
+	 * @param appName
+	 * @param streamId
+	 */
+	public default void notifyBroadcastChanged(String appName, String streamId) {
+		//no default implementation
+	}
 		
 }
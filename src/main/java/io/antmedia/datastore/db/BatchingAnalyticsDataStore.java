@@ -0,0 +1,436 @@
+package io.antmedia.datastore.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.antmedia.AppSettings;
+import io.antmedia.datastore.db.types.StreamInfo;
+import io.antmedia.datastore.db.types.TensorFlowObject;
+
+/**
+ * Data store layer that writes stream infos and detection results in batches from a single writer thread.
+ *
+ * Writes are put into a bounded queue and the caller does not wait for the data store. The writer takes
+ * the queued writes until the batch size is reached or the batch period is over and writes the stream infos
+ * with {@link DataStore#saveStreamInfoList(List)} or {@link DataStore#addStreamInfoList(List)} calls, one for each run of
+ * them in the queue order, and all detections with one {@link DataStore#saveDetectionList(List)} call.
+ * Saved stream infos keep their semantics, the ones that use the same ports on the same host are removed. So analytics writes do not compete with the broadcast
+ * updates for the data store.
+ *
+ * Async methods return a future that is completed when the write is in the data store. If the queue is full
+ * because the data store lags, the caller waits at most the offer timeout and the write is rejected after that.
+ * Stream info reads and clears wait for the queued writes, detection reads may miss the queued detections.
+ *
+ * @author mekya
+ *
+ */
+public class BatchingAnalyticsDataStore extends DelegatingDataStore {
+
+	private static Logger logger = LoggerFactory.getLogger(BatchingAnalyticsDataStore.class);
+
+	/**
+	 * Max time to wait for the queued writes while reading stream infos or closing
+	 */
+	private static final long FLUSH_TIMEOUT_MS = 5000;
+
+	private static class PendingWrite {
+		final StreamInfo streamInfo;
+		final DetectionRecord detection;
+
+		/**
+		 * True if the stream info is saved, false if it's added to the list
+		 */
+		final boolean save;
+		final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		/**
+		 * Both of them are null for a flush marker
+		 */
+		PendingWrite(StreamInfo streamInfo, DetectionRecord detection) {
+			this(streamInfo, detection, false);
+		}
+
+		PendingWrite(StreamInfo streamInfo, DetectionRecord detection, boolean save) {
+			this.streamInfo = streamInfo;
+			this.detection = detection;
+			this.save = save;
+		}
+	}
+
+	private final BlockingQueue<PendingWrite> queue;
+
+	private final long batchPeriodMs;
+
+	private final int batchSize;
+
+	private final long offerTimeoutMs;
+
+	private final Thread writerThread;
+
+	private volatile boolean running = true;
+
+	private final LongAdder batchCount = new LongAdder();
+
+	private final LongAdder writtenCount = new LongAdder();
+
+	private final LongAdder rejectedCount = new LongAdder();
+
+	private final LongAdder failedCount = new LongAdder();
+
+	/**
+	 * @param delegate data store that the writes are written to
+	 * @param batchPeriodMs max time a write waits for the other writes of its batch
+	 * @param batchSize max number of writes in a batch
+	 * @param queueSize max number of queued writes
+	 * @param offerTimeoutMs max time a caller waits for space in the queue
+	 */
+	public BatchingAnalyticsDataStore(DataStore delegate, long batchPeriodMs, int batchSize, int queueSize, long offerTimeoutMs) {
+		super(delegate);
+		this.batchPeriodMs = batchPeriodMs;
+		this.batchSize = Math.max(batchSize, 1);
+		this.offerTimeoutMs = offerTimeoutMs;
+		this.queue = new ArrayBlockingQueue<>(Math.max(queueSize, 1));
+		writerThread = new Thread(this::writeLoop, "analytics-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Puts the batching layer in front of the data store if it's enabled in the settings
+	 *
+	 * @param dataStore
+	 * @param appSettings
+	 * @return batching data store or the data store itself if analytics write batch period is 0
+	 */
+	public static DataStore wrap(DataStore dataStore, AppSettings appSettings) {
+		if (appSettings.getAnalyticsWriteBatchPeriodMS() > 0) {
+			return new BatchingAnalyticsDataStore(dataStore, appSettings.getAnalyticsWriteBatchPeriodMS(), appSettings.getAnalyticsWriteBatchSize(),
+					appSettings.getAnalyticsWriteQueueSize(), appSettings.getAnalyticsWriteOfferTimeoutMS());
+		}
+		return dataStore;
+	}
+
+	/**
+	 * Queues the stream info
+	 *
+	 * @param streamInfo
+	 * @return future that is completed when the stream info is written
+	 */
+	public CompletableFuture<Void> saveStreamInfoAsync(StreamInfo streamInfo) {
+		return enqueue(new PendingWrite(streamInfo, null, true));
+	}
+
+	/**
+	 * Queues the stream infos to be saved
+	 *
+	 * @param streamInfoList
+	 * @return future that is completed when all stream infos are written
+	 */
+	public CompletableFuture<Void> saveStreamInfoListAsync(List<StreamInfo> streamInfoList) {
+		return enqueueStreamInfos(streamInfoList, true);
+	}
+
+	/**
+	 * Queues the stream infos to be added to the list
+	 *
+	 * @param streamInfoList
+	 * @return future that is completed when all stream infos are written
+	 */
+	public CompletableFuture<Void> addStreamInfoListAsync(List<StreamInfo> streamInfoList) {
+		return enqueueStreamInfos(streamInfoList, false);
+	}
+
+	private CompletableFuture<Void> enqueueStreamInfos(List<StreamInfo> streamInfoList, boolean save) {
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[streamInfoList.size()];
+		for (int i = 0; i < futures.length; i++) {
+			futures[i] = enqueue(new PendingWrite(streamInfoList.get(i), null, save));
+		}
+		return CompletableFuture.allOf(futures);
+	}
+
+	/**
+	 * Queues the detection results
+	 *
+	 * @param id
+	 * @param timeElapsed
+	 * @param detectedObjects
+	 * @return future that is completed when the detection results are written
+	 */
+	public CompletableFuture<Void> saveDetectionAsync(String id, long timeElapsed, List<TensorFlowObject> detectedObjects) {
+		return enqueue(new PendingWrite(null, new DetectionRecord(id, timeElapsed, detectedObjects)));
+	}
+
+	private CompletableFuture<Void> enqueue(PendingWrite write) {
+		boolean queued = false;
+		if (running) {
+			try {
+				queued = queue.offer(write, offerTimeoutMs, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (!queued) {
+			rejectedCount.increment();
+			write.future.completeExceptionally(new RejectedExecutionException(running ? "Analytics write queue is full" : "Data store is closed"));
+		}
+		return write.future;
+	}
+
+	@Override
+	public void saveStreamInfo(StreamInfo streamInfo) {
+		logIfRejected(saveStreamInfoAsync(streamInfo));
+	}
+
+	@Override
+	public void saveStreamInfoList(List<StreamInfo> streamInfoList) {
+		logIfRejected(saveStreamInfoListAsync(streamInfoList));
+	}
+
+	@Override
+	public void addStreamInfoList(List<StreamInfo> streamInfoList) {
+		logIfRejected(addStreamInfoListAsync(streamInfoList));
+	}
+
+	@Override
+	public void saveDetection(String id, long timeElapsed, List<TensorFlowObject> detectedObjects) {
+		logIfRejected(saveDetectionAsync(id, timeElapsed, detectedObjects));
+	}
+
+	@Override
+	public void saveDetectionList(List<DetectionRecord> detectionList) {
+		for (DetectionRecord detection : detectionList) {
+			logIfRejected(enqueue(new PendingWrite(null, detection)));
+		}
+	}
+
+	private static void logIfRejected(CompletableFuture<Void> future) {
+		if (future.isCompletedExceptionally()) {
+			logger.warn("Analytics write is dropped because the data store lags behind");
+		}
+	}
+
+	@Override
+	public List<StreamInfo> getStreamInfoList(String streamId) {
+		flush();
+		return super.getStreamInfoList(streamId);
+	}
+
+	@Override
+	public void clearStreamInfoList(String streamId) {
+		// queued stream infos should not be written after the clear
+		flush();
+		super.clearStreamInfoList(streamId);
+	}
+
+	/**
+	 * Waits until the writes queued before this call are written
+	 *
+	 * @return true if they are written in time
+	 */
+	public boolean flush() {
+		if (Thread.currentThread() == writerThread) {
+			return false;
+		}
+		CompletableFuture<Void> future = enqueue(new PendingWrite(null, null));
+		try {
+			future.get(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			return true;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException | TimeoutException e) {
+			logger.warn("Queued analytics writes are not written in time");
+		}
+		return false;
+	}
+
+	private void writeLoop() {
+		List<PendingWrite> batch = new ArrayList<>(batchSize);
+		while (running || !queue.isEmpty()) {
+			try {
+				PendingWrite first = queue.poll(batchPeriodMs, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchPeriodMs);
+				while (batch.size() < batchSize) {
+					long remaining = deadline - System.nanoTime();
+					PendingWrite next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+					if (next.streamInfo == null && next.detection == null) {
+						// somebody waits for the flush
+						break;
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				running = false;
+			}
+			writeBatch(batch);
+			batch.clear();
+		}
+	}
+
+	private void writeBatch(List<PendingWrite> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		List<PendingWrite> streamInfoWrites = new ArrayList<>();
+		List<PendingWrite> detectionWrites = new ArrayList<>();
+		List<PendingWrite> flushMarkers = new ArrayList<>();
+		for (PendingWrite write : batch) {
+			if (write.streamInfo != null) {
+				streamInfoWrites.add(write);
+			}
+			else if (write.detection != null) {
+				detectionWrites.add(write);
+			}
+			else {
+				flushMarkers.add(write);
+			}
+		}
+
+		// saved stream infos remove the ones that use the same ports, so the runs are written in the queue order
+		int runStart = 0;
+		for (int i = 1; i <= streamInfoWrites.size(); i++) {
+			if (i == streamInfoWrites.size() || streamInfoWrites.get(i).save != streamInfoWrites.get(runStart).save) {
+				writeStreamInfos(streamInfoWrites.subList(runStart, i));
+				runStart = i;
+			}
+		}
+
+		if (!detectionWrites.isEmpty()) {
+			List<DetectionRecord> detectionList = new ArrayList<>(detectionWrites.size());
+			for (PendingWrite write : detectionWrites) {
+				detectionList.add(write.detection);
+			}
+			try {
+				delegate.saveDetectionList(detectionList);
+				complete(detectionWrites, null);
+			}
+			catch (Exception e) {
+				logger.error("Exception while writing {} detection results", detectionList.size(), e);
+				complete(detectionWrites, e);
+			}
+		}
+
+		// flush markers are the last ones in the batch, the writes before them are written
+		for (PendingWrite marker : flushMarkers) {
+			marker.future.complete(null);
+		}
+		batchCount.increment();
+	}
+
+	private void writeStreamInfos(List<PendingWrite> writes) {
+		List<StreamInfo> streamInfoList = new ArrayList<>(writes.size());
+		for (PendingWrite write : writes) {
+			streamInfoList.add(write.streamInfo);
+		}
+		try {
+			if (writes.get(0).save) {
+				delegate.saveStreamInfoList(streamInfoList);
+			}
+			else {
+				delegate.addStreamInfoList(streamInfoList);
+			}
+			complete(writes, null);
+		}
+		catch (Exception e) {
+			logger.error("Exception while writing {} stream infos", streamInfoList.size(), e);
+			complete(writes, e);
+		}
+	}
+
+	private void complete(List<PendingWrite> writes, Exception exception) {
+		for (PendingWrite write : writes) {
+			if (exception == null) {
+				write.future.complete(null);
+			}
+			else {
+				write.future.completeExceptionally(exception);
+			}
+		}
+		if (exception == null) {
+			writtenCount.add(writes.size());
+		}
+		else {
+			failedCount.add(writes.size());
+		}
+	}
+
+	/**
+	 * @return number of writes waiting in the queue
+	 */
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * @return number of batches written
+	 */
+	public long getBatchCount() {
+		return batchCount.sum();
+	}
+
+	/**
+	 * @return number of writes in the data store
+	 */
+	public long getWrittenCount() {
+		return writtenCount.sum();
+	}
+
+	/**
+	 * @return number of writes rejected because the queue is full
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.sum();
+	}
+
+	/**
+	 * @return number of writes failed in the data store
+	 */
+	public long getFailedCount() {
+		return failedCount.sum();
+	}
+
+	@Override
+	public void close() {
+		running = false;
+		// writer is not interrupted not to break a write in progress, it stops after writing the queue
+		try {
+			writerThread.join(FLUSH_TIMEOUT_MS + batchPeriodMs);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (writerThread.isAlive()) {
+			logger.warn("Analytics writer did not stop in time, {} writes are not written", queue.size());
+		}
+		else {
+			// writes queued while the writer was stopping
+			List<PendingWrite> remaining = new ArrayList<>();
+			queue.drainTo(remaining);
+			complete(remaining, new RejectedExecutionException("Data store is closed"));
+		}
+		super.close();
+	}
+
+}
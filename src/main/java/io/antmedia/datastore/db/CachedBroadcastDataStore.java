@@ -0,0 +1,568 @@
+package io.antmedia.datastore.db;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.antmedia.AppSettings;
+import io.antmedia.cluster.IBroadcastChangeListener;
+import io.antmedia.cluster.IClusterNotifier;
+import io.antmedia.datastore.db.types.Broadcast;
+import io.antmedia.datastore.db.types.Endpoint;
+import io.antmedia.statistic.type.StreamQualityStats;
+
+/**
+ * Data store layer that caches the broadcasts read by {@link #get(String)}.
+ *
+ * Reads do not lock, cached broadcasts are kept in a {@link ConcurrentHashMap}.
+ * Cache keeps at most max size broadcasts and evicts a broadcast that is not read since the last eviction round
+ * when it's full. A broadcast expires after the TTL, so changes made by other nodes without a cluster notification
+ * are seen after the TTL at the latest. A broadcast is dropped from the cache when it's changed through this
+ * data store and the other nodes are notified through {@link IClusterNotifier#notifyBroadcastChanged(String, String)}
+ * except for viewer count and quality changes, which are frequent and only expire on the other nodes.
+ * Viewer count changes are added to the cached broadcast instead of dropping it.
+ *
+ * A read that loads a broadcast while it's being changed does not put it into the cache,
+ * so a stale broadcast is never cached after the change.
+ *
+ * Every read returns a copy of the cached broadcast, so callers may modify it.
+ * {@link WriteBehindViewerCountDataStore} should be in front of it if both are used,
+ * so that the viewer counts it writes update the cached broadcasts.
+ *
+ * @author mekya
+ *
+ */
+public class CachedBroadcastDataStore extends DelegatingDataStore implements IBroadcastChangeListener {
+
+	private static Logger logger = LoggerFactory.getLogger(CachedBroadcastDataStore.class);
+
+	/**
+	 * Number of stripes of the change generations, keys sharing a stripe invalidate the loads of each other
+	 */
+	private static final int GENERATION_STRIPES = 256;
+
+	private static class CacheEntry {
+		final String id;
+
+		/**
+		 * Replaced with a changed copy when the viewer counts are updated, it's never modified
+		 */
+		volatile Broadcast broadcast;
+
+		final long expireTime;
+
+		/**
+		 * Value of the change sequence after the broadcast is read from the data store
+		 */
+		final long loadSequence;
+
+		/**
+		 * Set when it's read, an entry that is not read since the last eviction round is evicted
+		 */
+		volatile boolean referenced;
+
+		CacheEntry(String id, Broadcast broadcast, long expireTime, long loadSequence) {
+			this.id = id;
+			this.broadcast = broadcast;
+			this.expireTime = expireTime;
+			this.loadSequence = loadSequence;
+		}
+	}
+
+	private final int maxSize;
+
+	private final long ttlMs;
+
+	private final Map<String, CacheEntry> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * Cached entries in insertion order for the eviction, it may have entries that are already removed from the cache
+	 */
+	private final ArrayDeque<CacheEntry> evictionQueue = new ArrayDeque<>();
+
+	/**
+	 * Incremented when a broadcast is loaded and before its viewer counts are written, it tells
+	 * whether a cached broadcast is read before a viewer count change is written
+	 */
+	private final AtomicLong changeSequence = new AtomicLong();
+
+	/**
+	 * Incremented when a key of the stripe is changed, a load is cached only if the generation of its key does not change
+	 */
+	private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+	private final LongAdder hitCount = new LongAdder();
+
+	private final LongAdder missCount = new LongAdder();
+
+	private final LongAdder evictionCount = new LongAdder();
+
+	private final LongAdder expirationCount = new LongAdder();
+
+	private final LongAdder invalidationCount = new LongAdder();
+
+	private IClusterNotifier clusterNotifier;
+
+	private String appName;
+
+	/**
+	 * @param delegate data store that broadcasts are read from
+	 * @param maxSize max number of cached broadcasts
+	 * @param ttlMs time to live of a cached broadcast in milliseconds
+	 */
+	public CachedBroadcastDataStore(DataStore delegate, int maxSize, long ttlMs) {
+		super(delegate);
+		this.maxSize = maxSize;
+		this.ttlMs = ttlMs;
+	}
+
+	/**
+	 * Puts the cache in front of the data store if it's enabled in the settings
+	 *
+	 * @param dataStore
+	 * @param appSettings
+	 * @param clusterNotifier cluster notifier to invalidate the broadcasts on the other nodes, it may be null
+	 * @param appName name of the app that the data store belongs to
+	 * @return cached data store or the data store itself if broadcast cache size is 0
+	 */
+	public static DataStore wrap(DataStore dataStore, AppSettings appSettings, IClusterNotifier clusterNotifier, String appName) {
+		if (appSettings.getBroadcastCacheSize() > 0) {
+			CachedBroadcastDataStore cachedDataStore = new CachedBroadcastDataStore(dataStore, appSettings.getBroadcastCacheSize(), appSettings.getBroadcastCacheTtlMS());
+			cachedDataStore.setClusterNotifier(clusterNotifier, appName);
+			return cachedDataStore;
+		}
+		return dataStore;
+	}
+
+	/**
+	 * Sets the cluster notifier and registers to be notified about the changes on the other nodes
+	 *
+	 * @param clusterNotifier
+	 * @param appName
+	 */
+	public void setClusterNotifier(IClusterNotifier clusterNotifier, String appName) {
+		this.clusterNotifier = clusterNotifier;
+		this.appName = appName;
+		if (clusterNotifier != null) {
+			clusterNotifier.registerBroadcastChangeListener(appName, this);
+		}
+	}
+
+	@Override
+	public Broadcast get(String id) {
+		if (id == null) {
+			return super.get(id);
+		}
+		long now = System.currentTimeMillis();
+		CacheEntry entry = cache.get(id);
+		if (entry != null) {
+			if (entry.expireTime > now) {
+				hitCount.increment();
+				entry.referenced = true;
+				return entry.broadcast.copy();
+			}
+			if (cache.remove(id, entry)) {
+				expirationCount.increment();
+			}
+		}
+		missCount.increment();
+		int stripe = stripe(id);
+		long generation = generations.get(stripe);
+		Broadcast broadcast = super.get(id);
+		if (broadcast != null) {
+			put(new CacheEntry(id, broadcast.copy(), now + ttlMs, changeSequence.incrementAndGet()), stripe, generation);
+		}
+		return broadcast;
+	}
+
+	/**
+	 * Caches the loaded broadcast if its key is not changed while it's loaded
+	 */
+	private void put(CacheEntry entry, int stripe, long generation) {
+		// invalidation removes the key after changing the generation, so a stale broadcast is either not put or removed
+		CacheEntry cached = cache.compute(entry.id, (id, oldEntry) -> generations.get(stripe) == generation ? entry : oldEntry);
+		if (cached != entry) {
+			return;
+		}
+		synchronized (evictionQueue) {
+			evictionQueue.add(entry);
+			// queue is cleaned from the removed entries when it's twice the max size
+			while (cache.size() > maxSize || evictionQueue.size() > 2 * maxSize) {
+				CacheEntry eldest = evictionQueue.poll();
+				if (eldest == null) {
+					break;
+				}
+				if (cache.get(eldest.id) != eldest) {
+					continue;
+				}
+				if (cache.size() <= maxSize || eldest.referenced) {
+					eldest.referenced = false;
+					evictionQueue.add(eldest);
+				}
+				else if (cache.remove(eldest.id, eldest)) {
+					evictionCount.increment();
+				}
+			}
+		}
+	}
+
+	private static int stripe(String id) {
+		int hash = id.hashCode();
+		return (hash ^ (hash >>> 16)) & (GENERATION_STRIPES - 1);
+	}
+
+	/**
+	 * Drops the broadcast from the cache of this node
+	 *
+	 * @param id
+	 */
+	public void invalidate(String id) {
+		if (id == null) {
+			return;
+		}
+		generations.incrementAndGet(stripe(id));
+		if (cache.remove(id) != null) {
+			invalidationCount.increment();
+		}
+	}
+
+	/**
+	 * Adds the viewer count changes to the cached broadcast. Broadcast is dropped if it's loaded
+	 * while the change is written, since it's not known whether the loaded broadcast has the change.
+	 *
+	 * @param id
+	 * @param writeSequence value of the change sequence before the change is written
+	 */
+	private void addViewerCounts(String id, long writeSequence, int hlsDiff, int webRTCDiff, int rtmpDiff) {
+		if (id == null) {
+			return;
+		}
+		// loads that are in progress are not cached
+		generations.incrementAndGet(stripe(id));
+		boolean[] dropped = new boolean[1];
+		cache.computeIfPresent(id, (key, entry) -> {
+			if (entry.loadSequence > writeSequence) {
+				dropped[0] = true;
+				return null;
+			}
+			Broadcast broadcast = entry.broadcast.copy();
+			broadcast.setHlsViewerCount(broadcast.getHlsViewerCount() + hlsDiff);
+			broadcast.setWebRTCViewerCount(broadcast.getWebRTCViewerCount() + webRTCDiff);
+			broadcast.setRtmpViewerCount(broadcast.getRtmpViewerCount() + rtmpDiff);
+			entry.broadcast = broadcast;
+			return entry;
+		});
+		if (dropped[0]) {
+			invalidationCount.increment();
+		}
+	}
+
+	/**
+	 * Drops the broadcast from the cache of this node and the other nodes
+	 *
+	 * @param id
+	 */
+	private void invalidateInCluster(String id) {
+		invalidate(id);
+		if (clusterNotifier != null && id != null) {
+			try {
+				clusterNotifier.notifyBroadcastChanged(appName, id);
+			}
+			catch (Exception e) {
+				logger.warn("Cluster is not notified about the change of {}", id, e);
+			}
+		}
+	}
+
+	/**
+	 * Drops all broadcasts from the cache
+	 */
+	public void invalidateAll() {
+		for (int i = 0; i < GENERATION_STRIPES; i++) {
+			generations.incrementAndGet(i);
+		}
+		invalidationCount.add(cache.size());
+		cache.clear();
+		synchronized (evictionQueue) {
+			evictionQueue.clear();
+		}
+	}
+
+	@Override
+	public void broadcastChanged(String streamId) {
+		invalidate(streamId);
+	}
+
+	@Override
+	public String save(Broadcast broadcast) {
+		String id = super.save(broadcast);
+		// broadcast may be saved with the id of a deleted one
+		invalidateInCluster(id);
+		return id;
+	}
+
+	@Override
+	public boolean updateStatus(String id, String status) {
+		try {
+			return super.updateStatus(id, status);
+		}
+		finally {
+			invalidateInCluster(id);
+		}
+	}
+
+	@Override
+	public boolean updateBroadcastFields(String streamId, Broadcast broadcast) {
+		try {
+			return super.updateBroadcastFields(streamId, broadcast);
+		}
+		finally {
+			invalidateInCluster(streamId);
+		}
+	}
+
+	@Override
+	public boolean updateDuration(String id, long duration) {
+		try {
+			return super.updateDuration(id, duration);
+		}
+		finally {
+			invalidateInCluster(id);
+		}
+	}
+
+	@Override
+	public boolean addEndpoint(String id, Endpoint endpoint) {
+		try {
+			return super.addEndpoint(id, endpoint);
+		}
+		finally {
+			invalidateInCluster(id);
+		}
+	}
+
+	@Override
+	public boolean removeEndpoint(String id, Endpoint endpoint) {
+		try {
+			return super.removeEndpoint(id, endpoint);
+		}
+		finally {
+			invalidateInCluster(id);
+		}
+	}
+
+	@Override
+	public boolean removeAllEndpoints(String id) {
+		try {
+			return super.removeAllEndpoints(id);
+		}
+		finally {
+			invalidateInCluster(id);
+		}
+	}
+
+	@Override
+	public boolean setMp4Muxing(String streamId, int enabled) {
+		try {
+			return super.setMp4Muxing(streamId, enabled);
+		}
+		finally {
+			invalidateInCluster(streamId);
+		}
+	}
+
+	@Override
+	public boolean delete(String id) {
+		try {
+			return super.delete(id);
+		}
+		finally {
+			invalidateInCluster(id);
+		}
+	}
+
+	@Override
+	protected boolean updateSourceQualityParametersLocal(String id, String quality, double speed, int pendingPacketQueue) {
+		try {
+			return super.updateSourceQualityParametersLocal(id, quality, speed, pendingPacketQueue);
+		}
+		finally {
+			invalidate(id);
+		}
+	}
+
+	@Override
+	protected int updateSourceQualityParametersLocal(List<StreamQualityStats> qualityStatsList) {
+		try {
+			return super.updateSourceQualityParametersLocal(qualityStatsList);
+		}
+		finally {
+			for (StreamQualityStats stats : qualityStatsList) {
+				invalidate(stats.getStreamId());
+			}
+		}
+	}
+
+	@Override
+	protected boolean updateHLSViewerCountLocal(String streamId, int diffCount) {
+		long writeSequence = changeSequence.incrementAndGet();
+		boolean result = super.updateHLSViewerCountLocal(streamId, diffCount);
+		if (result) {
+			addViewerCounts(streamId, writeSequence, diffCount, 0, 0);
+		}
+		return result;
+	}
+
+	@Override
+	protected boolean updateWebRTCViewerCountLocal(String streamId, boolean increment) {
+		long writeSequence = changeSequence.incrementAndGet();
+		boolean result = super.updateWebRTCViewerCountLocal(streamId, increment);
+		if (result) {
+			addViewerCounts(streamId, writeSequence, 0, increment ? 1 : -1, 0);
+		}
+		return result;
+	}
+
+	@Override
+	protected boolean updateRtmpViewerCountLocal(String streamId, boolean increment) {
+		long writeSequence = changeSequence.incrementAndGet();
+		boolean result = super.updateRtmpViewerCountLocal(streamId, increment);
+		if (result) {
+			addViewerCounts(streamId, writeSequence, 0, 0, increment ? 1 : -1);
+		}
+		return result;
+	}
+
+	@Override
+	protected boolean updateWebRTCViewerCountLocal(String streamId, int diffCount) {
+		long writeSequence = changeSequence.incrementAndGet();
+		boolean result = super.updateWebRTCViewerCountLocal(streamId, diffCount);
+		if (result) {
+			addViewerCounts(streamId, writeSequence, 0, diffCount, 0);
+		}
+		else {
+			// some of the viewers may be written if the data store adds them one by one
+			invalidate(streamId);
+		}
+		return result;
+	}
+
+	@Override
+	protected boolean updateRtmpViewerCountLocal(String streamId, int diffCount) {
+		long writeSequence = changeSequence.incrementAndGet();
+		boolean result = super.updateRtmpViewerCountLocal(streamId, diffCount);
+		if (result) {
+			addViewerCounts(streamId, writeSequence, 0, 0, diffCount);
+		}
+		else {
+			// some of the viewers may be written if the data store adds them one by one
+			invalidate(streamId);
+		}
+		return result;
+	}
+
+	@Override
+	protected boolean updateViewerCountsLocal(String streamId, int hlsDiff, int webRTCDiff, int rtmpDiff) {
+		long writeSequence = changeSequence.incrementAndGet();
+		boolean result = super.updateViewerCountsLocal(streamId, hlsDiff, webRTCDiff, rtmpDiff);
+		if (result) {
+			addViewerCounts(streamId, writeSequence, hlsDiff, webRTCDiff, rtmpDiff);
+		}
+		else {
+			// some of the counts may be written
+			invalidate(streamId);
+		}
+		return result;
+	}
+
+	@Override
+	public void clearStreamsOnThisServer(String hostAddress) {
+		try {
+			super.clearStreamsOnThisServer(hostAddress);
+		}
+		finally {
+			invalidateAll();
+		}
+	}
+
+	@Override
+	public void close() {
+		invalidateAll();
+		super.close();
+	}
+
+	/**
+	 * Removes the expired broadcasts from the cache
+	 *
+	 * @return number of removed broadcasts
+	 */
+	public int removeExpired() {
+		long now = System.currentTimeMillis();
+		int count = 0;
+		for (CacheEntry entry : cache.values()) {
+			if (entry.expireTime <= now && cache.remove(entry.id, entry)) {
+				count++;
+			}
+		}
+		expirationCount.add(count);
+		return count;
+	}
+
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	/**
+	 * @return number of broadcasts evicted because the cache is full
+	 */
+	public long getEvictionCount() {
+		return evictionCount.sum();
+	}
+
+	/**
+	 * @return number of broadcasts removed because their TTL is expired
+	 */
+	public long getExpirationCount() {
+		return expirationCount.sum();
+	}
+
+	/**
+	 * @return number of broadcasts removed because they are changed
+	 */
+	public long getInvalidationCount() {
+		return invalidationCount.sum();
+	}
+
+	/**
+	 * @return ratio of the reads served from the cache
+	 */
+	public double getHitRatio() {
+		long hits = hitCount.sum();
+		long total = hits + missCount.sum();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public int getSize() {
+		return cache.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getTtlMs() {
+		return ttlMs;
+	}
+
+}
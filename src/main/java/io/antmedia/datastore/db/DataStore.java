@@ -1,9 +1,10 @@
 package io.antmedia.datastore.db;
 
 import java.io.File;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.TreeMap;
 
 import io.antmedia.datastore.db.types.Broadcast;
 import io.antmedia.datastore.db.types.ConferenceRoom;
@@ -14,6 +15,7 @@ import io.antmedia.datastore.db.types.StreamInfo;
 import io.antmedia.datastore.db.types.TensorFlowObject;
 import io.antmedia.datastore.db.types.Token;
 import io.antmedia.datastore.db.types.VoD;
+import io.antmedia.statistic.type.StreamQualityStats;
 
 public abstract class DataStore {
 
@@ -52,6 +54,31 @@ public abstract class DataStore {
 
 	protected abstract boolean updateSourceQualityParametersLocal(String id, String quality, double speed,  int pendingPacketQueue);
 
+	/**
+	 * Updates quality parameters of multiple streams. 
+	 * Default implementation updates them one by one, implementations should override 
+	 * {@link #updateSourceQualityParametersLocal(List)} to write them in one batch
+	 * 
+	 * @param qualityStatsList
+	 * @return number of updated streams
+	 */
+	public int updateSourceQualityParameters(List<StreamQualityStats> qualityStatsList) {
+		if(writeStatsToDatastore) {
+			return updateSourceQualityParametersLocal(qualityStatsList);
+		}
+		return 0;
+	}
+
+	protected int updateSourceQualityParametersLocal(List<StreamQualityStats> qualityStatsList) {
+		int updateCount = 0;
+		for (StreamQualityStats stats : qualityStatsList) {
+			if (updateSourceQualityParametersLocal(stats.getStreamId(), stats.getQuality(), stats.getSpeed(), stats.getPendingPacketSize())) {
+				updateCount++;
+			}
+		}
+		return updateCount;
+	}
+
 	public abstract boolean updateDuration(String id, long duration);
 
 	public abstract boolean addEndpoint(String id, Endpoint endpoint);
@@ -93,6 +120,18 @@ public abstract class DataStore {
 
 	public abstract void saveDetection(String id,long timeElapsed,List<TensorFlowObject> detectedObjects);
 
+	/**
+	 * Saves the detection results of many images at once. 
+	 * Data stores that can write them in one request should override it
+	 * 
+	 * @param detectionList
+	 */
+	public void saveDetectionList(List<DetectionRecord> detectionList) {
+		for (DetectionRecord detection : detectionList) {
+			saveDetection(detection.getId(), detection.getTimeElapsed(), detection.getDetectedObjects());
+		}
+	}
+
 	public abstract List<TensorFlowObject> getDetectionList(String idFilter, int offsetSize, int batchSize);
 
 	public abstract List<TensorFlowObject> getDetection(String id);
@@ -271,6 +310,75 @@ public abstract class DataStore {
 
 	protected abstract boolean updateRtmpViewerCountLocal(String streamId, boolean increment);
 
+	/**
+	 * Adds the difference to the WebRTC viewer count of the stream.
+	 * Default implementation calls {@link #updateWebRTCViewerCountLocal(String, boolean)} once per viewer, 
+	 * data stores should override it to add the difference in one write
+	 * 
+	 * @param streamId
+	 * @param diffCount difference of the WebRTC viewer count
+	 * @return true if the count is updated
+	 */
+	protected boolean updateWebRTCViewerCountLocal(String streamId, int diffCount) {
+		boolean result = true;
+		for (int i = 0; i < Math.abs(diffCount); i++) {
+			result &= updateWebRTCViewerCountLocal(streamId, diffCount > 0);
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the difference to the RTMP viewer count of the stream.
+	 * Default implementation calls {@link #updateRtmpViewerCountLocal(String, boolean)} once per viewer, 
+	 * data stores should override it to add the difference in one write
+	 * 
+	 * @param streamId
+	 * @param diffCount difference of the RTMP viewer count
+	 * @return true if the count is updated
+	 */
+	protected boolean updateRtmpViewerCountLocal(String streamId, int diffCount) {
+		boolean result = true;
+		for (int i = 0; i < Math.abs(diffCount); i++) {
+			result &= updateRtmpViewerCountLocal(streamId, diffCount > 0);
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the differences to the HLS, WebRTC and RTMP viewer counts of the stream in one update.
+	 * Default implementation updates them one by one with {@link #updateHLSViewerCountLocal(String, int)},
+	 * {@link #updateWebRTCViewerCountLocal(String, int)} and {@link #updateRtmpViewerCountLocal(String, int)}.
+	 * Data stores should override {@link #updateViewerCountsLocal(String, int, int, int)} to write them in one operation
+	 * or at least override the methods that add a difference, otherwise a flush of the pending viewer counts 
+	 * causes a write per viewer
+	 * 
+	 * @param streamId
+	 * @param hlsDiff difference of the HLS viewer count
+	 * @param webRTCDiff difference of the WebRTC viewer count
+	 * @param rtmpDiff difference of the RTMP viewer count
+	 * @return true if the counts are updated
+	 */
+	public boolean updateViewerCounts(String streamId, int hlsDiff, int webRTCDiff, int rtmpDiff) {
+		if (writeStatsToDatastore) {
+			return updateViewerCountsLocal(streamId, hlsDiff, webRTCDiff, rtmpDiff);
+		}
+		return false;
+	}
+
+	protected boolean updateViewerCountsLocal(String streamId, int hlsDiff, int webRTCDiff, int rtmpDiff) {
+		boolean result = true;
+		if (hlsDiff != 0) {
+			result &= updateHLSViewerCountLocal(streamId, hlsDiff);
+		}
+		if (webRTCDiff != 0) {
+			result &= updateWebRTCViewerCountLocal(streamId, webRTCDiff);
+		}
+		if (rtmpDiff != 0) {
+			result &= updateRtmpViewerCountLocal(streamId, rtmpDiff);
+		}
+		return result;
+	}
+
 	
 	/**
 	 * Saves the stream info to the db
@@ -284,6 +392,18 @@ public abstract class DataStore {
 	 */
 	public abstract  void addStreamInfoList(List<StreamInfo> streamInfoList);
 
+	/**
+	 * Saves the stream infos like {@link #saveStreamInfo(StreamInfo)} does for each of them, so the stream infos 
+	 * that use the same ports on the same host are removed. Data stores that can write them in one request should override it
+	 * 
+	 * @param streamInfoList
+	 */
+	public void saveStreamInfoList(List<StreamInfo> streamInfoList) {
+		for (StreamInfo streamInfo : streamInfoList) {
+			saveStreamInfo(streamInfo);
+		}
+	}
+
 	/**
 	 * Returns stream info list added to db
 	 * @param streamId
@@ -407,38 +527,121 @@ public abstract class DataStore {
 		return getActiveBroadcastCount();
 	}
 	
+	/**
+	 * Sorts the VoD list and returns the page in it. Sort keys are computed once for each VoD 
+	 * and only the VoDs up to the end of the page are sorted
+	 * 
+	 * @param vodList all VoDs, it's not modified
+	 * @param offset
+	 * @param size
+	 * @param sortBy can get "name" or "date" values
+	 * @param orderBy can get "desc" or "asc"
+	 * @return VoDs in the page
+	 */
 	protected List<VoD> sortAndCropVodList(List<VoD> vodList, int offset, int size, String sortBy, String orderBy) {
-		if(sortBy != null && orderBy != null && !sortBy.isEmpty() && !orderBy.isEmpty()) {
-			Collections.sort(vodList, new Comparator<VoD>() {
-				@Override
-				public int compare(VoD vod1, VoD vod2) {
-					Comparable c1 = null;
-					Comparable c2 = null;
-					if(sortBy.contentEquals("name")) {
-						c1 = vod1.getVodName().toLowerCase();
-						c2 = vod2.getVodName().toLowerCase();
-					}
-					else if(sortBy.contentEquals("date")) {
-						c1 = new Long(vod1.getCreationDate());
-						c2 = new Long(vod2.getCreationDate());
-					}
-					
-					if(orderBy.contentEquals("desc")) {
-						return c2.compareTo(c1);
-					}
-					return c1.compareTo(c2);
-				}
-			});
-		}
-		
 		if (size > MAX_ITEM_IN_ONE_LIST) {
 			size = MAX_ITEM_IN_ONE_LIST;
 		}
 		if (offset < 0) {
 			offset = 0;
 		}
+		if (size <= 0 || offset >= vodList.size()) {
+			return new ArrayList<>();
+		}
+		
+		Comparator<VoDSortIndex.SortKey> order = null;
+		if (orderBy != null && !orderBy.isEmpty()) {
+			order = VoDSortIndex.listOrder(sortBy, orderBy);
+		}
+		if (order == null) {
+			return new ArrayList<>(vodList.subList(offset, Math.min(offset+size, vodList.size())));
+		}
+		
+		//keys are computed once and only the first offset+size VoDs are kept
+		TreeMap<VoDSortIndex.SortKey, VoD> sorted = new TreeMap<>(order);
+		int limit = offset + size;
+		for (int i = 0; i < vodList.size(); i++) {
+			VoD vod = vodList.get(i);
+			VoDSortIndex.SortKey key = new VoDSortIndex.SortKey(vod, i);
+			if (sorted.size() < limit) {
+				sorted.put(key, vod);
+			}
+			else if (order.compare(key, sorted.lastKey()) < 0) {
+				sorted.pollLastEntry();
+				sorted.put(key, vod);
+			}
+		}
 		
-		return vodList.subList(offset, Math.min(offset+size, vodList.size()));
+		List<VoD> page = new ArrayList<>(size);
+		int index = 0;
+		for (VoD vod : sorted.values()) {
+			if (index++ >= offset) {
+				page.add(vod);
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Returns the VoDs after the cursor in order. It's the keyset pagination version of 
+	 * {@link #getVodList(int, int, String, String)}. The cursor is the sort key and the id of the last VoD
+	 * of the previous page, so VoDs with the same name or date are ordered by id and paging goes on
+	 * if the last VoD is deleted in the meantime.
+	 * 
+	 * Default implementation binary searches the cursor in the sorted {@link #getVodList(int, int, String, String)} 
+	 * and reads the page from there, see {@link VoDSortIndex#getListAfter(DataStore, VoD, int, String, String)}. 
+	 * Data stores that can query the sort key and the id of the cursor should override it
+	 * 
+	 * @param lastVod last VoD of the previous page, null for the first page
+	 * @param size batch size
+	 * @param sortBy can get "name" or "date" values, VoDs are ordered by date otherwise
+	 * @param orderBy can get "desc" or "asc"
+	 * @return VoDs after the cursor
+	 */
+	public List<VoD> getVodListAfter(VoD lastVod, int size, String sortBy, String orderBy) {
+		return VoDSortIndex.getListAfter(this, lastVod, size, sortBy, orderBy);
+	}
+
+	/**
+	 * Returns the broadcasts after the cursor ordered by stream id. It's the keyset pagination version of 
+	 * {@link #filterBroadcastList(int, int, String)}. Paging goes on if the cursor broadcast is deleted in the meantime.
+	 * 
+	 * Default implementation reads the list once and keeps the first size broadcasts after the cursor,
+	 * data stores that have an index on stream id override it to seek to the cursor
+	 * 
+	 * @param lastStreamId stream id of the last broadcast of the previous page, null for the first page
+	 * @param size batch size
+	 * @param type type of the broadcasts
+	 * @return broadcasts after the cursor
+	 */
+	public List<Broadcast> filterBroadcastListAfter(String lastStreamId, int size, String type) {
+		if (size > MAX_ITEM_IN_ONE_LIST) {
+			size = MAX_ITEM_IN_ONE_LIST;
+		}
+		if (size <= 0) {
+			return new ArrayList<>();
+		}
+		TreeMap<String, Broadcast> sorted = new TreeMap<>();
+		int offset = 0;
+		List<Broadcast> page;
+		do {
+			page = filterBroadcastList(offset, MAX_ITEM_IN_ONE_LIST, type);
+			for (Broadcast broadcast : page) {
+				String streamId = broadcast.getStreamId();
+				if (streamId == null || (lastStreamId != null && streamId.compareTo(lastStreamId) <= 0)) {
+					continue;
+				}
+				if (sorted.size() < size) {
+					sorted.put(streamId, broadcast);
+				}
+				else if (streamId.compareTo(sorted.lastKey()) < 0) {
+					sorted.pollLastEntry();
+					sorted.put(streamId, broadcast);
+				}
+			}
+			offset += page.size();
+		} while (!page.isEmpty());
+		return new ArrayList<>(sorted.values());
 	}
 
 	/**
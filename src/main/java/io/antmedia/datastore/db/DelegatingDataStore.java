@@ -0,0 +1,353 @@
+package io.antmedia.datastore.db;
+
+import java.io.File;
+import java.util.List;
+
+import io.antmedia.datastore.db.types.Broadcast;
+import io.antmedia.datastore.db.types.ConferenceRoom;
+import io.antmedia.datastore.db.types.Endpoint;
+import io.antmedia.datastore.db.types.P2PConnection;
+import io.antmedia.datastore.db.types.SocialEndpointCredentials;
+import io.antmedia.datastore.db.types.StreamInfo;
+import io.antmedia.datastore.db.types.TensorFlowObject;
+import io.antmedia.datastore.db.types.Token;
+import io.antmedia.datastore.db.types.VoD;
+import io.antmedia.statistic.type.StreamQualityStats;
+
+/**
+ * Data store that forwards every call to another data store.
+ * Layers in front of a data store like caches extend it and override only the methods they change
+ *
+ * @author mekya
+ *
+ */
+public class DelegatingDataStore extends DataStore {
+
+	protected final DataStore delegate;
+
+	public DelegatingDataStore(DataStore delegate) {
+		this.delegate = delegate;
+		super.setWriteStatsToDatastore(delegate.isWriteStatsToDatastore());
+	}
+
+	public DataStore getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public void setWriteStatsToDatastore(boolean writeStatsToDatastore) {
+		super.setWriteStatsToDatastore(writeStatsToDatastore);
+		delegate.setWriteStatsToDatastore(writeStatsToDatastore);
+	}
+
+	@Override
+	public String save(Broadcast broadcast) {
+		return delegate.save(broadcast);
+	}
+
+	@Override
+	public Broadcast get(String id) {
+		return delegate.get(id);
+	}
+
+	@Override
+	public VoD getVoD(String id) {
+		return delegate.getVoD(id);
+	}
+
+	@Override
+	public boolean updateStatus(String id, String status) {
+		return delegate.updateStatus(id, status);
+	}
+
+	@Override
+	protected boolean updateSourceQualityParametersLocal(String id, String quality, double speed, int pendingPacketQueue) {
+		return delegate.updateSourceQualityParametersLocal(id, quality, speed, pendingPacketQueue);
+	}
+
+	@Override
+	protected int updateSourceQualityParametersLocal(List<StreamQualityStats> qualityStatsList) {
+		return delegate.updateSourceQualityParametersLocal(qualityStatsList);
+	}
+
+	@Override
+	public boolean updateDuration(String id, long duration) {
+		return delegate.updateDuration(id, duration);
+	}
+
+	@Override
+	public boolean addEndpoint(String id, Endpoint endpoint) {
+		return delegate.addEndpoint(id, endpoint);
+	}
+
+	@Override
+	public String addVod(VoD vod) {
+		return delegate.addVod(vod);
+	}
+
+	@Override
+	public long getBroadcastCount() {
+		return delegate.getBroadcastCount();
+	}
+
+	@Override
+	public boolean delete(String id) {
+		return delegate.delete(id);
+	}
+
+	@Override
+	public boolean deleteVod(String id) {
+		return delegate.deleteVod(id);
+	}
+
+	@Override
+	public List<Broadcast> getBroadcastList(int offset, int size) {
+		return delegate.getBroadcastList(offset, size);
+	}
+
+	@Override
+	public List<Broadcast> filterBroadcastList(int offset, int size, String type) {
+		return delegate.filterBroadcastList(offset, size, type);
+	}
+
+	@Override
+	public List<Broadcast> filterBroadcastListAfter(String lastStreamId, int size, String type) {
+		return delegate.filterBroadcastListAfter(lastStreamId, size, type);
+	}
+
+	@Override
+	public boolean removeEndpoint(String id, Endpoint endpoint) {
+		return delegate.removeEndpoint(id, endpoint);
+	}
+
+	@Override
+	public List<Broadcast> getExternalStreamsList() {
+		return delegate.getExternalStreamsList();
+	}
+
+	@Override
+	public void close() {
+		delegate.close();
+	}
+
+	@Override
+	public List<VoD> getVodList(int offset, int size, String sortBy, String orderBy) {
+		return delegate.getVodList(offset, size, sortBy, orderBy);
+	}
+
+	@Override
+	public List<VoD> getVodListAfter(VoD lastVod, int size, String sortBy, String orderBy) {
+		return delegate.getVodListAfter(lastVod, size, sortBy, orderBy);
+	}
+
+	@Override
+	public boolean removeAllEndpoints(String id) {
+		return delegate.removeAllEndpoints(id);
+	}
+
+	@Override
+	public long getTotalVodNumber() {
+		return delegate.getTotalVodNumber();
+	}
+
+	@Override
+	public long getTotalBroadcastNumber() {
+		return delegate.getTotalBroadcastNumber();
+	}
+
+	@Override
+	public void saveDetection(String id, long timeElapsed, List<TensorFlowObject> detectedObjects) {
+		delegate.saveDetection(id, timeElapsed, detectedObjects);
+	}
+
+	@Override
+	public void saveDetectionList(List<DetectionRecord> detectionList) {
+		delegate.saveDetectionList(detectionList);
+	}
+
+	@Override
+	public List<TensorFlowObject> getDetectionList(String idFilter, int offsetSize, int batchSize) {
+		return delegate.getDetectionList(idFilter, offsetSize, batchSize);
+	}
+
+	@Override
+	public List<TensorFlowObject> getDetection(String id) {
+		return delegate.getDetection(id);
+	}
+
+	@Override
+	public boolean saveToken(Token token) {
+		return delegate.saveToken(token);
+	}
+
+	@Override
+	public List<Token> listAllTokens(String streamId, int offset, int size) {
+		return delegate.listAllTokens(streamId, offset, size);
+	}
+
+	@Override
+	public Token validateToken(Token token) {
+		return delegate.validateToken(token);
+	}
+
+	@Override
+	public boolean revokeTokens(String streamId) {
+		return delegate.revokeTokens(streamId);
+	}
+
+	@Override
+	public boolean deleteToken(String tokenId) {
+		return delegate.deleteToken(tokenId);
+	}
+
+	@Override
+	public Token getToken(String tokenId) {
+		return delegate.getToken(tokenId);
+	}
+
+	@Override
+	public boolean setMp4Muxing(String streamId, int enabled) {
+		return delegate.setMp4Muxing(streamId, enabled);
+	}
+
+	@Override
+	public int fetchUserVodList(File filedir) {
+		return delegate.fetchUserVodList(filedir);
+	}
+
+	@Override
+	public SocialEndpointCredentials addSocialEndpointCredentials(SocialEndpointCredentials credentials) {
+		return delegate.addSocialEndpointCredentials(credentials);
+	}
+
+	@Override
+	public List<SocialEndpointCredentials> getSocialEndpoints(int offset, int size) {
+		return delegate.getSocialEndpoints(offset, size);
+	}
+
+	@Override
+	public boolean removeSocialEndpointCredentials(String id) {
+		return delegate.removeSocialEndpointCredentials(id);
+	}
+
+	@Override
+	public SocialEndpointCredentials getSocialEndpointCredentials(String id) {
+		return delegate.getSocialEndpointCredentials(id);
+	}
+
+	@Override
+	public long getActiveBroadcastCount() {
+		return delegate.getActiveBroadcastCount();
+	}
+
+	@Override
+	public boolean updateBroadcastFields(String streamId, Broadcast broadcast) {
+		return delegate.updateBroadcastFields(streamId, broadcast);
+	}
+
+	@Override
+	protected boolean updateHLSViewerCountLocal(String streamId, int diffCount) {
+		return delegate.updateHLSViewerCountLocal(streamId, diffCount);
+	}
+
+	@Override
+	public long getObjectDetectedTotal(String streamId) {
+		return delegate.getObjectDetectedTotal(streamId);
+	}
+
+	@Override
+	protected boolean updateWebRTCViewerCountLocal(String streamId, boolean increment) {
+		return delegate.updateWebRTCViewerCountLocal(streamId, increment);
+	}
+
+	@Override
+	protected boolean updateRtmpViewerCountLocal(String streamId, boolean increment) {
+		return delegate.updateRtmpViewerCountLocal(streamId, increment);
+	}
+
+	@Override
+	protected boolean updateWebRTCViewerCountLocal(String streamId, int diffCount) {
+		return delegate.updateWebRTCViewerCountLocal(streamId, diffCount);
+	}
+
+	@Override
+	protected boolean updateRtmpViewerCountLocal(String streamId, int diffCount) {
+		return delegate.updateRtmpViewerCountLocal(streamId, diffCount);
+	}
+
+	@Override
+	protected boolean updateViewerCountsLocal(String streamId, int hlsDiff, int webRTCDiff, int rtmpDiff) {
+		return delegate.updateViewerCountsLocal(streamId, hlsDiff, webRTCDiff, rtmpDiff);
+	}
+
+	@Override
+	public void saveStreamInfo(StreamInfo streamInfo) {
+		delegate.saveStreamInfo(streamInfo);
+	}
+
+	@Override
+	public void addStreamInfoList(List<StreamInfo> streamInfoList) {
+		delegate.addStreamInfoList(streamInfoList);
+	}
+
+	@Override
+	public void saveStreamInfoList(List<StreamInfo> streamInfoList) {
+		delegate.saveStreamInfoList(streamInfoList);
+	}
+
+	@Override
+	public List<StreamInfo> getStreamInfoList(String streamId) {
+		return delegate.getStreamInfoList(streamId);
+	}
+
+	@Override
+	public void clearStreamInfoList(String streamId) {
+		delegate.clearStreamInfoList(streamId);
+	}
+
+	@Override
+	public void clearStreamsOnThisServer(String hostAddress) {
+		delegate.clearStreamsOnThisServer(hostAddress);
+	}
+
+	@Override
+	public boolean createConferenceRoom(ConferenceRoom room) {
+		return delegate.createConferenceRoom(room);
+	}
+
+	@Override
+	public boolean editConferenceRoom(String roomId, ConferenceRoom room) {
+		return delegate.editConferenceRoom(roomId, room);
+	}
+
+	@Override
+	public boolean deleteConferenceRoom(String roomId) {
+		return delegate.deleteConferenceRoom(roomId);
+	}
+
+	@Override
+	public ConferenceRoom getConferenceRoom(String roomId) {
+		return delegate.getConferenceRoom(roomId);
+	}
+
+	@Override
+	public long getLocalLiveBroadcastCount(String hostAddress) {
+		return delegate.getLocalLiveBroadcastCount(hostAddress);
+	}
+
+	@Override
+	public boolean createP2PConnection(P2PConnection conn) {
+		return delegate.createP2PConnection(conn);
+	}
+
+	@Override
+	public P2PConnection getP2PConnection(String streamId) {
+		return delegate.getP2PConnection(streamId);
+	}
+
+	@Override
+	public boolean deleteP2PConnection(String streamId) {
+		return delegate.deleteP2PConnection(streamId);
+	}
+
+}
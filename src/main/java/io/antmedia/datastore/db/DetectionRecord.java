@@ -0,0 +1,44 @@
+package io.antmedia.datastore.db;
+
+import java.util.List;
+
+import io.antmedia.datastore.db.types.TensorFlowObject;
+
+/**
+ * Detection results of an image, the arguments of {@link DataStore#saveDetection(String, long, List)}
+ * 
+ * @author mekya
+ *
+ */
+public class DetectionRecord {
+
+	private final String id;
+	
+	private final long timeElapsed;
+	
+	private final List<TensorFlowObject> detectedObjects;
+	
+	/**
+	 * @param id id of the image
+	 * @param timeElapsed detection time
+	 * @param detectedObjects
+	 */
+	public DetectionRecord(String id, long timeElapsed, List<TensorFlowObject> detectedObjects) {
+		this.id = id;
+		this.timeElapsed = timeElapsed;
+		this.detectedObjects = detectedObjects;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public long getTimeElapsed() {
+		return timeElapsed;
+	}
+
+	public List<TensorFlowObject> getDetectedObjects() {
+		return detectedObjects;
+	}
+
+}
@@ -0,0 +1,624 @@
+package io.antmedia.datastore.db;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.antmedia.datastore.db.types.Broadcast;
+import io.antmedia.datastore.db.types.BroadcastStatus;
+import io.antmedia.datastore.db.types.ConferenceRoom;
+import io.antmedia.datastore.db.types.Endpoint;
+import io.antmedia.datastore.db.types.P2PConnection;
+import io.antmedia.datastore.db.types.SocialEndpointCredentials;
+import io.antmedia.datastore.db.types.StreamInfo;
+import io.antmedia.datastore.db.types.TensorFlowObject;
+import io.antmedia.datastore.db.types.Token;
+import io.antmedia.datastore.db.types.VoD;
+import io.antmedia.statistic.type.StreamQualityStats;
+
+/**
+ * Data store that keeps everything in memory. It's used in tests and when there is no database.
+ *
+ * Every operation holds the lock of the data store, so batch updates take the lock once for the whole batch
+ *
+ * @author mekya
+ *
+ */
+public class InMemoryDataStore extends DataStore {
+
+	protected static Logger logger = LoggerFactory.getLogger(InMemoryDataStore.class);
+
+	private static final String[] VOD_EXTENSIONS = {"mp4", "flv", "mkv"};
+
+	private final Map<String, Broadcast> broadcastMap = new LinkedHashMap<>();
+
+	private final VoDSortIndex vodIndex = new VoDSortIndex();
+
+	private final Map<String, List<TensorFlowObject>> detectionMap = new LinkedHashMap<>();
+
+	private final Map<String, SocialEndpointCredentials> socialEndpointCredentialsMap = new LinkedHashMap<>();
+
+	private final Map<String, Token> tokenMap = new LinkedHashMap<>();
+
+	private final Map<String, ConferenceRoom> roomMap = new LinkedHashMap<>();
+
+	private final Map<String, P2PConnection> p2pMap = new LinkedHashMap<>();
+
+	private final List<StreamInfo> streamInfoList = new ArrayList<>();
+
+	public InMemoryDataStore(String dbName) {
+		logger.info("In memory data store is created for {}", dbName);
+	}
+
+	@Override
+	public synchronized String save(Broadcast broadcast) {
+		if (broadcast == null) {
+			return null;
+		}
+		try {
+			if (broadcast.getStreamId() == null || broadcast.getStreamId().isEmpty()) {
+				broadcast.setStreamId(RandomStringUtils.randomAlphanumeric(12) + System.currentTimeMillis());
+			}
+			broadcastMap.put(broadcast.getStreamId(), broadcast);
+			return broadcast.getStreamId();
+		} catch (Exception e) {
+			logger.error("Broadcast cannot be saved", e);
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized Broadcast get(String id) {
+		return id != null ? broadcastMap.get(id) : null;
+	}
+
+	@Override
+	public synchronized VoD getVoD(String id) {
+		return vodIndex.get(id);
+	}
+
+	@Override
+	public synchronized boolean updateStatus(String id, String status) {
+		Broadcast broadcast = get(id);
+		if (broadcast == null) {
+			return false;
+		}
+		broadcast.setStatus(status);
+		if (BroadcastStatus.LIVE_NOW.equals(status)) {
+			broadcast.setStartTime(System.currentTimeMillis());
+		}
+		return true;
+	}
+
+	@Override
+	protected synchronized boolean updateSourceQualityParametersLocal(String id, String quality, double speed, int pendingPacketQueue) {
+		Broadcast broadcast = get(id);
+		if (broadcast == null) {
+			return false;
+		}
+		if (quality != null) {
+			broadcast.setQuality(quality);
+		}
+		broadcast.setSpeed(speed);
+		broadcast.setPendingPacketSize(pendingPacketQueue);
+		return true;
+	}
+
+	@Override
+	protected synchronized int updateSourceQualityParametersLocal(List<StreamQualityStats> qualityStatsList) {
+		int updateCount = 0;
+		for (StreamQualityStats stats : qualityStatsList) {
+			Broadcast broadcast = broadcastMap.get(stats.getStreamId());
+			if (broadcast != null) {
+				if (stats.getQuality() != null) {
+					broadcast.setQuality(stats.getQuality());
+				}
+				broadcast.setSpeed(stats.getSpeed());
+				broadcast.setPendingPacketSize(stats.getPendingPacketSize());
+				updateCount++;
+			}
+		}
+		return updateCount;
+	}
+
+	@Override
+	public synchronized boolean updateDuration(String id, long duration) {
+		Broadcast broadcast = get(id);
+		if (broadcast == null) {
+			return false;
+		}
+		broadcast.setDuration(duration);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean addEndpoint(String id, Endpoint endpoint) {
+		Broadcast broadcast = get(id);
+		if (broadcast == null || endpoint == null) {
+			return false;
+		}
+		List<Endpoint> endPointList = broadcast.getEndPointList();
+		if (endPointList == null) {
+			endPointList = new ArrayList<>();
+		}
+		endPointList.add(endpoint);
+		broadcast.setEndPointList(endPointList);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean removeEndpoint(String id, Endpoint endpoint) {
+		Broadcast broadcast = get(id);
+		if (broadcast == null || endpoint == null || broadcast.getEndPointList() == null) {
+			return false;
+		}
+		Iterator<Endpoint> iterator = broadcast.getEndPointList().iterator();
+		while (iterator.hasNext()) {
+			Endpoint item = iterator.next();
+			if (item.getRtmpUrl() != null && item.getRtmpUrl().equals(endpoint.getRtmpUrl())) {
+				iterator.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized boolean removeAllEndpoints(String id) {
+		Broadcast broadcast = get(id);
+		if (broadcast == null) {
+			return false;
+		}
+		broadcast.setEndPointList(null);
+		return true;
+	}
+
+	@Override
+	public synchronized String addVod(VoD vod) {
+		if (vod == null) {
+			return null;
+		}
+		if (vod.getVodId() == null) {
+			vod.setVodId(RandomStringUtils.randomNumeric(24));
+		}
+		vodIndex.add(vod);
+		return vod.getVodId();
+	}
+
+	@Override
+	public synchronized long getBroadcastCount() {
+		return broadcastMap.size();
+	}
+
+	@Override
+	public synchronized boolean delete(String id) {
+		return id != null && broadcastMap.remove(id) != null;
+	}
+
+	@Override
+	public synchronized boolean deleteVod(String id) {
+		return vodIndex.remove(id) != null;
+	}
+
+	@Override
+	public synchronized List<Broadcast> getBroadcastList(int offset, int size) {
+		return page(new ArrayList<>(broadcastMap.values()), offset, size);
+	}
+
+	@Override
+	public synchronized List<Broadcast> filterBroadcastList(int offset, int size, String type) {
+		List<Broadcast> list = new ArrayList<>();
+		for (Broadcast broadcast : broadcastMap.values()) {
+			if (type == null || type.equals(broadcast.getType())) {
+				list.add(broadcast);
+			}
+		}
+		return page(list, offset, size);
+	}
+
+	private static <T> List<T> page(List<T> list, int offset, int size) {
+		if (size > MAX_ITEM_IN_ONE_LIST) {
+			size = MAX_ITEM_IN_ONE_LIST;
+		}
+		if (offset < 0) {
+			offset = 0;
+		}
+		if (size <= 0 || offset >= list.size()) {
+			return new ArrayList<>();
+		}
+		return new ArrayList<>(list.subList(offset, Math.min(offset + size, list.size())));
+	}
+
+	@Override
+	public synchronized List<Broadcast> getExternalStreamsList() {
+		List<Broadcast> list = new ArrayList<>();
+		for (Broadcast broadcast : broadcastMap.values()) {
+			if (("ipCamera".equals(broadcast.getType()) || "streamSource".equals(broadcast.getType()))
+					&& !BroadcastStatus.LIVE_NOW.equals(broadcast.getStatus())) {
+				list.add(broadcast);
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public synchronized void close() {
+		broadcastMap.clear();
+	}
+
+	@Override
+	public synchronized List<VoD> getVodList(int offset, int size, String sortBy, String orderBy) {
+		return vodIndex.getList(offset, size, sortBy, orderBy);
+	}
+
+	@Override
+	public synchronized List<VoD> getVodListAfter(VoD lastVod, int size, String sortBy, String orderBy) {
+		return vodIndex.getListAfter(lastVod, size, sortBy, orderBy);
+	}
+
+	@Override
+	public synchronized long getTotalVodNumber() {
+		return vodIndex.size();
+	}
+
+	@Override
+	public synchronized long getTotalBroadcastNumber() {
+		return broadcastMap.size();
+	}
+
+	@Override
+	public synchronized void saveDetection(String id, long timeElapsed, List<TensorFlowObject> detectedObjects) {
+		if (detectedObjects == null) {
+			return;
+		}
+		for (TensorFlowObject detectedObject : detectedObjects) {
+			detectedObject.setDetectionTime(timeElapsed);
+		}
+		detectionMap.put(id, detectedObjects);
+	}
+
+	@Override
+	public synchronized List<TensorFlowObject> getDetectionList(String idFilter, int offsetSize, int batchSize) {
+		List<TensorFlowObject> list = new ArrayList<>();
+		for (Map.Entry<String, List<TensorFlowObject>> entry : detectionMap.entrySet()) {
+			if (idFilter == null || entry.getKey().startsWith(idFilter)) {
+				list.addAll(entry.getValue());
+			}
+		}
+		return page(list, offsetSize, batchSize);
+	}
+
+	@Override
+	public synchronized List<TensorFlowObject> getDetection(String id) {
+		return id != null ? detectionMap.get(id) : null;
+	}
+
+	@Override
+	public synchronized long getObjectDetectedTotal(String streamId) {
+		long total = 0;
+		for (Map.Entry<String, List<TensorFlowObject>> entry : detectionMap.entrySet()) {
+			if (entry.getKey().startsWith(streamId)) {
+				total += entry.getValue().size();
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public synchronized boolean saveToken(Token token) {
+		if (token == null || token.getStreamId() == null || token.getTokenId() == null) {
+			return false;
+		}
+		tokenMap.put(token.getTokenId(), token);
+		return true;
+	}
+
+	@Override
+	public synchronized List<Token> listAllTokens(String streamId, int offset, int size) {
+		List<Token> list = new ArrayList<>();
+		for (Token token : tokenMap.values()) {
+			if (token.getStreamId().equals(streamId)) {
+				list.add(token);
+			}
+		}
+		return page(list, offset, size);
+	}
+
+	@Override
+	public synchronized Token validateToken(Token token) {
+		if (token == null || token.getTokenId() == null) {
+			return null;
+		}
+		Token fetchedToken = tokenMap.get(token.getTokenId());
+		if (fetchedToken != null && fetchedToken.getType().equals(token.getType())
+				&& fetchedToken.getStreamId().equals(token.getStreamId())
+				&& fetchedToken.getExpireDate() > System.currentTimeMillis() / 1000) {
+			// tokens are one-time
+			tokenMap.remove(token.getTokenId());
+			return fetchedToken;
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized boolean revokeTokens(String streamId) {
+		return tokenMap.values().removeIf(token -> token.getStreamId().equals(streamId));
+	}
+
+	@Override
+	public synchronized boolean deleteToken(String tokenId) {
+		return tokenId != null && tokenMap.remove(tokenId) != null;
+	}
+
+	@Override
+	public synchronized Token getToken(String tokenId) {
+		return tokenId != null ? tokenMap.get(tokenId) : null;
+	}
+
+	@Override
+	public synchronized boolean setMp4Muxing(String streamId, int enabled) {
+		Broadcast broadcast = get(streamId);
+		if (broadcast == null || enabled < -1 || enabled > 1) {
+			return false;
+		}
+		broadcast.setMp4Enabled(enabled);
+		return true;
+	}
+
+	@Override
+	public synchronized int fetchUserVodList(File filedir) {
+		if (filedir == null) {
+			return 0;
+		}
+		vodIndex.removeIf(vod -> VoD.USER_VOD.equals(vod.getType()));
+
+		File[] files = filedir.listFiles();
+		if (files == null) {
+			return 0;
+		}
+		int numberOfSavedFiles = 0;
+		for (File file : files) {
+			String fileName = file.getName();
+			int dotIndex = fileName.lastIndexOf('.');
+			if (!file.isFile() || dotIndex <= 0 || !isVodExtension(fileName.substring(dotIndex + 1))) {
+				continue;
+			}
+			String vodId = RandomStringUtils.randomNumeric(24);
+			VoD vod = new VoD("vodFile", "vodFile", filedir.getName() + "/" + fileName, fileName, file.lastModified(), 0,
+					file.length(), VoD.USER_VOD, vodId);
+			addVod(vod);
+			numberOfSavedFiles++;
+		}
+		return numberOfSavedFiles;
+	}
+
+	private static boolean isVodExtension(String extension) {
+		for (String vodExtension : VOD_EXTENSIONS) {
+			if (vodExtension.equalsIgnoreCase(extension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized SocialEndpointCredentials addSocialEndpointCredentials(SocialEndpointCredentials credentials) {
+		if (credentials == null || credentials.getAccountName() == null || credentials.getAccessToken() == null
+				|| credentials.getServiceName() == null) {
+			return null;
+		}
+		if (credentials.getId() == null) {
+			credentials.setId(RandomStringUtils.randomAlphanumeric(6));
+		}
+		socialEndpointCredentialsMap.put(credentials.getId(), credentials);
+		return credentials;
+	}
+
+	@Override
+	public synchronized List<SocialEndpointCredentials> getSocialEndpoints(int offset, int size) {
+		return page(new ArrayList<>(socialEndpointCredentialsMap.values()), offset, size);
+	}
+
+	@Override
+	public synchronized boolean removeSocialEndpointCredentials(String id) {
+		return id != null && socialEndpointCredentialsMap.remove(id) != null;
+	}
+
+	@Override
+	public synchronized SocialEndpointCredentials getSocialEndpointCredentials(String id) {
+		return id != null ? socialEndpointCredentialsMap.get(id) : null;
+	}
+
+	@Override
+	public synchronized long getActiveBroadcastCount() {
+		long activeBroadcastCount = 0;
+		for (Broadcast broadcast : broadcastMap.values()) {
+			if (BroadcastStatus.LIVE_NOW.equals(broadcast.getStatus())) {
+				activeBroadcastCount++;
+			}
+		}
+		return activeBroadcastCount;
+	}
+
+	@Override
+	public synchronized boolean updateBroadcastFields(String streamId, Broadcast broadcast) {
+		Broadcast oldBroadcast = get(streamId);
+		if (oldBroadcast == null) {
+			return false;
+		}
+		updateStreamInfo(oldBroadcast, broadcast);
+		return true;
+	}
+
+	@Override
+	protected synchronized boolean updateHLSViewerCountLocal(String streamId, int diffCount) {
+		Broadcast broadcast = get(streamId);
+		if (broadcast == null) {
+			return false;
+		}
+		broadcast.setHlsViewerCount(broadcast.getHlsViewerCount() + diffCount);
+		return true;
+	}
+
+	@Override
+	protected synchronized boolean updateWebRTCViewerCountLocal(String streamId, boolean increment) {
+		Broadcast broadcast = get(streamId);
+		if (broadcast == null) {
+			return false;
+		}
+		broadcast.setWebRTCViewerCount(broadcast.getWebRTCViewerCount() + (increment ? 1 : -1));
+		return true;
+	}
+
+	@Override
+	protected synchronized boolean updateRtmpViewerCountLocal(String streamId, boolean increment) {
+		Broadcast broadcast = get(streamId);
+		if (broadcast == null) {
+			return false;
+		}
+		broadcast.setRtmpViewerCount(broadcast.getRtmpViewerCount() + (increment ? 1 : -1));
+		return true;
+	}
+
+	@Override
+	protected synchronized boolean updateWebRTCViewerCountLocal(String streamId, int diffCount) {
+		Broadcast broadcast = get(streamId);
+		if (broadcast == null) {
+			return false;
+		}
+		broadcast.setWebRTCViewerCount(broadcast.getWebRTCViewerCount() + diffCount);
+		return true;
+	}
+
+	@Override
+	protected synchronized boolean updateRtmpViewerCountLocal(String streamId, int diffCount) {
+		Broadcast broadcast = get(streamId);
+		if (broadcast == null) {
+			return false;
+		}
+		broadcast.setRtmpViewerCount(broadcast.getRtmpViewerCount() + diffCount);
+		return true;
+	}
+
+	@Override
+	protected synchronized boolean updateViewerCountsLocal(String streamId, int hlsDiff, int webRTCDiff, int rtmpDiff) {
+		Broadcast broadcast = get(streamId);
+		if (broadcast == null) {
+			return false;
+		}
+		broadcast.setHlsViewerCount(broadcast.getHlsViewerCount() + hlsDiff);
+		broadcast.setWebRTCViewerCount(broadcast.getWebRTCViewerCount() + webRTCDiff);
+		broadcast.setRtmpViewerCount(broadcast.getRtmpViewerCount() + rtmpDiff);
+		return true;
+	}
+
+	@Override
+	public synchronized void saveStreamInfo(StreamInfo streamInfo) {
+		removeConflictingStreamInfos(streamInfo);
+		streamInfoList.add(streamInfo);
+	}
+
+	@Override
+	public synchronized void saveStreamInfoList(List<StreamInfo> streamInfoList) {
+		for (StreamInfo streamInfo : streamInfoList) {
+			saveStreamInfo(streamInfo);
+		}
+	}
+
+	/**
+	 * Removes the stream infos on the same host that use the video or audio port of the stream info, 
+	 * they belong to the streams that are not closed properly
+	 */
+	private void removeConflictingStreamInfos(StreamInfo streamInfo) {
+		Iterator<StreamInfo> iterator = streamInfoList.iterator();
+		while (iterator.hasNext()) {
+			StreamInfo oldStreamInfo = iterator.next();
+			if (oldStreamInfo.getHost() != null && oldStreamInfo.getHost().equals(streamInfo.getHost())
+					&& (usesPort(oldStreamInfo, streamInfo.getVideoPort()) || usesPort(oldStreamInfo, streamInfo.getAudioPort()))) 
+			{
+				iterator.remove();
+			}
+		}
+	}
+
+	private static boolean usesPort(StreamInfo streamInfo, int port) {
+		return port != 0 && (streamInfo.getVideoPort() == port || streamInfo.getAudioPort() == port);
+	}
+
+	@Override
+	public synchronized void addStreamInfoList(List<StreamInfo> streamInfoList) {
+		this.streamInfoList.addAll(streamInfoList);
+	}
+
+	@Override
+	public synchronized List<StreamInfo> getStreamInfoList(String streamId) {
+		List<StreamInfo> list = new ArrayList<>();
+		for (StreamInfo streamInfo : streamInfoList) {
+			if (streamInfo.getStreamId().equals(streamId)) {
+				list.add(streamInfo);
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public synchronized void clearStreamInfoList(String streamId) {
+		streamInfoList.removeIf(streamInfo -> streamInfo.getStreamId().equals(streamId));
+	}
+
+	@Override
+	public synchronized boolean createConferenceRoom(ConferenceRoom room) {
+		if (room == null || room.getRoomId() == null) {
+			return false;
+		}
+		roomMap.put(room.getRoomId(), room);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean editConferenceRoom(String roomId, ConferenceRoom room) {
+		if (roomId == null || room == null || !roomMap.containsKey(roomId)) {
+			return false;
+		}
+		roomMap.remove(roomId);
+		roomMap.put(room.getRoomId(), room);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean deleteConferenceRoom(String roomId) {
+		return roomId != null && roomMap.remove(roomId) != null;
+	}
+
+	@Override
+	public synchronized ConferenceRoom getConferenceRoom(String roomId) {
+		return roomId != null ? roomMap.get(roomId) : null;
+	}
+
+	@Override
+	public synchronized boolean createP2PConnection(P2PConnection conn) {
+		if (conn == null || conn.getStreamId() == null) {
+			return false;
+		}
+		p2pMap.put(conn.getStreamId(), conn);
+		return true;
+	}
+
+	@Override
+	public synchronized P2PConnection getP2PConnection(String streamId) {
+		return streamId != null ? p2pMap.get(streamId) : null;
+	}
+
+	@Override
+	public synchronized boolean deleteP2PConnection(String streamId) {
+		return streamId != null && p2pMap.remove(streamId) != null;
+	}
+
+}
@@ -0,0 +1,96 @@
+package io.antmedia.datastore.db;
+
+import io.antmedia.AppSettings;
+import io.antmedia.cluster.IClusterNotifier;
+
+/**
+ * Data store factory that puts the layers enabled in the app settings in front of the data store
+ * of another factory. It's registered with {@link IDataStoreFactory#BEAN_NAME} so that every user
+ * of the data store gets the layered one, and the data store factory of the database is given to it
+ * with another name.
+ *
+ * @author mekya
+ *
+ */
+public class LayeredDataStoreFactory implements IDataStoreFactory {
+
+	private IDataStoreFactory dataStoreFactory;
+
+	private AppSettings appSettings;
+
+	private IClusterNotifier clusterNotifier;
+
+	private String appName;
+
+	private DataStore dataStore;
+
+	@Override
+	public synchronized DataStore getDataStore() {
+		if (dataStore == null) {
+			DataStore baseDataStore = dataStoreFactory.getDataStore();
+			if (baseDataStore != null) {
+				dataStore = wrap(baseDataStore, appSettings, clusterNotifier, appName);
+			}
+		}
+		return dataStore;
+	}
+
+	/**
+	 * Puts the layers that are enabled in the settings in front of the data store.
+	 * Write-behind layer is in front of the cache so that the viewer counts it writes update the cached broadcasts.
+	 * Analytics batching layer is the outermost one, it only takes the stream info and detection writes
+	 *
+	 * @param dataStore
+	 * @param appSettings
+	 * @param clusterNotifier cluster notifier to invalidate the cached broadcasts on the other nodes, it may be null
+	 * @param appName name of the app that the data store belongs to
+	 * @return layered data store or the data store itself if no layer is enabled
+	 */
+	public static DataStore wrap(DataStore dataStore, AppSettings appSettings, IClusterNotifier clusterNotifier, String appName) {
+		if (appSettings == null) {
+			return dataStore;
+		}
+		DataStore layeredDataStore = CachedBroadcastDataStore.wrap(dataStore, appSettings, clusterNotifier, appName);
+		layeredDataStore = WriteBehindViewerCountDataStore.wrap(layeredDataStore, appSettings);
+		return BatchingAnalyticsDataStore.wrap(layeredDataStore, appSettings);
+	}
+
+	public IDataStoreFactory getDataStoreFactory() {
+		return dataStoreFactory;
+	}
+
+	/**
+	 * @param dataStoreFactory factory of the data store that the layers are put in front of
+	 */
+	public void setDataStoreFactory(IDataStoreFactory dataStoreFactory) {
+		this.dataStoreFactory = dataStoreFactory;
+	}
+
+	public IClusterNotifier getClusterNotifier() {
+		return clusterNotifier;
+	}
+
+	/**
+	 * @param clusterNotifier cluster notifier of the server, it's not set in standalone mode
+	 */
+	public void setClusterNotifier(IClusterNotifier clusterNotifier) {
+		this.clusterNotifier = clusterNotifier;
+	}
+
+	public String getAppName() {
+		return appName;
+	}
+
+	public void setAppName(String appName) {
+		this.appName = appName;
+	}
+
+	public AppSettings getAppSettings() {
+		return appSettings;
+	}
+
+	public void setAppSettings(AppSettings appSettings) {
+		this.appSettings = appSettings;
+	}
+
+}
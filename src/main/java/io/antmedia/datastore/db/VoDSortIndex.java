@@ -0,0 +1,404 @@
+package io.antmedia.datastore.db;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+
+import io.antmedia.datastore.db.types.VoD;
+
+/**
+ * Sorted indexes of VoDs on name and creation date for in-memory data stores.
+ *
+ * Sort keys are computed once when a VoD is added, so listing a page does not sort or
+ * allocate keys. Pages are read either by offset or after a cursor, which is the sort key and the id of the
+ * last VoD of the previous page. Reading after a cursor seeks to it, so it does not depend on the number of VoDs
+ * before it and it works if the cursor VoD is deleted. VoDs with the same name or creation date are ordered by id
+ * so that cursors are exact.
+ *
+ * @author mekya
+ *
+ */
+public class VoDSortIndex {
+
+	public static final String SORT_BY_NAME = "name";
+
+	public static final String SORT_BY_DATE = "date";
+
+	public static final String ORDER_DESC = "desc";
+
+	/**
+	 * Precomputed sort key of a VoD
+	 */
+	static final class SortKey {
+		final String name;
+		final long date;
+		final String id;
+		/**
+		 * Position of the VoD in the list being sorted, it keeps the order of the VoDs with the same key
+		 */
+		final int position;
+
+		SortKey(VoD vod) {
+			this(vod, 0);
+		}
+
+		SortKey(VoD vod, int position) {
+			this.name = nameKey(vod);
+			this.date = vod.getCreationDate();
+			this.id = vod.getVodId() != null ? vod.getVodId() : "";
+			this.position = position;
+		}
+	}
+
+	static final Comparator<SortKey> NAME_ORDER = (key1, key2) -> {
+		int result = key1.name.compareTo(key2.name);
+		return result != 0 ? result : compareId(key1, key2);
+	};
+
+	static final Comparator<SortKey> DATE_ORDER = (key1, key2) -> {
+		int result = Long.compare(key1.date, key2.date);
+		return result != 0 ? result : compareId(key1, key2);
+	};
+
+	/**
+	 * Returns the order of the cursor pages, VoDs with the same key are ordered by id
+	 *
+	 * @param sortBy "name" or "date", it's date for other values
+	 * @param orderBy "asc" or "desc"
+	 * @return comparator
+	 */
+	static Comparator<SortKey> cursorOrder(String sortBy, String orderBy) {
+		Comparator<SortKey> order = SORT_BY_NAME.equals(sortBy) ? NAME_ORDER : DATE_ORDER;
+		return ORDER_DESC.equals(orderBy) ? order.reversed() : order;
+	}
+
+	/**
+	 * Returns the order of a list being sorted. VoDs with the same key keep their order in the list like a stable sort
+	 *
+	 * @param sortBy "name" or "date"
+	 * @param orderBy "asc" or "desc"
+	 * @return comparator or null if sortBy is not name or date
+	 */
+	static Comparator<SortKey> listOrder(String sortBy, String orderBy) {
+		Comparator<SortKey> order;
+		if (SORT_BY_NAME.equals(sortBy)) {
+			order = (key1, key2) -> key1.name.compareTo(key2.name);
+		}
+		else if (SORT_BY_DATE.equals(sortBy)) {
+			order = (key1, key2) -> Long.compare(key1.date, key2.date);
+		}
+		else {
+			return null;
+		}
+		if (ORDER_DESC.equals(orderBy)) {
+			order = order.reversed();
+		}
+		return order.thenComparingInt(key -> key.position);
+	}
+
+	/**
+	 * Returns the order of the sort keys without the id, that's the order of {@link DataStore#getVodList(int, int, String, String)}
+	 *
+	 * @param sortBy "name" or "date", it's date for other values
+	 * @param orderBy "asc" or "desc"
+	 * @return comparator
+	 */
+	static Comparator<SortKey> keyOrder(String sortBy, String orderBy) {
+		Comparator<SortKey> order;
+		if (SORT_BY_NAME.equals(sortBy)) {
+			order = (key1, key2) -> key1.name.compareTo(key2.name);
+		}
+		else {
+			order = (key1, key2) -> Long.compare(key1.date, key2.date);
+		}
+		return ORDER_DESC.equals(orderBy) ? order.reversed() : order;
+	}
+
+	private static int compareId(SortKey key1, SortKey key2) {
+		int result = key1.id.compareTo(key2.id);
+		return result != 0 ? result : Integer.compare(key1.position, key2.position);
+	}
+
+	private final Map<String, SortKey> keys = new ConcurrentHashMap<>();
+
+	private final ConcurrentSkipListMap<SortKey, VoD> byName = new ConcurrentSkipListMap<>(NAME_ORDER);
+
+	private final ConcurrentSkipListMap<SortKey, VoD> byDate = new ConcurrentSkipListMap<>(DATE_ORDER);
+
+	static String nameKey(VoD vod) {
+		return vod.getVodName() != null ? vod.getVodName().toLowerCase() : "";
+	}
+
+	/**
+	 * Adds the VoD or replaces the VoD with the same id. Adding and removing the same VoD should not be concurrent
+	 * @param vod
+	 */
+	public void add(VoD vod) {
+		SortKey key = new SortKey(vod);
+		SortKey oldKey = keys.put(key.id, key);
+		if (oldKey != null) {
+			byName.remove(oldKey);
+			byDate.remove(oldKey);
+		}
+		byName.put(key, vod);
+		byDate.put(key, vod);
+	}
+
+	/**
+	 * @param vodId
+	 * @return removed VoD or null if there is no VoD with the id
+	 */
+	public VoD remove(String vodId) {
+		if (vodId == null) {
+			return null;
+		}
+		SortKey key = keys.remove(vodId);
+		if (key == null) {
+			return null;
+		}
+		byName.remove(key);
+		return byDate.remove(key);
+	}
+
+	/**
+	 * Removes the VoDs that match the filter
+	 * @param filter
+	 * @return number of removed VoDs
+	 */
+	public int removeIf(Predicate<VoD> filter) {
+		int removedCount = 0;
+		for (VoD vod : byDate.values()) {
+			if (filter.test(vod) && remove(vod.getVodId()) != null) {
+				removedCount++;
+			}
+		}
+		return removedCount;
+	}
+
+	public VoD get(String vodId) {
+		SortKey key = vodId != null ? keys.get(vodId) : null;
+		return key != null ? byDate.get(key) : null;
+	}
+
+	public int size() {
+		return keys.size();
+	}
+
+	/**
+	 * Returns a page of VoDs. VoDs are ordered by creation date if sortBy is not name or date
+	 *
+	 * @param offset number of VoDs to skip
+	 * @param size page size, it's limited to {@link DataStore#MAX_ITEM_IN_ONE_LIST}
+	 * @param sortBy "name" or "date"
+	 * @param orderBy "asc" or "desc"
+	 * @return VoDs in the page
+	 */
+	public List<VoD> getList(int offset, int size, String sortBy, String orderBy) {
+		return page(index(sortBy, orderBy), Math.max(offset, 0), size);
+	}
+
+	/**
+	 * Returns the VoDs after the cursor
+	 *
+	 * @param lastVod last VoD of the previous page, null for the first page. Its sort key is the cursor, so it may be deleted
+	 * @param size page size, it's limited to {@link DataStore#MAX_ITEM_IN_ONE_LIST}
+	 * @param sortBy "name" or "date"
+	 * @param orderBy "asc" or "desc"
+	 * @return VoDs in the page
+	 */
+	public List<VoD> getListAfter(VoD lastVod, int size, String sortBy, String orderBy) {
+		NavigableMap<SortKey, VoD> index = index(sortBy, orderBy);
+		if (lastVod != null) {
+			index = index.tailMap(new SortKey(lastVod), false);
+		}
+		return page(index, 0, size);
+	}
+
+	/**
+	 * Returns the VoDs after the cursor by seeking it in the sorted list of the data store.
+	 * It binary searches the VoDs with the same key as the cursor with pages of one VoD, reads them in id order
+	 * and reads the rest from the offset after them, so it reads O(log n + size) VoDs. VoDs with the same key at the end
+	 * of the page are read completely to be ordered by id, their end is found by galloping. 
+	 * 
+	 * It requires {@link DataStore#getVodList(int, int, String, String)} to order VoDs like {@link #keyOrder(String, String)},
+	 * that is names are compared in lower case
+	 *
+	 * @param dataStore data store that is read
+	 * @param lastVod last VoD of the previous page, null for the first page
+	 * @param size page size, it's limited to {@link DataStore#MAX_ITEM_IN_ONE_LIST}
+	 * @param sortBy "name" or "date", it's date for other values
+	 * @param orderBy "asc" or "desc"
+	 * @return VoDs in the page
+	 */
+	static List<VoD> getListAfter(DataStore dataStore, VoD lastVod, int size, String sortBy, String orderBy) {
+		if (size > DataStore.MAX_ITEM_IN_ONE_LIST) {
+			size = DataStore.MAX_ITEM_IN_ONE_LIST;
+		}
+		List<VoD> list = new ArrayList<>(Math.max(size, 0));
+		if (size <= 0) {
+			return list;
+		}
+		String sortField = SORT_BY_NAME.equals(sortBy) ? SORT_BY_NAME : SORT_BY_DATE;
+		ListSeeker seeker = new ListSeeker(dataStore, sortField, orderBy, lastVod);
+		int total = (int) Math.min(dataStore.getTotalVodNumber(), Integer.MAX_VALUE);
+		int offset = lastVod != null ? seeker.seek(seeker.lastKey, false, 0, total) : 0;
+		while (list.size() < size) {
+			// one more VoD tells if the VoDs with the same key as the last one may go on in the next page
+			int readSize = Math.min(size - list.size() + 1, DataStore.MAX_ITEM_IN_ONE_LIST);
+			List<VoD> page = dataStore.getVodList(offset, readSize, sortField, orderBy);
+			if (page.isEmpty()) {
+				break;
+			}
+			int start = 0;
+			while (start < page.size() && list.size() < size) {
+				SortKey key = new SortKey(page.get(start));
+				int end = start + 1;
+				while (end < page.size() && seeker.keyOrder.compare(key, new SortKey(page.get(end))) == 0) {
+					end++;
+				}
+				if (end == page.size() && page.size() == readSize) {
+					// VoDs with the same key may go on after the page
+					int groupEnd = seeker.seekEnd(key, offset + end);
+					seeker.addGroup(list, size, offset + start, groupEnd);
+					offset = groupEnd;
+					start = -1;
+					break;
+				}
+				seeker.addGroup(list, size, page.subList(start, end), offset + start);
+				start = end;
+			}
+			if (start >= 0) {
+				offset += start;
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Seeks the keys of the cursor pages in the sorted list of a data store
+	 */
+	private static class ListSeeker {
+		final DataStore dataStore;
+		final String sortBy;
+		final String orderBy;
+		final Comparator<SortKey> keyOrder;
+		final Comparator<SortKey> cursorOrder;
+		final SortKey lastKey;
+		final String lastId;
+
+		ListSeeker(DataStore dataStore, String sortBy, String orderBy, VoD lastVod) {
+			this.dataStore = dataStore;
+			this.sortBy = sortBy;
+			this.orderBy = orderBy;
+			this.keyOrder = keyOrder(sortBy, orderBy);
+			this.cursorOrder = cursorOrder(sortBy, orderBy);
+			this.lastKey = lastVod != null ? new SortKey(lastVod) : null;
+			this.lastId = lastVod != null ? lastVod.getVodId() : null;
+		}
+
+		/**
+		 * @return offset of the first VoD in [low, high) whose key is after the key, or the same if after is false, high if there is no such VoD
+		 */
+		int seek(SortKey key, boolean after, int low, int high) {
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				List<VoD> page = dataStore.getVodList(middle, 1, sortBy, orderBy);
+				// list may be shorter if VoDs are deleted in the meantime
+				int result = page.isEmpty() ? 1 : keyOrder.compare(new SortKey(page.get(0)), key);
+				if (result > 0 || (!after && result == 0)) {
+					high = middle;
+				}
+				else {
+					low = middle + 1;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Gallops from the offset, so it reads O(log n) VoDs for n VoDs that have the same key after the offset
+		 * 
+		 * @return offset of the first VoD after the offset whose key is after the key
+		 */
+		int seekEnd(SortKey key, int from) {
+			int low = from;
+			int step = 1;
+			while (true) {
+				int probe = low + step - 1;
+				List<VoD> page = dataStore.getVodList(probe, 1, sortBy, orderBy);
+				if (page.isEmpty() || keyOrder.compare(new SortKey(page.get(0)), key) > 0) {
+					return seek(key, true, low, probe);
+				}
+				low = probe + 1;
+				step <<= 1;
+			}
+		}
+
+		/**
+		 * Reads the VoDs in [from, to) that have the same key and adds them after the cursor in id order
+		 */
+		void addGroup(List<VoD> list, int size, int from, int to) {
+			List<VoD> group = new ArrayList<>();
+			for (int offset = from; offset < to; ) {
+				List<VoD> page = dataStore.getVodList(offset, Math.min(to - offset, DataStore.MAX_ITEM_IN_ONE_LIST), sortBy, orderBy);
+				if (page.isEmpty()) {
+					break;
+				}
+				group.addAll(page);
+				offset += page.size();
+			}
+			addGroup(list, size, group, from);
+		}
+
+		void addGroup(List<VoD> list, int size, List<VoD> group, int position) {
+			TreeMap<SortKey, VoD> sorted = new TreeMap<>(cursorOrder);
+			for (int i = 0; i < group.size(); i++) {
+				VoD vod = group.get(i);
+				// position keeps the VoDs without id apart
+				SortKey key = new SortKey(vod, position + i);
+				if (lastKey != null && (cursorOrder.compare(key, lastKey) <= 0 || (lastId != null && lastId.equals(vod.getVodId())))) {
+					continue;
+				}
+				sorted.put(key, vod);
+			}
+			for (VoD vod : sorted.values()) {
+				if (list.size() >= size) {
+					break;
+				}
+				list.add(vod);
+			}
+		}
+	}
+
+	private NavigableMap<SortKey, VoD> index(String sortBy, String orderBy) {
+		NavigableMap<SortKey, VoD> index = SORT_BY_NAME.equals(sortBy) ? byName : byDate;
+		return ORDER_DESC.equals(orderBy) ? index.descendingMap() : index;
+	}
+
+	private static List<VoD> page(NavigableMap<SortKey, VoD> index, int offset, int size) {
+		if (size > DataStore.MAX_ITEM_IN_ONE_LIST) {
+			size = DataStore.MAX_ITEM_IN_ONE_LIST;
+		}
+		List<VoD> list = new ArrayList<>(Math.max(size, 0));
+		int skipped = 0;
+		for (VoD vod : index.values()) {
+			if (list.size() >= size) {
+				break;
+			}
+			if (skipped < offset) {
+				skipped++;
+			}
+			else {
+				list.add(vod);
+			}
+		}
+		return list;
+	}
+
+}
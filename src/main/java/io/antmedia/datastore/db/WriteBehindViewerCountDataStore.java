@@ -0,0 +1,397 @@
+package io.antmedia.datastore.db;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.antmedia.AppSettings;
+import io.antmedia.datastore.db.types.Broadcast;
+import io.antmedia.datastore.db.types.BroadcastStatus;
+
+/**
+ * Data store layer that collects HLS, WebRTC and RTMP viewer count changes in memory
+ * and writes them to the underlying data store periodically.
+ *
+ * Viewer joins and leaves only add to the {@link LongAdder} of the stream without a lock, so a popular stream
+ * does not cause a write per viewer nor contention on a shared lock. Changes of a stream are written in one
+ * {@link DataStore#updateViewerCounts(String, int, int, int)} call every flush period
+ * or as soon as the pending change of the stream reaches the max pending delta.
+ * Changes that are not written yet are added to the broadcasts that are read through this layer.
+ * Counts of a single broadcast are exact, counts in broadcast lists may be off by the changes
+ * being written at that moment.
+ *
+ * Pending changes of a stream are written as soon as the stream is not live anymore, and a stream
+ * without pending changes is dropped after the next flush, so only the streams that have viewer changes are kept.
+ *
+ * Changes are written when the data store is closed. If the server stops without closing the data store,
+ * at most the changes of one flush period or max pending delta viewers per stream are lost.
+ *
+ * Pending changes are added to copies of the broadcasts, so the objects of the underlying data store are not modified.
+ *
+ * @author mekya
+ *
+ */
+public class WriteBehindViewerCountDataStore extends DelegatingDataStore {
+
+	private static Logger logger = LoggerFactory.getLogger(WriteBehindViewerCountDataStore.class);
+
+	/**
+	 * Pending viewer count changes of a stream
+	 */
+	private static class ViewerCountDelta {
+
+		final LongAdder hls = new LongAdder();
+		final LongAdder webRTC = new LongAdder();
+		final LongAdder rtmp = new LongAdder();
+
+		/**
+		 * Flush holds the write lock while it takes and writes the changes so that a read
+		 * does not see the changes neither in the data store nor in the pending ones.
+		 * Changes are added without the lock, see {@link #inFlight}.
+		 */
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+		/**
+		 * Number of changes being added by the threads of each stripe. A thread counts itself in before it checks 
+		 * {@link #dropped} and out after it adds the change, and the flush sets {@link #dropped} before it waits the 
+		 * counts to be zero, so either the thread sees the delta is dropped or the flush sees the change.
+		 * Stripes are apart from each other by a cache line so that joins of a popular stream on different cores
+		 * do not write to the same cache line.
+		 */
+		final AtomicIntegerArray inFlight = new AtomicIntegerArray(IN_FLIGHT_STRIPES * IN_FLIGHT_STRIPE_SPACING);
+
+		/**
+		 * Set when the delta is dropped from the map, it's set with the write lock held
+		 */
+		volatile boolean dropped = false;
+
+		/**
+		 * Set when a flush of this stream is requested before the flush period
+		 */
+		final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+		long pending() {
+			return Math.abs(hls.sum()) + Math.abs(webRTC.sum()) + Math.abs(rtmp.sum());
+		}
+
+		void applyTo(Broadcast broadcast) {
+			broadcast.setHlsViewerCount((int) (broadcast.getHlsViewerCount() + hls.sum()));
+			broadcast.setWebRTCViewerCount((int) (broadcast.getWebRTCViewerCount() + webRTC.sum()));
+			broadcast.setRtmpViewerCount((int) (broadcast.getRtmpViewerCount() + rtmp.sum()));
+		}
+	}
+
+	/**
+	 * Number of stripes of the in-flight counter of a delta, a power of two
+	 */
+	private static final int IN_FLIGHT_STRIPES = Math.min(16, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1);
+
+	/**
+	 * Distance of two stripes in the in-flight counter array, 16 ints make a cache line
+	 */
+	private static final int IN_FLIGHT_STRIPE_SPACING = 16;
+
+	private final Map<String, ViewerCountDelta> deltas = new ConcurrentHashMap<>();
+
+	private final long maxPendingDelta;
+
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * @param delegate data store that the viewer counts are written to
+	 * @param flushPeriodMs period of writing the pending changes
+	 * @param maxPendingDelta pending changes of a stream are written without waiting the flush period
+	 * when they reach this number, 0 disables it
+	 */
+	public WriteBehindViewerCountDataStore(DataStore delegate, long flushPeriodMs, long maxPendingDelta) {
+		super(delegate);
+		this.maxPendingDelta = maxPendingDelta;
+		executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "viewer-count-flusher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::flush, flushPeriodMs, flushPeriodMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Puts the write-behind layer in front of the data store if it's enabled in the settings
+	 *
+	 * @param dataStore
+	 * @param appSettings
+	 * @return write-behind data store or the data store itself if viewer count flush period is 0
+	 */
+	public static DataStore wrap(DataStore dataStore, AppSettings appSettings) {
+		if (appSettings.getViewerCountFlushPeriodMS() > 0) {
+			return new WriteBehindViewerCountDataStore(dataStore, appSettings.getViewerCountFlushPeriodMS(), appSettings.getViewerCountMaxPendingDelta());
+		}
+		return dataStore;
+	}
+
+	@Override
+	protected boolean updateHLSViewerCountLocal(String streamId, int diffCount) {
+		addDelta(streamId, diffCount, 0, 0);
+		return true;
+	}
+
+	@Override
+	protected boolean updateWebRTCViewerCountLocal(String streamId, boolean increment) {
+		addDelta(streamId, 0, increment ? 1 : -1, 0);
+		return true;
+	}
+
+	@Override
+	protected boolean updateRtmpViewerCountLocal(String streamId, boolean increment) {
+		addDelta(streamId, 0, 0, increment ? 1 : -1);
+		return true;
+	}
+
+	@Override
+	protected boolean updateWebRTCViewerCountLocal(String streamId, int diffCount) {
+		addDelta(streamId, 0, diffCount, 0);
+		return true;
+	}
+
+	@Override
+	protected boolean updateRtmpViewerCountLocal(String streamId, int diffCount) {
+		addDelta(streamId, 0, 0, diffCount);
+		return true;
+	}
+
+	@Override
+	protected boolean updateViewerCountsLocal(String streamId, int hlsDiff, int webRTCDiff, int rtmpDiff) {
+		addDelta(streamId, hlsDiff, webRTCDiff, rtmpDiff);
+		return true;
+	}
+
+	private void addDelta(String streamId, int hlsDiff, int webRTCDiff, int rtmpDiff) {
+		int stripe = ((int) Thread.currentThread().getId() & (IN_FLIGHT_STRIPES - 1)) * IN_FLIGHT_STRIPE_SPACING;
+		while (true) {
+			ViewerCountDelta delta = deltas.computeIfAbsent(streamId, id -> new ViewerCountDelta());
+			delta.inFlight.incrementAndGet(stripe);
+			try {
+				if (!delta.dropped) {
+					delta.hls.add(hlsDiff);
+					delta.webRTC.add(webRTCDiff);
+					delta.rtmp.add(rtmpDiff);
+					checkPending(streamId, delta);
+					return;
+				}
+			}
+			finally {
+				delta.inFlight.decrementAndGet(stripe);
+			}
+			// delta is dropped by a flush right after it's read from the map, a new one is created
+		}
+	}
+
+	private void checkPending(String streamId, ViewerCountDelta delta) {
+		if (maxPendingDelta > 0 && delta.pending() >= maxPendingDelta && delta.flushRequested.compareAndSet(false, true)) {
+			try {
+				executor.execute(() -> flush(streamId, delta));
+			}
+			catch (Exception e) {
+				delta.flushRequested.set(false);
+				logger.warn("Viewer counts of {} cannot be flushed before the flush period", streamId, e);
+			}
+		}
+	}
+
+	@Override
+	public Broadcast get(String id) {
+		ViewerCountDelta delta = deltas.get(id);
+		if (delta == null) {
+			return super.get(id);
+		}
+		delta.lock.readLock().lock();
+		try {
+			Broadcast broadcast = super.get(id);
+			if (broadcast != null) {
+				broadcast = broadcast.copy();
+				delta.applyTo(broadcast);
+			}
+			return broadcast;
+		}
+		finally {
+			delta.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<Broadcast> getBroadcastList(int offset, int size) {
+		return applyPending(super.getBroadcastList(offset, size));
+	}
+
+	@Override
+	public List<Broadcast> filterBroadcastList(int offset, int size, String type) {
+		return applyPending(super.filterBroadcastList(offset, size, type));
+	}
+
+	@Override
+	public List<Broadcast> filterBroadcastListAfter(String lastStreamId, int size, String type) {
+		return applyPending(super.filterBroadcastListAfter(lastStreamId, size, type));
+	}
+
+	private List<Broadcast> applyPending(List<Broadcast> broadcasts) {
+		if (broadcasts != null && !deltas.isEmpty()) {
+			for (int i = 0; i < broadcasts.size(); i++) {
+				ViewerCountDelta delta = deltas.get(broadcasts.get(i).getStreamId());
+				if (delta != null) {
+					Broadcast broadcast = broadcasts.get(i).copy();
+					delta.applyTo(broadcast);
+					broadcasts.set(i, broadcast);
+				}
+			}
+		}
+		return broadcasts;
+	}
+
+	@Override
+	public boolean updateStatus(String id, String status) {
+		boolean result = super.updateStatus(id, status);
+		if (!BroadcastStatus.LIVE_NOW.equals(status)) {
+			// stream is ended, its changes are written and the stream is dropped if no viewer changes follow
+			ViewerCountDelta delta = deltas.get(id);
+			if (delta != null) {
+				flush(id, delta);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public boolean delete(String id) {
+		// viewer counts of a deleted stream are not written
+		ViewerCountDelta delta = deltas.get(id);
+		if (delta != null) {
+			delta.lock.writeLock().lock();
+			try {
+				drop(id, delta);
+				// changes that are added while it's dropped are not written either
+			}
+			finally {
+				delta.lock.writeLock().unlock();
+			}
+		}
+		return super.delete(id);
+	}
+
+	/**
+	 * Writes the pending changes of all streams
+	 */
+	public void flush() {
+		for (Map.Entry<String, ViewerCountDelta> entry : deltas.entrySet()) {
+			flush(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private void flush(String streamId, ViewerCountDelta delta) {
+		delta.flushRequested.set(false);
+		delta.lock.writeLock().lock();
+		int hlsDiff = take(delta.hls);
+		int webRTCDiff = take(delta.webRTC);
+		int rtmpDiff = take(delta.rtmp);
+		try {
+			if (delta.dropped) {
+				return;
+			}
+			if ((hlsDiff != 0 || webRTCDiff != 0 || rtmpDiff != 0) 
+					&& !delegate.updateViewerCountsLocal(streamId, hlsDiff, webRTCDiff, rtmpDiff)) 
+			{
+				logger.info("Viewer counts of {} are not updated, stream may be deleted", streamId);
+				drop(streamId, delta);
+			}
+			else if (hlsDiff == 0 && webRTCDiff == 0 && rtmpDiff == 0) {
+				// no change since the last flush
+				drop(streamId, delta);
+				// changes added after they're taken above are moved to a new delta
+				int hlsRest = take(delta.hls);
+				int webRTCRest = take(delta.webRTC);
+				int rtmpRest = take(delta.rtmp);
+				if (hlsRest != 0 || webRTCRest != 0 || rtmpRest != 0) {
+					addDelta(streamId, hlsRest, webRTCRest, rtmpRest);
+				}
+			}
+		}
+		catch (Exception e) {
+			logger.error("Exception while writing viewer counts of {}, they will be written in the next flush", streamId, e);
+			delta.hls.add(hlsDiff);
+			delta.webRTC.add(webRTCDiff);
+			delta.rtmp.add(rtmpDiff);
+		}
+		finally {
+			delta.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Drops the delta from the map, it's called with the write lock of the delta held. 
+	 * It returns after the changes that are being added to the delta are added, no change is added to it afterwards
+	 */
+	private void drop(String streamId, ViewerCountDelta delta) {
+		delta.dropped = true;
+		deltas.remove(streamId, delta);
+		for (int i = 0; i < IN_FLIGHT_STRIPES; i++) {
+			while (delta.inFlight.get(i * IN_FLIGHT_STRIPE_SPACING) != 0) {
+				Thread.onSpinWait();
+			}
+		}
+	}
+
+	/**
+	 * Takes the sum of the adder. It's not reset, since a change added while resetting would be lost
+	 */
+	private static int take(LongAdder adder) {
+		long value = adder.sum();
+		if (value != 0) {
+			adder.add(-value);
+		}
+		return (int) value;
+	}
+
+	/**
+	 * @return number of streams that are kept for viewer count changes
+	 */
+	public int getStreamCount() {
+		return deltas.size();
+	}
+
+	/**
+	 * @return number of streams that have pending viewer count changes
+	 */
+	public int getPendingStreamCount() {
+		int count = 0;
+		for (ViewerCountDelta delta : deltas.values()) {
+			if (delta.pending() > 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+				logger.warn("Viewer count flusher did not stop in time");
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		super.close();
+	}
+
+}
@@ -1,5 +1,6 @@
 package io.antmedia.datastore.db.types;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.bson.types.ObjectId;
@@ -19,7 +20,7 @@ import io.swagger.annotations.ApiModelProperty;
 @ApiModel(value="Broadcast", description="The basic broadcast class")
 @Entity(value = "broadcast", noClassnameStored = true)
 @Indexes({ @Index(fields = @Field("name")), @Index(fields = @Field("streamId")) })
-public class Broadcast {
+public class Broadcast implements Cloneable {
 
 
 	@JsonIgnore
@@ -261,6 +262,22 @@ public class Broadcast {
 		this.type = type;
 	}
 
+	/**
+	 * @return copy of the broadcast that has its own endpoint list, endpoints are shared
+	 */
+	public Broadcast copy() {
+		try {
+			Broadcast broadcast = (Broadcast) super.clone();
+			if (endPointList != null) {
+				broadcast.endPointList = new ArrayList<>(endPointList);
+			}
+			return broadcast;
+		}
+		catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
 	public String getStreamId() {
 
 		if (streamId != null) {
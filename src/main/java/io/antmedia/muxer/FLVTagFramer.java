@@ -0,0 +1,149 @@
+package io.antmedia.muxer;
+
+import java.nio.ByteBuffer;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.red5.server.api.stream.IStreamPacket;
+
+/**
+ * Writes FLV tag of a {@link IStreamPacket} directly to the destination buffer.
+ *
+ * Tag header(11 bytes), body and previous tag size(4 bytes) are generated on the fly so that
+ * there is no intermediate byte array for the tag. Body is copied directly from the packet's
+ * {@link IoBuffer} to the destination.
+ *
+ * A tag can be written in several calls if destination does not have enough room,
+ * framer keeps the offset of the current tag for this purpose.
+ *
+ * It's not thread safe, it's used by the thread calling read callback of the stream
+ *
+ * @author mekya
+ *
+ */
+public class FLVTagFramer {
+
+	public static final int TAG_HEADER_LENGTH = 11;
+
+	public static final int PREVIOUS_TAG_SIZE_LENGTH = 4;
+
+	private IStreamPacket packet;
+
+	private IoBuffer data;
+
+	private int bodySize;
+
+	private int totalSize;
+
+	private int offset;
+
+	/**
+	 * Starts framing the packet.
+	 * @param packet
+	 */
+	public void reset(IStreamPacket packet) {
+		this.packet = packet;
+		this.data = packet.getData();
+		this.bodySize = data != null ? data.limit() : 0;
+		this.totalSize = TAG_HEADER_LENGTH + bodySize + PREVIOUS_TAG_SIZE_LENGTH;
+		this.offset = 0;
+	}
+
+	/**
+	 * Writes the remaining part of the current tag to the destination as much as destination has room
+	 *
+	 * @param destination
+	 * @return number of bytes written
+	 */
+	public int writeTo(ByteBuffer destination) {
+		int startOffset = offset;
+		while (offset < totalSize && destination.hasRemaining())
+		{
+			if (offset < TAG_HEADER_LENGTH) {
+				destination.put(getHeaderByte(offset));
+				offset++;
+			}
+			else if (offset < TAG_HEADER_LENGTH + bodySize) {
+				int bodyOffset = offset - TAG_HEADER_LENGTH;
+				int length = Math.min(bodySize - bodyOffset, destination.remaining());
+				copyBody(data, bodyOffset, length, destination);
+				offset += length;
+			}
+			else {
+				int trailerOffset = offset - TAG_HEADER_LENGTH - bodySize;
+				destination.put((byte) ((TAG_HEADER_LENGTH + bodySize) >>> (8 * (3 - trailerOffset))));
+				offset++;
+			}
+		}
+		return offset - startOffset;
+	}
+
+	private byte getHeaderByte(int index) {
+		int timestamp = packet.getTimestamp();
+		switch (index) {
+		case 0:
+			// Data Type
+			return packet.getDataType();
+		case 1:
+		case 2:
+		case 3:
+			// Body Size
+			return (byte) (bodySize >>> (8 * (3 - index)));
+		case 4:
+		case 5:
+		case 6:
+			// Timestamp lower 24 bits
+			return (byte) (timestamp >>> (8 * (6 - index)));
+		case 7:
+			// Timestamp extended
+			return (byte) (timestamp >>> 24);
+		default:
+			// Stream id is always 0
+			return 0;
+		}
+	}
+
+	/**
+	 * Copies the body without changing the position of the data because
+	 * same buffer is shared with the other listeners of the stream.
+	 *
+	 * Body starts at index 0 of the data like in {@link MuxAdaptor#getFLVFrame(IStreamPacket)},
+	 * position of the data is not used. Index 0 of a sliced heap buffer is at the array offset of its backing array.
+	 * Direct and read only buffers have no accessible array, they're copied through a duplicate that has its own position and limit
+	 */
+	static void copyBody(IoBuffer data, int bodyOffset, int length, ByteBuffer destination) {
+		ByteBuffer source = data.buf();
+		if (source.hasArray()) {
+			destination.put(source.array(), source.arrayOffset() + bodyOffset, length);
+		}
+		else {
+			ByteBuffer view = source.duplicate();
+			view.limit(bodyOffset + length);
+			view.position(bodyOffset);
+			destination.put(view);
+		}
+	}
+
+	public boolean isDone() {
+		return packet == null || offset >= totalSize;
+	}
+
+	public IStreamPacket getPacket() {
+		return packet;
+	}
+
+	/**
+	 * @return total size of the current tag including header and previous tag size
+	 */
+	public int getTotalSize() {
+		return totalSize;
+	}
+
+	public void clear() {
+		packet = null;
+		data = null;
+		offset = 0;
+		totalSize = 0;
+		bodySize = 0;
+	}
+
+}
@@ -17,6 +17,7 @@ import static org.bytedeco.javacpp.avcodec.av_packet_ref;
 import static org.bytedeco.javacpp.avcodec.av_packet_unref;
 import static org.bytedeco.javacpp.avcodec.avcodec_parameters_copy;
 import static org.bytedeco.javacpp.avcodec.avcodec_parameters_from_context;
+import static org.bytedeco.javacpp.avformat.AVFMT_FLAG_CUSTOM_IO;
 import static org.bytedeco.javacpp.avformat.AVFMT_GLOBALHEADER;
 import static org.bytedeco.javacpp.avformat.AVFMT_NOFILE;
 import static org.bytedeco.javacpp.avformat.AVIO_FLAG_WRITE;
@@ -26,7 +27,10 @@ import static org.bytedeco.javacpp.avformat.avformat_alloc_output_context2;
 import static org.bytedeco.javacpp.avformat.avformat_free_context;
 import static org.bytedeco.javacpp.avformat.avformat_new_stream;
 import static org.bytedeco.javacpp.avformat.avformat_write_header;
+import static org.bytedeco.javacpp.avformat.avio_alloc_context;
 import static org.bytedeco.javacpp.avformat.avio_closep;
+import static org.bytedeco.javacpp.avformat.avio_context_free;
+import static org.bytedeco.javacpp.avformat.avio_flush;
 import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_AUDIO;
 import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_VIDEO;
 import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_YUV420P;
@@ -34,22 +38,29 @@ import static org.bytedeco.javacpp.avutil.AV_ROUND_NEAR_INF;
 import static org.bytedeco.javacpp.avutil.AV_ROUND_PASS_MINMAX;
 import static org.bytedeco.javacpp.avutil.av_dict_free;
 import static org.bytedeco.javacpp.avutil.av_dict_set;
+import static org.bytedeco.javacpp.avutil.av_free;
+import static org.bytedeco.javacpp.avutil.av_malloc;
 import static org.bytedeco.javacpp.avutil.av_rescale_q;
 import static org.bytedeco.javacpp.avutil.av_rescale_q_rnd;
 import static org.bytedeco.javacpp.avutil.av_strerror;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Pointer;
 import org.bytedeco.javacpp.avcodec;
 import org.bytedeco.javacpp.avcodec.AVBSFContext;
 import org.bytedeco.javacpp.avcodec.AVBitStreamFilter;
@@ -61,11 +72,13 @@ import org.bytedeco.javacpp.avformat;
 import org.bytedeco.javacpp.avformat.AVFormatContext;
 import org.bytedeco.javacpp.avformat.AVIOContext;
 import org.bytedeco.javacpp.avformat.AVStream;
+import org.bytedeco.javacpp.avformat.Write_packet_Pointer_BytePointer_int;
 import org.bytedeco.javacpp.avutil.AVDictionary;
 import org.bytedeco.javacpp.avutil.AVRational;
 import org.red5.server.api.scheduling.IScheduledJob;
 import org.red5.server.api.scheduling.ISchedulingService;
 import org.red5.server.api.scope.IScope;
+import org.red5.server.util.ScopeUtils;
 import org.red5.server.scheduling.QuartzSchedulingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -103,6 +116,70 @@ public class HLSMuxer extends Muxer  {
 	private Map<Integer, AVRational> codecTimeBaseMap = new HashMap<>();
 	private AVPacket videoPkt;
 
+	/**
+	 * Low latency mode writes CMAF partial segments with fragmented mp4 muxer instead of hls muxer
+	 * and playlist is kept in memory by {@link LowLatencyHLSPlaylist}
+	 */
+	private boolean lowLatency = false;
+	private long partDurationMs = 500;
+	private long segmentDurationMs;
+	private String appName;
+	private LowLatencyHLSPlaylist lowLatencyPlaylist;
+	private AVIOContext lowLatencyIOContext;
+	private AVRational msTimeBase;
+	private boolean hasVideo = false;
+	private long partStartTimeMs = -1;
+	private long segmentStartTimeMs = -1;
+	private long lastBoundaryPacketTimeMs = -1;
+	private boolean partIndependent = false;
+	private String initSegmentName;
+
+	/**
+	 * Bytes written by the muxer since the last part is flushed. It's filled in write callback
+	 */
+	private final ByteArrayOutputStream fragmentBuffer = new ByteArrayOutputStream();
+
+	/**
+	 * Parts of the current segment
+	 */
+	private final ByteArrayOutputStream segmentBuffer = new ByteArrayOutputStream();
+
+	/**
+	 * Native data is copied to {@link #fragmentBuffer} through this array in write callback
+	 */
+	private final byte[] writeCallbackBuffer = new byte[LOW_LATENCY_IO_BUFFER_SIZE];
+
+	private static final int LOW_LATENCY_IO_BUFFER_SIZE = 32768;
+
+	private static Map<Pointer, HLSMuxer> lowLatencyMuxers = new ConcurrentHashMap<>();
+
+	/*
+	 * This callback has to be static because it is set as a callback in native side.
+	 */
+	static class LowLatencyWriteCallback extends Write_packet_Pointer_BytePointer_int {
+		@Override 
+		public int call(Pointer opaque, BytePointer buf, int bufSize) {
+			try {
+				HLSMuxer muxer = lowLatencyMuxers.get(opaque);
+				byte[] data = muxer.writeCallbackBuffer;
+				int offset = 0;
+				while (offset < bufSize) {
+					int length = Math.min(data.length, bufSize - offset);
+					buf.position(offset).get(data, 0, length);
+					muxer.fragmentBuffer.write(data, 0, length);
+					offset += length;
+				}
+				return bufSize;
+			}
+			catch (Exception e) {
+				logger.error("Error while writing low latency HLS fragment: {}", e.getMessage());
+				return -1;
+			}
+		}
+	}
+
+	private static LowLatencyWriteCallback lowLatencyWriteCallback = new LowLatencyWriteCallback();
+
 
 	public HLSMuxer(QuartzSchedulingService scheduler, String hlsListSize, String hlsTime, String hlsPlayListType, String hlsFlags) {
 		super(scheduler);
@@ -141,6 +218,18 @@ public class HLSMuxer extends Muxer  {
 		if (!isInitialized) {
 			super.init(scope, name, resolutionHeight);
 
+			tmpPacket = avcodec.av_packet_alloc();
+			av_init_packet(tmpPacket);
+
+			videoPkt = avcodec.av_packet_alloc();
+			av_init_packet(videoPkt);
+
+			if (lowLatency) {
+				initLowLatency(name, resolutionHeight);
+				isInitialized = true;
+				return;
+			}
+
 			options.put("hls_list_size", hlsListSize);
 			options.put("hls_time", hlsTime);
 			
@@ -157,18 +246,25 @@ public class HLSMuxer extends Muxer  {
 			String hlsFlagsFull = "delete_segments" + this.hlsFlags;
 
 			options.put("hls_flags", hlsFlagsFull);
-			tmpPacket = avcodec.av_packet_alloc();
-			av_init_packet(tmpPacket);
-			
-			
-			videoPkt = avcodec.av_packet_alloc();
-			av_init_packet(videoPkt);
 			
 			isInitialized = true;
 		}
 
 	}
 
+	private void initLowLatency(String name, int resolutionHeight) {
+		format = "mp4";
+		// fragments are flushed manually at part boundaries
+		options.put("movflags", "frag_custom+empty_moov+default_base_moof");
+		initSegmentName = name + "_" + resolutionHeight + "p_init.mp4";
+		msTimeBase = new AVRational();
+		msTimeBase.num(1);
+		msTimeBase.den(1000);
+		segmentDurationMs = Long.parseLong(hlsTime) * 1000;
+		appName = ScopeUtils.findApplication(scope).getName();
+		logger.info("low latency hls part duration: {}ms, hls time: {}, hls list size: {}", partDurationMs, hlsTime, hlsListSize);
+	}
+
 	private AVFormatContext getOutputFormatContext() {
 		if (outputFormatContext == null) {
 
@@ -200,7 +296,20 @@ public class HLSMuxer extends Muxer  {
 
 				AVStream outStream = avformat_new_stream(context, null);
 				int codecType = inStream.codecpar().codec_type();
-				if (codecType == AVMEDIA_TYPE_VIDEO) 
+				if (codecType == AVMEDIA_TYPE_VIDEO && lowLatency) 
+				{
+					//fmp4 keeps the avcc format so there is no need to convert to annexb
+					videoIndex = streamIndex;
+					hasVideo = true;
+					int ret = avcodec_parameters_copy(outStream.codecpar(), inStream.codecpar());
+					if (ret < 0) {
+						logger.info("cannot copy codec parameters to output for {}", file.getName());
+						return false;
+					}
+					videoWidth = outStream.codecpar().width();
+					videoHeight = outStream.codecpar().height();
+				}
+				else if (codecType == AVMEDIA_TYPE_VIDEO) 
 				{
 					videoIndex = streamIndex;
 					AVBitStreamFilter h264bsfc = av_bsf_get_by_name("h264_mp4toannexb");
@@ -314,6 +423,10 @@ public class HLSMuxer extends Muxer  {
 			bitrateReferenceTime = currentTime;
 		}
 		
+		if (lowLatencyPlaylist != null) {
+			checkLowLatencyBoundary(pkt, inputTimebase, codecType);
+		}
+
 		int ret;
 		pkt.pts(av_rescale_q_rnd(pkt.pts(), inputTimebase, outputTimebase, AV_ROUND_NEAR_INF|AV_ROUND_PASS_MINMAX));
 		pkt.dts(av_rescale_q_rnd(pkt.dts(), inputTimebase, outputTimebase, AV_ROUND_NEAR_INF|AV_ROUND_PASS_MINMAX));
@@ -401,11 +514,16 @@ public class HLSMuxer extends Muxer  {
 			videoPkt = null;
 		}
 
-		av_write_trailer(outputFormatContext);
+		if (lowLatencyPlaylist != null) {
+			writeLowLatencyTrailer();
+		}
+		else {
+			av_write_trailer(outputFormatContext);
 
-		/* close output */
-		if ((outputFormatContext.flags() & AVFMT_NOFILE) == 0)
-			avio_closep(outputFormatContext.pb());
+			/* close output */
+			if ((outputFormatContext.flags() & AVFMT_NOFILE) == 0)
+				avio_closep(outputFormatContext.pb());
+		}
 
 		avformat_free_context(outputFormatContext);
 
@@ -428,7 +546,8 @@ public class HLSMuxer extends Muxer  {
 					File[] files = file.getParentFile().listFiles(new FilenameFilter() {
 						@Override
 						public boolean accept(File dir, String name) {
-							return name.contains(filenameWithoutExtension) && name.endsWith(".ts");
+							return (name.contains(filenameWithoutExtension) && (name.endsWith(".ts") || name.endsWith(".m4s")))
+									|| name.equals(initSegmentName);
 						}
 					});
 
@@ -487,6 +606,7 @@ public class HLSMuxer extends Muxer  {
 		{
 			registeredStreamIndexList.add(streamIndex);
 			videoIndex = streamIndex;
+			hasVideo = true;
 			AVStream outStream = avformat_new_stream(outputContext, null);
 			
 			outStream.codecpar().width(width);
@@ -523,6 +643,7 @@ public class HLSMuxer extends Muxer  {
 			AVStream outStream = avformat_new_stream(context, codec);
 			outStream.index(streamIndex);
 			if (codecContext.codec_type() == AVMEDIA_TYPE_VIDEO) {
+				hasVideo = true;
 				videoWidth = codecContext.width();
 				videoHeight = codecContext.height();
 
@@ -562,6 +683,9 @@ public class HLSMuxer extends Muxer  {
 			//return false if it is already prepared
 			return false;
 		}
+		if (lowLatency) {
+			return prepareLowLatencyIO(context);
+		}
 		AVIOContext pb = new AVIOContext(null);
 
 		int ret = avformat.avio_open(pb,  file.getAbsolutePath(), AVIO_FLAG_WRITE);
@@ -595,6 +719,156 @@ public class HLSMuxer extends Muxer  {
 		return true;
 	}
 
+	private boolean prepareLowLatencyIO(AVFormatContext context) {
+		lowLatencyIOContext = avio_alloc_context(new BytePointer(av_malloc(LOW_LATENCY_IO_BUFFER_SIZE)), LOW_LATENCY_IO_BUFFER_SIZE, 1, 
+				context, null, lowLatencyWriteCallback, null);
+		context.pb(lowLatencyIOContext);
+		context.flags(context.flags() | AVFMT_FLAG_CUSTOM_IO);
+		lowLatencyMuxers.put(context, this);
+
+		AVDictionary optionsDictionary = new AVDictionary();
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			av_dict_set(optionsDictionary, option.getKey(), option.getValue(), 0);
+		}
+		int ret = avformat_write_header(context, optionsDictionary);
+		av_dict_free(optionsDictionary);
+		if (ret < 0) {
+			byte[] data = new byte[1024];
+			av_strerror(ret, data, data.length);
+			logger.warn("could not write header. File: {} Error: {}", file.getAbsolutePath(), new String(data, 0, data.length));
+			return false;
+		}
+
+		// ftyp and moov are the initialization section
+		avio_flush(lowLatencyIOContext);
+		try {
+			Files.write(new File(file.getParentFile(), initSegmentName).toPath(), fragmentBuffer.toByteArray());
+		} catch (IOException e) {
+			logger.error("Initialization section cannot be written for {}: {}", file.getName(), e.getMessage());
+			return false;
+		}
+		fragmentBuffer.reset();
+
+		lowLatencyPlaylist = new LowLatencyHLSPlaylist(file.getName(), initSegmentName, partDurationMs, Integer.parseInt(hlsListSize));
+		LowLatencyHLSPlaylist.register(appName, lowLatencyPlaylist);
+		writePlaylistFile();
+		isRunning.set(true);
+		return true;
+	}
+
+	/**
+	 * Flushes the part at the boundaries before the packet is written. 
+	 * Parts are cut at the packets of the video stream or audio stream if there is no video.
+	 * Segments are cut at key frames after hls time.
+	 */
+	private void checkLowLatencyBoundary(AVPacket pkt, AVRational inputTimebase, int codecType) {
+		if (hasVideo && codecType != AVMEDIA_TYPE_VIDEO) {
+			return;
+		}
+		long timeMs = av_rescale_q(pkt.dts(), inputTimebase, msTimeBase);
+		boolean keyFrame = codecType != AVMEDIA_TYPE_VIDEO || (pkt.flags() & AV_PKT_FLAG_KEY) != 0;
+		lastBoundaryPacketTimeMs = timeMs;
+		if (partStartTimeMs == -1) {
+			partStartTimeMs = timeMs;
+			segmentStartTimeMs = timeMs;
+			partIndependent = keyFrame;
+			return;
+		}
+
+		if (keyFrame && (timeMs - segmentStartTimeMs) >= segmentDurationMs) {
+			flushPart(timeMs);
+			completeSegment();
+			segmentStartTimeMs = timeMs;
+			partIndependent = true;
+		}
+		else if ((timeMs - partStartTimeMs) >= partDurationMs) {
+			flushPart(timeMs);
+			partIndependent = keyFrame;
+		}
+	}
+
+	private void flushPart(long timeMs) {
+		// write the fragment of the packets so far
+		av_write_frame(outputFormatContext, null);
+		avio_flush(lowLatencyIOContext);
+		if (fragmentBuffer.size() == 0) {
+			return;
+		}
+		String partName = lowLatencyPlaylist.getPartUri(lowLatencyPlaylist.getCurrentSequence(), lowLatencyPlaylist.getCurrentPartCount());
+		try {
+			Files.write(new File(file.getParentFile(), partName).toPath(), fragmentBuffer.toByteArray());
+			fragmentBuffer.writeTo(segmentBuffer);
+		} catch (IOException e) {
+			logger.error("Part {} cannot be written: {}", partName, e.getMessage());
+		}
+		fragmentBuffer.reset();
+		lowLatencyPlaylist.addPart(partName, timeMs - partStartTimeMs, partIndependent);
+		partStartTimeMs = timeMs;
+		writePlaylistFile();
+	}
+
+	private void completeSegment() {
+		if (segmentBuffer.size() == 0) {
+			return;
+		}
+		String segmentName = lowLatencyPlaylist.getSegmentUri(lowLatencyPlaylist.getCurrentSequence());
+		try {
+			Files.write(new File(file.getParentFile(), segmentName).toPath(), segmentBuffer.toByteArray());
+		} catch (IOException e) {
+			logger.error("Segment {} cannot be written: {}", segmentName, e.getMessage());
+		}
+		segmentBuffer.reset();
+
+		List<String> removedFiles = new ArrayList<>(lowLatencyPlaylist.completeSegment(segmentName));
+		removedFiles.addAll(lowLatencyPlaylist.removeOldParts());
+		for (String removedFile : removedFiles) {
+			try {
+				Files.deleteIfExists(new File(file.getParentFile(), removedFile).toPath());
+			} catch (IOException e) {
+				logger.warn("{} cannot be deleted: {}", removedFile, e.getMessage());
+			}
+		}
+		writePlaylistFile();
+	}
+
+	/**
+	 * Playlist file is rewritten with every part, players poll it
+	 */
+	private void writePlaylistFile() {
+		File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+		try {
+			Files.write(tmpFile.toPath(), lowLatencyPlaylist.getPlaylist().getBytes(StandardCharsets.UTF_8));
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			logger.warn("Playlist {} cannot be written: {}", file.getName(), e.getMessage());
+		}
+	}
+
+	private void writeLowLatencyTrailer() {
+		if (partStartTimeMs != -1) {
+			flushPart(Math.max(lastBoundaryPacketTimeMs, partStartTimeMs + 1));
+			completeSegment();
+		}
+		lowLatencyPlaylist.end();
+		writePlaylistFile();
+		LowLatencyHLSPlaylist.unregister(appName, lowLatencyPlaylist);
+
+		av_write_trailer(outputFormatContext);
+		lowLatencyMuxers.remove(outputFormatContext);
+		if (lowLatencyIOContext.buffer() != null) {
+			av_free(lowLatencyIOContext.buffer());
+			lowLatencyIOContext.buffer(null);
+		}
+		avio_context_free(lowLatencyIOContext);
+		lowLatencyIOContext = null;
+		outputFormatContext.pb(null);
+		fragmentBuffer.reset();
+		if (msTimeBase != null) {
+			msTimeBase.close();
+			msTimeBase = null;
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -691,6 +965,35 @@ public class HLSMuxer extends Muxer  {
 		this.hlsPlayListType = hlsPlayListType;
 	}
 
+	public boolean isLowLatency() {
+		return lowLatency;
+	}
+
+	/**
+	 * Enables low latency HLS. It should be called before init
+	 * @param lowLatency
+	 */
+	public void setLowLatency(boolean lowLatency) {
+		this.lowLatency = lowLatency;
+	}
+
+	public long getPartDurationMs() {
+		return partDurationMs;
+	}
+
+	public void setPartDurationMs(long partDurationMs) {
+		if (partDurationMs > 0) {
+			this.partDurationMs = partDurationMs;
+		}
+	}
+
+	/**
+	 * @return in-memory playlist if low latency is enabled and muxer is prepared
+	 */
+	public LowLatencyHLSPlaylist getLowLatencyPlaylist() {
+		return lowLatencyPlaylist;
+	}
+
 	public boolean isDeleteFileOnExit() {
 		return deleteFileOnExit;
 	}
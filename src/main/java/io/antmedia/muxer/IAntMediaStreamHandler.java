@@ -1,6 +1,9 @@
 package io.antmedia.muxer;
 
 import java.io.File;
+import java.util.List;
+
+import io.antmedia.statistic.type.StreamQualityStats;
 
 public interface IAntMediaStreamHandler {
 	
@@ -35,6 +38,21 @@ public interface IAntMediaStreamHandler {
 	 */
 	public void setQualityParameters(String id, String quality, double speed, int pendingPacketSize);
 
+	/**
+	 * Update quality parameters of multiple streams. It's called periodically with the streams
+	 * whose quality parameters are changed. Default implementation calls 
+	 * {@link #setQualityParameters(String, String, double, int)} for each stream. Implementations 
+	 * should override it to write them to datastore in one batch 
+	 * with {@link io.antmedia.datastore.db.DataStore#updateSourceQualityParameters(List)}
+	 * 
+	 * @param qualityStatsList quality parameters of the streams
+	 */
+	public default void setQualityParameters(List<StreamQualityStats> qualityStatsList) {
+		for (StreamQualityStats stats : qualityStatsList) {
+			setQualityParameters(stats.getStreamId(), stats.getQuality(), stats.getSpeed(), stats.getPendingPacketSize());
+		}
+	}
+
     /***
      * Adds a MuxAdaptor when a muxAdaptor is created
      *
@@ -0,0 +1,382 @@
+package io.antmedia.muxer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the ingest jobs of the streams on a fixed number of worker threads.
+ *
+ * Each stream is registered once and it's owned by a worker. Streams are not polled periodically,
+ * they're woken up with {@link Registration#wakeup()} when a packet arrives and worker runs the job
+ * of the stream. A job of a stream never runs concurrently with itself.
+ *
+ * Load of each worker is exposed with {@link #getWorkerStats()}. When a stream is cancelled, streams of the
+ * workers that have more streams than average are moved to the others with {@link #rebalance()}.
+ *
+ * Jobs must not block, a job waiting for data delays all streams of its worker
+ *
+ * Shared scheduler of the node is created with the first {@link #getInstance()} call and its threads are 
+ * stopped with {@link #shutdownInstance()} when the server is destroyed
+ *
+ * @author mekya
+ *
+ */
+public class IngestScheduler {
+
+	private static Logger logger = LoggerFactory.getLogger(IngestScheduler.class);
+
+	/**
+	 * Max time to wait for a worker to finish its running job in {@link #shutdown()}
+	 */
+	private static final long SHUTDOWN_TIMEOUT_MS = 5000;
+
+	private static IngestScheduler instance;
+
+	/**
+	 * Worker that runs the woken streams in FIFO order
+	 */
+	private static class Worker implements Runnable {
+
+		private final int index;
+		private final Queue<Registration> runQueue = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger streamCount = new AtomicInteger(0);
+		private final AtomicLong busyTimeNanos = new AtomicLong(0);
+		private final AtomicLong runCount = new AtomicLong(0);
+		private volatile Thread thread;
+		private volatile boolean parked = false;
+		private volatile boolean running = true;
+
+		public Worker(int index) {
+			this.index = index;
+		}
+
+		void schedule(Registration registration) {
+			runQueue.add(registration);
+			if (parked) {
+				LockSupport.unpark(thread);
+			}
+		}
+
+		@Override
+		public void run() {
+			while (running)
+			{
+				Registration registration = runQueue.poll();
+				if (registration == null) {
+					parked = true;
+					if (runQueue.isEmpty()) {
+						LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+					}
+					parked = false;
+					continue;
+				}
+
+				long startTime = System.nanoTime();
+				registration.runJob();
+				busyTimeNanos.addAndGet(System.nanoTime() - startTime);
+				runCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Handle of a registered stream
+	 */
+	public static class Registration {
+
+		private final String name;
+		private final Runnable job;
+		private volatile Worker worker;
+		private volatile boolean cancelled = false;
+
+		/**
+		 * Number of wake ups that are not processed yet. Registration is in the run queue of the worker or
+		 * its job is running while it's bigger than zero.
+		 */
+		private final AtomicInteger pendingWakeups = new AtomicInteger(0);
+
+		private Registration(String name, Runnable job, Worker worker) {
+			this.name = name;
+			this.job = job;
+			this.worker = worker;
+		}
+
+		/**
+		 * Lets the worker run the job of the stream. It's cheap to call for every incoming packet
+		 */
+		public void wakeup() {
+			if (!cancelled && pendingWakeups.getAndIncrement() == 0) {
+				worker.schedule(this);
+			}
+		}
+
+		private void runJob() {
+			int wakeups = pendingWakeups.get();
+			if (!cancelled) {
+				try {
+					job.run();
+				}
+				catch (Throwable t) {
+					// worker runs the other streams, it should not end with the error of a stream
+					logger.error("Exception in ingest job of {}", name, t);
+				}
+			}
+
+			if (!pendingWakeups.compareAndSet(wakeups, 0))
+			{
+				//there are wake ups while job is running, put it to the end of the queue
+				pendingWakeups.set(1);
+				if (!cancelled) {
+					worker.schedule(this);
+				}
+				else {
+					pendingWakeups.set(0);
+				}
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getWorkerIndex() {
+			return worker.index;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	/**
+	 * Snapshot of a worker's load
+	 */
+	public static class WorkerStats {
+		private final int index;
+		private final int streamCount;
+		private final long busyTimeNanos;
+		private final long runCount;
+		private final int queueSize;
+
+		public WorkerStats(int index, int streamCount, long busyTimeNanos, long runCount, int queueSize) {
+			this.index = index;
+			this.streamCount = streamCount;
+			this.busyTimeNanos = busyTimeNanos;
+			this.runCount = runCount;
+			this.queueSize = queueSize;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public int getStreamCount() {
+			return streamCount;
+		}
+
+		/**
+		 * @return total time spent in the jobs of the streams
+		 */
+		public long getBusyTimeNanos() {
+			return busyTimeNanos;
+		}
+
+		public long getRunCount() {
+			return runCount;
+		}
+
+		/**
+		 * @return number of streams waiting to be run
+		 */
+		public int getQueueSize() {
+			return queueSize;
+		}
+	}
+
+	private final Worker[] workers;
+
+	private final List<Registration> registrations = new ArrayList<>();
+
+	public IngestScheduler(int workerCount) {
+		if (workerCount <= 0) {
+			workerCount = 1;
+		}
+		workers = new Worker[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			workers[i] = new Worker(i);
+			Thread thread = new Thread(workers[i], "ingest-worker-" + i);
+			thread.setDaemon(true);
+			workers[i].thread = thread;
+			thread.start();
+		}
+		logger.info("Ingest scheduler is started with {} workers", workerCount);
+	}
+
+	/**
+	 * @return shared scheduler of the node that has a worker per core
+	 */
+	public static synchronized IngestScheduler getInstance() {
+		if (instance == null) {
+			instance = new IngestScheduler(Runtime.getRuntime().availableProcessors());
+		}
+		return instance;
+	}
+
+	/**
+	 * Stops the threads of the shared scheduler. Next {@link #getInstance()} call creates a new one
+	 */
+	public static synchronized void shutdownInstance() {
+		if (instance != null) {
+			instance.shutdown();
+			instance = null;
+		}
+	}
+
+	/**
+	 * Cancels the registrations and stops the workers. It waits for the running jobs to finish 
+	 * for {@link #SHUTDOWN_TIMEOUT_MS}
+	 */
+	public void shutdown() {
+		synchronized (registrations) {
+			for (Registration registration : registrations) {
+				registration.cancelled = true;
+			}
+			registrations.clear();
+		}
+		for (Worker worker : workers) {
+			worker.running = false;
+			LockSupport.unpark(worker.thread);
+		}
+		long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MS;
+		try {
+			for (Worker worker : workers) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining > 0) {
+					worker.thread.join(remaining);
+				}
+				if (worker.thread.isAlive()) {
+					logger.warn("Ingest worker {} is still running a job", worker.index);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		logger.info("Ingest scheduler is shut down");
+	}
+
+	/**
+	 * @return true if worker threads are running
+	 */
+	public boolean isRunning() {
+		for (Worker worker : workers) {
+			if (worker.thread.isAlive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Registers the job of a stream to the least loaded worker
+	 *
+	 * @param name name of the stream, it's used for logging
+	 * @param job job to run when stream is woken up
+	 * @return registration to wake up or cancel the job
+	 */
+	public Registration register(String name, Runnable job) {
+		Worker worker = getLeastLoadedWorker();
+		Registration registration = new Registration(name, job, worker);
+		worker.streamCount.incrementAndGet();
+		synchronized (registrations) {
+			registrations.add(registration);
+		}
+		logger.info("Stream {} is registered to ingest worker {}", name, worker.index);
+		return registration;
+	}
+
+	/**
+	 * Cancels the registration. Job is not run after this method returns unless it's already running
+	 */
+	public void cancel(Registration registration) {
+		if (registration == null || registration.cancelled) {
+			return;
+		}
+		registration.cancelled = true;
+		boolean removed;
+		synchronized (registrations) {
+			removed = registrations.remove(registration);
+		}
+		if (removed) {
+			registration.worker.streamCount.decrementAndGet();
+			rebalance();
+		}
+	}
+
+	private Worker getLeastLoadedWorker() {
+		Worker leastLoaded = workers[0];
+		for (Worker worker : workers) {
+			if (worker.streamCount.get() < leastLoaded.streamCount.get()) {
+				leastLoaded = worker;
+			}
+		}
+		return leastLoaded;
+	}
+
+	public List<WorkerStats> getWorkerStats() {
+		List<WorkerStats> stats = new ArrayList<>(workers.length);
+		for (Worker worker : workers) {
+			stats.add(new WorkerStats(worker.index, worker.streamCount.get(), worker.busyTimeNanos.get(),
+					worker.runCount.get(), worker.runQueue.size()));
+		}
+		return stats;
+	}
+
+	public int getWorkerCount() {
+		return workers.length;
+	}
+
+	/**
+	 * Moves the streams from the workers that have more streams than average to the ones that have less.
+	 * Streams that are waiting in a run queue are not moved in this call
+	 *
+	 * @return number of moved streams
+	 */
+	public int rebalance() {
+		int movedCount = 0;
+		synchronized (registrations)
+		{
+			int average = (registrations.size() + workers.length - 1) / workers.length;
+			for (Registration registration : registrations)
+			{
+				Worker current = registration.worker;
+				if (current.streamCount.get() > average && registration.pendingWakeups.get() == 0)
+				{
+					Worker target = getLeastLoadedWorker();
+					if (target.streamCount.get() < average) {
+						// It's ok if a wake up is scheduled to the previous worker concurrently,
+						// job is never run concurrently because of pending wakeups
+						registration.worker = target;
+						current.streamCount.decrementAndGet();
+						target.streamCount.incrementAndGet();
+						movedCount++;
+					}
+				}
+			}
+		}
+		if (movedCount > 0) {
+			logger.info("{} streams are moved to other ingest workers", movedCount);
+		}
+		return movedCount;
+	}
+
+}
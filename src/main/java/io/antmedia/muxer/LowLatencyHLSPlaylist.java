@@ -0,0 +1,258 @@
+package io.antmedia.muxer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Media playlist of a low latency HLS stream that is kept in memory.
+ *
+ * Muxer adds the partial segments with {@link #addPart(String, long, boolean)} and completes the segments
+ * with {@link #completeSegment(String)}. Playlist is written to a file and players poll it. There is no endpoint
+ * for blocking playlist reloads(_HLS_msn and _HLS_part parameters) and blocking part requests, so the playlist
+ * does not have CAN-BLOCK-RELOAD and EXT-X-PRELOAD-HINT.
+ *
+ * Playlists are registered with their application and names so that HTTP layer can find them with {@link #getPlaylist(String, String)}
+ *
+ * @author mekya
+ *
+ */
+public class LowLatencyHLSPlaylist {
+
+	/**
+	 * Parts are listed for this number of last segments. Older segments are listed without their parts
+	 */
+	public static final int PART_SEGMENT_COUNT = 3;
+
+	/**
+	 * Playlists of all applications, key is application name and playlist name
+	 */
+	private static Map<String, LowLatencyHLSPlaylist> playlists = new ConcurrentHashMap<>();
+
+	private static class Part {
+		final String uri;
+		final long durationMs;
+		final boolean independent;
+
+		Part(String uri, long durationMs, boolean independent) {
+			this.uri = uri;
+			this.durationMs = durationMs;
+			this.independent = independent;
+		}
+	}
+
+	private static class Segment {
+		final long sequence;
+		final List<Part> parts = new ArrayList<>();
+		String uri;
+		long durationMs;
+
+		Segment(long sequence) {
+			this.sequence = sequence;
+		}
+	}
+
+	private final String name;
+	private final String initSegmentUri;
+	private final long partTargetMs;
+	private final int listSize;
+
+	private final Deque<Segment> segments = new ArrayDeque<>();
+	private Segment currentSegment;
+	private long maxSegmentDurationMs;
+	private boolean ended = false;
+
+	/**
+	 * Rendered playlist, it's updated when a part or a segment is added
+	 */
+	private volatile String playlist;
+
+	/**
+	 * @param name name of the playlist like stream.m3u8
+	 * @param initSegmentUri uri of the initialization section
+	 * @param partTargetMs target duration of the parts
+	 * @param listSize max number of complete segments in the playlist, 0 means all segments
+	 */
+	public LowLatencyHLSPlaylist(String name, String initSegmentUri, long partTargetMs, int listSize) {
+		this.name = name;
+		this.initSegmentUri = initSegmentUri;
+		this.partTargetMs = partTargetMs;
+		this.listSize = listSize;
+		this.currentSegment = new Segment(0);
+		this.playlist = render();
+	}
+
+	private static String getKey(String appName, String name) {
+		return appName + "/" + name;
+	}
+
+	public static void register(String appName, LowLatencyHLSPlaylist playlist) {
+		playlists.put(getKey(appName, playlist.name), playlist);
+	}
+
+	public static void unregister(String appName, LowLatencyHLSPlaylist playlist) {
+		playlists.remove(getKey(appName, playlist.name), playlist);
+	}
+
+	/**
+	 * @param appName name of the application
+	 * @param name name of the playlist
+	 * @return playlist or null if there is no low latency stream with this name in the application
+	 */
+	public static LowLatencyHLSPlaylist getPlaylist(String appName, String name) {
+		return playlists.get(getKey(appName, name));
+	}
+
+	/**
+	 * Adds a partial segment to the current segment
+	 * @param uri
+	 * @param durationMs
+	 * @param independent true if part starts with a key frame
+	 */
+	public synchronized void addPart(String uri, long durationMs, boolean independent) {
+		currentSegment.parts.add(new Part(uri, durationMs, independent));
+		currentSegment.durationMs += durationMs;
+		update();
+	}
+
+	/**
+	 * Completes the current segment that consists of the parts added so far and starts a new segment
+	 * @param uri
+	 * @return uris of the segments and parts that are removed from the playlist
+	 */
+	public synchronized List<String> completeSegment(String uri) {
+		currentSegment.uri = uri;
+		segments.add(currentSegment);
+		if (currentSegment.durationMs > maxSegmentDurationMs) {
+			maxSegmentDurationMs = currentSegment.durationMs;
+		}
+		currentSegment = new Segment(currentSegment.sequence + 1);
+
+		List<String> removedUris = new ArrayList<>();
+		while (listSize > 0 && segments.size() > listSize) {
+			Segment removed = segments.poll();
+			removedUris.add(removed.uri);
+			for (Part part : removed.parts) {
+				removedUris.add(part.uri);
+			}
+		}
+		update();
+		return removedUris;
+	}
+
+	/**
+	 * @return uris of the parts that are not listed in the playlist anymore
+	 */
+	public synchronized List<String> removeOldParts() {
+		List<String> removedUris = new ArrayList<>();
+		int index = 0;
+		int partSegmentStart = segments.size() - (PART_SEGMENT_COUNT - 1);
+		for (Segment segment : segments) {
+			if (index++ < partSegmentStart && !segment.parts.isEmpty()) {
+				for (Part part : segment.parts) {
+					removedUris.add(part.uri);
+				}
+				segment.parts.clear();
+			}
+		}
+		if (!removedUris.isEmpty()) {
+			update();
+		}
+		return removedUris;
+	}
+
+	/**
+	 * Marks the end of the stream
+	 */
+	public synchronized void end() {
+		ended = true;
+		update();
+	}
+
+	private void update() {
+		playlist = render();
+	}
+
+	/**
+	 * @return current playlist
+	 */
+	public String getPlaylist() {
+		return playlist;
+	}
+
+	private String render() {
+		StringBuilder builder = new StringBuilder(1024);
+		double partTarget = partTargetMs / 1000.0;
+		long targetDuration = Math.max(1, (maxSegmentDurationMs + 999) / 1000);
+		long firstSequence = segments.isEmpty() ? currentSegment.sequence : segments.peek().sequence;
+
+		builder.append("#EXTM3U\n");
+		builder.append("#EXT-X-VERSION:9\n");
+		builder.append("#EXT-X-TARGETDURATION:").append(targetDuration).append('\n');
+		builder.append(String.format(Locale.US, "#EXT-X-SERVER-CONTROL:PART-HOLD-BACK=%.3f\n", 3 * partTarget));
+		builder.append(String.format(Locale.US, "#EXT-X-PART-INF:PART-TARGET=%.3f\n", partTarget));
+		builder.append("#EXT-X-MEDIA-SEQUENCE:").append(firstSequence).append('\n');
+		builder.append("#EXT-X-MAP:URI=\"").append(initSegmentUri).append("\"\n");
+
+		for (Segment segment : segments) {
+			appendParts(builder, segment);
+			builder.append(String.format(Locale.US, "#EXTINF:%.3f,\n", segment.durationMs / 1000.0));
+			builder.append(segment.uri).append('\n');
+		}
+		appendParts(builder, currentSegment);
+
+		if (ended) {
+			builder.append("#EXT-X-ENDLIST\n");
+		}
+		return builder.toString();
+	}
+
+	private static void appendParts(StringBuilder builder, Segment segment) {
+		for (Part part : segment.parts) {
+			builder.append(String.format(Locale.US, "#EXT-X-PART:DURATION=%.3f,URI=\"%s\"", part.durationMs / 1000.0, part.uri));
+			if (part.independent) {
+				builder.append(",INDEPENDENT=YES");
+			}
+			builder.append('\n');
+		}
+	}
+
+	/**
+	 * @return uri of the part in the segment with the given sequence
+	 */
+	public String getPartUri(long sequence, int partIndex) {
+		String baseName = name.endsWith(".m3u8") ? name.substring(0, name.length() - ".m3u8".length()) : name;
+		return baseName + "_" + sequence + "_" + partIndex + ".m4s";
+	}
+
+	/**
+	 * @return uri of the segment with the given sequence
+	 */
+	public String getSegmentUri(long sequence) {
+		String baseName = name.endsWith(".m3u8") ? name.substring(0, name.length() - ".m3u8".length()) : name;
+		return baseName + "_" + sequence + ".m4s";
+	}
+
+	/**
+	 * @return media sequence number of the segment that parts are being added
+	 */
+	public synchronized long getCurrentSequence() {
+		return currentSegment.sequence;
+	}
+
+	/**
+	 * @return number of parts in the current segment
+	 */
+	public synchronized int getCurrentPartCount() {
+		return currentSegment.parts.size();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+}
@@ -0,0 +1,513 @@
+package io.antmedia.muxer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.red5.server.api.listeners.IScopeListener;
+import org.red5.server.api.scope.IScope;
+import org.red5.server.api.scope.ScopeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationContext;
+
+import io.antmedia.storage.StorageClient;
+import io.antmedia.storage.StorageClient.FileType;
+import io.antmedia.storage.UploadSession;
+
+/**
+ * Finalizes the MP4 files after their trailers are written.
+ *
+ * Each recording passes through the stages remux, move, duration, notify and upload
+ * on a bounded worker pool that is not shared with the scheduler of the application.
+ * A stage that throws an exception is retried with exponential backoff.
+ *
+ * Progress of a recording is kept in a journal file next to the recording so that
+ * finalization resumes from the last completed stage after a restart.
+ * Journals of an application are resumed when the application starts, see {@link ApplicationStartListener}
+ *
+ * Latency of each stage is exposed with {@link #getStageStats()}
+ *
+ * @author mekya
+ *
+ */
+public class Mp4FinalizationPipeline {
+
+	private static Logger logger = LoggerFactory.getLogger(Mp4FinalizationPipeline.class);
+
+	public static final String JOURNAL_EXTENSION = ".finalize";
+
+	public static final int MAX_ATTEMPTS = 5;
+
+	public static final long RETRY_DELAY_MS = 1000;
+
+	public static final int WORKER_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+	public enum Stage {
+		/**
+		 * Converts the temp file to mp4 if AVC conversion is required
+		 */
+		REMUX,
+		/**
+		 * Moves the temp file to the recording file
+		 */
+		MOVE,
+		/**
+		 * Reads the duration of the recording file
+		 */
+		DURATION,
+		/**
+		 * Lets the stream handler know that recording is finished.
+		 * It's done before upload because storage client deletes the local file after upload.
+		 * It's done at most once, it's not retried and it's not run again after restart if it's started
+		 */
+		NOTIFY,
+		/**
+		 * Saves the recording to the storage
+		 */
+		UPLOAD,
+		DONE
+	}
+
+	private static class InstanceHolder {
+		private static final Mp4FinalizationPipeline INSTANCE = new Mp4FinalizationPipeline(WORKER_COUNT);
+	}
+
+	/**
+	 * A recording that is being finalized. Its fields except the stream handler and storage client
+	 * are saved to the journal file
+	 */
+	public static class FinalizationJob {
+
+		private final String streamId;
+		private final File tmpFile;
+		private final File file;
+		private final int resolution;
+		private final int rotation;
+		private final boolean avcConversionRequired;
+		private Stage stage = Stage.REMUX;
+		private long durationMs = -1;
+		private int attempt = 0;
+		private boolean notified = false;
+		/**
+		 * Key and id of the upload session. They're kept in the journal to abort the upload after a restart
+		 */
+		private String uploadKey;
+		private String uploadId;
+
+		private IAntMediaStreamHandler streamHandler;
+		private StorageClient storageClient;
+		private UploadSession uploadSession;
+
+		public FinalizationJob(String streamId, File tmpFile, File file, int resolution, int rotation, boolean avcConversionRequired) {
+			this.streamId = streamId;
+			this.tmpFile = tmpFile;
+			this.file = file;
+			this.resolution = resolution;
+			this.rotation = rotation;
+			this.avcConversionRequired = avcConversionRequired;
+		}
+
+		public void setStreamHandler(IAntMediaStreamHandler streamHandler) {
+			this.streamHandler = streamHandler;
+		}
+
+		public void setStorageClient(StorageClient storageClient) {
+			this.storageClient = storageClient;
+		}
+
+		/**
+		 * @param uploadSession session that uploads the recording while it's being written. 
+		 * It's completed in upload stage instead of saving the whole file
+		 */
+		public void setUploadSession(UploadSession uploadSession) {
+			this.uploadSession = uploadSession;
+			if (uploadSession != null) {
+				uploadKey = uploadSession.getKey();
+				uploadId = uploadSession.getUploadId();
+			}
+		}
+
+		public String getStreamId() {
+			return streamId;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public Stage getStage() {
+			return stage;
+		}
+
+		public long getDurationMs() {
+			return durationMs;
+		}
+
+		private File getJournalFile() {
+			return new File(file.getAbsolutePath() + JOURNAL_EXTENSION);
+		}
+
+		private void save() throws IOException {
+			Properties properties = new Properties();
+			properties.setProperty("streamId", streamId);
+			properties.setProperty("tmpFile", tmpFile.getAbsolutePath());
+			properties.setProperty("file", file.getAbsolutePath());
+			properties.setProperty("resolution", String.valueOf(resolution));
+			properties.setProperty("rotation", String.valueOf(rotation));
+			properties.setProperty("avcConversionRequired", String.valueOf(avcConversionRequired));
+			properties.setProperty("stage", stage.name());
+			properties.setProperty("durationMs", String.valueOf(durationMs));
+			properties.setProperty("notified", String.valueOf(notified));
+			if (uploadId != null) {
+				properties.setProperty("uploadKey", uploadKey);
+				properties.setProperty("uploadId", uploadId);
+			}
+
+			// write to a temp file and rename so that journal is not corrupted if server stops while writing
+			File journalFile = getJournalFile();
+			File journalTmpFile = new File(journalFile.getAbsolutePath() + ".tmp");
+			try (OutputStream out = new FileOutputStream(journalTmpFile)) {
+				properties.store(out, null);
+			}
+			Files.move(journalTmpFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		private static FinalizationJob load(File journalFile) throws IOException {
+			Properties properties = new Properties();
+			try (InputStream in = new FileInputStream(journalFile)) {
+				properties.load(in);
+			}
+			FinalizationJob job = new FinalizationJob(properties.getProperty("streamId"),
+					new File(properties.getProperty("tmpFile")),
+					new File(properties.getProperty("file")),
+					Integer.parseInt(properties.getProperty("resolution", "0")),
+					Integer.parseInt(properties.getProperty("rotation", "0")),
+					Boolean.parseBoolean(properties.getProperty("avcConversionRequired")));
+			job.stage = Stage.valueOf(properties.getProperty("stage", Stage.REMUX.name()));
+			job.durationMs = Long.parseLong(properties.getProperty("durationMs", "-1"));
+			job.notified = Boolean.parseBoolean(properties.getProperty("notified"));
+			job.uploadKey = properties.getProperty("uploadKey");
+			job.uploadId = properties.getProperty("uploadId");
+			return job;
+		}
+	}
+
+	/**
+	 * Resumes the journals in the recording directory of an application when the application scope starts.
+	 * It's registered to the server so that recordings are finalized even if the stream is not published again
+	 */
+	public static class ApplicationStartListener implements IScopeListener {
+
+		@Override
+		public void notifyScopeCreated(IScope scope) {
+			if (scope.getType() == ScopeType.APPLICATION) {
+				try {
+					getInstance().resumePending(scope);
+				}
+				catch (Exception e) {
+					logger.error("Recordings of {} cannot be resumed {}", scope.getName(), ExceptionUtils.getStackTrace(e));
+				}
+			}
+		}
+
+		@Override
+		public void notifyScopeRemoved(IScope scope) {
+			//journals are kept to be resumed in the next start
+		}
+	}
+
+	/**
+	 * Latency statistics of a stage
+	 */
+	public static class StageStats {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong failureCount = new AtomicLong();
+		private final AtomicLong totalTimeNanos = new AtomicLong();
+		private final AtomicLong maxTimeNanos = new AtomicLong();
+
+		private void record(long elapsedNanos) {
+			count.incrementAndGet();
+			totalTimeNanos.addAndGet(elapsedNanos);
+			long max;
+			while (elapsedNanos > (max = maxTimeNanos.get()) && !maxTimeNanos.compareAndSet(max, elapsedNanos)) {
+				//retry until max is updated
+			}
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getFailureCount() {
+			return failureCount.get();
+		}
+
+		public long getAverageTimeMs() {
+			long c = count.get();
+			return c > 0 ? TimeUnit.NANOSECONDS.toMillis(totalTimeNanos.get() / c) : 0;
+		}
+
+		public long getMaxTimeMs() {
+			return TimeUnit.NANOSECONDS.toMillis(maxTimeNanos.get());
+		}
+	}
+
+	private final ScheduledExecutorService executor;
+
+	private final Map<Stage, StageStats> stageStats = new EnumMap<>(Stage.class);
+
+	private final AtomicInteger activeJobCount = new AtomicInteger(0);
+
+	/**
+	 * Directories whose journals are resumed
+	 */
+	private final Set<String> resumedDirectories = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Files that are being finalized, it prevents the same file to be finalized twice
+	 */
+	private final Set<String> activeFiles = ConcurrentHashMap.newKeySet();
+
+	public Mp4FinalizationPipeline(int workerCount) {
+		AtomicInteger threadCounter = new AtomicInteger(0);
+		executor = Executors.newScheduledThreadPool(workerCount, runnable -> {
+			Thread thread = new Thread(runnable, "mp4-finalizer-" + threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (Stage stage : Stage.values()) {
+			stageStats.put(stage, new StageStats());
+		}
+	}
+
+	public static Mp4FinalizationPipeline getInstance() {
+		return InstanceHolder.INSTANCE;
+	}
+
+	/**
+	 * Saves the journal of the job and starts finalizing it
+	 * @param job
+	 */
+	public void submit(FinalizationJob job) {
+		if (!activeFiles.add(job.file.getAbsolutePath())) {
+			logger.info("{} is already being finalized", job.file.getName());
+			return;
+		}
+		try {
+			job.save();
+		} catch (IOException e) {
+			logger.warn("Journal cannot be saved for {}. It cannot be resumed after restart", job.file.getName());
+		}
+		activeJobCount.incrementAndGet();
+		executor.execute(() -> run(job));
+	}
+
+	/**
+	 * Resumes the finalization of the recordings in the recording directory of the application with the
+	 * stream handler and storage client of the application
+	 *
+	 * @param appScope
+	 */
+	public void resumePending(IScope appScope) {
+		ApplicationContext appCtx = appScope.getContext().getApplicationContext();
+		StorageClient storageClient = null;
+		if (appCtx.containsBean(StorageClient.BEAN_NAME)) {
+			storageClient = (StorageClient) appCtx.getBean(StorageClient.BEAN_NAME);
+		}
+		File directory = Muxer.getRecordFile(appScope, "journal", ".mp4").getParentFile();
+		resumePending(directory, Mp4Muxer.getStreamHandler(appScope), storageClient);
+	}
+
+	/**
+	 * Resumes the finalization of the recordings in the directory that are not completed before restart.
+	 * Directory is scanned only once
+	 *
+	 * @param directory
+	 * @param streamHandler
+	 * @param storageClient
+	 */
+	public void resumePending(File directory, IAntMediaStreamHandler streamHandler, StorageClient storageClient) {
+		if (directory == null || !resumedDirectories.add(directory.getAbsolutePath())) {
+			return;
+		}
+		File[] journalFiles = directory.listFiles((dir, name) -> name.endsWith(JOURNAL_EXTENSION));
+		if (journalFiles == null) {
+			return;
+		}
+		for (File journalFile : journalFiles) {
+			try {
+				FinalizationJob job = FinalizationJob.load(journalFile);
+				job.setStreamHandler(streamHandler);
+				job.setStorageClient(storageClient);
+				logger.info("Resuming finalization of {} from stage {}", job.file.getName(), job.stage);
+				submit(job);
+			}
+			catch (Exception e) {
+				logger.error("Journal {} cannot be read {}", journalFile.getName(), ExceptionUtils.getStackTrace(e));
+			}
+		}
+	}
+
+	private void run(FinalizationJob job) {
+		while (job.stage != Stage.DONE) {
+			Stage stage = job.stage;
+			long startTime = System.nanoTime();
+			try {
+				runStage(job, stage);
+				stageStats.get(stage).record(System.nanoTime() - startTime);
+				job.stage = Stage.values()[stage.ordinal() + 1];
+				job.attempt = 0;
+				if (job.stage != Stage.DONE) {
+					job.save();
+				}
+			}
+			catch (Exception e) {
+				stageStats.get(stage).failureCount.incrementAndGet();
+				job.attempt++;
+				if (job.attempt < MAX_ATTEMPTS) {
+					long delay = getRetryDelayMs(job.attempt);
+					logger.warn("Stage {} of {} failed in attempt {}. It's retried in {}ms. Error: {}", stage, job.file.getName(), job.attempt, delay, e.getMessage());
+					executor.schedule(() -> run(job), delay, TimeUnit.MILLISECONDS);
+					return;
+				}
+				logger.error("Stage {} of {} failed {} times. Finalization is stopped and it's resumed after restart {}", stage, job.file.getName(), MAX_ATTEMPTS, ExceptionUtils.getStackTrace(e));
+				finish(job);
+				return;
+			}
+		}
+
+		try {
+			Files.deleteIfExists(job.getJournalFile().toPath());
+		} catch (IOException e) {
+			logger.warn("Journal of {} cannot be deleted", job.file.getName());
+		}
+		finish(job);
+	}
+
+	private void finish(FinalizationJob job) {
+		activeFiles.remove(job.file.getAbsolutePath());
+		activeJobCount.decrementAndGet();
+	}
+
+	private void runStage(FinalizationJob job, Stage stage) throws IOException {
+		switch (stage) {
+		case REMUX:
+			if (job.avcConversionRequired && job.tmpFile.exists()) {
+				logger.info("AVC conversion needed for MP4 {}", job.tmpFile.getName());
+				remux(job.tmpFile, job.file, job.rotation);
+				if (!job.file.exists()) {
+					throw new IOException("remuxed file does not exist " + job.file.getName());
+				}
+			}
+			break;
+		case MOVE:
+			if (job.uploadSession != null) {
+				// appends read the temp file
+				job.uploadSession.awaitAppends();
+			}
+			if (job.tmpFile.exists()) {
+				if (job.avcConversionRequired) {
+					Files.delete(job.tmpFile.toPath());
+				}
+				else {
+					Files.move(job.tmpFile.toPath(), job.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			logger.info("MP4 {} is ready", job.file.getName());
+			break;
+		case DURATION:
+			job.durationMs = getDurationInMs(job.file, job.streamId);
+			break;
+		case NOTIFY:
+			if (job.streamHandler != null && !job.notified) {
+				// it's saved before the call so that a crash in the handler does not add the VoD twice
+				job.notified = true;
+				job.save();
+				try {
+					job.streamHandler.muxingFinished(job.streamId, job.file, job.durationMs, job.resolution);
+				}
+				catch (Exception e) {
+					logger.error("Stream handler cannot be notified for {} {}", job.file.getName(), ExceptionUtils.getStackTrace(e));
+				}
+			}
+			break;
+		case UPLOAD:
+			if (job.storageClient == null) {
+				break;
+			}
+			UploadSession session = job.uploadSession;
+			//session is not used in retries, whole file is saved
+			job.uploadSession = null;
+			if (session != null) {
+				if (job.avcConversionRequired || !job.file.exists()) {
+					// remuxed file is different from the uploaded parts
+					session.abort();
+				}
+				else if (session.complete(job.file)) {
+					job.uploadId = null;
+					break;
+				}
+			}
+			else if (job.uploadId != null) {
+				logger.info("Aborting the upload of {} that is started before restart", job.file.getName());
+				job.storageClient.abortUploadSession(job.uploadKey, job.uploadId);
+			}
+			job.uploadId = null;
+			if (job.file.exists()) {
+				logger.info("Storage client is available saving {} to storage", job.file.getName());
+				job.storageClient.saveOrThrow(job.file, FileType.TYPE_STREAM);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	protected void remux(File tmpFile, File file, int rotation) {
+		Mp4Muxer.remux(tmpFile.getAbsolutePath(), file.getAbsolutePath(), rotation);
+	}
+
+	protected long getDurationInMs(File file, String streamId) throws IOException {
+		return Mp4Muxer.getDurationInMs(file, streamId);
+	}
+
+	/**
+	 * @param attempt number of failed attempts of the stage
+	 * @return delay before the next attempt, it's doubled in each attempt
+	 */
+	protected long getRetryDelayMs(int attempt) {
+		return RETRY_DELAY_MS << (attempt - 1);
+	}
+
+	/**
+	 * @return latency statistics of each stage
+	 */
+	public Map<Stage, StageStats> getStageStats() {
+		return stageStats;
+	}
+
+	/**
+	 * @return number of recordings being finalized or waiting to be finalized
+	 */
+	public int getActiveJobCount() {
+		return activeJobCount.get();
+	}
+
+}
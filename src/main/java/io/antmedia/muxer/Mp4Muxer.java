@@ -2,6 +2,7 @@ package io.antmedia.muxer;
 
 import io.antmedia.storage.StorageClient;
 import io.antmedia.storage.StorageClient.FileType;
+import io.antmedia.storage.UploadSession;
 import org.bytedeco.javacpp.BytePointer;
 import org.bytedeco.javacpp.avcodec;
 import org.bytedeco.javacpp.avcodec.*;
@@ -9,8 +10,6 @@ import org.bytedeco.javacpp.avformat;
 import org.bytedeco.javacpp.avformat.*;
 import org.bytedeco.javacpp.avutil.*;
 import org.red5.server.api.IContext;
-import org.red5.server.api.scheduling.IScheduledJob;
-import org.red5.server.api.scheduling.ISchedulingService;
 import org.red5.server.api.scope.IScope;
 import org.red5.server.scheduling.QuartzSchedulingService;
 import org.slf4j.Logger;
@@ -19,7 +18,6 @@ import org.springframework.context.ApplicationContext;
 
 import java.io.File;
 import java.nio.ByteBuffer;
-import java.nio.file.Files;
 import java.util.*;
 
 import static org.bytedeco.javacpp.avcodec.*;
@@ -62,12 +60,27 @@ public class Mp4Muxer extends Muxer {
 	 */
 	private boolean dynamic = false;
 
+	/**
+	 * Fragmented mp4 is written in moof/mdat fragments that start with key frames.
+	 * File is playable while it's being written and it does not need to be rewritten after trailer
+	 */
+	private boolean fragmented = false;
+
+	public static final String MOVFLAGS_FRAGMENTED = "frag_keyframe+empty_moov+default_base_moof";
+
+	public static final String MOVFLAGS_FASTSTART = "faststart";
+
+	/**
+	 * Fragments of the recording are uploaded to the storage while it's being written if it's fragmented
+	 */
+	private UploadSession uploadSession;
+
 
 	public Mp4Muxer(StorageClient storageClient, QuartzSchedulingService scheduler) {
 		super(scheduler);
 		extension = ".mp4";
 		format = "mp4";
-		options.put("movflags", "faststart");
+		options.put("movflags", MOVFLAGS_FASTSTART);
 		this.storageClient = storageClient;
 	}
 
@@ -139,6 +152,12 @@ public class Mp4Muxer extends Muxer {
 
 		videoPkt = avcodec.av_packet_alloc();
 		av_init_packet(videoPkt);
+
+		//finish the recordings that are not finalized before restart. Recording directory of the application is resumed
+		//when the application starts, it's for the recordings in the other directories
+		if (file != null) {
+			Mp4FinalizationPipeline.getInstance().resumePending(file.getParentFile(), getStreamHandler(scope), storageClient);
+		}
 	}
 
 	/**
@@ -151,6 +170,11 @@ public class Mp4Muxer extends Muxer {
 		AVFormatContext outputContext = getOutputFormatContext();
 		if (outputContext != null && isCodecSupported(codecId))
 		{
+			if (fragmented) {
+				//codec parameters are not available before the first frame so moov cannot be written in advance
+				logger.info("Fragmented mp4 is not supported for encoded video stream. Regular mp4 is recorded for {}", streamId);
+				setFragmented(false);
+			}
 			registeredStreamIndexList.add(streamIndex);
 			AVStream outStream = avformat_new_stream(outputContext, null);
 			outStream.codecpar().width(width);
@@ -354,6 +378,11 @@ public class Mp4Muxer extends Muxer {
 		}
 		
 		isRunning.set(true);
+
+		// converted file is different from the written one, so it cannot be uploaded while it's being written
+		if (fragmented && storageClient != null && !isAVCConversionRequired) {
+			uploadSession = storageClient.openUploadSession(file, FileType.TYPE_STREAM);
+		}
 		return true;
 	}
 
@@ -489,50 +518,33 @@ public class Mp4Muxer extends Muxer {
 
 		final File f = new File(origFileName);
 
-		scheduler.addScheduledOnceJob(0, new IScheduledJob() {
-
-			@Override
-			public void execute(ISchedulingService service) throws CloneNotSupportedException {
-				try {
-					logger.info("File: {} exist: {}", fileTmp.getAbsolutePath(), fileTmp.exists());
-					if (isAVCConversionRequired ) {
-						logger.info("AVC conversion needed for MP4 {}", fileTmp.getName());
-						remux(fileTmp.getAbsolutePath(),f.getAbsolutePath(), rotation);
-						Files.delete(fileTmp.toPath());
-					}
-					else {
-						Files.move(fileTmp.toPath(),f.toPath());
-					}
-
-					logger.info("MP4 {} is ready", f.getName());
-
-					IContext context = Mp4Muxer.this.scope.getContext();
-					ApplicationContext appCtx = context.getApplicationContext();
-					Object bean = appCtx.getBean("web.handler");
-					if (bean instanceof IAntMediaStreamHandler) {
-						((IAntMediaStreamHandler)bean).muxingFinished(streamId, f, getDuration(f), resolution);
-					}
-
-					if (storageClient != null) {
-						logger.info("Storage client is available saving {} to storage", f.getName());
-						scheduler.addScheduledOnceJob(1000, new IScheduledJob() {
-
-							@Override
-							public void execute(ISchedulingService service) throws CloneNotSupportedException {
-								storageClient.save(f, FileType.TYPE_STREAM);
-							}
-						});
+		logger.info("File: {} exist: {}", fileTmp.getAbsolutePath(), fileTmp.exists());
+		Mp4FinalizationPipeline.FinalizationJob job = new Mp4FinalizationPipeline.FinalizationJob(streamId, fileTmp, f, 
+				resolution, rotation, isAVCConversionRequired);
+		job.setStreamHandler(getStreamHandler(scope));
+		job.setStorageClient(storageClient);
+		job.setUploadSession(uploadSession);
+		uploadSession = null;
+		Mp4FinalizationPipeline.getInstance().submit(job);
+	}
 
-					}
-				} catch (Exception e) {
-					logger.error(e.getMessage());
-				}
+	static IAntMediaStreamHandler getStreamHandler(IScope scope) {
+		IContext context = scope.getContext();
+		ApplicationContext appCtx = context.getApplicationContext();
+		if (appCtx.containsBean("web.handler")) {
+			Object bean = appCtx.getBean("web.handler");
+			if (bean instanceof IAntMediaStreamHandler) {
+				return (IAntMediaStreamHandler)bean;
 			}
-		});
-
+		}
+		return null;
 	}
 
 	public long getDuration(File f) {
+		return getDurationInMs(f, streamId);
+	}
+
+	public static long getDurationInMs(File f, String streamId) {
 		AVFormatContext inputFormatContext = avformat.avformat_alloc_context();
 		int ret;
 		if (avformat_open_input(inputFormatContext, f.getAbsolutePath(), null, (AVDictionary)null) < 0) {
@@ -786,6 +798,13 @@ public class Mp4Muxer extends Muxer {
 			
 			av_packet_unref(tmpPacket);
 
+			if (fragmented && (pkt.flags() & AV_PKT_FLAG_KEY) != 0) {
+				//previous fragment is completed with the key frame, flush it to the file
+				avio_flush(context.pb());
+				if (uploadSession != null) {
+					uploadSession.append(fileTmp);
+				}
+			}
 		}
 		else {
 			//for any other stream like subtitle, etc.
@@ -805,6 +824,19 @@ public class Mp4Muxer extends Muxer {
 
 	}
 	
+	public boolean isFragmented() {
+		return fragmented;
+	}
+
+	/**
+	 * It should be called before prepare
+	 * @param fragmented
+	 */
+	public void setFragmented(boolean fragmented) {
+		this.fragmented = fragmented;
+		options.put("movflags", fragmented ? MOVFLAGS_FRAGMENTED : MOVFLAGS_FASTSTART);
+	}
+
 	public List<Integer> getRegisteredStreamIndexList() {
 		return registeredStreamIndexList;
 	}
@@ -19,6 +19,10 @@ import org.red5.server.api.scheduling.ISchedulingService;
 import org.red5.server.api.scope.IScope;
 import org.red5.server.api.stream.IBroadcastStream;
 import org.red5.server.api.stream.IStreamPacket;
+import org.red5.server.net.rtmp.event.IRTMPEvent;
+import org.red5.server.net.rtmp.event.VideoData;
+import org.red5.server.net.rtmp.event.VideoData.FrameType;
+import org.red5.server.net.rtmp.message.Constants;
 import org.red5.server.scheduling.QuartzSchedulingService;
 import org.red5.server.stream.ClientBroadcastStream;
 import org.red5.server.stream.IRecordingListener;
@@ -31,9 +35,9 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.bytedeco.javacpp.avcodec.*;
 import static org.bytedeco.javacpp.avformat.*;
@@ -48,13 +52,14 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 	public static final String ADAPTIVE_SUFFIX = "_adaptive";
 	protected QuartzSchedulingService scheduler;
 	private static Logger logger = LoggerFactory.getLogger(MuxAdaptor.class);
-	protected String packetFeederJobName = null;
-	protected ConcurrentLinkedQueue<byte[]> inputQueue = new ConcurrentLinkedQueue<>();
+	protected volatile IngestScheduler.Registration ingestRegistration = null;
+	protected PacketChannel<IStreamPacket> inputChannel = createInputChannel(PacketChannel.DEFAULT_CAPACITY, PacketChannel.OverflowPolicy.DROP_OLDEST_NON_KEYFRAME);
 	protected AtomicBoolean isPipeReaderJobRunning = new AtomicBoolean(false);
 	protected AVIOContext avio_alloc_context;
 	protected AVFormatContext inputFormatContext;
 
-	protected List<Muxer> muxerList =  Collections.synchronizedList(new ArrayList<Muxer>());
+	protected List<Muxer> muxerList =  new CopyOnWriteArrayList<>();
+	protected MuxerFanout muxerFanout = createMuxerFanout(null, MuxerFanout.DEFAULT_QUEUE_CAPACITY, MuxerFanout.LagPolicy.DROP);
 	protected boolean deleteHLSFilesOnExit = true;
 
 	protected boolean previewOverwrite = false;
@@ -62,21 +67,56 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 	protected boolean enableVideo = false;
 	protected boolean enableAudio = false;
 
+	/**
+	 * If it's true, packets are converted to AVPackets by {@link RtmpPacketDemuxer} instead of FLV demuxer
+	 */
+	protected boolean directDemuxEnabled = false;
+	protected RtmpPacketDemuxer demuxer;
+	private boolean demuxedStreamsPrepared = false;
+
+	/**
+	 * Media packets received before streams of direct demuxer are ready
+	 */
+	private final Deque<IStreamPacket> pendingPackets = new ArrayDeque<>();
+
+	/**
+	 * Max number of packets kept until streams of direct demuxer are ready. Oldest ones are dropped after that
+	 */
+	public static final int MAX_PENDING_PACKET_COUNT = 1000;
+
 	public static class InputContext {
-		public Queue<byte[]> queue;
 		volatile boolean isHeaderWritten = false;
 		volatile boolean stopRequestExist = false;
-		public AtomicInteger queueSize = new AtomicInteger(0);
 		public MuxAdaptor muxAdaptor;
 
+		/*
+		 * Read callback does not wait for packets if it's set. It's set when the stream is run by an ingest worker
+		 * so that a stream waiting for packets does not block the other streams of the worker
+		 */
+		volatile boolean nonBlocking = false;
+
+		/*
+		 * Set by the read callback when there is no packet to read, it's only accessed by the thread reading the stream
+		 */
+		boolean wouldBlock = false;
+
+		/*
+		 * Writes the packets to the native buffer as FLV tags. 
+		 * It's only accessed by the thread calling read callback
+		 */
+		final FLVTagFramer framer = new FLVTagFramer();
+
 		/*
 		 * primitive enableVideo, enableAudio must be set in static getFLVHeader
 		 * so we need to pass the muxAdaptor which contains these primitive fields
 		 */
 		public InputContext(MuxAdaptor muxAdaptor) {
-			this.queue = muxAdaptor.inputQueue;
 			this.muxAdaptor = muxAdaptor;
 		}
+
+		public PacketChannel<IStreamPacket> getChannel() {
+			return muxAdaptor.inputChannel;
+		}
 	}
 
 	private static Map<Pointer, InputContext> queueReferences = new ConcurrentHashMap<>();
@@ -88,11 +128,16 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 	public static final int MP4_ENABLED_FOR_STREAM = 1;
 	public static final int MP4_DISABLED_FOR_STREAM = -1;
 	public static final int MP4_NO_SET_FOR_STREAM = 0;
-	protected static final long WAIT_TIME_MILLISECONDS = 5;
+	/**
+	 * Max time the reader waits for a packet before it checks the stop request and logs that no packet is received.
+	 * Reader is woken up as soon as a packet is received, so it does not delay the packets
+	 */
+	protected static final long WAIT_TIME_MILLISECONDS = 250;
 	protected boolean isRecording = false;
 	protected ClientBroadcastStream broadcastStream;
 	protected boolean mp4MuxingEnabled;
 	protected boolean addDateTimeToMp4FileName;
+	protected boolean mp4FragmentedEnabled;
 	protected boolean hlsMuxingEnabled;
 	protected boolean objectDetectionEnabled;
 	protected boolean webRTCEnabled = false;
@@ -117,6 +162,7 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 	protected IScope scope;
 
 	private String oldQuality;
+	private QualityTelemetry.StreamEntry qualityEntry;
 	private AVRational timeBaseForMS;
 	private InputContext inputContext;
 	private IAntMediaStreamHandler appAdapter;
@@ -159,32 +205,43 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 			try {
 				InputContext inputContextLocal = queueReferences.get(opaque);
 				if (inputContextLocal.isHeaderWritten) {
-					byte[] packet = null;
-
-					if (inputContextLocal.queue != null) {
+					FLVTagFramer framer = inputContextLocal.framer;
+
+					if (framer.isDone()) {
+						PacketChannel<IStreamPacket> channel = inputContextLocal.getChannel();
+						IStreamPacket packet = null;
+						if (inputContextLocal.nonBlocking) {
+							packet = channel.poll();
+							if (packet == null && !inputContextLocal.stopRequestExist && !channel.isClosed()) {
+								// it's at a tag boundary, demuxer is read again when a packet arrives
+								inputContextLocal.wouldBlock = true;
+								return AVERROR_EAGAIN();
+							}
+						}
 						long waitCount = 0;
-						while ((packet = inputContextLocal.queue.poll()) == null) {
-							if (inputContextLocal.stopRequestExist) 
+						while (packet == null && !inputContextLocal.nonBlocking 
+								&& (packet = channel.take(WAIT_TIME_MILLISECONDS, TimeUnit.MILLISECONDS)) == null) {
+							if (inputContextLocal.stopRequestExist || channel.isClosed()) 
 							{
 								logger.info("stop request for stream id : {} ", inputContextLocal.muxAdaptor.getStreamId());
 								break;
 							}
-							Thread.sleep(WAIT_TIME_MILLISECONDS);
 							waitCount++;
-							if (waitCount % 50 == 0) {
-								logger.warn("Stream: {} does not get packet for {} ms",inputContextLocal.muxAdaptor.getStreamId(), waitCount * WAIT_TIME_MILLISECONDS);
-							}
+							logger.warn("Stream: {} does not get packet for {} ms",inputContextLocal.muxAdaptor.getStreamId(), waitCount * WAIT_TIME_MILLISECONDS);
+						}
+						if (packet != null) {
+							framer.reset(packet);
 						}
-						inputContextLocal.queueSize.decrementAndGet();
-
-					} else {
-						logger.error("input queue null for stream id: {}", inputContextLocal.muxAdaptor.getStreamId());
 					}
 
-					if (packet != null) {
+					if (!framer.isDone()) {
 						// ** this setting critical..
-						length = packet.length;
-						buf.put(packet, 0, length);
+						// tag is written directly to the native buffer, it may take more than one call for big tags
+						length = framer.writeTo(buf.capacity(bufSize).asByteBuffer());
+						if (framer.isDone()) {
+							releasePacket(framer.getPacket());
+							framer.clear();
+						}
 					} else {
 						logger.info("packet is null and return length is {}", length);
 					}
@@ -210,6 +267,28 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 
 	};
 
+	private static PacketChannel<IStreamPacket> createInputChannel(int capacity, PacketChannel.OverflowPolicy overflowPolicy) {
+		PacketChannel<IStreamPacket> channel = new PacketChannel<>(capacity, overflowPolicy);
+		channel.setDropListener(MuxAdaptor::releasePacket);
+		return channel;
+	}
+
+	/**
+	 * Packets are retained while they are waiting in the input channel, 
+	 * because the RTMP handler releases them after they're dispatched
+	 */
+	private static void retainPacket(IStreamPacket packet) {
+		if (packet instanceof IRTMPEvent) {
+			((IRTMPEvent) packet).retain();
+		}
+	}
+
+	private static void releasePacket(IStreamPacket packet) {
+		if (packet instanceof IRTMPEvent) {
+			((IRTMPEvent) packet).release();
+		}
+	}
+
 	public static MuxAdaptor initializeMuxAdaptor(ClientBroadcastStream clientBroadcastStream, boolean isSource, IScope scope) {
 		MuxAdaptor muxAdaptor = null;
 		ApplicationContext applicationContext = scope.getContext().getApplicationContext();
@@ -261,6 +340,13 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 	public void addMuxer(Muxer muxer) 
 	{
 		muxerList.add(muxer);
+		muxerFanout.addMuxer(muxer);
+	}
+
+	private MuxerFanout createMuxerFanout(String streamId, int queueCapacity, MuxerFanout.LagPolicy lagPolicy) {
+		MuxerFanout fanout = new MuxerFanout(streamId, queueCapacity, lagPolicy);
+		fanout.setDetachListener(muxerList::remove);
+		return fanout;
 	}
 
 	@Override
@@ -276,6 +362,7 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 		objectDetectionEnabled = appSettingsLocal.isObjectDetectionEnabled();
 
 		addDateTimeToMp4FileName = appSettingsLocal.isAddDateTimeToMp4FileName();
+		mp4FragmentedEnabled = appSettingsLocal.isMp4FragmentedEnabled();
 		mp4Filtername = null;
 		webRTCEnabled = appSettingsLocal.isWebRTCEnabled();
 		deleteHLSFilesOnExit = appSettingsLocal.isDeleteHLSFilesOnEnded();
@@ -288,6 +375,14 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 		maxAnalyzeDurationMS = appSettingsLocal.getMaxAnalyzeDurationMS();
 		generatePreview = appSettingsLocal.isGeneratePreview();
 		previewHeight = appSettingsLocal.getPreviewHeight();
+		directDemuxEnabled = appSettingsLocal.isDirectDemuxEnabled();
+		inputChannel = createInputChannel(appSettingsLocal.getIngestQueueCapacity(), 
+				PacketChannel.OverflowPolicy.fromString(appSettingsLocal.getIngestQueueOverflowPolicy()));
+		muxerFanout = createMuxerFanout(streamId, appSettingsLocal.getMuxerQueueCapacity(), 
+				MuxerFanout.LagPolicy.fromString(appSettingsLocal.getMuxerLagPolicy()));
+		for (Muxer muxer : muxerList) {
+			muxerFanout.addMuxer(muxer);
+		}
 	}
 
 	public void initStorageClient() {
@@ -325,6 +420,8 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 		if (hlsMuxingEnabled) {
 			HLSMuxer hlsMuxer = new HLSMuxer(scheduler, hlsListSize, hlsTime, hlsPlayListType, getAppSettings().getHlsFlags());
 			hlsMuxer.setDeleteFileOnExit(deleteHLSFilesOnExit);
+			hlsMuxer.setLowLatency(getAppSettings().isHlsLowLatencyEnabled());
+			hlsMuxer.setPartDurationMs(getAppSettings().getHlsPartDurationMS());
 			addMuxer(hlsMuxer);
 			logger.info("adding HLS Muxer for {}", streamId);
 		}
@@ -358,6 +455,10 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 
 	public boolean prepare() throws Exception {
 
+		if (directDemuxEnabled) {
+			return prepareDirectDemux();
+		}
+
 		inputFormatContext = avformat.avformat_alloc_context();
 		if (inputFormatContext == null) 
 		{
@@ -395,6 +496,23 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 		return prepareInternal(inputFormatContext);
 	}
 
+	/**
+	 * Creates the demuxer that converts the packets to AVPackets directly. 
+	 * Muxers are prepared when codec configurations of the stream are received
+	 */
+	protected boolean prepareDirectDemux() {
+		demuxer = new RtmpPacketDemuxer(streamId, maxAnalyzeDurationMS);
+		inputFormatContext = demuxer.getFormatContext();
+		if (inputFormatContext == null) 
+		{
+			logger.info("cannot allocate input context");
+			return false;
+		}
+		queueReferences.put(inputFormatContext, inputContext);
+		logger.info("Direct demux is enabled for stream: {}", streamId);
+		return true;
+	}
+
 	public boolean prepareInternal(AVFormatContext inputFormatContext) throws Exception {
 		//StreamFetcher Worker Thread only calls prepareInternal so that inputFormatContext is set here
 		this.inputFormatContext = inputFormatContext;
@@ -408,11 +526,10 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 			av_dump_format(inputFormatContext, 0, streamId, 0);
 		}
 
-		Iterator<Muxer> iterator = muxerList.iterator();
-		while (iterator.hasNext()) {
-			Muxer muxer = iterator.next();
+		for (Muxer muxer : muxerList) {
 			if (!muxer.prepare(inputFormatContext)) {
-				iterator.remove();
+				muxerList.remove(muxer);
+				muxerFanout.removeMuxer(muxer);
 				logger.warn("muxer prepare returns false {}", muxer.getFormat());
 			}
 		}
@@ -473,15 +590,27 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 		return dataStore;
 	}
 
+	/**
+	 * Reads the packets in the input channel and writes them to the muxers.
+	 * It's run by the ingest worker of the stream when a packet arrives
+	 */
 	@Override
 	public void execute(ISchedulingService service) throws CloneNotSupportedException {
 
 		if (isPipeReaderJobRunning.compareAndSet(false, true)) {
-			while (true) {
-				if (inputFormatContext == null) {
-					break;
-				}
+			if (demuxer != null) {
+				demuxPackets();
+				isPipeReaderJobRunning.compareAndSet(true, false);
+				return;
+			}
+			// don't block the ingest worker in read callback if there is nothing to read
+			while (inputFormatContext != null && hasPendingInput()) {
+				inputContext.wouldBlock = false;
 				int ret = av_read_frame(inputFormatContext, pkt);
+				boolean wouldBlock = inputContext.wouldBlock;
+				if (wouldBlock) {
+					resumeInput();
+				}
 
 				if (ret >= 0) {
 					if (inputFormatContext.streams(pkt.stream_index()).codec().codec_type() == AVMEDIA_TYPE_VIDEO) {
@@ -491,14 +620,14 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 					writePacket(inputFormatContext.streams(pkt.stream_index()), pkt);
 
 					av_packet_unref(pkt);
-				} else {
-					closeResources();
-				}
-				// if there is not element in the qeueue,
-				// break the loop
-				if (inputQueue.peek() == null || inputFormatContext == null) {
+				} 
+				else if (wouldBlock) {
+					// all queued tags are read, it's continued with the next wake up
 					break;
 				}
+				else {
+					closeResources();
+				}
 			}
 
 			isPipeReaderJobRunning.compareAndSet(true, false);
@@ -507,6 +636,160 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 	}
 
 
+	private void demuxPackets() {
+		IStreamPacket packet;
+		while (inputFormatContext != null && (packet = inputChannel.poll()) != null) {
+			try {
+				demuxPacket(packet);
+			}
+			catch (Exception e) {
+				// packet is released by demuxPacket
+				logger.error("Exception while demuxing packet of stream: {} {}", streamId, ExceptionUtils.getStackTrace(e));
+			}
+		}
+		if (inputFormatContext != null && inputChannel.isClosed() && inputChannel.isEmpty()) {
+			closeResources();
+		}
+	}
+
+	/**
+	 * Demuxes the packet and writes it to the muxers. Packet is released in this method in any case
+	 */
+	private void demuxPacket(IStreamPacket packet) throws Exception {
+		// it's true when packet is passed to pending packets or writeDemuxedPacket
+		boolean passed = false;
+		try {
+			boolean isMedia = demuxer.update(packet);
+			if (!demuxer.isReady()) {
+				if (isMedia) {
+					// keep it retained until streams are ready
+					addPendingPacket(packet);
+					passed = true;
+				}
+				return;
+			}
+
+			if (!demuxedStreamsPrepared && !prepareDemuxedStreams()) {
+				return;
+			}
+
+			if (isMedia) {
+				passed = true;
+				writeDemuxedPacket(packet);
+			}
+		}
+		finally {
+			if (!passed) {
+				releasePacket(packet);
+			}
+		}
+	}
+
+	private void addPendingPacket(IStreamPacket packet) {
+		if (pendingPackets.size() >= MAX_PENDING_PACKET_COUNT) {
+			releasePacket(pendingPackets.poll());
+			if (logger.isWarnEnabled()) {
+				logger.warn("Streams of {} are not ready in {} packets. Oldest packet is dropped", streamId, MAX_PENDING_PACKET_COUNT);
+			}
+		}
+		pendingPackets.add(packet);
+	}
+
+	/**
+	 * Prepares the muxers and writes the pending packets. Stream is closed if muxers cannot be prepared
+	 * 
+	 * @return true if streams are prepared
+	 */
+	private boolean prepareDemuxedStreams() {
+		enableVideo = demuxer.hasVideo();
+		enableAudio = demuxer.hasAudio();
+		streamInfoFindTime = System.currentTimeMillis() - firstFrameTime;
+		logger.info("Streams for {} enableVideo:{} enableAudio:{} are ready in {}ms", streamId, enableVideo, enableAudio, streamInfoFindTime);
+		boolean prepared = false;
+		try {
+			prepared = prepareInternal(inputFormatContext);
+		}
+		catch (Exception e) {
+			logger.error("Exception while preparing muxers of stream: {} {}", streamId, ExceptionUtils.getStackTrace(e));
+		}
+		if (!prepared) {
+			logger.warn("Muxers cannot be prepared for stream: {}", streamId);
+			closeResources();
+			return false;
+		}
+		demuxedStreamsPrepared = true;
+
+		IStreamPacket pendingPacket;
+		while ((pendingPacket = pendingPackets.poll()) != null) {
+			try {
+				writeDemuxedPacket(pendingPacket);
+			}
+			catch (Exception e) {
+				// pending packet is released by writeDemuxedPacket, continue with the next one
+				logger.error("Exception while writing pending packet of stream: {} {}", streamId, ExceptionUtils.getStackTrace(e));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the packet to the muxers and releases it
+	 */
+	private void writeDemuxedPacket(IStreamPacket packet) {
+		try {
+			AVStream stream = demuxer.readPacket(packet, pkt);
+			if (stream != null) {
+				if (packet.getDataType() == Constants.TYPE_VIDEO_DATA) {
+					totalReadPacket++;
+					avgRtmpIngestRate = ((System.currentTimeMillis() - firstFrameTime)) / totalReadPacket;
+				}
+				writePacket(stream, pkt);
+				av_packet_unref(pkt);
+			}
+		}
+		finally {
+			releasePacket(packet);
+		}
+	}
+
+	/**
+	 * Clears the end of file flag that read callback causes by returning EAGAIN. 
+	 * Callback returns EAGAIN only between tags, so demuxer continues from the next tag
+	 * 
+	 * It relies on the behaviour of FFmpeg 3.4 - 4.1 that javacpp-presets 1.4.x bundle:
+	 * fill_buffer in aviobuf.c sets eof_reached and error when the read callback returns a negative value 
+	 * and it does not consume any data, and flv_read_packet returns AVERROR_EOF without moving 
+	 * the position when the first byte of a tag cannot be read. Check TestNonBlockingFLVRead 
+	 * when FFmpeg is upgraded
+	 */
+	private void resumeInput() {
+		AVIOContext pb = inputFormatContext.pb();
+		pb.eof_reached(0);
+		pb.error(0);
+	}
+
+	private boolean hasPendingInput() {
+		return !inputChannel.isEmpty() || !inputContext.framer.isDone() || inputChannel.isClosed();
+	}
+
+	/**
+	 * Records quality parameters of the stream. They're aggregated and published to the stream handler
+	 * by {@link QualityTelemetry} so that there is no datastore access in packet flow
+	 */
+	private void recordQualityParameters(long timeDiff, double speed, int inputQueueSize) {
+		QualityTelemetry.StreamEntry entry = qualityEntry;
+		if (entry == null) {
+			AppSettings appSettingsLocal = getAppSettings();
+			long maxPublishPeriod = appSettingsLocal != null ? appSettingsLocal.getQualityMaxPublishPeriodMS() : 0;
+			if (maxPublishPeriod <= 0) {
+				maxPublishPeriod = QualityTelemetry.WINDOW_MS;
+			}
+			entry = QualityTelemetry.getInstance().register(streamId, getStreamHandler(), maxPublishPeriod);
+			qualityEntry = entry;
+		}
+		entry.record(timeDiff, speed, inputQueueSize);
+	}
+
 	public void writePacket(AVStream stream, AVPacket pkt) {
 
 		long currentTime = System.currentTimeMillis();
@@ -527,17 +810,7 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 				logger.warn("speed is NaN, packetTime: {}, first packetTime: {}, elapsedTime:{}", packetTime, firstPacketTime, elapsedTime);
 			}
 		}
-		String quality = QUALITY_POOR;
-
-		if (timeDiffBetweenVideoandElapsed < 1800) {
-			quality = QUALITY_GOOD;
-		} else if (timeDiffBetweenVideoandElapsed > 1799) {
-			quality = QUALITY_AVERAGE;
-		}
-
-		int inputQueueSize = getInputQueueSize();
-	
-		changeStreamQualityParameters(this.streamId, quality, speed, inputQueueSize);
+		recordQualityParameters(timeDiffBetweenVideoandElapsed, speed, getInputQueueSize());
 
 		if (!firstKeyFrameReceivedChecked && stream.codec().codec_type() == AVMEDIA_TYPE_VIDEO) {
 			int keyFrame = pkt.flags() & AV_PKT_FLAG_KEY;
@@ -551,16 +824,13 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 			}
 		}
 
-		synchronized (muxerList) 
-		{
-			for (Muxer muxer : muxerList) {
-				muxer.writePacket(pkt, stream);
-			}
-		}
-
+		//each muxer writes the packet in its own worker
+		muxerFanout.writePacket(pkt, stream, stream.codec().codec_type() == AVMEDIA_TYPE_VIDEO);
 	}
 
 	public void writeTrailer() {
+		//let muxers write the queued packets before trailer
+		muxerFanout.removeAll();
 		for (Muxer muxer : muxerList) {
 			muxer.writeTrailer();
 		}
@@ -577,9 +847,23 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 	public void closeResources() {
 		logger.info("close resources for streamId -> {}", streamId);
 
-		if (packetFeederJobName != null) {
-			logger.info("removing scheduled job {} ", packetFeederJobName);
-			scheduler.removeScheduledJob(packetFeederJobName);
+		if (ingestRegistration != null) {
+			logger.info("removing ingest job of {} ", streamId);
+			IngestScheduler.getInstance().cancel(ingestRegistration);
+			ingestRegistration = null;
+		}
+
+		inputChannel.close();
+		IStreamPacket remainingPacket;
+		while ((remainingPacket = inputChannel.poll()) != null) {
+			releasePacket(remainingPacket);
+		}
+		if (!inputContext.framer.isDone()) {
+			releasePacket(inputContext.framer.getPacket());
+		}
+		inputContext.framer.clear();
+		while ((remainingPacket = pendingPackets.poll()) != null) {
+			releasePacket(remainingPacket);
 		}
 
 		writeTrailer();
@@ -600,9 +884,16 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 		}
 
 		inputFormatContext = null;
+		demuxer = null;
 		isRecording = false;
 
-		changeStreamQualityParameters(this.streamId, QUALITY_NA, 0, getInputQueueSize());
+		if (qualityEntry != null) {
+			QualityTelemetry.getInstance().unregister(qualityEntry, QUALITY_NA, getInputQueueSize());
+			qualityEntry = null;
+		}
+		else {
+			changeStreamQualityParameters(this.streamId, QUALITY_NA, 0, getInputQueueSize());
+		}
 		getStreamHandler().muxAdaptorRemoved(this);
 	}
 
@@ -735,10 +1026,13 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 						logger.info("after prepare for {}", streamId);
 						isRecording = true;
 						startTime = System.currentTimeMillis();
-						packetFeederJobName = scheduler.addScheduledJob(10, MuxAdaptor.this);
+						inputContext.nonBlocking = true;
+						ingestRegistration = IngestScheduler.getInstance().register(streamId, MuxAdaptor.this::readPackets);
 						logger.info("Number of items in the queue while adaptor is scheduled to process incoming packets is {}", getInputQueueSize());
 
-						logger.info("Packet Feeder Job Name {}", packetFeederJobName);
+						logger.info("Stream {} is assigned to ingest worker {}", streamId, ingestRegistration.getWorkerIndex());
+						//process the packets received during prepare
+						ingestRegistration.wakeup();
 					} else {
 						logger.warn("input format context cannot be created for stream -> {}", streamId);
 						if (broadcastStream != null) {
@@ -767,48 +1061,54 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 		if (inputContextRef != null) {
 			inputContextRef.stopRequestExist = true;
 		}
+		//release the reader if it's waiting for packets
+		inputChannel.close();
+		wakeupIngestJob();
 	}
 
 	@Override
 	public void packetReceived(IBroadcastStream stream, IStreamPacket packet) {
-		byte[] flvFrame;
-		try {
-			flvFrame = getFLVFrame(packet);
+		lastFrameTimestamp = packet.getTimestamp();
+		if (firstReceivedFrameTimestamp  == -1) {
+			firstReceivedFrameTimestamp = lastFrameTimestamp;
+			firstFrameTime = System.currentTimeMillis();
+		}
+		//packet is framed as FLV tag in the read callback directly to the native buffer
+		retainPacket(packet);
+		addPacketToQueue(packet, isDroppable(packet));
+	}
 
-			lastFrameTimestamp = packet.getTimestamp();
-			if (firstReceivedFrameTimestamp  == -1) {
-				firstReceivedFrameTimestamp = lastFrameTimestamp;
-				firstFrameTime = System.currentTimeMillis();
-			}
-			if (flvFrame.length <= BUFFER_SIZE) {
-				addPacketToQueue(flvFrame);
-			} else {
-				int numberOfBytes = flvFrame.length;
-				int startIndex = 0;
-				int copySize = 0;
-				while (numberOfBytes != 0) {
-					if (numberOfBytes > BUFFER_SIZE) {
-						copySize = BUFFER_SIZE;
-					} else {
-						copySize = numberOfBytes;
-					}
-					byte[] data = Arrays.copyOfRange(flvFrame, startIndex, startIndex + copySize);
-					addPacketToQueue(data);
-					numberOfBytes -= copySize;
-					startIndex += copySize;
-				}
-			}
 
-		} catch (IOException e) {
-			logger.error(e.getMessage());
+	private void addPacketToQueue(IStreamPacket packet, boolean droppable) {
+		if (inputChannel.offer(packet, droppable)) {
+			totalReceivePacket++;
+			wakeupIngestJob();
+		}
+		else if (logger.isDebugEnabled()) {
+			logger.debug("Frame is dropped for stream: {} total dropped frames: {}", streamId, inputChannel.getDroppedFrameCount());
+		}
+	}
+
+	private void wakeupIngestJob() {
+		IngestScheduler.Registration registration = ingestRegistration;
+		if (registration != null) {
+			registration.wakeup();
 		}
 	}
 
+	private void readPackets() {
+		try {
+			execute(null);
+		} catch (CloneNotSupportedException e) {
+			logger.error(ExceptionUtils.getStackTrace(e));
+		}
+	}
 
-	private void addPacketToQueue(byte[] data) {
-		inputQueue.add(data);
-		inputContext.queueSize.incrementAndGet();
-		totalReceivePacket++;
+	/**
+	 * Only video frames that are not key frames can be dropped when input channel is full
+	 */
+	private static boolean isDroppable(IStreamPacket packet) {
+		return packet instanceof VideoData && ((VideoData) packet).getFrameType() != FrameType.KEYFRAME;
 	}
 
 	@Override
@@ -845,6 +1145,13 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 		return muxerList;
 	}
 
+	/**
+	 * @return fan-out of the muxers that provides lag metrics of each muxer
+	 */
+	public MuxerFanout getMuxerFanout() {
+		return muxerFanout;
+	}
+
 
 	public void setStorageClient(StorageClient storageClient) {
 		this.storageClient = storageClient;
@@ -863,7 +1170,11 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 	}
 
 	public int getInputQueueSize() {
-		return inputContext.queueSize.get();
+		return inputChannel.size();
+	}
+
+	public PacketChannel<IStreamPacket> getInputChannel() {
+		return inputChannel;
 	}
 
 	public void setPreviewOverwrite(boolean overwrite) {
@@ -965,20 +1276,34 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 
 
 	private Muxer addMp4Muxer() {
-		Mp4Muxer mp4Muxer = createMp4Muxer();
+		Mp4Muxer mp4Muxer = createMp4Muxer(mp4FragmentedEnabled);
 		addMuxer(mp4Muxer);
 		return mp4Muxer;
 	}
 
-	private Mp4Muxer createMp4Muxer() {
+	private Mp4Muxer createMp4Muxer(boolean fragmented) {
 		Mp4Muxer mp4Muxer = new Mp4Muxer(storageClient, scheduler);
 		mp4Muxer.setAddDateTimeToSourceName(addDateTimeToMp4FileName);
 		mp4Muxer.setBitstreamFilter(mp4Filtername);
+		mp4Muxer.setFragmented(fragmented);
 		return mp4Muxer;
 	}
 
 	public boolean startRecording() {
-		Mp4Muxer muxer = createMp4Muxer();
+		return startRecording(mp4FragmentedEnabled);
+	}
+
+	/**
+	 * Starts recording the stream to mp4
+	 * @param fragmented if it's true, recording is written as fragmented mp4
+	 * @return true if recording is started
+	 */
+	public boolean startRecording(boolean fragmented) {
+		if (!isInputReady()) {
+			logger.warn("Streams are not ready yet. Recording is not started for {}", streamId);
+			return false;
+		}
+		Mp4Muxer muxer = createMp4Muxer(fragmented);
 		muxer.init(scope, streamId, 0);
 		muxer.setDynamic(true);
 		boolean prepared = muxer.prepare(inputFormatContext);
@@ -994,15 +1319,10 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 	
 	
 	public Muxer findDynamicMp4Muxer() {
-		synchronized (muxerList) 
+		for (Muxer muxer : muxerList) 
 		{
-			Iterator<Muxer> iterator = muxerList.iterator();
-			while (iterator.hasNext()) 
-			{
-				Muxer muxer = iterator.next();
-				if (muxer instanceof Mp4Muxer && ((Mp4Muxer) muxer).isDynamic()) {
-					return muxer;
-				}
+			if (muxer instanceof Mp4Muxer && ((Mp4Muxer) muxer).isDynamic()) {
+				return muxer;
 			}
 		}
 		return null;
@@ -1015,12 +1335,20 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 		if (muxer != null) 
 		{
 			muxerList.remove(muxer);
+			muxerFanout.removeMuxer(muxer);
 			muxer.writeTrailer();
 			result = true;
 		}
 		return result;
 	}
 
+	/**
+	 * @return false if streams of the direct demuxer are not created yet
+	 */
+	private boolean isInputReady() {
+		return demuxer == null || demuxedStreamsPrepared;
+	}
+
 	public ClientBroadcastStream getBroadcastStream() {
 		return broadcastStream;
 	}
@@ -1028,6 +1356,10 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 
 	public boolean startRtmpStreaming(String rtmpUrl) 
 	{
+		if (!isInputReady()) {
+			logger.warn("Streams are not ready yet. RTMP pushing to {} is not started for {}", rtmpUrl, streamId);
+			return false;
+		}
 		RtmpMuxer rtmpMuxer = new RtmpMuxer(rtmpUrl);
 		rtmpMuxer.init(scope, streamId, 0);
 		boolean prepared = rtmpMuxer.prepare(inputFormatContext);
@@ -1044,18 +1376,13 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 	public RtmpMuxer getRtmpMuxer(String rtmpUrl) 
 	{
 		RtmpMuxer rtmpMuxer = null;
-		synchronized (muxerList) 
+		for (Muxer muxer : muxerList) 
 		{
-			Iterator<Muxer> iterator = muxerList.iterator();
-			while (iterator.hasNext()) 
+			if (muxer instanceof RtmpMuxer &&
+					((RtmpMuxer)muxer).getURL().equals(rtmpUrl)) 
 			{
-				Muxer muxer = iterator.next();
-				if (muxer instanceof RtmpMuxer &&
-						((RtmpMuxer)muxer).getURL().equals(rtmpUrl)) 
-				{
-					rtmpMuxer = (RtmpMuxer) muxer;
-					break;
-				}
+				rtmpMuxer = (RtmpMuxer) muxer;
+				break;
 			}
 		}
 		return rtmpMuxer;
@@ -1067,12 +1394,21 @@ public class MuxAdaptor implements IRecordingListener, IScheduledJob {
 		boolean result = false;
 		if (rtmpMuxer != null) {
 			muxerList.remove(rtmpMuxer);
+			muxerFanout.removeMuxer(rtmpMuxer);
 			rtmpMuxer.writeTrailer();
 			result = true;
 		}
 		return result;
 	}
 
+	public boolean isDirectDemuxEnabled() {
+		return directDemuxEnabled;
+	}
+
+	public void setDirectDemuxEnabled(boolean directDemuxEnabled) {
+		this.directDemuxEnabled = directDemuxEnabled;
+	}
+
 	public boolean isEnableVideo() {
 		return enableVideo;
 	}
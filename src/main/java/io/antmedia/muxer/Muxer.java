@@ -197,6 +197,16 @@ public abstract class Muxer {
 	 */
 	public abstract void writePacket(AVPacket pkt);
 
+	/**
+	 * Returns true if a write may block for a long time, e.g. the output is a remote endpoint. 
+	 * {@link MuxerFanout} writes to such a muxer on a dedicated worker so that it does not hold 
+	 * the workers that are shared by the other muxers
+	 * 
+	 * @return true if writes of the muxer may block
+	 */
+	public boolean isBlockingSink() {
+		return false;
+	}
 
 	public void setBitstreamFilter(String bsfName) {
 		this.bsfName = bsfName;
@@ -0,0 +1,467 @@
+package io.antmedia.muxer;
+
+import static org.bytedeco.javacpp.avcodec.AV_PKT_FLAG_KEY;
+import static org.bytedeco.javacpp.avcodec.av_packet_clone;
+import static org.bytedeco.javacpp.avcodec.av_packet_free;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.bytedeco.javacpp.avcodec.AVPacket;
+import org.bytedeco.javacpp.avformat.AVStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Distributes the packets of a stream to its muxers.
+ *
+ * Each muxer has its own bounded queue and packets are written to the muxer on a worker
+ * so that a slow muxer(a remote RTMP endpoint, a blocking disk write) does not stall other muxers of the stream.
+ * Packets of a muxer are written in order and never concurrently.
+ *
+ * Muxer list is copy-on-write so that muxers can be added and removed(startRecording, startRtmpStreaming, etc.)
+ * without blocking the packet flow.
+ *
+ * Muxers share a pool of workers. A muxer whose writes may block ({@link Muxer#isBlockingSink()}) 
+ * has a dedicated worker instead, so a stalled remote endpoint does not hold the shared workers
+ * and delay the other muxers of the server.
+ *
+ * If a muxer falls behind and its queue is full, {@link LagPolicy} determines what to do
+ *
+ * @author mekya
+ *
+ */
+public class MuxerFanout {
+
+	public enum LagPolicy {
+		/**
+		 * Drops the packets of the muxer that is full. Video packets are dropped until the next key frame.
+		 */
+		DROP,
+
+		/**
+		 * Detaches the muxer from the stream and writes its trailer
+		 */
+		DETACH;
+
+		public static LagPolicy fromString(String value) {
+			if (DETACH.name().equalsIgnoreCase(value)) {
+				return DETACH;
+			}
+			return DROP;
+		}
+	}
+
+	private static Logger logger = LoggerFactory.getLogger(MuxerFanout.class);
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+	/**
+	 * Max time to wait for a muxer to write its queued packets when it's removed
+	 */
+	public static final long DRAIN_TIMEOUT_MS = 5000;
+
+	private static final AtomicInteger threadCounter = new AtomicInteger(0);
+
+	private static final AtomicInteger dedicatedThreadCounter = new AtomicInteger(0);
+
+	/**
+	 * Number of shared muxer workers. Muxers that are not blocking sinks hold a worker only 
+	 * for the time of a local write
+	 */
+	public static final int WORKER_COUNT = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+	/**
+	 * Idle time in seconds after which a dedicated worker thread ends. It's started again with the next packet
+	 */
+	private static final long DEDICATED_WORKER_KEEP_ALIVE_SECONDS = 60;
+
+	/**
+	 * Shared muxer workers of all streams. A muxer is queued to the workers at most once, 
+	 * so the queue is bounded by the number of muxers
+	 */
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT, 60, TimeUnit.SECONDS, 
+			new LinkedBlockingQueue<>(), runnable -> {
+				Thread thread = new Thread(runnable, "muxer-worker-" + threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private static class PacketEntry {
+		final AVPacket packet;
+		final AVStream stream;
+		final long enqueueTime;
+
+		PacketEntry(AVPacket packet, AVStream stream, long enqueueTime) {
+			this.packet = packet;
+			this.stream = stream;
+			this.enqueueTime = enqueueTime;
+		}
+	}
+
+	/**
+	 * Queue and worker of a muxer
+	 */
+	public static class MuxerChannel implements Runnable {
+
+		private final Muxer muxer;
+		private final BlockingQueue<PacketEntry> queue;
+		/**
+		 * Shared workers or the dedicated worker of the muxer
+		 */
+		private final Executor worker;
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+		private final CompletableFuture<Void> drained = new CompletableFuture<>();
+		private volatile boolean closed = false;
+		/**
+		 * Worker frees the queued packets instead of writing them if it's set
+		 */
+		private volatile boolean discarding = false;
+		private boolean waitingForKeyFrame = false;
+
+		private volatile long droppedPacketCount = 0;
+		private volatile long writtenPacketCount = 0;
+		private volatile long lastLagMs = 0;
+		private volatile long maxLagMs = 0;
+
+		private MuxerChannel(Muxer muxer, int capacity) {
+			this.muxer = muxer;
+			this.queue = new ArrayBlockingQueue<>(capacity);
+			if (muxer.isBlockingSink()) {
+				ThreadPoolExecutor dedicatedWorker = new ThreadPoolExecutor(0, 1, DEDICATED_WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, 
+						new LinkedBlockingQueue<>(), runnable -> {
+							Thread thread = new Thread(runnable, "muxer-dedicated-worker-" + dedicatedThreadCounter.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						});
+				// worker ends after the last packet of the muxer is written
+				drained.thenRun(dedicatedWorker::shutdown);
+				this.worker = dedicatedWorker;
+			}
+			else {
+				this.worker = executor;
+			}
+		}
+
+		/**
+		 * Called by the thread that reads the packets of the stream
+		 * @return false if queue is full
+		 */
+		private boolean offer(AVPacket pkt, AVStream stream, boolean isVideo) {
+			if (closed) {
+				return true;
+			}
+			if (waitingForKeyFrame && isVideo) {
+				if ((pkt.flags() & AV_PKT_FLAG_KEY) == 0) {
+					droppedPacketCount++;
+					return true;
+				}
+				waitingForKeyFrame = false;
+			}
+			if (queue.remainingCapacity() == 0) {
+				return false;
+			}
+			AVPacket packetRef = av_packet_clone(pkt);
+			if (packetRef == null) {
+				logger.warn("Packet cannot be cloned for muxer {}", muxer.getFileName());
+				return true;
+			}
+			queue.offer(new PacketEntry(packetRef, stream, System.currentTimeMillis()));
+			schedule();
+			return true;
+		}
+
+		private void drop(boolean isVideo) {
+			droppedPacketCount++;
+			if (isVideo) {
+				waitingForKeyFrame = true;
+			}
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					worker.execute(this);
+				}
+				catch (RejectedExecutionException e) {
+					// dedicated worker is shut down after the muxer is drained, there is nothing to write
+					scheduled.set(false);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				PacketEntry entry;
+				while ((entry = queue.poll()) != null) {
+					if (discarding) {
+						av_packet_free(entry.packet);
+						droppedPacketCount++;
+						continue;
+					}
+					try {
+						muxer.writePacket(entry.packet, entry.stream);
+						writtenPacketCount++;
+						lastLagMs = System.currentTimeMillis() - entry.enqueueTime;
+						if (lastLagMs > maxLagMs) {
+							maxLagMs = lastLagMs;
+						}
+					}
+					catch (Exception e) {
+						logger.error("Exception while writing packet to muxer {}", muxer.getFileName(), e);
+					}
+					finally {
+						av_packet_free(entry.packet);
+					}
+				}
+			}
+			finally {
+				scheduled.set(false);
+				if (!queue.isEmpty()) {
+					schedule();
+				}
+				else if (closed) {
+					drained.complete(null);
+				}
+			}
+		}
+
+		/**
+		 * Stops accepting packets and returns a future that completes when queued packets are written
+		 * and the worker does not use the muxer anymore
+		 */
+		private CompletableFuture<Void> close() {
+			closed = true;
+			schedule();
+			return drained;
+		}
+
+		/**
+		 * Makes the worker free the queued packets without writing them. Packets are freed by the worker 
+		 * because it may be writing a packet to the muxer at the moment
+		 */
+		private void discardRemaining() {
+			discarding = true;
+			schedule();
+		}
+
+		public Muxer getMuxer() {
+			return muxer;
+		}
+
+		/**
+		 * @return true if the muxer is written on its own worker
+		 */
+		public boolean hasDedicatedWorker() {
+			return worker != executor;
+		}
+
+		public int getQueueSize() {
+			return queue.size();
+		}
+
+		public long getDroppedPacketCount() {
+			return droppedPacketCount;
+		}
+
+		public long getWrittenPacketCount() {
+			return writtenPacketCount;
+		}
+
+		/**
+		 * @return time in milliseconds between queueing and writing of the last written packet
+		 */
+		public long getLastLagMs() {
+			return lastLagMs;
+		}
+
+		public long getMaxLagMs() {
+			return maxLagMs;
+		}
+	}
+
+	private final List<MuxerChannel> channels = new CopyOnWriteArrayList<>();
+
+	private final int queueCapacity;
+
+	private final LagPolicy lagPolicy;
+
+	private final String streamId;
+
+	/**
+	 * It's called with the muxer that is detached because of lag
+	 */
+	private Consumer<Muxer> detachListener;
+
+	public MuxerFanout(String streamId, int queueCapacity, LagPolicy lagPolicy) {
+		this.streamId = streamId;
+		this.queueCapacity = queueCapacity > 0 ? queueCapacity : DEFAULT_QUEUE_CAPACITY;
+		this.lagPolicy = lagPolicy;
+	}
+
+	public void addMuxer(Muxer muxer) {
+		channels.add(new MuxerChannel(muxer, queueCapacity));
+	}
+
+	/**
+	 * Queues the packet to all muxers. Packet is referenced so that caller can unref the packet after this call
+	 * @param pkt
+	 * @param stream
+	 * @param isVideo
+	 */
+	public void writePacket(AVPacket pkt, AVStream stream, boolean isVideo) {
+		for (MuxerChannel channel : channels) {
+			if (!channel.offer(pkt, stream, isVideo)) {
+				if (lagPolicy == LagPolicy.DETACH) {
+					logger.warn("Muxer {} falls behind for stream {}. It's being detached", channel.muxer.getFileName(), streamId);
+					detach(channel);
+				}
+				else {
+					channel.drop(isVideo);
+				}
+			}
+		}
+	}
+
+	private void detach(MuxerChannel channel) {
+		channels.remove(channel);
+		channel.discardRemaining();
+		// trailer is written by the worker after it leaves the muxer
+		channel.close().thenRun(channel.muxer::writeTrailer);
+		if (detachListener != null) {
+			detachListener.accept(channel.muxer);
+		}
+	}
+
+	/**
+	 * Removes the muxer from the fan-out after its queued packets are written. If they're not written 
+	 * in {@link #DRAIN_TIMEOUT_MS}, the rest is discarded. It returns after the worker leaves the muxer 
+	 * so that caller can write the trailer of the muxer
+	 *
+	 * @param muxer
+	 * @return true if muxer is removed
+	 */
+	public boolean removeMuxer(Muxer muxer) {
+		MuxerChannel channel = getChannel(muxer);
+		if (channel == null) {
+			return false;
+		}
+		channels.remove(channel);
+		waitDrained(channel);
+		return true;
+	}
+
+	/**
+	 * Removes all muxers after their queued packets are written
+	 */
+	public void removeAll() {
+		List<MuxerChannel> channelList = new ArrayList<>(channels);
+		channels.clear();
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (MuxerChannel channel : channelList) {
+			futures.add(channel.close());
+		}
+		CompletableFuture<Void> all = CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+		if (!await(all, DRAIN_TIMEOUT_MS)) {
+			logger.warn("Muxers of stream {} cannot write queued packets in {}ms", streamId, DRAIN_TIMEOUT_MS);
+			for (MuxerChannel channel : channelList) {
+				channel.discardRemaining();
+			}
+			awaitWorker(all);
+		}
+	}
+
+	private void waitDrained(MuxerChannel channel) {
+		CompletableFuture<Void> drained = channel.close();
+		if (!await(drained, DRAIN_TIMEOUT_MS)) {
+			logger.warn("Muxer {} of stream {} cannot write queued packets in {}ms", channel.muxer.getFileName(), streamId, DRAIN_TIMEOUT_MS);
+			channel.discardRemaining();
+			awaitWorker(drained);
+		}
+	}
+
+	/**
+	 * Waits for the worker to leave the muxer. Muxer's native contexts are freed with its trailer, so 
+	 * it's waited even if the worker is blocked in a write
+	 */
+	private void awaitWorker(CompletableFuture<Void> drained) {
+		boolean interrupted = Thread.interrupted();
+		while (!drained.isDone()) {
+			try {
+				drained.get(DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			} 
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+			catch (TimeoutException e) {
+				logger.warn("Muxer worker of stream {} is still writing a packet", streamId);
+			}
+			catch (Exception e) {
+				logger.error("Exception while waiting for the muxer worker of stream {}", streamId, e);
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return true if the future is completed in time
+	 */
+	private static boolean await(CompletableFuture<Void> future, long timeoutMs) {
+		try {
+			future.get(timeoutMs, TimeUnit.MILLISECONDS);
+			return true;
+		} 
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} 
+		catch (Exception e) {
+			// timed out, caller discards the rest
+		}
+		return false;
+	}
+
+	private MuxerChannel getChannel(Muxer muxer) {
+		for (MuxerChannel channel : channels) {
+			if (channel.muxer == muxer) {
+				return channel;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return queues of the muxers to get lag metrics
+	 */
+	public List<MuxerChannel> getChannels() {
+		return channels;
+	}
+
+	public void setDetachListener(Consumer<Muxer> detachListener) {
+		this.detachListener = detachListener;
+	}
+
+	public LagPolicy getLagPolicy() {
+		return lagPolicy;
+	}
+
+}
@@ -0,0 +1,406 @@
+package io.antmedia.muxer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded single-producer/single-consumer ring buffer that carries the incoming
+ * frames of a stream from the RTMP reader to the thread calling av_read_frame.
+ *
+ * Producer is the thread that calls {@link #offer(Object, boolean)}, consumer is the
+ * thread that calls {@link #poll()} or {@link #take(long, TimeUnit)}. Consumer parks while
+ * the channel is empty and it is unparked by the producer as soon as a frame is published.
+ *
+ * When the channel is full, behaviour is determined by {@link OverflowPolicy}.
+ * A frame dropped from the middle of the channel is replaced with a tombstone that the consumer skips.
+ * Consumer takes a frame out of its slot with CAS after advancing the head and producer replaces it with CAS,
+ * so a frame is either consumed or dropped, never both.
+ * Tombstones occupy slots until the consumer passes them, so the ring has twice the capacity slots.
+ *
+ * Depth of the channel is calculated from head and tail indexes so that there is no extra
+ * counter to be updated for every packet
+ *
+ * @author mekya
+ *
+ */
+public class PacketChannel<E> {
+
+	public enum OverflowPolicy {
+		/**
+		 * Drops the oldest droppable frame in the channel, key frames and audio frames are kept. 
+		 * If there is no droppable frame in the channel, incoming frame is rejected and counted in 
+		 * {@link PacketChannel#getRejectedFrameCount()} if it's not droppable.
+		 */
+		DROP_OLDEST_NON_KEYFRAME,
+
+		/**
+		 * Blocks the producer(RTMP reader) until consumer makes room in the channel
+		 */
+		BACKPRESSURE;
+
+		public static OverflowPolicy fromString(String value) {
+			if ("backpressure".equalsIgnoreCase(value) || BACKPRESSURE.name().equalsIgnoreCase(value)) {
+				return BACKPRESSURE;
+			}
+			return DROP_OLDEST_NON_KEYFRAME;
+		}
+	}
+
+	private static Logger logger = LoggerFactory.getLogger(PacketChannel.class);
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Max time producer is blocked in {@link OverflowPolicy#BACKPRESSURE} mode.
+	 * If consumer does not make room in this period, incoming frame is dropped
+	 */
+	public static final long MAX_PRODUCER_BLOCK_TIME_MS = 1000;
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicLongFieldUpdater<PacketChannel> HEAD_UPDATER = AtomicLongFieldUpdater.newUpdater(PacketChannel.class, "head");
+
+	/**
+	 * Put into the slot of a frame dropped by the producer. Each drop has its own tombstone 
+	 * so that a CAS on a reused slot cannot remove another one
+	 */
+	private static final class Tombstone {
+	}
+
+	private final AtomicReferenceArray<Object> frames;
+
+	/**
+	 * Written and read only by producer
+	 */
+	private final boolean[] droppable;
+
+	private final int mask;
+
+	private final int capacity;
+
+	/**
+	 * Number of slots in the ring, tombstones and frames share them
+	 */
+	private final int slotCount;
+
+	/**
+	 * Number of tombstones between head and tail
+	 */
+	private final AtomicInteger tombstoneCount = new AtomicInteger();
+
+	private final OverflowPolicy overflowPolicy;
+
+	/**
+	 * Index of the next frame to be read. It's advanced by consumer and it's also advanced by producer
+	 * when a frame is dropped so that it's updated with CAS
+	 */
+	private volatile long head = 0;
+
+	/**
+	 * Index of the next frame to be written. It's only written by producer
+	 */
+	private volatile long tail = 0;
+
+	private volatile Thread waitingConsumer;
+
+	private volatile Thread waitingProducer;
+
+	private volatile boolean closed = false;
+
+	private volatile long droppedFrameCount = 0;
+
+	private volatile long rejectedFrameCount = 0;
+
+	/**
+	 * It's called with the frames that are dropped by the producer so that resources can be released
+	 */
+	private Consumer<E> dropListener;
+
+	/**
+	 * @param capacity max number of frames in the channel, it's rounded up to the next power of two
+	 * @param overflowPolicy what to do when channel is full
+	 */
+	public PacketChannel(int capacity, OverflowPolicy overflowPolicy) {
+		if (capacity <= 0) {
+			capacity = DEFAULT_CAPACITY;
+		}
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.capacity = size;
+		this.slotCount = size * 2;
+		this.mask = slotCount - 1;
+		this.frames = new AtomicReferenceArray<>(slotCount);
+		this.droppable = new boolean[slotCount];
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Adds frame to the channel. It should only be called by the producer thread
+	 *
+	 * @param frame frame to be muxed
+	 * @param isDroppable true if frame can be dropped in case of overflow, it's generally true for
+	 * video frames that are not key frames
+	 * @return true if frame is added to the channel, false if it's dropped, rejected or channel is closed.
+	 * Frames that are not added to the channel are passed to the drop listener
+	 */
+	public boolean offer(E frame, boolean isDroppable) {
+		if (closed) {
+			notifyDropped(frame);
+			return false;
+		}
+		long t = tail;
+		long blockStartTime = 0;
+		while (isFull(t))
+		{
+			if (closed) {
+				notifyDropped(frame);
+				return false;
+			}
+
+			if (overflowPolicy == OverflowPolicy.DROP_OLDEST_NON_KEYFRAME)
+			{
+				if (skipTombstone() || !isFull(t)) {
+					continue;
+				}
+				// a tombstone does not make room if all slots are used
+				if (t - head >= slotCount || !dropOldestDroppable(t)) {
+					droppedFrameCount++;
+					if (!isDroppable) {
+						rejectedFrameCount++;
+						if (rejectedFrameCount % 100 == 1) {
+							logger.warn("There is no droppable frame in the channel, {} frames that are not droppable are rejected so far", rejectedFrameCount);
+						}
+					}
+					notifyDropped(frame);
+					return false;
+				}
+			}
+			else
+			{
+				if (blockStartTime == 0) {
+					blockStartTime = System.currentTimeMillis();
+				}
+				else if ((System.currentTimeMillis() - blockStartTime) > MAX_PRODUCER_BLOCK_TIME_MS) {
+					logger.warn("Consumer does not make room in {}ms. Incoming frame is dropped", MAX_PRODUCER_BLOCK_TIME_MS);
+					droppedFrameCount++;
+					notifyDropped(frame);
+					return false;
+				}
+				waitingProducer = Thread.currentThread();
+				if (isFull(t) && !closed) {
+					LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+				}
+				waitingProducer = null;
+			}
+		}
+
+		int index = (int) t & mask;
+		droppable[index] = isDroppable;
+		frames.lazySet(index, frame);
+		tail = t + 1;
+
+		Thread consumer = waitingConsumer;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+		return true;
+	}
+
+	private boolean isFull(long t) {
+		long used = t - head;
+		return used - tombstoneCount.get() >= capacity || used >= slotCount;
+	}
+
+	/**
+	 * Replaces the oldest droppable frame with a tombstone. It's called by the producer
+	 *
+	 * @param t tail index
+	 * @return true if a frame is dropped, false if there is no droppable frame
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean dropOldestDroppable(long t) {
+		for (long i = head; i < t; i++) {
+			int index = (int) i & mask;
+			if (!droppable[index]) {
+				continue;
+			}
+			Object frame = frames.get(index);
+			// consumer may take the frame in the meantime, then there is room
+			if (frame != null && !(frame instanceof Tombstone) && frames.compareAndSet(index, frame, new Tombstone())) {
+				tombstoneCount.incrementAndGet();
+				droppedFrameCount++;
+				notifyDropped((E) frame);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the tombstone at the head. Both producer and consumer call it
+	 *
+	 * @return true if a tombstone is removed
+	 */
+	private boolean skipTombstone() {
+		long h = head;
+		if (h >= tail) {
+			return false;
+		}
+		int index = (int) h & mask;
+		Object slot = frames.get(index);
+		if (slot instanceof Tombstone && HEAD_UPDATER.compareAndSet(this, h, h + 1)) {
+			removeTombstone(index, slot);
+			return true;
+		}
+		return false;
+	}
+
+	private void removeTombstone(int index, Object tombstone) {
+		frames.compareAndSet(index, tombstone, null);
+		tombstoneCount.decrementAndGet();
+	}
+
+	/**
+	 * Retrieves the oldest frame without waiting. It should only be called by consumer thread
+	 *
+	 * @return frame or null if channel is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		while (true)
+		{
+			long h = head;
+			if (h >= tail) {
+				return null;
+			}
+			int index = (int) h & mask;
+			Object frame = frames.get(index);
+			if (frame instanceof Tombstone) {
+				skipTombstone();
+			}
+			else if (frame != null && HEAD_UPDATER.compareAndSet(this, h, h + 1))
+			{
+				if (frames.compareAndSet(index, frame, null)) {
+					Thread producer = waitingProducer;
+					if (producer != null) {
+						LockSupport.unpark(producer);
+					}
+					return (E) frame;
+				}
+				// producer dropped the frame after it's read
+				Object tombstone = frames.get(index);
+				if (tombstone instanceof Tombstone) {
+					removeTombstone(index, tombstone);
+				}
+				else {
+					// slot is reused by the producer already
+					tombstoneCount.decrementAndGet();
+				}
+			}
+			// null slot means head is advanced in the meantime
+		}
+	}
+
+	/**
+	 * Retrieves the oldest frame and waits up to timeout if channel is empty.
+	 * It should only be called by consumer thread
+	 *
+	 * @return frame or null if timeout elapses or channel is closed and empty
+	 */
+	public E take(long timeout, TimeUnit unit) throws InterruptedException {
+		E frame = poll();
+		if (frame != null) {
+			return frame;
+		}
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		waitingConsumer = Thread.currentThread();
+		try {
+			while ((frame = poll()) == null && !closed)
+			{
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					break;
+				}
+				LockSupport.parkNanos(this, remaining);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		}
+		finally {
+			waitingConsumer = null;
+		}
+		return frame;
+	}
+
+	/**
+	 * Closes the channel. Frames in the channel can still be consumed but no new frame is accepted
+	 * and waiting threads are released
+	 */
+	public void close() {
+		closed = true;
+		Thread thread = waitingConsumer;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+		thread = waitingProducer;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	private void notifyDropped(E frame) {
+		if (dropListener != null && frame != null) {
+			dropListener.accept(frame);
+		}
+	}
+
+	public void setDropListener(Consumer<E> dropListener) {
+		this.dropListener = dropListener;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return number of frames waiting in the channel
+	 */
+	public int size() {
+		long size = tail - head - tombstoneCount.get();
+		return size < 0 ? 0 : (int) size;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public long getDroppedFrameCount() {
+		return droppedFrameCount;
+	}
+
+	/**
+	 * @return number of frames that are not droppable and rejected because there is no droppable frame in the channel
+	 */
+	public long getRejectedFrameCount() {
+		return rejectedFrameCount;
+	}
+
+}
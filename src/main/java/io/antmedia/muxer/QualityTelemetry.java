@@ -0,0 +1,216 @@
+package io.antmedia.muxer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.antmedia.statistic.type.StreamQualityStats;
+
+/**
+ * Collects the quality parameters of the streams on this node and publishes them periodically.
+ *
+ * Muxers record speed, time difference and queue size for every packet with {@link StreamEntry#record(long, double, int)}
+ * which only updates a few fields. Records are aggregated in a window of {@link #WINDOW_MS} and
+ * a stream is published if its quality changes, its speed changes more than {@link #SPEED_CHANGE_THRESHOLD}
+ * or it's not published in its max publish period.
+ *
+ * Changed streams are published in one call per stream handler so that datastore can write them in one batch
+ *
+ * @author mekya
+ *
+ */
+public class QualityTelemetry {
+
+	private static Logger logger = LoggerFactory.getLogger(QualityTelemetry.class);
+
+	public static final long WINDOW_MS = 1000;
+
+	public static final double SPEED_CHANGE_THRESHOLD = 0.05;
+
+	/**
+	 * If time difference between packet time and elapsed time is less than this value, quality is good.
+	 * Otherwise it's average
+	 */
+	public static final long GOOD_QUALITY_TIME_DIFF_MS = 1800;
+
+	private static class InstanceHolder {
+		private static final QualityTelemetry INSTANCE = new QualityTelemetry();
+	}
+
+	/**
+	 * Quality records of a stream. It's written by the thread muxing the stream
+	 * and read by the publisher thread
+	 */
+	public static class StreamEntry {
+
+		private final String streamId;
+		private final IAntMediaStreamHandler streamHandler;
+		private final long maxPublishPeriodMs;
+
+		private volatile double speed;
+		/**
+		 * Max values in the window. Publisher resets them atomically so that a record is counted in exactly one window. 
+		 * Time difference is Long.MIN_VALUE if nothing is recorded in the window
+		 */
+		private final AtomicLong maxTimeDiff = new AtomicLong(Long.MIN_VALUE);
+		private final AtomicInteger maxQueueSize = new AtomicInteger(0);
+		private volatile boolean recorded = false;
+
+		//accessed only by publisher thread
+		private String lastQuality;
+		private double lastSpeed;
+		private long lastPublishTime;
+
+		private StreamEntry(String streamId, IAntMediaStreamHandler streamHandler, long maxPublishPeriodMs) {
+			this.streamId = streamId;
+			this.streamHandler = streamHandler;
+			this.maxPublishPeriodMs = maxPublishPeriodMs;
+		}
+
+		/**
+		 * Records the parameters of a packet. It should be called by single thread
+		 *
+		 * @param timeDiff difference between elapsed time and packet time in milliseconds
+		 * @param speed speed of the stream
+		 * @param queueSize number of packets waiting to be processed
+		 */
+		public void record(long timeDiff, double speed, int queueSize) {
+			this.speed = speed;
+			maxQueueSize.accumulateAndGet(queueSize, Math::max);
+			maxTimeDiff.accumulateAndGet(timeDiff, Math::max);
+			recorded = true;
+		}
+
+		private StreamQualityStats collect(long now) {
+			if (!recorded) {
+				return null;
+			}
+			//reset the window
+			int queueSize = maxQueueSize.getAndSet(0);
+			long timeDiff = maxTimeDiff.getAndSet(Long.MIN_VALUE);
+			double currentSpeed = speed;
+
+			String quality = lastQuality;
+			if (timeDiff != Long.MIN_VALUE) {
+				quality = timeDiff < GOOD_QUALITY_TIME_DIFF_MS ? MuxAdaptor.QUALITY_GOOD : MuxAdaptor.QUALITY_AVERAGE;
+			}
+			if (quality == null) {
+				return null;
+			}
+
+			if (!quality.equals(lastQuality) || lastSpeed == 0 || Math.abs(currentSpeed - lastSpeed) > SPEED_CHANGE_THRESHOLD
+					|| (now - lastPublishTime) >= maxPublishPeriodMs)
+			{
+				lastQuality = quality;
+				lastSpeed = currentSpeed;
+				lastPublishTime = now;
+				return new StreamQualityStats(streamId, quality, currentSpeed, queueSize);
+			}
+			return null;
+		}
+
+		public String getStreamId() {
+			return streamId;
+		}
+	}
+
+	private static class PendingReport {
+		final IAntMediaStreamHandler streamHandler;
+		final StreamQualityStats stats;
+
+		PendingReport(IAntMediaStreamHandler streamHandler, StreamQualityStats stats) {
+			this.streamHandler = streamHandler;
+			this.stats = stats;
+		}
+	}
+
+	private final List<StreamEntry> entries = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Reports that are published in the next cycle without aggregation like final reports of the streams
+	 */
+	private final Queue<PendingReport> pendingReports = new ConcurrentLinkedQueue<>();
+
+	private final ScheduledExecutorService executor;
+
+	private QualityTelemetry() {
+		executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "quality-telemetry");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::publish, WINDOW_MS, WINDOW_MS, TimeUnit.MILLISECONDS);
+	}
+
+	public static QualityTelemetry getInstance() {
+		return InstanceHolder.INSTANCE;
+	}
+
+	/**
+	 * @param streamId
+	 * @param streamHandler handler that quality parameters are published to
+	 * @param maxPublishPeriodMs stream is published at least in this period even if its quality does not change
+	 * @return entry to record quality parameters
+	 */
+	public StreamEntry register(String streamId, IAntMediaStreamHandler streamHandler, long maxPublishPeriodMs) {
+		StreamEntry entry = new StreamEntry(streamId, streamHandler, maxPublishPeriodMs);
+		entries.add(entry);
+		return entry;
+	}
+
+	/**
+	 * Removes the stream and publishes its final quality parameters in the next cycle
+	 */
+	public void unregister(StreamEntry entry, String finalQuality, int queueSize) {
+		if (entry != null && entries.remove(entry)) {
+			pendingReports.add(new PendingReport(entry.streamHandler, new StreamQualityStats(entry.streamId, finalQuality, 0, queueSize)));
+		}
+	}
+
+	private void publish() {
+		long now = System.currentTimeMillis();
+		Map<IAntMediaStreamHandler, List<StreamQualityStats>> batches = new HashMap<>();
+		try {
+			for (StreamEntry entry : entries) {
+				StreamQualityStats stats = entry.collect(now);
+				if (stats != null) {
+					batches.computeIfAbsent(entry.streamHandler, k -> new ArrayList<>()).add(stats);
+				}
+			}
+
+			PendingReport report;
+			while ((report = pendingReports.poll()) != null) {
+				batches.computeIfAbsent(report.streamHandler, k -> new ArrayList<>()).add(report.stats);
+			}
+		}
+		catch (Exception e) {
+			logger.error("Exception while collecting quality parameters", e);
+		}
+
+		for (Map.Entry<IAntMediaStreamHandler, List<StreamQualityStats>> batch : batches.entrySet()) {
+			try {
+				batch.getKey().setQualityParameters(batch.getValue());
+			}
+			catch (Exception e) {
+				logger.error("Exception while publishing quality parameters of {} streams", batch.getValue().size(), e);
+			}
+		}
+	}
+
+	public int getStreamCount() {
+		return entries.size();
+	}
+
+}
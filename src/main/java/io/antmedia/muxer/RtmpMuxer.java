@@ -84,6 +84,14 @@ public class RtmpMuxer extends Muxer {
 	public String getURL() {
 		return url;
 	}
+
+	/**
+	 * Writes go to a remote endpoint and block as long as the endpoint does not read
+	 */
+	@Override
+	public boolean isBlockingSink() {
+		return true;
+	}
 	
 
 
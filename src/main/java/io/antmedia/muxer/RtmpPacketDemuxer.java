@@ -0,0 +1,606 @@
+package io.antmedia.muxer;
+
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_AAC;
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_H264;
+import static org.bytedeco.javacpp.avcodec.AV_INPUT_BUFFER_PADDING_SIZE;
+import static org.bytedeco.javacpp.avcodec.AV_PKT_DATA_NEW_EXTRADATA;
+import static org.bytedeco.javacpp.avcodec.AV_PKT_FLAG_KEY;
+import static org.bytedeco.javacpp.avcodec.av_new_packet;
+import static org.bytedeco.javacpp.avcodec.av_packet_new_side_data;
+import static org.bytedeco.javacpp.avcodec.avcodec_parameters_to_context;
+import static org.bytedeco.javacpp.avformat.avformat_alloc_context;
+import static org.bytedeco.javacpp.avformat.avformat_new_stream;
+import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_AUDIO;
+import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_VIDEO;
+import static org.bytedeco.javacpp.avutil.AV_SAMPLE_FMT_FLTP;
+import static org.bytedeco.javacpp.avutil.av_free;
+import static org.bytedeco.javacpp.avutil.av_get_default_channel_layout;
+import static org.bytedeco.javacpp.avutil.av_mallocz;
+
+import java.util.Arrays;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.avcodec.AVCodecParameters;
+import org.bytedeco.javacpp.avcodec.AVPacket;
+import org.bytedeco.javacpp.avformat.AVFormatContext;
+import org.bytedeco.javacpp.avformat.AVStream;
+import org.bytedeco.javacpp.avutil.AVRational;
+import org.red5.server.api.stream.IStreamPacket;
+import org.red5.server.net.rtmp.message.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts the RTMP packets of a stream to AVPackets without FLV framing and FLV demuxer.
+ *
+ * AVC sequence header and AAC audio specific config create the video and audio streams of the input context
+ * with their codec parameters. NALUs and raw AAC frames are copied to AVPackets once.
+ * Timestamps are in milliseconds as in FLV.
+ *
+ * Streams are ready when configurations of all received tracks arrive. If only one track is received,
+ * it waits until packet timestamps pass max analyze duration.
+ *
+ * A configuration that changes after the streams are ready updates the codec parameters of its stream and it's sent
+ * as new extradata side data with the next packet of the stream, like FLV demuxer of FFmpeg does. Repeated configurations
+ * are ignored. A track whose configuration arrives after the streams are ready is skipped, since muxers are prepared without it.
+ *
+ * Only H.264 and AAC are supported. It's not thread safe, it's used by the ingest worker of the stream
+ *
+ * @author mekya
+ *
+ */
+public class RtmpPacketDemuxer {
+
+	private static Logger logger = LoggerFactory.getLogger(RtmpPacketDemuxer.class);
+
+	public static final int FLV_CODEC_ID_AVC = 7;
+
+	public static final int FLV_CODEC_ID_AAC = 10;
+
+	public static final int AVC_PACKET_TYPE_SEQUENCE_HEADER = 0;
+
+	public static final int AVC_PACKET_TYPE_NALU = 1;
+
+	public static final int AAC_PACKET_TYPE_SEQUENCE_HEADER = 0;
+
+	public static final int AAC_PACKET_TYPE_RAW = 1;
+
+	/**
+	 * Codec id(1 byte), AVC packet type(1 byte), composition time(3 bytes)
+	 */
+	public static final int AVC_HEADER_LENGTH = 5;
+
+	/**
+	 * Codec id(1 byte), AAC packet type(1 byte)
+	 */
+	public static final int AAC_HEADER_LENGTH = 2;
+
+	private static final int[] AAC_SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+
+	/**
+	 * Sampling frequency index that is followed by the sampling frequency in 24 bits
+	 */
+	private static final int AAC_EXPLICIT_FREQUENCY_INDEX = 15;
+
+	private final String streamId;
+
+	private final int maxAnalyzeDurationMS;
+
+	private final AVFormatContext formatContext;
+
+	private final AVRational timeBase;
+
+	private AVStream videoStream;
+
+	private AVStream audioStream;
+
+	private byte[] videoConfig;
+
+	private byte[] audioConfig;
+
+	/**
+	 * Configurations that are changed after the streams are ready, they're sent with the next packet of their streams
+	 */
+	private byte[] newVideoExtradata;
+
+	private byte[] newAudioExtradata;
+
+	private boolean videoReceived = false;
+
+	private boolean audioReceived = false;
+
+	private boolean unsupportedCodecLogged = false;
+
+	private int firstTimestamp = -1;
+
+	private boolean ready = false;
+
+	public RtmpPacketDemuxer(String streamId, int maxAnalyzeDurationMS) {
+		this.streamId = streamId;
+		this.maxAnalyzeDurationMS = maxAnalyzeDurationMS;
+		this.formatContext = avformat_alloc_context();
+		timeBase = new AVRational();
+		timeBase.num(1);
+		timeBase.den(1000);
+	}
+
+	/**
+	 * Reads the codec configuration in the packet if there is and updates the readiness of the streams
+	 *
+	 * @param packet
+	 * @return true if packet is a media packet that can be read with {@link #readPacket(IStreamPacket, AVPacket)}
+	 */
+	public boolean update(IStreamPacket packet) {
+		IoBuffer data = packet.getData();
+		if (data == null || data.limit() < 2) {
+			return false;
+		}
+		if (firstTimestamp == -1) {
+			firstTimestamp = packet.getTimestamp();
+		}
+
+		boolean isMedia = false;
+		byte dataType = packet.getDataType();
+		if (dataType == Constants.TYPE_VIDEO_DATA) {
+			videoReceived = true;
+			if ((data.get(0) & 0x0f) != FLV_CODEC_ID_AVC) {
+				logUnsupportedCodec("video", data.get(0) & 0x0f);
+			}
+			else if (data.get(1) == AVC_PACKET_TYPE_SEQUENCE_HEADER) {
+				readAVCConfig(data);
+			}
+			else {
+				isMedia = data.get(1) == AVC_PACKET_TYPE_NALU && data.limit() > AVC_HEADER_LENGTH;
+			}
+		}
+		else if (dataType == Constants.TYPE_AUDIO_DATA) {
+			audioReceived = true;
+			if (((data.get(0) >> 4) & 0x0f) != FLV_CODEC_ID_AAC) {
+				logUnsupportedCodec("audio", (data.get(0) >> 4) & 0x0f);
+			}
+			else if (data.get(1) == AAC_PACKET_TYPE_SEQUENCE_HEADER) {
+				readAACConfig(data);
+			}
+			else {
+				isMedia = data.get(1) == AAC_PACKET_TYPE_RAW && data.limit() > AAC_HEADER_LENGTH;
+			}
+		}
+
+		if (!ready) {
+			ready = checkReady(packet.getTimestamp());
+		}
+		return isMedia;
+	}
+
+	private boolean checkReady(int timestamp) {
+		if (videoStream == null && audioStream == null) {
+			return false;
+		}
+		boolean videoConfigured = !videoReceived || videoStream != null;
+		boolean audioConfigured = !audioReceived || audioStream != null;
+		if (videoReceived && audioReceived && videoConfigured && audioConfigured) {
+			return true;
+		}
+		if ((timestamp - firstTimestamp) >= maxAnalyzeDurationMS) {
+			logger.info("Max analyze duration is passed for stream: {} video configured:{} audio configured:{}", streamId, videoStream != null, audioStream != null);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Copies the payload of the media packet to the AVPacket.
+	 *
+	 * @param packet
+	 * @param pkt packet to fill. Caller should unref it after it's written
+	 * @return stream of the packet or null if packet's stream is not created
+	 */
+	public AVStream readPacket(IStreamPacket packet, AVPacket pkt) {
+		IoBuffer data = packet.getData();
+		long dts = packet.getTimestamp();
+		long pts = dts;
+		int headerLength;
+		AVStream stream;
+		boolean keyFrame;
+		if (packet.getDataType() == Constants.TYPE_VIDEO_DATA) {
+			stream = videoStream;
+			headerLength = AVC_HEADER_LENGTH;
+			keyFrame = ((data.get(0) >> 4) & 0x0f) == 1;
+			// composition time offset is signed 24 bit
+			int compositionTime = ((data.get(2) & 0xff) << 16) | ((data.get(3) & 0xff) << 8) | (data.get(4) & 0xff);
+			pts += (compositionTime << 8) >> 8;
+		}
+		else {
+			stream = audioStream;
+			headerLength = AAC_HEADER_LENGTH;
+			keyFrame = true;
+		}
+		if (stream == null) {
+			return null;
+		}
+
+		int size = data.limit() - headerLength;
+		if (av_new_packet(pkt, size) < 0) {
+			logger.warn("Packet cannot be allocated for stream: {}", streamId);
+			return null;
+		}
+		FLVTagFramer.copyBody(data, headerLength, size, pkt.data().capacity(size).asByteBuffer());
+		if (stream == videoStream && newVideoExtradata != null) {
+			addNewExtradata(pkt, newVideoExtradata);
+			newVideoExtradata = null;
+		}
+		else if (stream == audioStream && newAudioExtradata != null) {
+			addNewExtradata(pkt, newAudioExtradata);
+			newAudioExtradata = null;
+		}
+		pkt.stream_index(stream.index());
+		pkt.dts(dts);
+		pkt.pts(pts);
+		if (keyFrame) {
+			pkt.flags(pkt.flags() | AV_PKT_FLAG_KEY);
+		}
+		return stream;
+	}
+
+	private void readAVCConfig(IoBuffer data) {
+		int length = data.limit() - AVC_HEADER_LENGTH;
+		if (length <= 0) {
+			return;
+		}
+		byte[] config = new byte[length];
+		for (int i = 0; i < length; i++) {
+			config[i] = data.get(AVC_HEADER_LENGTH + i);
+		}
+
+		if (Arrays.equals(config, videoConfig)) {
+			// encoders may repeat it with keyframes
+			return;
+		}
+		if (videoStream != null) {
+			if (ready) {
+				logger.info("AVC configuration is changed for stream: {}. Codec parameters are updated", streamId);
+				newVideoExtradata = config;
+			}
+		}
+		else if (ready) {
+			logger.warn("AVC configuration is received after streams are ready for stream: {}. Video is skipped", streamId);
+			return;
+		}
+		else {
+			videoStream = newStream();
+		}
+		videoConfig = config;
+
+		AVCodecParameters codecpar = videoStream.codecpar();
+		codecpar.codec_type(AVMEDIA_TYPE_VIDEO);
+		codecpar.codec_id(AV_CODEC_ID_H264);
+		setExtradata(codecpar, config);
+
+		int[] resolution = H264SpsParser.getResolution(config);
+		if (resolution != null) {
+			codecpar.width(resolution[0]);
+			codecpar.height(resolution[1]);
+		}
+		else {
+			logger.warn("Resolution cannot be read from AVC configuration of stream: {}", streamId);
+		}
+		if (config.length > 3) {
+			codecpar.profile(config[1] & 0xff);
+			codecpar.level(config[3] & 0xff);
+		}
+		avcodec_parameters_to_context(videoStream.codec(), codecpar);
+		logger.info("Video stream is configured for stream: {} resolution: {}x{}", streamId, codecpar.width(), codecpar.height());
+	}
+
+	private void readAACConfig(IoBuffer data) {
+		int length = data.limit() - AAC_HEADER_LENGTH;
+		if (length < 2) {
+			return;
+		}
+		byte[] config = new byte[length];
+		for (int i = 0; i < length; i++) {
+			config[i] = data.get(AAC_HEADER_LENGTH + i);
+		}
+
+		if (Arrays.equals(config, audioConfig)) {
+			// encoders may repeat it
+			return;
+		}
+		AudioSpecificConfig audioSpecificConfig = AudioSpecificConfig.parse(config);
+		if (audioSpecificConfig == null) {
+			logger.warn("AAC configuration cannot be parsed for stream: {}", streamId);
+			return;
+		}
+		if (audioStream != null) {
+			if (ready) {
+				logger.info("AAC configuration is changed for stream: {}. Codec parameters are updated", streamId);
+				newAudioExtradata = config;
+			}
+		}
+		else if (ready) {
+			logger.warn("AAC configuration is received after streams are ready for stream: {}. Audio is skipped", streamId);
+			return;
+		}
+		else {
+			audioStream = newStream();
+		}
+		audioConfig = config;
+
+		int channels = audioSpecificConfig.channels;
+		AVCodecParameters codecpar = audioStream.codecpar();
+		codecpar.codec_type(AVMEDIA_TYPE_AUDIO);
+		codecpar.codec_id(AV_CODEC_ID_AAC);
+		codecpar.format(AV_SAMPLE_FMT_FLTP);
+		codecpar.profile(audioSpecificConfig.objectType - 1);
+		codecpar.sample_rate(audioSpecificConfig.sampleRate);
+		codecpar.channels(channels);
+		codecpar.channel_layout(av_get_default_channel_layout(channels));
+		codecpar.frame_size(1024);
+		setExtradata(codecpar, config);
+		avcodec_parameters_to_context(audioStream.codec(), codecpar);
+		logger.info("Audio stream is configured for stream: {} sample rate: {} channels: {}", streamId, audioSpecificConfig.sampleRate, channels);
+	}
+
+	private static void addNewExtradata(AVPacket pkt, byte[] config) {
+		BytePointer sideData = av_packet_new_side_data(pkt, AV_PKT_DATA_NEW_EXTRADATA, config.length);
+		if (sideData != null && !sideData.isNull()) {
+			sideData.capacity(config.length).put(config);
+		}
+	}
+
+	private AVStream newStream() {
+		AVStream stream = avformat_new_stream(formatContext, null);
+		stream.time_base(timeBase);
+		return stream;
+	}
+
+	private static void setExtradata(AVCodecParameters codecpar, byte[] config) {
+		if (codecpar.extradata() != null && !codecpar.extradata().isNull()) {
+			av_free(codecpar.extradata());
+		}
+		BytePointer extradata = new BytePointer(av_mallocz(config.length + (long)AV_INPUT_BUFFER_PADDING_SIZE));
+		extradata.capacity(config.length).put(config);
+		codecpar.extradata(extradata);
+		codecpar.extradata_size(config.length);
+	}
+
+	private void logUnsupportedCodec(String type, int codecId) {
+		if (!unsupportedCodecLogged) {
+			unsupportedCodecLogged = true;
+			logger.warn("Unsupported {} codec id: {} in direct demux mode for stream: {}. Its packets are skipped", type, codecId, streamId);
+		}
+	}
+
+	/**
+	 * @return true if streams can be prepared in the muxers
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	public boolean hasVideo() {
+		return videoStream != null;
+	}
+
+	public boolean hasAudio() {
+		return audioStream != null;
+	}
+
+	/**
+	 * @return input context that has the streams. It's not opened so it should be closed with avformat_close_input
+	 */
+	public AVFormatContext getFormatContext() {
+		return formatContext;
+	}
+
+	/**
+	 * Reads the object type, sampling frequency and channel configuration of AudioSpecificConfig
+	 */
+	static class AudioSpecificConfig {
+
+		final int objectType;
+		final int sampleRate;
+		final int channels;
+
+		private AudioSpecificConfig(int objectType, int sampleRate, int channels) {
+			this.objectType = objectType;
+			this.sampleRate = sampleRate;
+			this.channels = channels;
+		}
+
+		/**
+		 * @param config AudioSpecificConfig
+		 * @return parsed config or null if it's too short
+		 */
+		static AudioSpecificConfig parse(byte[] config) {
+			// audio object type(5 bits, 6 more bits if it's 31), sampling frequency index(4 bits, 24 bits frequency if it's 15), 
+			// channel configuration(4 bits)
+			long bits = 0;
+			for (int i = 0; i < 8; i++) {
+				bits = (bits << 8) | (i < config.length ? config[i] & 0xff : 0);
+			}
+			int bitOffset = 0;
+			int objectType = (int) (bits >>> 59);
+			bitOffset += 5;
+			if (objectType == 31) {
+				objectType = 32 + (int) ((bits >>> (64 - bitOffset - 6)) & 0x3f);
+				bitOffset += 6;
+			}
+			int frequencyIndex = (int) ((bits >>> (64 - bitOffset - 4)) & 0x0f);
+			bitOffset += 4;
+			int sampleRate;
+			if (frequencyIndex == AAC_EXPLICIT_FREQUENCY_INDEX) {
+				sampleRate = (int) ((bits >>> (64 - bitOffset - 24)) & 0xffffff);
+				bitOffset += 24;
+			}
+			else {
+				sampleRate = frequencyIndex < AAC_SAMPLE_RATES.length ? AAC_SAMPLE_RATES[frequencyIndex] : 44100;
+			}
+			int channels = (int) ((bits >>> (64 - bitOffset - 4)) & 0x0f);
+			bitOffset += 4;
+			if (config.length * 8 < bitOffset) {
+				return null;
+			}
+			return new AudioSpecificConfig(objectType, sampleRate, channels);
+		}
+	}
+
+	/**
+	 * Reads the resolution from the SPS in AVCDecoderConfigurationRecord
+	 */
+	static class H264SpsParser {
+
+		private final byte[] rbsp;
+		private int bitOffset = 0;
+
+		private H264SpsParser(byte[] rbsp) {
+			this.rbsp = rbsp;
+		}
+
+		/**
+		 * @param config AVCDecoderConfigurationRecord
+		 * @return width and height or null if it cannot be parsed
+		 */
+		static int[] getResolution(byte[] config) {
+			// version(1), profile(1), compatibility(1), level(1), length size(1), number of sps(1), sps length(2)
+			if (config.length < 8 || (config[5] & 0x1f) == 0) {
+				return null;
+			}
+			int spsLength = ((config[6] & 0xff) << 8) | (config[7] & 0xff);
+			if (spsLength < 2 || config.length < 8 + spsLength) {
+				return null;
+			}
+			// skip NAL header and remove emulation prevention bytes
+			byte[] rbsp = new byte[spsLength];
+			int size = 0;
+			int zeroCount = 0;
+			for (int i = 9; i < 8 + spsLength; i++) {
+				int b = config[i] & 0xff;
+				if (zeroCount == 2 && b == 3) {
+					zeroCount = 0;
+					continue;
+				}
+				zeroCount = b == 0 ? zeroCount + 1 : 0;
+				rbsp[size++] = (byte) b;
+			}
+			try {
+				return new H264SpsParser(rbsp).parseResolution();
+			}
+			catch (ArrayIndexOutOfBoundsException e) {
+				return null;
+			}
+		}
+
+		private int[] parseResolution() {
+			int profileIdc = readBits(8);
+			// constraint flags and level
+			readBits(16);
+			readUE();
+
+			int chromaFormatIdc = 1;
+			if (profileIdc == 100 || profileIdc == 110 || profileIdc == 122 || profileIdc == 244 || profileIdc == 44
+					|| profileIdc == 83 || profileIdc == 86 || profileIdc == 118 || profileIdc == 128
+					|| profileIdc == 138 || profileIdc == 139 || profileIdc == 134 || profileIdc == 135)
+			{
+				chromaFormatIdc = readUE();
+				if (chromaFormatIdc == 3) {
+					readBits(1);
+				}
+				// bit depth luma and chroma
+				readUE();
+				readUE();
+				// qpprime_y_zero_transform_bypass_flag
+				readBits(1);
+				if (readBits(1) == 1) {
+					skipScalingMatrix(chromaFormatIdc == 3 ? 12 : 8);
+				}
+			}
+			// log2_max_frame_num_minus4
+			readUE();
+			int picOrderCntType = readUE();
+			if (picOrderCntType == 0) {
+				readUE();
+			}
+			else if (picOrderCntType == 1) {
+				readBits(1);
+				readSE();
+				readSE();
+				int numRefFramesInCycle = readUE();
+				for (int i = 0; i < numRefFramesInCycle; i++) {
+					readSE();
+				}
+			}
+			// max_num_ref_frames, gaps_in_frame_num_value_allowed_flag
+			readUE();
+			readBits(1);
+
+			int widthInMbs = readUE() + 1;
+			int heightInMapUnits = readUE() + 1;
+			int frameMbsOnly = readBits(1);
+			if (frameMbsOnly == 0) {
+				// mb_adaptive_frame_field_flag
+				readBits(1);
+			}
+			// direct_8x8_inference_flag
+			readBits(1);
+
+			int width = widthInMbs * 16;
+			int height = (2 - frameMbsOnly) * heightInMapUnits * 16;
+			if (readBits(1) == 1) {
+				int cropLeft = readUE();
+				int cropRight = readUE();
+				int cropTop = readUE();
+				int cropBottom = readUE();
+				int cropUnitX = (chromaFormatIdc == 1 || chromaFormatIdc == 2) ? 2 : 1;
+				int cropUnitY = (chromaFormatIdc == 1 ? 2 : 1) * (2 - frameMbsOnly);
+				width -= cropUnitX * (cropLeft + cropRight);
+				height -= cropUnitY * (cropTop + cropBottom);
+			}
+			return new int[] {width, height};
+		}
+
+		private void skipScalingMatrix(int count) {
+			for (int i = 0; i < count; i++) {
+				if (readBits(1) == 1) {
+					int size = i < 6 ? 16 : 64;
+					int lastScale = 8;
+					int nextScale = 8;
+					for (int j = 0; j < size && nextScale != 0; j++) {
+						nextScale = (lastScale + readSE() + 256) % 256;
+						if (nextScale != 0) {
+							lastScale = nextScale;
+						}
+					}
+				}
+			}
+		}
+
+		private int readBits(int count) {
+			int value = 0;
+			for (int i = 0; i < count; i++) {
+				int bit = (rbsp[bitOffset >> 3] >> (7 - (bitOffset & 7))) & 1;
+				value = (value << 1) | bit;
+				bitOffset++;
+			}
+			return value;
+		}
+
+		private int readUE() {
+			int leadingZeros = 0;
+			while (readBits(1) == 0) {
+				leadingZeros++;
+				if (leadingZeros > 31) {
+					throw new ArrayIndexOutOfBoundsException("invalid exp-golomb code");
+				}
+			}
+			return (1 << leadingZeros) - 1 + readBits(leadingZeros);
+		}
+
+		private int readSE() {
+			int value = readUE();
+			return (value & 1) == 1 ? (value + 1) / 2 : -(value / 2);
+		}
+	}
+
+}
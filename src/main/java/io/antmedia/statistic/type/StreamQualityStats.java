@@ -0,0 +1,54 @@
+package io.antmedia.statistic.type;
+
+/**
+ * Quality parameters of a stream that is published to the datastore
+ */
+public class StreamQualityStats 
+{
+	private String streamId;
+
+	private String quality;
+
+	private double speed;
+
+	private int pendingPacketSize;
+
+	public StreamQualityStats(String streamId, String quality, double speed, int pendingPacketSize) {
+		this.streamId = streamId;
+		this.quality = quality;
+		this.speed = speed;
+		this.pendingPacketSize = pendingPacketSize;
+	}
+
+	public String getStreamId() {
+		return streamId;
+	}
+
+	public void setStreamId(String streamId) {
+		this.streamId = streamId;
+	}
+
+	public String getQuality() {
+		return quality;
+	}
+
+	public void setQuality(String quality) {
+		this.quality = quality;
+	}
+
+	public double getSpeed() {
+		return speed;
+	}
+
+	public void setSpeed(double speed) {
+		this.speed = speed;
+	}
+
+	public int getPendingPacketSize() {
+		return pendingPacketSize;
+	}
+
+	public void setPendingPacketSize(int pendingPacketSize) {
+		this.pendingPacketSize = pendingPacketSize;
+	}
+}
@@ -1,26 +1,35 @@
 package io.antmedia.storage;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.amazonaws.AmazonClientException;
-import com.amazonaws.AmazonServiceException;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.event.ProgressEventType;
-import com.amazonaws.event.ProgressListener;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
 import com.amazonaws.services.s3.transfer.Upload;
@@ -28,10 +37,83 @@ import com.amazonaws.services.s3.transfer.Upload;
 public class AmazonS3StorageClient extends StorageClient {
 
 	private AmazonS3 amazonS3;
+
+	private TransferManager transferManager;
+
+	/**
+	 * S3 requires at least 5MB for the parts except the last one
+	 */
+	public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+	public static final int TRANSFER_THREAD_COUNT = 10;
+
+	public static final int UPLOAD_SESSION_THREAD_COUNT = 4;
+
+	private static final AtomicInteger threadCounter = new AtomicInteger(0);
+
+	/**
+	 * Uploads of the finished files are run on this executor by transfer manager
+	 */
+	private static final ExecutorService transferExecutor = Executors.newFixedThreadPool(TRANSFER_THREAD_COUNT, runnable -> {
+		Thread thread = new Thread(runnable, "s3-transfer-" + threadCounter.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Parts of the files being written are uploaded on this executor so that they don't wait for the transfers
+	 */
+	private static final ExecutorService uploadSessionExecutor = Executors.newFixedThreadPool(UPLOAD_SESSION_THREAD_COUNT, runnable -> {
+		Thread thread = new Thread(runnable, "s3-upload-session-" + threadCounter.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
 	
 	protected static Logger logger = LoggerFactory.getLogger(AmazonS3StorageClient.class);
 
-	private AmazonS3 getAmazonS3() {
+	/**
+	 * Multipart upload of a file that is being written
+	 */
+	private class S3UploadSession extends UploadSession {
+
+		private final String uploadId;
+		private final List<PartETag> partETags = new CopyOnWriteArrayList<>();
+
+		public S3UploadSession(String key, String uploadId) {
+			super(key, MIN_PART_SIZE, uploadSessionExecutor);
+			this.uploadId = uploadId;
+		}
+
+		@Override
+		public String getUploadId() {
+			return uploadId;
+		}
+
+		@Override
+		protected void uploadPart(int partNumber, byte[] data, int length, boolean lastPart) {
+			UploadPartRequest partRequest = new UploadPartRequest()
+					.withBucketName(getStorageName())
+					.withKey(getKey())
+					.withUploadId(uploadId)
+					.withPartNumber(partNumber)
+					.withInputStream(new ByteArrayInputStream(data, 0, length))
+					.withPartSize(length)
+					.withLastPart(lastPart);
+			partETags.add(getAmazonS3().uploadPart(partRequest).getPartETag());
+		}
+
+		@Override
+		protected void completeUpload() {
+			getAmazonS3().completeMultipartUpload(new CompleteMultipartUploadRequest(getStorageName(), getKey(), uploadId, partETags));
+		}
+
+		@Override
+		protected void abortUpload() {
+			abortUploadSession(getKey(), uploadId);
+		}
+	}
+
+	private synchronized AmazonS3 getAmazonS3() {
 		if (amazonS3 == null) {
 			AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard();
 			// Inject credentials if provided in the configuration file
@@ -55,6 +137,28 @@ public class AmazonS3StorageClient extends StorageClient {
 		return amazonS3; 
 	}
 
+	/**
+	 * Sets the client that is used instead of the one built from the access key, secret key and region,
+	 * for instance a client of an S3 compatible storage
+	 * 
+	 * @param amazonS3
+	 */
+	public synchronized void setAmazonS3(AmazonS3 amazonS3) {
+		this.amazonS3 = amazonS3;
+		this.transferManager = null;
+	}
+
+	private synchronized TransferManager getTransferManager() {
+		if (transferManager == null) {
+			transferManager = TransferManagerBuilder.standard()
+					.withS3Client(getAmazonS3())
+					.withExecutorFactory(() -> transferExecutor)
+					.withShutDownThreadPools(false)
+					.build();
+		}
+		return transferManager;
+	}
+
 	
 	public void delete(String fileName, FileType type) {
 		AmazonS3 s3 = getAmazonS3();
@@ -69,54 +173,69 @@ public class AmazonS3StorageClient extends StorageClient {
 	
 	public void save(final File file, FileType type) 
 	{
-		
+		try {
+			saveOrThrow(file, type);
+		} 
+		catch (IOException e) {
+			logger.error("S3 - Error: Upload failed for {} {}", file.getName(), ExceptionUtils.getStackTrace(e));
+		}
+	}
+
+	@Override
+	public void saveOrThrow(final File file, FileType type) throws IOException 
+	{
 		String key = type.getValue() + "/" + file.getName();
 
-		AmazonS3 s3 = getAmazonS3();
-		
-		TransferManager tm = TransferManagerBuilder.standard()
-                .withS3Client(s3)
-                .build();
+		TransferManager tm = getTransferManager();
 		
 		PutObjectRequest putRequest = new PutObjectRequest(getStorageName(), key, file);
 		
 		putRequest.setCannedAcl(CannedAccessControlList.PublicRead);
-	
-		
 		
+		// TransferManager processes all transfers asynchronously,
+		// so this call returns immediately.
 		Upload upload = tm.upload(putRequest);
-        // TransferManager processes all transfers asynchronously,
-        // so this call returns immediately.
-        //Upload upload = tm.upload(getStorageName(), key, file);
-        logger.info("Mp4 {} upload has started", file.getName());
-        
-        upload.addProgressListener((ProgressListener) event -> {
-			if (event.getEventType() == ProgressEventType.TRANSFER_FAILED_EVENT){
-				logger.error("S3 - Error: Upload failed for {}", file.getName());
-			}
-			else if (event.getEventType() == ProgressEventType.TRANSFER_COMPLETED_EVENT){
-				try {
-					Files.delete(file.toPath());
-				} catch (IOException e) {
-					logger.error(ExceptionUtils.getStackTrace(e));
-				}
-				logger.info("File {} uploaded to S3", file.getName());
-			}
-		});
-        
+		logger.info("Mp4 {} upload has started", file.getName());
 
-        // Optionally, wait for the upload to finish before continuing.
-        try {  
+		try {  
 			upload.waitForCompletion();
-			
-			logger.info("Mp4 {} upload completed", file.getName());
-		} catch (AmazonServiceException e1) {
-			logger.error(ExceptionUtils.getStackTrace(e1));
-		} catch (InterruptedException e1) {
-			logger.error(ExceptionUtils.getStackTrace(e1));
+		} 
+		catch (AmazonClientException e) {
+			throw new IOException("Upload failed for " + file.getName(), e);
+		} 
+		catch (InterruptedException e) {
 			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Upload is interrupted for " + file.getName());
+		}
+		logger.info("File {} uploaded to S3", file.getName());
+		
+		Files.delete(file.toPath());
+	}
+
+	@Override
+	public void abortUploadSession(String key, String uploadId) {
+		try {
+			getAmazonS3().abortMultipartUpload(new AbortMultipartUploadRequest(getStorageName(), key, uploadId));
+		}
+		catch (AmazonClientException e) {
+			logger.warn("Multipart upload of {} cannot be aborted {}", key, e.getMessage());
+		}
+	}
+
+	@Override
+	public UploadSession openUploadSession(File file, FileType type) {
+		String key = type.getValue() + "/" + file.getName();
+		try {
+			InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(getStorageName(), key)
+					.withCannedACL(CannedAccessControlList.PublicRead);
+			String uploadId = getAmazonS3().initiateMultipartUpload(request).getUploadId();
+			logger.info("Multipart upload of {} is started", key);
+			return new S3UploadSession(key, uploadId);
+		}
+		catch (AmazonClientException e) {
+			logger.error("Multipart upload of {} cannot be started {}", key, ExceptionUtils.getStackTrace(e));
 		}
-        
+		return null;
 	}
 
 }
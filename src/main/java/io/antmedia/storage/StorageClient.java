@@ -1,6 +1,7 @@
 package io.antmedia.storage;
 
 import java.io.File;
+import java.io.IOException;
 
 import io.antmedia.storage.StorageClient.FileType;
 
@@ -48,6 +49,21 @@ public abstract class StorageClient {
 	 */
 	public abstract void save(final File file, FileType type);
 
+	/**
+	 * Save file to storage and delete the local file like {@link #save(File, FileType)} 
+	 * but throws an exception if file cannot be saved so that caller can retry.
+	 * Default implementation calls {@link #save(File, FileType)}
+	 * 
+	 * @param file
+	 * File to be saved to storage
+	 * @param type
+	 * type of the file
+	 * @throws IOException if file cannot be saved
+	 */
+	public void saveOrThrow(final File file, FileType type) throws IOException {
+		save(file, type);
+	}
+
 	/**
 	 * Checks file exists on storage
 	 * 
@@ -57,6 +73,29 @@ public abstract class StorageClient {
 	 */
 	public abstract boolean fileExist(String fileName, FileType type);
 
+	/**
+	 * Opens an upload to save a file while it's being written. 
+	 * 
+	 * @param file
+	 * File to be saved to storage, its name is used as the key
+	 * @param type
+	 * type of the file
+	 * @return upload session or null if storage does not support streaming upload
+	 */
+	public UploadSession openUploadSession(File file, FileType type) {
+		return null;
+	}
+
+	/**
+	 * Aborts an upload whose session is lost like after a restart and removes its uploaded parts
+	 * 
+	 * @param key key of the upload, see {@link UploadSession#getKey()}
+	 * @param uploadId id of the upload, see {@link UploadSession#getUploadId()}
+	 */
+	public void abortUploadSession(String key, String uploadId) {
+		//no default implementation
+	}
+
 	public String getAccessKey() {
 		return accessKey;
 	}
@@ -0,0 +1,211 @@
+package io.antmedia.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads a file to the storage while it's being written.
+ *
+ * File should only be appended like fragmented mp4. Each {@link #append(File)} call reads the bytes
+ * that are added to the file since the last call and uploads them in parts of {@link #getPartSize()} bytes.
+ * Appends are run in order on the executor of the storage client and they don't block the caller.
+ * {@link #awaitAppends()} waits for them before the file is moved.
+ *
+ * {@link #complete(File)} uploads the remaining bytes as the last part and completes the upload.
+ * File should have the same content as the appended one, a converted file should be saved from scratch
+ *
+ * @author mekya
+ *
+ */
+public abstract class UploadSession {
+
+	protected static Logger logger = LoggerFactory.getLogger(UploadSession.class);
+
+	private final String key;
+
+	private final Executor executor;
+
+	private final byte[] partBuffer;
+
+	private int partBufferLength = 0;
+
+	private long fileOffset = 0;
+
+	private int partNumber = 1;
+
+	private volatile boolean failed = false;
+
+	/**
+	 * Last task in the chain, appends are run after each other
+	 */
+	private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+	protected UploadSession(String key, int partSize, Executor executor) {
+		this.key = key;
+		this.executor = executor;
+		this.partBuffer = new byte[partSize];
+	}
+
+	/**
+	 * Uploads a part. Parts except the last one have the part size
+	 *
+	 * @param partNumber starts from 1
+	 * @param data
+	 * @param length
+	 * @param lastPart
+	 * @throws Exception if part cannot be uploaded
+	 */
+	protected abstract void uploadPart(int partNumber, byte[] data, int length, boolean lastPart) throws Exception;
+
+	/**
+	 * Completes the upload after all parts are uploaded
+	 */
+	protected abstract void completeUpload() throws Exception;
+
+	/**
+	 * Cancels the upload and removes the uploaded parts
+	 */
+	protected abstract void abortUpload();
+
+	/**
+	 * Uploads the bytes that are added to the file since last call. It returns immediately
+	 * @param file
+	 */
+	public synchronized void append(File file) {
+		if (failed) {
+			return;
+		}
+		tail = tail.thenRunAsync(() -> readAndUpload(file, false), executor);
+	}
+
+	/**
+	 * Uploads the remaining bytes of the file and completes the upload. Local file is deleted if upload is completed.
+	 * If it fails, upload is aborted
+	 *
+	 * @param file it may be moved after the last append
+	 * @return true if upload is completed
+	 */
+	public boolean complete(File file) {
+		CompletableFuture<Void> future;
+		synchronized (this) {
+			future = tail.thenRunAsync(() -> readAndUpload(file, true), executor);
+			tail = future;
+		}
+		try {
+			future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failed = true;
+		}
+		catch (Exception e) {
+			failed = true;
+		}
+
+		if (!failed && partNumber > 1) {
+			try {
+				completeUpload();
+				Files.delete(file.toPath());
+				logger.info("Upload of {} is completed in {} parts", key, partNumber - 1);
+				return true;
+			}
+			catch (Exception e) {
+				logger.error("Upload of {} cannot be completed {}", key, ExceptionUtils.getStackTrace(e));
+			}
+		}
+		abort();
+		return false;
+	}
+
+	/**
+	 * Waits until the appends called before are run so that the file can be moved
+	 */
+	public void awaitAppends() {
+		CompletableFuture<Void> future;
+		synchronized (this) {
+			future = tail;
+		}
+		try {
+			future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failed = true;
+		}
+		catch (Exception e) {
+			failed = true;
+		}
+	}
+
+	public void abort() {
+		failed = true;
+		abortUpload();
+	}
+
+	/**
+	 * @return id of the upload in the storage to abort it after a restart, null if storage does not have one
+	 */
+	public String getUploadId() {
+		return null;
+	}
+
+	private void readAndUpload(File file, boolean lastPart) {
+		if (failed) {
+			return;
+		}
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+			long length = randomAccessFile.length();
+			randomAccessFile.seek(fileOffset);
+			while (fileOffset < length) {
+				int readLength = (int) Math.min(partBuffer.length - partBufferLength, length - fileOffset);
+				randomAccessFile.readFully(partBuffer, partBufferLength, readLength);
+				partBufferLength += readLength;
+				fileOffset += readLength;
+				if (partBufferLength == partBuffer.length && (fileOffset < length || !lastPart)) {
+					uploadPart(partNumber++, partBuffer, partBufferLength, false);
+					partBufferLength = 0;
+				}
+			}
+			if (lastPart && partBufferLength > 0) {
+				uploadPart(partNumber++, partBuffer, partBufferLength, true);
+				partBufferLength = 0;
+			}
+		}
+		catch (IOException e) {
+			failed = true;
+			logger.error("File {} cannot be read for upload {}", file.getName(), ExceptionUtils.getStackTrace(e));
+		}
+		catch (Exception e) {
+			failed = true;
+			logger.error("Part {} of {} cannot be uploaded {}", partNumber, key, ExceptionUtils.getStackTrace(e));
+		}
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public int getPartSize() {
+		return partBuffer.length;
+	}
+
+	/**
+	 * @return number of bytes read from the file
+	 */
+	public long getUploadedLength() {
+		return fileOffset;
+	}
+
+	public boolean isFailed() {
+		return failed;
+	}
+
+}
@@ -42,6 +42,9 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.core.style.ToStringCreator;
 
+import io.antmedia.muxer.IngestScheduler;
+import io.antmedia.muxer.Mp4FinalizationPipeline;
+
 /**
  * Red5 server core class implementation.
  */
@@ -99,12 +102,16 @@ public class Server implements IServer, ApplicationContextAware, InitializingBea
      */
     public void afterPropertiesSet() throws Exception {
         Server.schedulingService = (QuartzSchedulingService) applicationContext.getBean("schedulingService");
+        // recordings that are not finalized before restart are finalized when their applications start
+        addListener(new Mp4FinalizationPipeline.ApplicationStartListener());
     }
 
     /**
      * Destruction section.
      */
     public void destroy() throws Exception {
+        // ingest workers are shared by the applications of the server
+        IngestScheduler.shutdownInstance();
     }
 
     /**
@@ -18,6 +18,9 @@
 
 package org.red5.server.net.protocol;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Represents current decode state of the protocol.
  */
@@ -58,6 +61,11 @@ public class RTMPDecodeState {
      */
     private static final String[] names = new String[]{"Ok", "Continue", "Buffer"};
 
+    /**
+     * Objects decoded from the input buffer, the list is reused for each input buffer.
+     */
+    private final List<Object> decodedObjects = new ArrayList<>();
+
     public RTMPDecodeState(String sessionId) {
         this.sessionId = sessionId;
     }
@@ -124,6 +132,15 @@ public class RTMPDecodeState {
         return (decoderState != DECODER_BUFFER);
     }
 
+    /**
+     * Returns the list that decoded objects are collected. It's cleared before decoding the next input buffer.
+     *
+     * @return decoded objects
+     */
+    public List<Object> getDecodedObjects() {
+        return decodedObjects;
+    }
+
     /**
      * @return the sessionId
      */
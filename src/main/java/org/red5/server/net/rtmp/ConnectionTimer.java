@@ -0,0 +1,326 @@
+/*
+ * RED5 Open Source Media Server - https://github.com/Red5/
+ *
+ * Copyright 2006-2016 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.net.rtmp;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Hashed wheel timer for the keep-alive and handshake timeouts of RTMP connections.
+ *
+ * Scheduling and cancelling are constant time and a timeout costs one small object, so a node can have a timer for each of tens of thousands of connections without a
+ * scheduler thread pool. Timeouts are checked by a single thread every tick, so they fire up to one tick late. Expired tasks are always handed off to an executor so a
+ * slow task does not delay the other timeouts; it's the task executor if it's set, otherwise a small pool of the timer.
+ */
+public class ConnectionTimer implements DisposableBean {
+
+    private static Logger log = LoggerFactory.getLogger(ConnectionTimer.class);
+
+    private static final int STATE_WAITING = 0;
+
+    private static final int STATE_RUNNING = 1;
+
+    private static final int STATE_DONE = 2;
+
+    private static final int STATE_CANCELLED = 3;
+
+    private final long tickNanos;
+
+    private final int mask;
+
+    private final Queue<Timeout>[] wheel;
+
+    /**
+     * Timeouts that are scheduled but not put in the wheel by the timer thread yet
+     */
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+
+    /**
+     * Number of threads of the default executor
+     */
+    private static final int DEFAULT_EXECUTOR_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private volatile Executor taskExecutor;
+
+    /**
+     * Runs the expired tasks if no task executor is set
+     */
+    private final ThreadPoolExecutor defaultExecutor;
+
+    private final Thread workerThread;
+
+    private volatile boolean running = true;
+
+    private final long startTime;
+
+    private long tick;
+
+    public ConnectionTimer() {
+        this(100, 512);
+    }
+
+    /**
+     * @param tickMs
+     *            duration of a tick in milliseconds
+     * @param wheelSize
+     *            number of buckets, it's rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public ConnectionTimer(long tickMs, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(wheelSize, 1) - 1) << 1;
+        size = Math.max(size, 1);
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(tickMs, 1));
+        this.mask = size - 1;
+        this.wheel = new Queue[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayDeque<Timeout>();
+        }
+        this.startTime = System.nanoTime();
+        final AtomicInteger threadCount = new AtomicInteger();
+        defaultExecutor = new ThreadPoolExecutor(DEFAULT_EXECUTOR_THREADS, DEFAULT_EXECUTOR_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+            Thread thread = new Thread(r, "ConnectionTimerExecutor-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        defaultExecutor.allowCoreThreadTimeOut(true);
+        workerThread = new Thread(this::runWorker, "ConnectionTimer");
+        workerThread.setDaemon(true);
+        workerThread.start();
+    }
+
+    /**
+     * Runs the task once after the delay
+     *
+     * @param task
+     *            task
+     * @param delayMs
+     *            delay in milliseconds
+     * @return timeout that can be cancelled
+     */
+    public Timeout schedule(Runnable task, long delayMs) {
+        return add(new Timeout(task, delayMs, 0));
+    }
+
+    /**
+     * Runs the task repeatedly, next run is scheduled after the previous run is completed
+     *
+     * @param task
+     *            task
+     * @param initialDelayMs
+     *            delay of the first run in milliseconds
+     * @param delayMs
+     *            delay between the runs in milliseconds
+     * @return timeout that can be cancelled
+     */
+    public Timeout scheduleWithFixedDelay(Runnable task, long initialDelayMs, long delayMs) {
+        return add(new Timeout(task, initialDelayMs, Math.max(delayMs, 1)));
+    }
+
+    private Timeout add(Timeout timeout) {
+        if (!running) {
+            throw new RejectedExecutionException("Connection timer is stopped");
+        }
+        pending.add(timeout);
+        return timeout;
+    }
+
+    private void runWorker() {
+        while (running) {
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long sleepNanos;
+            while ((sleepNanos = deadline - System.nanoTime()) > 0) {
+                try {
+                    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepNanos) + 1);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        return;
+                    }
+                }
+            }
+            transferPending();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.state.get() == STATE_CANCELLED) {
+                continue;
+            }
+            long expireTick = Math.max((timeout.deadline - startTime) / tickNanos, tick);
+            timeout.remainingRounds = (expireTick - tick) / wheel.length;
+            wheel[(int) (expireTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Queue<Timeout> bucket) {
+        for (int i = bucket.size(); i > 0; i--) {
+            Timeout timeout = bucket.poll();
+            if (timeout.state.get() == STATE_CANCELLED) {
+                continue;
+            }
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                bucket.add(timeout);
+            } else {
+                try {
+                    getTaskExecutor().execute(timeout::run);
+                } catch (RejectedExecutionException e) {
+                    log.warn("Timer task is rejected {}", timeout.task, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the timer thread, scheduled tasks are not run anymore
+     */
+    public void destroy() {
+        running = false;
+        workerThread.interrupt();
+        defaultExecutor.shutdown();
+    }
+
+    /**
+     * @return executor of the expired tasks, the default executor of the timer if no task executor is set
+     */
+    public Executor getTaskExecutor() {
+        Executor executor = taskExecutor;
+        return executor != null ? executor : defaultExecutor;
+    }
+
+    public void setTaskExecutor(Executor taskExecutor) {
+        this.taskExecutor = taskExecutor;
+    }
+
+    /**
+     * Scheduled task of the timer
+     */
+    public final class Timeout implements Future<Void> {
+
+        private final Runnable task;
+
+        private final long period;
+
+        private final AtomicInteger state = new AtomicInteger(STATE_WAITING);
+
+        private volatile long deadline;
+
+        /**
+         * Accessed only by the timer thread
+         */
+        private long remainingRounds;
+
+        private Timeout(Runnable task, long delayMs, long period) {
+            this.task = task;
+            this.period = period;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMs, 0));
+        }
+
+        private void run() {
+            if (!state.compareAndSet(STATE_WAITING, STATE_RUNNING)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log.warn("Exception in timer task {}", task, t);
+            }
+            if (period > 0 && state.compareAndSet(STATE_RUNNING, STATE_WAITING)) {
+                deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(period);
+                if (running) {
+                    pending.add(this);
+                }
+            } else if (state.compareAndSet(STATE_RUNNING, STATE_DONE)) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Cancels next runs of the task, a running task is not interrupted
+         */
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            int current;
+            do {
+                current = state.get();
+                if (current == STATE_DONE || current == STATE_CANCELLED) {
+                    return false;
+                }
+            } while (!state.compareAndSet(current, STATE_CANCELLED));
+            synchronized (this) {
+                notifyAll();
+            }
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == STATE_CANCELLED;
+        }
+
+        public boolean isDone() {
+            int current = state.get();
+            return current == STATE_DONE || current == STATE_CANCELLED;
+        }
+
+        public synchronized Void get() throws InterruptedException {
+            while (!isDone()) {
+                wait();
+            }
+            if (isCancelled()) {
+                throw new CancellationException();
+            }
+            return null;
+        }
+
+        public synchronized Void get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            long waitUntil = System.nanoTime() + unit.toNanos(timeout);
+            while (!isDone()) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(waitUntil - System.nanoTime());
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                wait(remaining);
+            }
+            if (isCancelled()) {
+                throw new CancellationException();
+            }
+            return null;
+        }
+
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * RED5 Open Source Media Server - https://github.com/Red5/
+ *
+ * Copyright 2006-2016 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.net.rtmp;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Provider;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.DHParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cached crypto primitives of {@link RTMPHandshake}.
+ *
+ * Mac, KeyAgreement, KeyFactory and KeyPairGenerator instances are kept per thread and reused by the handshakes processed on that thread. Diffie-Hellman key pairs are
+ * taken from a pool that is refilled in the background, so RTMPE handshakes do not pay the key generation on the I/O thread unless a reconnect storm drains the pool.
+ *
+ * Pool size is read from the "rtmp.handshake.dh.pool.size" system property, 0 disables the pool.
+ */
+public final class HandshakeCrypto {
+
+    private static Logger log = LoggerFactory.getLogger(HandshakeCrypto.class);
+
+    private static final String HMAC_SHA256 = "HmacSHA256";
+
+    private static final int POOL_SIZE = Integer.getInteger("rtmp.handshake.dh.pool.size", 64);
+
+    private static final DHParameterSpec DH_PARAMETERS = new DHParameterSpec(RTMPHandshake.DH_MODULUS, RTMPHandshake.DH_BASE);
+
+    private static final ThreadLocal<CachedMac> MACS = ThreadLocal.withInitial(CachedMac::new);
+
+    private static final ThreadLocal<KeyAgreement> KEY_AGREEMENTS = ThreadLocal.withInitial(() -> newInstance(() -> KeyAgreement.getInstance("DH")));
+
+    private static final ThreadLocal<KeyFactory> KEY_FACTORIES = ThreadLocal.withInitial(() -> newInstance(() -> KeyFactory.getInstance("DH")));
+
+    private static final ThreadLocal<KeyPairGenerator> KEY_PAIR_GENERATORS = ThreadLocal.withInitial(() -> newInstance(() -> {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("DH");
+        generator.initialize(DH_PARAMETERS);
+        return generator;
+    }));
+
+    private static final BlockingQueue<KeyPair> keyPairs = new ArrayBlockingQueue<KeyPair>(Math.max(POOL_SIZE, 1));
+
+    private static final AtomicBoolean refilling = new AtomicBoolean(false);
+
+    private static final ExecutorService refiller = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "HandshakeKeyPairRefiller");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * Provider of RC4, resolved once since provider lookup is the costly part of Cipher.getInstance
+     */
+    private static volatile Provider rc4Provider;
+
+    static {
+        refill();
+    }
+
+    private interface InstanceFactory<T> {
+        T create() throws GeneralSecurityException;
+    }
+
+    private static <T> T newInstance(InstanceFactory<T> factory) {
+        try {
+            return factory.create();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Crypto primitive is not available", e);
+        }
+    }
+
+    /**
+     * Mac of a thread with the key it's initialized with, reinitializing is skipped for the same key. BouncyCastle provider is registered by {@link RTMPHandshake}
+     */
+    private static final class CachedMac {
+
+        final Mac mac = newInstance(() -> Mac.getInstance(HMAC_SHA256, BouncyCastleProvider.PROVIDER_NAME));
+
+        byte[] key = new byte[0];
+
+        Mac get(byte[] newKey, int keyLen) throws GeneralSecurityException {
+            if (!sameKey(newKey, keyLen)) {
+                mac.init(new SecretKeySpec(newKey, 0, keyLen, HMAC_SHA256));
+                key = Arrays.copyOf(newKey, keyLen);
+            }
+            return mac;
+        }
+
+        private boolean sameKey(byte[] newKey, int keyLen) {
+            if (key.length != keyLen) {
+                return false;
+            }
+            for (int i = 0; i < keyLen; i++) {
+                if (key[i] != newKey[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+    private HandshakeCrypto() {
+    }
+
+    /**
+     * Returns the HMAC-SHA256 instance of the current thread initialized with the key. Caller must complete the calculation with doFinal before the next call on the thread.
+     *
+     * @param key
+     *            key bytes
+     * @param keyLen
+     *            length of the key
+     * @return mac
+     * @throws GeneralSecurityException
+     *             if the key is invalid
+     */
+    public static Mac getHmacSHA256(byte[] key, int keyLen) throws GeneralSecurityException {
+        if (key.length < keyLen) {
+            // short keys are padded with zeros
+            key = Arrays.copyOf(key, keyLen);
+        }
+        return MACS.get().get(key, keyLen);
+    }
+
+    /**
+     * @return key agreement of the current thread, it must be initialized before use
+     */
+    public static KeyAgreement getKeyAgreement() {
+        return KEY_AGREEMENTS.get();
+    }
+
+    /**
+     * @return DH key factory of the current thread
+     */
+    public static KeyFactory getKeyFactory() {
+        return KEY_FACTORIES.get();
+    }
+
+    /**
+     * Returns a new RC4 cipher. Ciphers keep the stream state, so they are not shared.
+     *
+     * @return cipher
+     * @throws GeneralSecurityException
+     *             if RC4 is not available
+     */
+    public static Cipher newRC4Cipher() throws GeneralSecurityException {
+        Provider provider = rc4Provider;
+        if (provider == null) {
+            Cipher cipher = Cipher.getInstance("RC4");
+            rc4Provider = cipher.getProvider();
+            return cipher;
+        }
+        return Cipher.getInstance("RC4", provider);
+    }
+
+    /**
+     * Returns a Diffie-Hellman key pair from the pool or generates one if the pool is empty. The pool is refilled in the background when it's half empty.
+     *
+     * @return key pair
+     */
+    public static KeyPair takeKeyPair() {
+        KeyPair keyPair = keyPairs.poll();
+        if (keyPairs.size() < POOL_SIZE / 2) {
+            refill();
+        }
+        if (keyPair == null) {
+            keyPair = KEY_PAIR_GENERATORS.get().generateKeyPair();
+        }
+        return keyPair;
+    }
+
+    private static void refill() {
+        if (POOL_SIZE > 0 && refilling.compareAndSet(false, true)) {
+            try {
+                refiller.execute(() -> {
+                    try {
+                        KeyPairGenerator generator = KEY_PAIR_GENERATORS.get();
+                        while (keyPairs.remainingCapacity() > 0) {
+                            keyPairs.offer(generator.generateKeyPair());
+                        }
+                    } catch (Exception e) {
+                        log.warn("Key pair pool cannot be refilled", e);
+                    } finally {
+                        refilling.set(false);
+                    }
+                });
+            } catch (Exception e) {
+                refilling.set(false);
+                log.warn("Key pair pool refill is rejected", e);
+            }
+        }
+    }
+
+    /**
+     * @return number of key pairs in the pool
+     */
+    public static int getPooledKeyPairCount() {
+        return keyPairs.size();
+    }
+
+}
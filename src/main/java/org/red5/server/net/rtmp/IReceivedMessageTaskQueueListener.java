@@ -22,4 +22,12 @@ public interface IReceivedMessageTaskQueueListener {
     void onTaskAdded(ReceivedMessageTaskQueue queue);
 
     void onTaskRemoved(ReceivedMessageTaskQueue queue);
+
+    /**
+     * Called when the queue has tasks and needs to be run. Implementation should execute the queue or call {@link ReceivedMessageTaskQueue#rejected()}.
+     *
+     * @param queue
+     *            queue to run
+     */
+    void onTasksPending(ReceivedMessageTaskQueue queue);
 }
@@ -30,7 +30,9 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -55,6 +57,8 @@ import org.red5.server.api.stream.IStreamService;
 import org.red5.server.exception.ClientRejectedException;
 import org.red5.server.net.protocol.RTMPDecodeState;
 import org.red5.server.net.rtmp.codec.RTMP;
+import org.red5.server.net.rtmp.codec.WriteBatcher;
+import org.red5.server.net.rtmp.event.Aggregate;
 import org.red5.server.net.rtmp.event.BytesRead;
 import org.red5.server.net.rtmp.event.ClientBW;
 import org.red5.server.net.rtmp.event.ClientInvokeEvent;
@@ -82,12 +86,8 @@ import org.red5.server.stream.StreamService;
 import org.red5.server.util.ScopeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.task.TaskRejectedException;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
-import org.springframework.util.concurrent.ListenableFuture;
-import org.springframework.util.concurrent.ListenableFutureCallback;
-import org.springframework.util.concurrent.ListenableFutureTask;
 
 /**
  * RTMP connection. Stores information about client streams, data transfer channels, pending RPC calls, bandwidth configuration, AMF
@@ -306,11 +306,11 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
      */
     protected RTMP state = new RTMP();
 
-    // protection for the decoder when using multiple threads per connection
-    protected transient Semaphore decoderLock = new Semaphore(1, true);
+    // protection for the decoder when using multiple threads per connection, not fair since a fair semaphore hands off to a queued thread on every release
+    protected transient Semaphore decoderLock = new Semaphore(1);
 
     // protection for the encoder when using multiple threads per connection
-    protected transient Semaphore encoderLock = new Semaphore(1, true);
+    protected transient Semaphore encoderLock = new Semaphore(1);
 
     // keeps track of the decode state
     protected transient RTMPDecodeState decoderState;
@@ -330,6 +330,16 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
      */
     protected transient ThreadPoolTaskScheduler deadlockGuardScheduler;
 
+    /**
+     * Executor for message handling that is used instead of {@link #executor} if it's set, like {@link VirtualThreadConnectionExecutor}.
+     */
+    protected transient Executor messageExecutor;
+
+    /**
+     * Timer for keep-alive, handshake and deadlock guard tasks that is used instead of the schedulers if it's set.
+     */
+    protected transient ConnectionTimer connectionTimer;
+
     /**
      * Keep-alive worker flag
      */
@@ -363,12 +373,17 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
     /**
      * Wait for handshake task.
      */
-    private ScheduledFuture<?> waitForHandshakeTask;
+    private Future<?> waitForHandshakeTask;
 
     /**
      * Keep alive task.
      */
-    private ScheduledFuture<?> keepAliveTask;
+    private Future<?> keepAliveTask;
+
+    /**
+     * Watchdog that checks the received message queues for deadlocked tasks.
+     */
+    private volatile Future<?> deadlockGuardTask;
 
     /**
      * Creates anonymous RTMP connection without scope.
@@ -504,8 +519,12 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
         }
         // start the handshake checker after maxHandshakeTimeout milliseconds
         try {
-            waitForHandshakeTask = scheduler.schedule(new WaitForHandshakeTask(), new Date(System.currentTimeMillis() + maxHandshakeTimeout));
-        } catch (TaskRejectedException e) {
+            if (connectionTimer != null) {
+                waitForHandshakeTask = connectionTimer.schedule(new WaitForHandshakeTask(), maxHandshakeTimeout);
+            } else {
+                waitForHandshakeTask = scheduler.schedule(new WaitForHandshakeTask(), new Date(System.currentTimeMillis() + maxHandshakeTimeout));
+            }
+        } catch (RejectedExecutionException e) {
             log.error("WaitForHandshake task was rejected for {}", sessionId, e);
         }
     }
@@ -527,14 +546,18 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
      * Starts measurement.
      */
     private void startRoundTripMeasurement() {
-        if (scheduler != null) {
+        if (scheduler != null || connectionTimer != null) {
             if (pingInterval > 0) {
                 if (log.isDebugEnabled()) {
                     log.debug("startRoundTripMeasurement - {}", sessionId);
                 }
                 try {
                     // schedule with an initial delay of now + 2s to prevent ping messages during connect post processes
-                    keepAliveTask = scheduler.scheduleWithFixedDelay(new KeepAliveTask(), new Date(System.currentTimeMillis() + 2000L), pingInterval);
+                    if (connectionTimer != null) {
+                        keepAliveTask = connectionTimer.scheduleWithFixedDelay(new KeepAliveTask(), 2000L, pingInterval);
+                    } else {
+                        keepAliveTask = scheduler.scheduleWithFixedDelay(new KeepAliveTask(), new Date(System.currentTimeMillis() + 2000L), pingInterval);
+                    }
                     if (log.isDebugEnabled()) {
                         log.debug("Keep alive scheduled for {}", sessionId);
                     }
@@ -951,6 +974,7 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
             }
             stopWaitForHandshake();
             stopRoundTripMeasurement();
+            stopDeadlockGuard();
             // update our state
             if (state != null) {
                 final byte s = getStateCode();
@@ -1259,6 +1283,24 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
         return 0;
     }
 
+    /**
+     * Returns the number of bytes that are scheduled to be written but not written to the socket yet.
+     * 
+     * @return pending bytes or 0 if it's not known
+     */
+    public long getPendingWriteBytes() {
+        return 0;
+    }
+
+    /**
+     * Returns the batcher that gathers encoded messages into one socket write.
+     * 
+     * @return write batcher or null if writes are not batched
+     */
+    public WriteBatcher getWriteBatcher() {
+        return null;
+    }
+
     /**
      * Get pending call service by id.
      * 
@@ -1297,7 +1339,8 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
      *            Message to mark
      */
     protected void writingMessage(Packet message) {
-        if (message.getMessage() instanceof VideoData) {
+        // aggregates sent to players carry the video of the stream, so they are counted as pending video
+        if (message.getMessage() instanceof VideoData || message.getMessage() instanceof Aggregate) {
             Number streamId = message.getHeader().getStreamId();
             final AtomicInteger value = new AtomicInteger();
             AtomicInteger old = pendingVideos.putIfAbsent(streamId.doubleValue(), value);
@@ -1389,7 +1432,7 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
                 }
                 break;
             default:
-                if (executor != null) {
+                if (executor != null || messageExecutor != null) {
                     final String messageType = getMessageType(message);
                     try {
                         // increment the packet number
@@ -1401,10 +1444,6 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
                                 return;
                             }
                         }
-                        // set the packet expiration time if maxHandlingTimeout is not disabled (set to 0)
-                        if (maxHandlingTimeout > 0) {
-                            message.setExpirationTime(System.currentTimeMillis() + maxHandlingTimeout);
-                        }
                         int streamId = message.getHeader().getStreamId().intValue();
                         if (log.isTraceEnabled()) {
                             log.trace("Handling message for streamId: {}, channelId: {} Channels: {}", streamId, message.getHeader().getChannelId(), channels);
@@ -1412,6 +1451,8 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
                         // create a task to setProcessing the message
                         ReceivedMessageTask task = new ReceivedMessageTask(sessionId, message, handler, this);
                         task.setPacketNumber(packetNumber);
+                        // packet expires after maxHandlingTimeout from the start of the task if it's not disabled (set to 0)
+                        task.setMaxHandlingTimeout(maxHandlingTimeout);
                         // create a task queue
                         ReceivedMessageTaskQueue newStreamTasks = new ReceivedMessageTaskQueue(streamId, this);
                         // put the queue in the task by stream map
@@ -1439,74 +1480,81 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
     @Override
     public void onTaskAdded(ReceivedMessageTaskQueue queue) {
         currentQueueSize.incrementAndGet();
-        processTasksQueue(queue);
     }
 
     @Override
     public void onTaskRemoved(ReceivedMessageTaskQueue queue) {
         currentQueueSize.decrementAndGet();
+    }
+
+    @Override
+    public void onTasksPending(ReceivedMessageTaskQueue queue) {
         processTasksQueue(queue);
     }
 
-    @SuppressWarnings("unchecked")
     private void processTasksQueue(final ReceivedMessageTaskQueue currentStreamTasks) {
         int streamId = currentStreamTasks.getStreamId();
         if (log.isTraceEnabled()) {
-           log.trace("Process tasks for streamId {}", streamId);
+            log.trace("Process tasks for streamId {}", streamId);
         }
-        final ReceivedMessageTask task = currentStreamTasks.getTaskToProcess();
-        if (task != null) {
-            Packet packet = task.getPacket();
-            try {
-                final String messageType = getMessageType(packet);
-                ListenableFuture<Packet> future = (ListenableFuture<Packet>) executor.submitListenable(new ListenableFutureTask<Packet>(task));
-                future.addCallback(new ListenableFutureCallback<Packet>() {
-
-                    final long startTime = System.currentTimeMillis();
-
-                    int getProcessingTime() {
-                        return (int) (System.currentTimeMillis() - startTime);
-                    }
-
-                    public void onFailure(Throwable t) {
-                        log.debug("ReceivedMessageTask failure: {}", t);
-                        if (log.isWarnEnabled()) {
-                            log.warn("onFailure - session: {}, msgtype: {}, processingTime: {}, packetNum: {}", sessionId, messageType, getProcessingTime(), task.getPacketNumber());
-                        }
-                        currentStreamTasks.removeTask(task);
-                    }
-
-                    public void onSuccess(Packet packet) {
-                        log.debug("ReceivedMessageTask success");
-                        if (log.isDebugEnabled()) {
-                            log.debug("onSuccess - session: {}, msgType: {}, processingTime: {}, packetNum: {}", sessionId, messageType, getProcessingTime(), task.getPacketNumber());
-                        }
-                        currentStreamTasks.removeTask(task);
-                    }
+        if (maxHandlingTimeout > 0 && deadlockGuardTask == null && (deadlockGuardScheduler != null || connectionTimer != null)) {
+            startDeadlockGuard();
+        }
+        try {
+            if (messageExecutor != null) {
+                messageExecutor.execute(currentStreamTasks);
+            } else {
+                executor.execute(currentStreamTasks);
+            }
+        } catch (RejectedExecutionException tre) {
+            Throwable[] suppressed = tre.getSuppressed();
+            for (Throwable t : suppressed) {
+                log.warn("Suppressed exception on {}", sessionId, t);
+            }
+            log.info("Rejected {} messages of stream: {} on {}", currentStreamTasks.size(), streamId, sessionId);
+            currentStreamTasks.rejected();
+        } catch (Throwable e) {
+            log.error("Incoming message handling failed on session=[" + sessionId + "]", e);
+            if (log.isDebugEnabled()) {
+                log.debug("Execution rejected on {} - {}", getSessionId(), RTMP.states[getStateCode()]);
+                log.debug("Lock permits - decode: {} encode: {}", decoderLock.availablePermits(), encoderLock.availablePermits());
+            }
+            currentStreamTasks.rejected();
+        }
+    }
 
-                });
-            } catch (TaskRejectedException tre) {
-                Throwable[] suppressed = tre.getSuppressed();
-                for (Throwable t : suppressed) {
-                    log.warn("Suppressed exception on {}", sessionId, t);
+    /**
+     * Starts the watchdog that interrupts the received message tasks running longer than maxHandlingTimeout. It runs with an interval of half of the timeout, so a
+     * deadlocked task is detected in 1.5 times the timeout at most.
+     */
+    private synchronized void startDeadlockGuard() {
+        if (deadlockGuardTask == null && !closing.get()) {
+            long interval = Math.max(maxHandlingTimeout / 2, 10L);
+            try {
+                if (connectionTimer != null) {
+                    deadlockGuardTask = connectionTimer.scheduleWithFixedDelay(new DeadlockGuardTask(), interval, interval);
+                } else if (deadlockGuardScheduler != null) {
+                    deadlockGuardTask = deadlockGuardScheduler.scheduleWithFixedDelay(new DeadlockGuardTask(), interval);
                 }
-                log.info("Rejected message: {} on {}", packet, sessionId);
-                currentStreamTasks.removeTask(task);
-            } catch (Throwable e) {
-                log.error("Incoming message handling failed on session=[" + sessionId + "]", e);
                 if (log.isDebugEnabled()) {
-                    log.debug("Execution rejected on {} - {}", getSessionId(), RTMP.states[getStateCode()]);
-                    log.debug("Lock permits - decode: {} encode: {}", decoderLock.availablePermits(), encoderLock.availablePermits());
+                    log.debug("Deadlock guard scheduled for {}", sessionId);
                 }
-                currentStreamTasks.removeTask(task);
-            }
-        } else {
-            if (log.isTraceEnabled()) {
-                log.trace("Channel {} task queue is empty", streamId);
+            } catch (RejectedExecutionException e) {
+                log.warn("Deadlock guard is rejected for {}", sessionId, e);
             }
         }
     }
 
+    /**
+     * Stops the deadlock guard.
+     */
+    private synchronized void stopDeadlockGuard() {
+        if (deadlockGuardTask != null) {
+            deadlockGuardTask.cancel(false);
+            deadlockGuardTask = null;
+        }
+    }
+
     /**
      * Mark message as sent.
      * 
@@ -1514,7 +1562,7 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
      *            Message to mark
      */
     public void messageSent(Packet message) {
-        if (message.getMessage() instanceof VideoData) {
+        if (message.getMessage() instanceof VideoData || message.getMessage() instanceof Aggregate) {
             Number streamId = message.getHeader().getStreamId();
             AtomicInteger pending = pendingVideos.get(streamId.doubleValue());
             if (log.isTraceEnabled()) {
@@ -1710,6 +1758,35 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
         this.deadlockGuardScheduler = deadlockGuardScheduler;
     }
 
+    public Executor getMessageExecutor() {
+        return messageExecutor;
+    }
+
+    /**
+     * Sets the executor for message handling, it's used instead of the thread pool executor. Set a {@link VirtualThreadConnectionExecutor} to process the messages of
+     * every connection on virtual threads.
+     *
+     * @param messageExecutor
+     *            executor for message handling
+     */
+    public void setMessageExecutor(Executor messageExecutor) {
+        this.messageExecutor = messageExecutor;
+    }
+
+    public ConnectionTimer getConnectionTimer() {
+        return connectionTimer;
+    }
+
+    /**
+     * Sets the timer for keep-alive, handshake and deadlock guard tasks, it's used instead of the schedulers.
+     *
+     * @param connectionTimer
+     *            shared connection timer
+     */
+    public void setConnectionTimer(ConnectionTimer connectionTimer) {
+        this.connectionTimer = connectionTimer;
+    }
+
     /**
      * Registers deferred result.
      * 
@@ -1916,6 +1993,23 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
         }
     }
 
+    /**
+     * Checks the received message queues of all streams for tasks that are processed longer than maxHandlingTimeout.
+     */
+    private class DeadlockGuardTask implements Runnable {
+
+        public void run() {
+            for (ReceivedMessageTaskQueue queue : tasksByStreams.values()) {
+                try {
+                    queue.checkDeadlock();
+                } catch (Exception e) {
+                    log.warn("Exception in deadlock guard for {}", getSessionId(), e);
+                }
+            }
+        }
+
+    }
+
     /**
      * Task that waits for a valid handshake and disconnects the client if none is received.
      */
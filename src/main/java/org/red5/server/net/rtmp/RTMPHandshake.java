@@ -21,9 +21,7 @@ package org.red5.server.net.rtmp;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.PublicKey;
 import java.security.Security;
 import java.security.spec.KeySpec;
@@ -34,7 +32,6 @@ import javax.crypto.Cipher;
 import javax.crypto.KeyAgreement;
 import javax.crypto.Mac;
 import javax.crypto.interfaces.DHPublicKey;
-import javax.crypto.spec.DHParameterSpec;
 import javax.crypto.spec.DHPublicKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -152,8 +149,14 @@ public abstract class RTMPHandshake implements IHandshake {
 
     protected static final Random random = new Random();
 
+    /**
+     * Key agreement of a subclass, it's not created by {@link #generateKeyPair()} anymore. Shared secret is calculated with the private key of {@link #dhKeyPair} if it's null
+     */
     protected KeyAgreement keyAgreement;
 
+    // diffie-hellman key pair of this end
+    protected KeyPair dhKeyPair;
+
     protected Cipher cipherOut;
 
     protected Cipher cipherIn;
@@ -211,27 +214,37 @@ public abstract class RTMPHandshake implements IHandshake {
      * @param sharedSecret shared secret byte sequence
      */
     protected void initRC4Encryption(byte[] sharedSecret) {
-        log.debug("Shared secret: {}", Hex.encodeHexString(sharedSecret));
+        if (log.isDebugEnabled()) {
+            log.debug("Shared secret: {}", Hex.encodeHexString(sharedSecret));
+        }
         // create output cipher
-        log.debug("Outgoing public key [{}]: {}", outgoingPublicKey.length, Hex.encodeHexString(outgoingPublicKey));
+        if (log.isDebugEnabled()) {
+            log.debug("Outgoing public key [{}]: {}", outgoingPublicKey.length, Hex.encodeHexString(outgoingPublicKey));
+        }
         byte[] rc4keyOut = new byte[32];
         // digest is 32 bytes, but our key is 16
         calculateHMAC_SHA256(outgoingPublicKey, 0, outgoingPublicKey.length, sharedSecret, KEY_LENGTH, rc4keyOut, 0);
-        log.debug("RC4 Out Key: {}", Hex.encodeHexString(Arrays.copyOfRange(rc4keyOut, 0, 16)));
+        if (log.isDebugEnabled()) {
+            log.debug("RC4 Out Key: {}", Hex.encodeHexString(Arrays.copyOfRange(rc4keyOut, 0, 16)));
+        }
         try {
-            cipherOut = Cipher.getInstance("RC4");
+            cipherOut = HandshakeCrypto.newRC4Cipher();
             cipherOut.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(rc4keyOut, 0, 16, "RC4"));
         } catch (Exception e) {
             log.warn("Encryption cipher creation failed", e);
         }
         // create input cipher
-        log.debug("Incoming public key [{}]: {}", incomingPublicKey.length, Hex.encodeHexString(incomingPublicKey));
+        if (log.isDebugEnabled()) {
+            log.debug("Incoming public key [{}]: {}", incomingPublicKey.length, Hex.encodeHexString(incomingPublicKey));
+        }
         // digest is 32 bytes, but our key is 16
         byte[] rc4keyIn = new byte[32];
         calculateHMAC_SHA256(incomingPublicKey, 0, incomingPublicKey.length, sharedSecret, KEY_LENGTH, rc4keyIn, 0);
-        log.debug("RC4 In Key: {}", Hex.encodeHexString(Arrays.copyOfRange(rc4keyIn, 0, 16)));
+        if (log.isDebugEnabled()) {
+            log.debug("RC4 In Key: {}", Hex.encodeHexString(Arrays.copyOfRange(rc4keyIn, 0, 16)));
+        }
         try {
-            cipherIn = Cipher.getInstance("RC4");
+            cipherIn = HandshakeCrypto.newRC4Cipher();
             cipherIn.init(Cipher.DECRYPT_MODE, new SecretKeySpec(rc4keyIn, 0, 16, "RC4"));
         } catch (Exception e) {
             log.warn("Decryption cipher creation failed", e);
@@ -239,24 +252,17 @@ public abstract class RTMPHandshake implements IHandshake {
     }
 
     /**
-     * Creates a Diffie-Hellman key pair.
+     * Returns a Diffie-Hellman key pair from the precomputed pool.
      * 
      * @return dh keypair
      */
     protected KeyPair generateKeyPair() {
-        KeyPair keyPair = null;
-        DHParameterSpec keySpec = new DHParameterSpec(DH_MODULUS, DH_BASE);
         try {
-            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DH");
-            keyGen.initialize(keySpec);
-            keyPair = keyGen.generateKeyPair();
-            keyAgreement = KeyAgreement.getInstance("DH");
-            // key agreement is initialized with "this" ends private key
-            keyAgreement.init(keyPair.getPrivate());
+            dhKeyPair = HandshakeCrypto.takeKeyPair();
         } catch (Exception e) {
             log.error("Error generating keypair", e);
         }
-        return keyPair;
+        return dhKeyPair;
     }
 
     /**
@@ -284,15 +290,21 @@ public abstract class RTMPHandshake implements IHandshake {
     protected byte[] getSharedSecret(byte[] publicKeyBytes, KeyAgreement agreement) {
         BigInteger otherPublicKeyInt = new BigInteger(1, publicKeyBytes);
         try {
-            KeyFactory keyFactory = KeyFactory.getInstance("DH");
+            if (agreement == null) {
+                // key agreement of the thread is initialized with "this" ends private key
+                agreement = HandshakeCrypto.getKeyAgreement();
+                agreement.init(dhKeyPair.getPrivate());
+            }
             KeySpec otherPublicKeySpec = new DHPublicKeySpec(otherPublicKeyInt, RTMPHandshake.DH_MODULUS, RTMPHandshake.DH_BASE);
-            PublicKey otherPublicKey = keyFactory.generatePublic(otherPublicKeySpec);
+            PublicKey otherPublicKey = HandshakeCrypto.getKeyFactory().generatePublic(otherPublicKeySpec);
             agreement.doPhase(otherPublicKey, true);
         } catch (Exception e) {
             log.error("Exception getting the shared secret", e);
         }
         byte[] sharedSecret = agreement.generateSecret();
-        log.debug("Shared secret [{}]: {}", sharedSecret.length, Hex.encodeHexString(sharedSecret));
+        if (log.isDebugEnabled()) {
+            log.debug("Shared secret [{}]: {}", sharedSecret.length, Hex.encodeHexString(sharedSecret));
+        }
         return sharedSecret;
     }
 
@@ -325,13 +337,17 @@ public abstract class RTMPHandshake implements IHandshake {
             log.trace("calculateDigest - digestPos: {} handshakeOffset: {} keyLen: {} digestOffset: {}", digestPos, handshakeOffset, keyLen, digestOffset);
         }
         int messageLen = Constants.HANDSHAKE_SIZE - DIGEST_LENGTH; // 1504
-        byte[] message = new byte[messageLen];
-        // copy bytes from handshake message starting at handshake offset into message start at index 0 and up-to digest position length
-        System.arraycopy(handshakeMessage, handshakeOffset, message, 0, digestPos);
-        // copy bytes from handshake message starting at handshake offset plus digest position plus digest length
-        // into message start at digest position and up-to message length minus digest position
-        System.arraycopy(handshakeMessage, handshakeOffset + digestPos + DIGEST_LENGTH, message, digestPos, messageLen - digestPos);
-        calculateHMAC_SHA256(message, 0, messageLen, key, keyLen, digest, digestOffset);
+        try {
+            // hash the handshake message around the digest in place instead of copying it into a 1504 byte message
+            Mac hmac = HandshakeCrypto.getHmacSHA256(key, keyLen);
+            hmac.update(handshakeMessage, handshakeOffset, digestPos);
+            hmac.update(handshakeMessage, handshakeOffset + digestPos + DIGEST_LENGTH, messageLen - digestPos);
+            hmac.doFinal(digest, digestOffset);
+        } catch (InvalidKeyException e) {
+            log.error("Invalid key", e);
+        } catch (Exception e) {
+            log.error("Hash calculation failed", e);
+        }
     }
 
     /**
@@ -349,8 +365,10 @@ public abstract class RTMPHandshake implements IHandshake {
         }
         byte[] calcDigest = new byte[DIGEST_LENGTH];
         calculateDigest(digestPos, handshakeMessage, 0, key, keyLen, calcDigest, 0);
-        if (!Arrays.equals(Arrays.copyOfRange(handshakeMessage, digestPos, (digestPos + DIGEST_LENGTH)), calcDigest)) {
-            return false;
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            if (handshakeMessage[digestPos + i] != calcDigest[i]) {
+                return false;
+            }
         }
         return true;
     }
@@ -373,16 +391,10 @@ public abstract class RTMPHandshake implements IHandshake {
             log.trace("calculateHMAC_SHA256 - keyLen: {} key: {}", keyLen, Hex.encodeHexString(Arrays.copyOf(key, keyLen)));
             //log.trace("calculateHMAC_SHA256 - digestOffset: {} digest: {}", digestOffset, Hex.encodeHexString(Arrays.copyOfRange(digest, digestOffset, digestOffset + DIGEST_LENGTH)));
         }
-        byte[] calcDigest;
         try {
-            Mac hmac = Mac.getInstance("Hmac-SHA256", BouncyCastleProvider.PROVIDER_NAME);
-            hmac.init(new SecretKeySpec(Arrays.copyOf(key, keyLen), "HmacSHA256"));
-            byte[] actualMessage = Arrays.copyOfRange(message, messageOffset, messageOffset + messageLen);
-            calcDigest = hmac.doFinal(actualMessage);
-            //if (log.isTraceEnabled()) {
-            //    log.trace("Calculated digest: {}", Hex.encodeHexString(calcDigest));
-            //}
-            System.arraycopy(calcDigest, 0, digest, digestOffset, DIGEST_LENGTH);
+            Mac hmac = HandshakeCrypto.getHmacSHA256(key, keyLen);
+            hmac.update(message, messageOffset, messageLen);
+            hmac.doFinal(digest, digestOffset);
         } catch (InvalidKeyException e) {
             log.error("Invalid key", e);
         } catch (Exception e) {
@@ -413,7 +425,9 @@ public abstract class RTMPHandshake implements IHandshake {
         swfv.flip();
         swfVerificationBytes = new byte[42];
         swfv.get(swfVerificationBytes);
-        log.debug("initialized swf verification response from swfSize: {} swfHash:\n{}\n{}", swfSize, Hex.encodeHexString(swfHash), Hex.encodeHexString(swfVerificationBytes));
+        if (log.isDebugEnabled()) {
+            log.debug("initialized swf verification response from swfSize: {} swfHash:\n{}\n{}", swfSize, Hex.encodeHexString(swfHash), Hex.encodeHexString(swfVerificationBytes));
+        }
     }
     
     /**
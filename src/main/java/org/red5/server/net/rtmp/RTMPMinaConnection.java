@@ -24,6 +24,9 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -38,7 +41,9 @@ import org.apache.mina.core.future.IoFutureListener;
 import org.apache.mina.core.session.IoSession;
 import org.red5.server.api.scope.IScope;
 import org.red5.server.jmx.mxbeans.RTMPMinaConnectionMXBean;
+import org.red5.server.net.rtmp.codec.DirectBufferReleaseFilter;
 import org.red5.server.net.rtmp.codec.RTMP;
+import org.red5.server.net.rtmp.codec.WriteBatcher;
 import org.red5.server.net.rtmp.event.ClientBW;
 import org.red5.server.net.rtmp.event.ServerBW;
 import org.red5.server.net.rtmp.message.Packet;
@@ -80,6 +85,26 @@ public class RTMPMinaConnection extends RTMPConnection implements RTMPMinaConnec
 
     protected boolean bandwidthDetection = true;
 
+    /**
+     * Max time in milliseconds an encoded message waits to be written with the following messages, 0 disables write batching
+     */
+    protected int writeBatchWindow = 0;
+
+    /**
+     * Byte budget of a write batch, larger messages are written alone
+     */
+    protected int writeBatchSize = 16384;
+
+    /**
+     * Gathers encoded messages into one socket write, null if write batching is disabled
+     */
+    private transient WriteBatcher writeBatcher;
+
+    /**
+     * Whether a flush of the write batch is scheduled
+     */
+    private final AtomicBoolean writeBatchFlushScheduled = new AtomicBoolean();
+
     /** Constructs a new RTMPMinaConnection. */
     @ConstructorProperties(value = { "persistent" })
     public RTMPMinaConnection() {
@@ -272,6 +297,141 @@ public class RTMPMinaConnection extends RTMPConnection implements RTMPMinaConnec
         return 0;
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * Bytes waiting in the write batch are included, so it's the backpressure of the session for frame dropping.
+     */
+    @Override
+    public long getPendingWriteBytes() {
+        long pending = writeBatcher != null ? writeBatcher.getBatchedBytes() : 0;
+        if (ioSession != null) {
+            pending += ioSession.getScheduledWriteBytes();
+        }
+        return pending;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public WriteBatcher getWriteBatcher() {
+        return writeBatcher;
+    }
+
+    /**
+     * @return the writeBatchWindow
+     */
+    public int getWriteBatchWindow() {
+        return writeBatchWindow;
+    }
+
+    /**
+     * @param writeBatchWindow
+     *            max time in milliseconds a message waits in a write batch, 0 disables write batching
+     */
+    public void setWriteBatchWindow(int writeBatchWindow) {
+        this.writeBatchWindow = writeBatchWindow;
+    }
+
+    /**
+     * @return the writeBatchSize
+     */
+    public int getWriteBatchSize() {
+        return writeBatchSize;
+    }
+
+    /**
+     * @param writeBatchSize
+     *            byte budget of a write batch
+     */
+    public void setWriteBatchSize(int writeBatchSize) {
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    /**
+     * Schedules the write of the current batch after the batch window, it's called by the encoder when a batch is started. At most one flush is scheduled for
+     * the connection; a batch that is started while a flush is pending is written by that flush.
+     */
+    private void scheduleWriteBatchFlush() {
+        if (!writeBatchFlushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (connectionTimer != null) {
+                connectionTimer.schedule(this::executeWriteBatchFlush, writeBatchWindow);
+            } else if (scheduler != null) {
+                scheduler.schedule(this::executeWriteBatchFlush, new Date(System.currentTimeMillis() + writeBatchWindow));
+            } else {
+                writeBatchFlushScheduled.set(false);
+            }
+        } catch (Exception e) {
+            writeBatchFlushScheduled.set(false);
+            log.warn("Write batch flush cannot be scheduled, it's written with the next message", e);
+        }
+    }
+
+    /**
+     * Hands the flush off to the message executor of the connection so that the timer thread does not wait for the connection locks
+     */
+    private void executeWriteBatchFlush() {
+        Executor flushExecutor = messageExecutor != null ? messageExecutor : executor;
+        if (flushExecutor == null) {
+            // timer tasks already run on the executor of the connection timer
+            flushWriteBatch();
+            return;
+        }
+        try {
+            flushExecutor.execute(this::flushWriteBatch);
+        } catch (RejectedExecutionException e) {
+            writeBatchFlushScheduled.set(false);
+            log.debug("Write batch flush is rejected on {}, it's written with the next message", getSessionId());
+        }
+    }
+
+    /**
+     * Writes the batch if no message has written it in the batch window. Connection write lock keeps the order with {@link #write(Packet)}.
+     */
+    private void flushWriteBatch() {
+        // batches started from now on schedule their own flush
+        writeBatchFlushScheduled.set(false);
+        if (ioSession == null || writeBatcher == null || writeBatcher.getBatchedBytes() == 0 || isClosed()) {
+            return;
+        }
+        final Semaphore lock = getLock();
+        try {
+            lock.acquire();
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while flushing write batch. State: {}", RTMP.states[state.getState()], e);
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            WriteBatcher.Batch batch;
+            encoderLock.acquireUninterruptibly();
+            try {
+                batch = writeBatcher.take();
+            } finally {
+                encoderLock.release();
+            }
+            if (batch != null && !isClosed()) {
+                // encoder writes the batch as it is
+                ioSession.write(batch);
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Packets whose bytes wait in a write batch are marked as sent when the batch is written.
+     */
+    @Override
+    public void messageSent(Packet message) {
+        final WriteBatcher batcher = writeBatcher;
+        if (batcher == null || batcher.packetWritten(message)) {
+            super.messageSent(message);
+        }
+    }
+
     public void invokeMethod(String method) {
         invoke(method);
     }
@@ -323,6 +483,13 @@ public class RTMPMinaConnection extends RTMPConnection implements RTMPMinaConnec
         remoteAddresses.add(remoteAddress);
         remoteAddresses = Collections.unmodifiableList(remoteAddresses);
         this.ioSession = protocolSession;
+        if (!protocolSession.getFilterChain().contains(DirectBufferReleaseFilter.NAME)) {
+            // direct buffers of the encoder are returned to the arena after they are written
+            protocolSession.getFilterChain().addFirst(DirectBufferReleaseFilter.NAME, DirectBufferReleaseFilter.INSTANCE);
+        }
+        if (writeBatchWindow > 0 && writeBatchSize > 0 && (connectionTimer != null || scheduler != null)) {
+            writeBatcher = new WriteBatcher(writeBatchWindow, writeBatchSize, this::scheduleWriteBatchFlush, super::messageSent);
+        }
         if (log.isTraceEnabled()) {
             log.trace("setIoSession conn: {}", this);
         }
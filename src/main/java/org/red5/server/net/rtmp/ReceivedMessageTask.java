@@ -18,17 +18,13 @@
 
 package org.red5.server.net.rtmp;
 
-import java.util.Date;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.red5.server.api.Red5;
 import org.red5.server.net.rtmp.message.Packet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.task.TaskRejectedException;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 /**
  * Wraps processing of incoming messages.
@@ -51,9 +47,20 @@ public final class ReceivedMessageTask implements Callable<Packet> {
 
     private final AtomicBoolean processing = new AtomicBoolean(false);
 
+    /**
+     * Thread running the task, it's null before the task starts and after it ends
+     */
     private Thread taskThread;
 
-    private ScheduledFuture<Runnable> deadlockFuture;
+    /**
+     * Max time in milliseconds the task may run, 0 to disable
+     */
+    private long maxHandlingTimeout;
+
+    /**
+     * True if the task thread is interrupted by the deadlock guard
+     */
+    private boolean interrupted;
 
     public ReceivedMessageTask(String sessionId, Packet packet, IRTMPHandler handler, RTMPConnection conn) {
         this.sessionId = sessionId;
@@ -63,8 +70,14 @@ public final class ReceivedMessageTask implements Callable<Packet> {
     }
 
     public Packet call() throws Exception {
-        //keep a ref for executor thread
-        taskThread = Thread.currentThread();
+        synchronized (this) {
+            //keep a ref for executor thread
+            taskThread = Thread.currentThread();
+            // time spent waiting in the queue does not count
+            if (maxHandlingTimeout > 0) {
+                packet.setExpirationTime(System.currentTimeMillis() + maxHandlingTimeout);
+            }
+        }
         // set connection to thread local
         Red5.setConnectionLocal(conn);
         try {
@@ -75,6 +88,13 @@ public final class ReceivedMessageTask implements Callable<Packet> {
         } finally {
             // clear thread local
             Red5.setConnectionLocal(null);
+            synchronized (this) {
+                taskThread = null;
+                if (interrupted) {
+                    // interrupt of the deadlock guard must not leak to the next task of the thread
+                    Thread.interrupted();
+                }
+            }
         }
         if (log.isDebugEnabled()) {
             log.debug("Processing message for {} is processed: {} packet #{}", sessionId, packet.isProcessed(), packetNumber);
@@ -82,40 +102,6 @@ public final class ReceivedMessageTask implements Callable<Packet> {
         return packet;
     }
 
-    /**
-     * Runs deadlock guard task
-     *
-     * @param deadlockGuardTask
-     *            deadlock guard task
-     */
-    @SuppressWarnings("unchecked")
-    public void runDeadlockFuture(Runnable deadlockGuardTask) {
-        if (deadlockFuture == null) {
-            ThreadPoolTaskScheduler deadlockGuard = conn.getDeadlockGuardScheduler();
-            if (deadlockGuard != null) {
-                try {
-                    deadlockFuture = (ScheduledFuture<Runnable>) deadlockGuard.schedule(deadlockGuardTask, new Date(packet.getExpirationTime()));
-                } catch (TaskRejectedException e) {
-                    log.warn("DeadlockGuard task is rejected for {}", sessionId, e);
-                }
-            } else {
-                log.debug("Deadlock guard is null for {}", sessionId);
-            }
-        } else {
-            log.warn("Deadlock future is already create for {}", sessionId);
-        }
-    }
-
-    /**
-     * Cancels deadlock future if it was created
-     */
-    public void cancelDeadlockFuture() {
-        // kill the future for the deadlock since processing is complete
-        if (deadlockFuture != null) {
-            deadlockFuture.cancel(true);
-        }
-    }
-
     /**
      * Marks task as processing if it is not processing yet.
      *
@@ -137,10 +123,45 @@ public final class ReceivedMessageTask implements Callable<Packet> {
         return packet;
     }
 
-    public Thread getTaskThread() {
+    /**
+     * @return true if the task is running longer than max handling timeout
+     */
+    public synchronized boolean isExpired() {
+        return taskThread != null && !packet.isProcessed() && packet.isExpired();
+    }
+
+    /**
+     * Interrupts the thread running the task. Thread is not interrupted if the task is not running anymore, so the interrupt does not hit another task of the thread.
+     *
+     * @return true if the thread is interrupted
+     */
+    public synchronized boolean interrupt() {
+        if (taskThread == null || interrupted) {
+            return false;
+        }
+        interrupted = true;
+        taskThread.interrupt();
+        return true;
+    }
+
+    public synchronized Thread getTaskThread() {
         return taskThread;
     }
 
+    public long getMaxHandlingTimeout() {
+        return maxHandlingTimeout;
+    }
+
+    /**
+     * Sets the max time the task may run, the packet expires after this time from the start of the task
+     *
+     * @param maxHandlingTimeout
+     *            timeout in milliseconds, 0 to disable
+     */
+    public void setMaxHandlingTimeout(long maxHandlingTimeout) {
+        this.maxHandlingTimeout = maxHandlingTimeout;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -20,20 +20,30 @@ package org.red5.server.net.rtmp;
 
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.red5.server.net.rtmp.message.Packet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Contains queue of tasks for processing messages in the specified channel. Ensures that all messages which has got in channel will be processed sequentially.
+ * Contains queue of tasks for processing messages in the specified stream. Ensures that all messages which has got in stream will be processed sequentially.
+ *
+ * The queue is a serial executor on top of the shared message executor. It's submitted to the executor when a task is added to an idle queue and then drains up to
+ * {@link #MAX_BATCH_SIZE} tasks in the same run, so a burst of messages costs one submission. Deadlocked tasks are found by {@link #checkDeadlock()} which is called
+ * periodically by a single watchdog of the connection.
  *
  * @author Maria Chabanets (m.e.platova@gmail.com)
  */
-public class ReceivedMessageTaskQueue {
+public class ReceivedMessageTaskQueue implements Runnable {
 
     private final static Logger log = LoggerFactory.getLogger(ReceivedMessageTaskQueue.class);
 
+    /**
+     * Max number of tasks that are processed in one run, then the queue is resubmitted to be fair to other streams
+     */
+    public static final int MAX_BATCH_SIZE = 32;
+
     /**
      * Stream id.
      */
@@ -45,10 +55,20 @@ public class ReceivedMessageTaskQueue {
     private final Queue<ReceivedMessageTask> tasks = new ConcurrentLinkedQueue<ReceivedMessageTask>();
 
     /**
-     * Listener which tries to process message from queue if queue has been changed.
+     * Listener which submits the queue to the executor and keeps track of the queued tasks.
      */
     private final IReceivedMessageTaskQueueListener listener;
 
+    /**
+     * True while the queue is submitted or running
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * Task that is being processed, the task is owned by either the draining thread or the deadlock guard
+     */
+    private final AtomicReference<ReceivedMessageTask> currentTask = new AtomicReference<ReceivedMessageTask>();
+
     public ReceivedMessageTaskQueue(int streamId, IReceivedMessageTaskQueueListener listener) {
         this.streamId = streamId;
         this.listener = listener;
@@ -62,108 +82,126 @@ public class ReceivedMessageTaskQueue {
      */
     public void addTask(ReceivedMessageTask task) {
         tasks.add(task);
-        Packet packet = task.getPacket();
-        // don't run the deadlock guard if timeout is <= 0
-        if (packet.getExpirationTime() > 0L) {
-            // run a deadlock guard so hanging tasks will be interrupted
-            task.runDeadlockFuture(new DeadlockGuard(task));
-        }
         if (listener != null) {
             listener.onTaskAdded(this);
         }
+        schedule();
     }
 
     /**
-     * Removes the specified task from the queue.
-     *
-     * @param task
-     *            received message task
+     * Submits the queue if it's not submitted yet
      */
-    public void removeTask(ReceivedMessageTask task) {
-        if (tasks.remove(task)) {
-            task.cancelDeadlockFuture();
-            if (listener != null) {
-                listener.onTaskRemoved(this);
-            }
+    private void schedule() {
+        if (listener != null && scheduled.compareAndSet(false, true)) {
+            listener.onTasksPending(this);
         }
     }
 
     /**
-     * Gets first task from queue if it can be processed. If first task is already in process it returns null.
-     *
-     * @return task that can be processed or null otherwise
+     * Processes the tasks in the order they are added. It's run by the executor.
      */
-    public ReceivedMessageTask getTaskToProcess() {
-        ReceivedMessageTask task = tasks.peek();
-        if (task != null && task.setProcessing()) {
-            return task;
+    public void run() {
+        for (int i = 0; i < MAX_BATCH_SIZE; i++) {
+            final ReceivedMessageTask task = tasks.peek();
+            if (task == null || !task.setProcessing()) {
+                break;
+            }
+            currentTask.set(task);
+            try {
+                task.call();
+            } catch (Throwable t) {
+                log.warn("Processing message failed for stream: {} task: {}", streamId, task, t);
+            }
+            if (!currentTask.compareAndSet(task, null)) {
+                // deadlock guard has given up the task and resubmitted the queue, which belongs to another thread now
+                log.debug("Task is completed after it is given up {}", task);
+                return;
+            }
+            removeHead(task);
+        }
+        scheduled.set(false);
+        // a task may be added after the last peek
+        if (!tasks.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private void removeHead(ReceivedMessageTask task) {
+        if (tasks.poll() == null) {
+            // already dropped by removeAllTasks
+            return;
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("Task is removed {}", task);
+        }
+        if (listener != null) {
+            listener.onTaskRemoved(this);
         }
-        return null;
     }
 
     /**
-     * Removes all tasks from the queue.
+     * Checks whether the task being processed is expired. A task expires after max handling timeout from its start, not from the time it's queued. An expired task's thread is
+     * interrupted if it's still running the task and the task is given up so that the next tasks of the stream are processed on another thread.
+     *
+     * @return true if a task is given up
      */
-    public void removeAllTasks() {
-        for (ReceivedMessageTask task : tasks) {
-            task.cancelDeadlockFuture();
+    public boolean checkDeadlock() {
+        final ReceivedMessageTask task = currentTask.get();
+        if (task == null) {
+            return false;
+        }
+        if (!task.isExpired()) {
+            return false;
+        }
+        if (!currentTask.compareAndSet(task, null)) {
+            // completed in the meantime
+            return false;
+        }
+        if (task.interrupt()) {
+            log.warn("Interrupted unfinished active task {}", task);
+        } else {
+            log.debug("Unfinished task {} already interrupted or completed", task);
+        }
+        removeHead(task);
+        // the draining thread exits when the task returns, continue with the next tasks
+        if (listener != null) {
+            listener.onTasksPending(this);
         }
-        tasks.clear();
+        return true;
     }
 
-    public int getStreamId() {
-        return streamId;
+    /**
+     * Called when the queue cannot be submitted to the executor. Pending tasks are dropped.
+     */
+    public void rejected() {
+        removeAllTasks();
+        scheduled.set(false);
     }
 
     /**
-     * Prevents deadlocked message handling.
+     * Removes all tasks from the queue.
      */
-    private class DeadlockGuard implements Runnable {
-
-        private final ReceivedMessageTask task;
-
-        /**
-         * Creates the deadlock guard to prevent a message task from taking too long to setProcessing.
-         *
-         * @param task
-         */
-        private DeadlockGuard(ReceivedMessageTask task) {
-            this.task = task;
-            if (log.isTraceEnabled()) {
-                log.trace("DeadlockGuard is created for {}", task);
-            }
-        }
-
-        /**
-         * Save the reference to the task, and wait until the maxHandlingTimeout has elapsed. If it elapsed, remove task and stop its thread.
-         * */
-        public void run() {
-            Packet packet = task.getPacket();
-            if (log.isTraceEnabled()) {
-                log.trace("DeadlockGuard is started for {}", task);
+    public void removeAllTasks() {
+        ReceivedMessageTask task;
+        while ((task = tasks.poll()) != null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Task is dropped {}", task);
             }
-            // skip processed packet
-            if (packet.isProcessed()) {
-                log.debug("DeadlockGuard skipping task for processed packet {}", task);
-            } else if (packet.isExpired()) {
-                // try to interrupt thread
-                log.debug("DeadlockGuard skipping task for expired packet {}", task);
-            } else {
-                // if the message task is not yet done or is not expired interrupt
-                // if the task thread hasn't been interrupted check its live-ness
-                // if the task thread is alive, interrupt it
-                Thread taskThread = task.getTaskThread();
-                if (taskThread == null) {
-                    log.debug("Task has not start yet {}", task);
-                } else if (!taskThread.isInterrupted() && taskThread.isAlive()) {
-                    log.warn("Interrupting unfinished active task {}", task);
-                    taskThread.interrupt();
-                } else {
-                    log.debug("Unfinished task {} already interrupted", task);
-                }
+            if (listener != null) {
+                listener.onTaskRemoved(this);
             }
-            // remove this task from the queue in any case
-            removeTask(task);
         }
     }
+
+    /**
+     * @return number of queued tasks including the one being processed
+     */
+    public int size() {
+        return tasks.size();
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
 }
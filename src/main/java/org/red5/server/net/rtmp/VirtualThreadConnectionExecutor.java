@@ -0,0 +1,163 @@
+/*
+ * RED5 Open Source Media Server - https://github.com/Red5/
+ *
+ * Copyright 2006-2016 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.net.rtmp;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Executor of the received message queues of RTMP connections that runs every task on its own virtual thread.
+ *
+ * Message handlers may block, since a blocked virtual thread does not hold a carrier thread, so slow and idle connections cost only their queued tasks. Number of tasks
+ * running at the same time is capped by {@link #getMaxConcurrency()}; a task waits for a permit on its virtual thread and submission never blocks the I/O processor.
+ *
+ * Virtual threads are looked up at runtime. On a JVM without them, tasks run on a pool of {@link #getMaxConcurrency()} platform threads with an unbounded queue, which
+ * gives the same ordering and the same cap.
+ *
+ * Set it to the connections with {@link RTMPConnection#setMessageExecutor(Executor)} to enable the mode.
+ */
+public class VirtualThreadConnectionExecutor implements Executor, InitializingBean, DisposableBean {
+
+    private static Logger log = LoggerFactory.getLogger(VirtualThreadConnectionExecutor.class);
+
+    /**
+     * Max number of tasks that run at the same time
+     */
+    private int maxConcurrency = 256;
+
+    /**
+     * Name prefix of the platform threads, virtual threads are not named
+     */
+    private String threadNamePrefix = "RTMPConnectionExecutor-";
+
+    private ExecutorService delegate;
+
+    private Semaphore limiter;
+
+    private boolean virtual;
+
+    /** {@inheritDoc} */
+    public void afterPropertiesSet() throws Exception {
+        delegate = newVirtualThreadExecutor();
+        if (delegate != null) {
+            virtual = true;
+            limiter = new Semaphore(maxConcurrency);
+            log.info("Connection messages are processed on virtual threads, max concurrency: {}", maxConcurrency);
+        } else {
+            final AtomicInteger threadCount = new AtomicInteger();
+            ThreadFactory threadFactory = r -> {
+                Thread thread = new Thread(r, threadNamePrefix + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+            pool.allowCoreThreadTimeOut(true);
+            delegate = pool;
+            log.info("Virtual threads are not available, connection messages are processed on {} platform threads", maxConcurrency);
+        }
+    }
+
+    /**
+     * Creates the executor with Executors.newVirtualThreadPerTaskExecutor() if the running JVM has it
+     *
+     * @return executor or null if virtual threads are not available
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            // preview feature is not enabled
+            log.debug("Virtual thread executor cannot be created", e);
+            return null;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void execute(final Runnable task) {
+        if (delegate == null) {
+            throw new RejectedExecutionException("Executor is not initialized");
+        }
+        if (virtual) {
+            delegate.execute(() -> {
+                // task is always run, a dropped queue task would leave its queue scheduled forever
+                limiter.acquireUninterruptibly();
+                try {
+                    task.run();
+                } finally {
+                    limiter.release();
+                }
+            });
+        } else {
+            delegate.execute(task);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void destroy() throws Exception {
+        if (delegate != null) {
+            delegate.shutdown();
+        }
+    }
+
+    /**
+     * @return true if tasks run on virtual threads
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return estimated number of tasks waiting for a permit, only for virtual threads
+     */
+    public int getQueueLength() {
+        return limiter != null ? limiter.getQueueLength() : 0;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public String getThreadNamePrefix() {
+        return threadNamePrefix;
+    }
+
+    public void setThreadNamePrefix(String threadNamePrefix) {
+        this.threadNamePrefix = threadNamePrefix;
+    }
+
+}
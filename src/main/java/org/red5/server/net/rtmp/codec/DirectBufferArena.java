@@ -0,0 +1,237 @@
+/*
+ * RED5 Open Source Media Server - https://github.com/Red5/
+ *
+ * Copyright 2006-2016 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.net.rtmp.codec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.IoBufferWrapper;
+
+/**
+ * Allocates output buffers from large direct slabs so that encoded messages are written to the socket without copying them from heap to native memory.
+ *
+ * An arena carves regions from its slab sequentially. Arenas are not bound to threads: an allocation borrows the most recently used idle arena and gives it back right
+ * after, so a thread that encodes continuously keeps packing the same slab and a short-lived or virtual thread holds no slab when it ends. At most
+ * {@link #MAX_IDLE_ARENAS} arenas are kept idle, the others give their slab back. Slabs are taken from a global pool and a slab goes back to the pool when its arena
+ * moved on to another slab and all of its regions are released with {@link #release(Object)}. Regions are released after MINA wrote them by {@link DirectBufferReleaseFilter}, or by the owner
+ * after their content is copied. A region that is never released, e.g. because it's written in slices or its session is closed, keeps its slab out of the pool and the
+ * slab is reclaimed by the garbage collector instead.
+ */
+public final class DirectBufferArena {
+
+    /**
+     * Size of a slab
+     */
+    public static final int SLAB_SIZE = 512 * 1024;
+
+    /**
+     * Larger requests are not served from the arena to keep the slabs dense
+     */
+    public static final int MAX_ALLOCATION_SIZE = SLAB_SIZE / 4;
+
+    /**
+     * Max number of free slabs kept in the pool
+     */
+    public static final int MAX_POOLED_SLABS = 64;
+
+    /**
+     * Max number of idle arenas, each of them holds its current slab
+     */
+    public static final int MAX_IDLE_ARENAS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private static final BlockingQueue<Slab> POOL = new ArrayBlockingQueue<>(MAX_POOLED_SLABS);
+
+    private static final AtomicLong allocatedSlabCount = new AtomicLong();
+
+    /**
+     * Idle arenas, most recently used one is at the head
+     */
+    private static final ConcurrentLinkedDeque<DirectBufferArena> IDLE_ARENAS = new ConcurrentLinkedDeque<>();
+
+    private static final AtomicInteger idleArenaCount = new AtomicInteger();
+
+    /**
+     * Slab with the number of references to it; the arena that carves it holds one and each unreleased region holds one
+     */
+    private static final class Slab {
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(SLAB_SIZE);
+
+        final AtomicInteger refCount = new AtomicInteger();
+
+        void retain() {
+            refCount.incrementAndGet();
+        }
+
+        void release() {
+            if (refCount.decrementAndGet() == 0) {
+                buffer.clear();
+                // slab is dropped if the pool is full
+                POOL.offer(this);
+            }
+        }
+
+    }
+
+    /**
+     * Region of a slab
+     */
+    private static final class Region extends IoBufferWrapper {
+
+        final Slab slab;
+
+        final AtomicBoolean released = new AtomicBoolean();
+
+        Region(IoBuffer buf, Slab slab) {
+            super(buf);
+            this.slab = slab;
+            slab.retain();
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                slab.release();
+            }
+        }
+
+    }
+
+    private Slab slab;
+
+    private DirectBufferArena() {
+    }
+
+    /**
+     * Returns a direct buffer with the given capacity from an idle arena. Caller should release it with {@link #release(Object)} when it's written.
+     *
+     * @param size
+     *            capacity of the buffer
+     * @return direct buffer or null if size is larger than {@link #MAX_ALLOCATION_SIZE}
+     */
+    public static IoBuffer allocate(int size) {
+        if (size > MAX_ALLOCATION_SIZE) {
+            return null;
+        }
+        DirectBufferArena arena = IDLE_ARENAS.pollFirst();
+        if (arena != null) {
+            idleArenaCount.decrementAndGet();
+        } else {
+            arena = new DirectBufferArena();
+        }
+        try {
+            return arena.allocateRegion(size);
+        } finally {
+            arena.recycle();
+        }
+    }
+
+    /**
+     * Returns a read-only duplicate of the buffer. Duplicate of an arena buffer holds its own reference to the slab and it should be released separately.
+     *
+     * @param buf
+     *            buffer to share
+     * @return read-only duplicate
+     */
+    public static IoBuffer share(IoBuffer buf) {
+        if (buf instanceof Region) {
+            Region region = (Region) buf;
+            return new Region(region.getParentBuffer().asReadOnlyBuffer(), region.slab);
+        }
+        return buf.asReadOnlyBuffer();
+    }
+
+    /**
+     * Releases an arena buffer. It has no effect if the object is not an arena buffer or it's already released.
+     *
+     * @param message
+     *            written message
+     */
+    public static void release(Object message) {
+        if (message instanceof Region) {
+            ((Region) message).release();
+        }
+    }
+
+    /**
+     * @return number of slabs allocated since start
+     */
+    public static long getAllocatedSlabCount() {
+        return allocatedSlabCount.get();
+    }
+
+    /**
+     * @return number of free slabs in the pool
+     */
+    public static int getPooledSlabCount() {
+        return POOL.size();
+    }
+
+    /**
+     * @return number of idle arenas
+     */
+    public static int getIdleArenaCount() {
+        return idleArenaCount.get();
+    }
+
+    private void recycle() {
+        if (idleArenaCount.incrementAndGet() <= MAX_IDLE_ARENAS) {
+            IDLE_ARENAS.offerFirst(this);
+        } else {
+            idleArenaCount.decrementAndGet();
+            if (slab != null) {
+                slab.release();
+                slab = null;
+            }
+        }
+    }
+
+    private IoBuffer allocateRegion(int size) {
+        if (slab == null || slab.buffer.remaining() < size) {
+            if (slab != null) {
+                slab.release();
+            }
+            slab = takeSlab();
+        }
+        final ByteBuffer buffer = slab.buffer;
+        final int position = buffer.position();
+        buffer.limit(position + size);
+        ByteBuffer region = buffer.slice();
+        buffer.limit(buffer.capacity());
+        buffer.position(position + size);
+        return new Region(IoBuffer.wrap(region), slab);
+    }
+
+    private static Slab takeSlab() {
+        Slab free = POOL.poll();
+        if (free == null) {
+            free = new Slab();
+            allocatedSlabCount.incrementAndGet();
+        }
+        // reference of the arena
+        free.retain();
+        return free;
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * RED5 Open Source Media Server - https://github.com/Red5/
+ *
+ * Copyright 2006-2016 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.net.rtmp.codec;
+
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+
+/**
+ * Releases the {@link DirectBufferArena} buffers after they are written to the socket. It's added in front of the protocol codec so that it sees the encoded buffers.
+ * It also reports the written {@link WriteBatcher.Batch} buffers, because the codec does not pass their events to the handler.
+ */
+public class DirectBufferReleaseFilter extends IoFilterAdapter {
+
+    /**
+     * Name of the filter in the filter chain
+     */
+    public static final String NAME = "directBufferRelease";
+
+    public static final DirectBufferReleaseFilter INSTANCE = new DirectBufferReleaseFilter();
+
+    /** {@inheritDoc} */
+    @Override
+    public void messageSent(NextFilter nextFilter, IoSession session, WriteRequest writeRequest) throws Exception {
+        try {
+            nextFilter.messageSent(session, writeRequest);
+        } finally {
+            Object message = writeRequest.getMessage();
+            if (message instanceof WriteBatcher.Batch) {
+                ((WriteBatcher.Batch) message).written();
+            } else {
+                DirectBufferArena.release(message);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * RED5 Open Source Media Server - https://github.com/Red5/
+ *
+ * Copyright 2006-2016 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.net.rtmp.codec;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.red5.io.utils.BufferUtils;
+import org.red5.server.net.rtmp.RTMPUtils;
+import org.red5.server.net.rtmp.message.Constants;
+
+/**
+ * Chunked payload of a stream message that is shared by the connections subscribed to the stream.
+ *
+ * The payload is chunked once for each write chunk size, channel id and extended timestamp. The chunked buffer contains the payload chunks and the continuation headers between
+ * them, so a connection only writes its own message header before it. Buffers are read-only and each caller gets its own duplicate to write, which holds its own reference to the
+ * direct memory of the arena.
+ *
+ * The cache is reference counted; chunked buffers are dropped when the last event referring to the cache is released.
+ */
+public class EncodedChunkCache {
+
+    private static final class Entry {
+
+        final int chunkSize;
+
+        final int channelId;
+
+        final int extendedTimestamp;
+
+        final IoBuffer chunks;
+
+        Entry(int chunkSize, int channelId, int extendedTimestamp, IoBuffer chunks) {
+            this.chunkSize = chunkSize;
+            this.channelId = channelId;
+            this.extendedTimestamp = extendedTimestamp;
+            this.chunks = chunks;
+        }
+
+    }
+
+    private static final Entry[] EMPTY = new Entry[0];
+
+    /**
+     * Chunked buffers, copied on write since there are only a few chunk sizes in practice
+     */
+    private volatile Entry[] entries = EMPTY;
+
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    /**
+     * Returns the chunked payload. It's created on the first call for the given parameters and shared by the next calls.
+     *
+     * @param data
+     *            payload from its position to its limit
+     * @param chunkSize
+     *            write chunk size of the connection
+     * @param channelId
+     *            channel id written in the continuation headers
+     * @param extendedTimestamp
+     *            extended timestamp written after the continuation headers, 0 if there is no extended timestamp
+     * @param direct
+     *            true to chunk into a direct buffer of {@link DirectBufferArena}
+     * @return read-only buffer that contains the chunks and the continuation headers
+     */
+    public IoBuffer getChunks(IoBuffer data, int chunkSize, int channelId, int extendedTimestamp, boolean direct) {
+        Entry entry = find(entries, chunkSize, channelId, extendedTimestamp);
+        if (entry == null) {
+            synchronized (this) {
+                Entry[] current = entries;
+                entry = find(current, chunkSize, channelId, extendedTimestamp);
+                if (entry == null) {
+                    entry = new Entry(chunkSize, channelId, extendedTimestamp, chunk(data, chunkSize, channelId, extendedTimestamp, direct));
+                    Entry[] updated = new Entry[current.length + 1];
+                    System.arraycopy(current, 0, updated, 0, current.length);
+                    updated[current.length] = entry;
+                    entries = updated;
+                }
+            }
+        }
+        return DirectBufferArena.share(entry.chunks);
+    }
+
+    private static Entry find(Entry[] entries, int chunkSize, int channelId, int extendedTimestamp) {
+        for (Entry entry : entries) {
+            if (entry.chunkSize == chunkSize && entry.channelId == channelId && entry.extendedTimestamp == extendedTimestamp) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Splits the payload into chunks and writes continuation headers between them
+     *
+     * @param data
+     *            payload, its position is not changed
+     * @param chunkSize
+     *            chunk size
+     * @param channelId
+     *            channel id
+     * @param extendedTimestamp
+     *            extended timestamp or 0
+     * @param direct
+     *            true to chunk into a direct buffer of {@link DirectBufferArena} if it fits
+     * @return read-only chunked buffer, it should be released with {@link DirectBufferArena#release(Object)} when it's not used
+     */
+    public static IoBuffer chunk(IoBuffer data, int chunkSize, int channelId, int extendedTimestamp, boolean direct) {
+        IoBuffer in = data.duplicate();
+        int dataLen = in.remaining();
+        int numChunks = (int) Math.ceil(dataLen / (float) chunkSize);
+        int continueHeaderSize = (channelId > 319 ? 3 : (channelId > 63 ? 2 : 1)) + (extendedTimestamp != 0 ? 4 : 0);
+        int size = dataLen + (numChunks > 0 ? (numChunks - 1) * continueHeaderSize : 0);
+        IoBuffer out = direct ? DirectBufferArena.allocate(size) : null;
+        if (out == null) {
+            out = IoBuffer.allocate(size, false);
+        }
+        for (int i = 0; i < numChunks - 1; i++) {
+            BufferUtils.put(out, in, chunkSize);
+            RTMPUtils.encodeHeaderByte(out, Constants.HEADER_CONTINUE, channelId);
+            if (extendedTimestamp != 0) {
+                out.putInt(extendedTimestamp);
+            }
+        }
+        BufferUtils.put(out, in, in.remaining());
+        out.flip();
+        IoBuffer chunks = DirectBufferArena.share(out);
+        // the read-only duplicate holds the reference from now on
+        DirectBufferArena.release(out);
+        return chunks;
+    }
+
+    public void retain() {
+        refCount.incrementAndGet();
+    }
+
+    /**
+     * Drops the chunked buffers when there is no reference left. Buffers that are already duplicated for writing stay valid, their direct memory is returned to the arena when
+     * they are written.
+     */
+    public void release() {
+        if (refCount.decrementAndGet() <= 0) {
+            Entry[] dropped;
+            synchronized (this) {
+                dropped = entries;
+                entries = EMPTY;
+            }
+            for (Entry entry : dropped) {
+                DirectBufferArena.release(entry.chunks);
+            }
+        }
+    }
+
+    /**
+     * @return number of chunked buffers in the cache
+     */
+    public int size() {
+        return entries.length;
+    }
+
+}
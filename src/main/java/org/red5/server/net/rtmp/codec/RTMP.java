@@ -21,6 +21,7 @@ package org.red5.server.net.rtmp.codec;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+import org.apache.mina.core.buffer.IoBuffer;
 import org.red5.server.api.IConnection.Encoding;
 import org.red5.server.net.rtmp.message.Header;
 import org.red5.server.net.rtmp.message.Packet;
@@ -77,6 +78,11 @@ public class RTMP {
      */
     public static final byte STATE_EDGE_DISCONNECTING = 0x13;
 
+    /**
+     * Maximum capacity of the read buffers that are kept on the channels for reuse
+     */
+    public static final int MAX_RECYCLED_BUFFER_SIZE = 16384;
+
     /**
      * RTMP state.
      */
@@ -120,9 +126,13 @@ public class RTMP {
      * @return channel info
      */
     private ChannelInfo getChannelInfo(int channelId) {
-        ChannelInfo info = channels.putIfAbsent(channelId, new ChannelInfo());
+        ChannelInfo info = channels.get(channelId);
         if (info == null) {
-            info = channels.get(channelId);
+            info = new ChannelInfo();
+            ChannelInfo existing = channels.putIfAbsent(channelId, info);
+            if (existing != null) {
+                info = existing;
+            }
         }
         return info;
     }
@@ -251,6 +261,42 @@ public class RTMP {
         freePacket(prevPacket);
     }
 
+    /**
+     * Returns a buffer to reassemble a packet of the given size on the channel. The buffer recycled on the channel is reused if it's large enough, otherwise a buffer with the
+     * exact size is allocated.
+     *
+     * @param channelId
+     *            Channel id
+     * @param size
+     *            Packet size
+     * @return Buffer whose limit is the packet size
+     */
+    public IoBuffer getReadBuffer(int channelId, int size) {
+        final ChannelInfo info = getChannelInfo(channelId);
+        IoBuffer buf = info.getReadBuffer();
+        if (buf != null && buf.capacity() >= size) {
+            info.setReadBuffer(null);
+            buf.clear();
+            buf.limit(size);
+            return buf;
+        }
+        return IoBuffer.allocate(size);
+    }
+
+    /**
+     * Keeps the buffer to reassemble the next packets on the channel. It should only be called for buffers that are not referred by the decoded messages.
+     *
+     * @param channelId
+     *            Channel id
+     * @param buf
+     *            Buffer of a decoded packet
+     */
+    public void recycleReadBuffer(int channelId, IoBuffer buf) {
+        if (buf != null && buf.capacity() <= MAX_RECYCLED_BUFFER_SIZE) {
+            getChannelInfo(channelId).setReadBuffer(buf);
+        }
+    }
+
     /**
      * Return last read packet for channel.
      *
@@ -461,6 +507,9 @@ public class RTMP {
         // read packet
         private Packet readPacket;
 
+        // buffer to reassemble the next read packet
+        private IoBuffer readBuffer;
+
         // written packet
         private Packet writePacket;
 
@@ -530,6 +579,21 @@ public class RTMP {
             this.readPacket = readPacket;
         }
 
+        /**
+         * @return the readBuffer
+         */
+        public IoBuffer getReadBuffer() {
+            return readBuffer;
+        }
+
+        /**
+         * @param readBuffer
+         *            the readBuffer to set
+         */
+        public void setReadBuffer(IoBuffer readBuffer) {
+            this.readBuffer = readBuffer;
+        }
+
         /**
          * @return the writePacket
          */
@@ -64,17 +64,15 @@ public class RTMPMinaProtocolDecoder extends ProtocolDecoderAdapter {
             if (log.isTraceEnabled()) {
                 log.trace("Incoming: in.position {}, in.limit {}, in.remaining {}", new Object[] { in.position(), in.limit(), in.remaining() });
             }
-            byte[] arr = new byte[in.remaining()];
-            in.get(arr);
             // create a buffer and store it on the session
             IoBuffer buf = (IoBuffer) session.getAttribute("buffer");
             if (buf == null) {
-                buf = IoBuffer.allocate(arr.length);
+                buf = IoBuffer.allocate(in.remaining());
                 buf.setAutoExpand(true);
                 session.setAttribute("buffer", buf);
             }
             // copy incoming into buffer
-            buf.put(arr);
+            buf.put(in);
             // flip so we can read
             buf.flip();
             if (log.isTraceEnabled()) {
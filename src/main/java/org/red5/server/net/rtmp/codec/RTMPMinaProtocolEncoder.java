@@ -30,6 +30,11 @@ import org.apache.mina.filter.codec.ProtocolEncoderOutput;
 import org.red5.server.api.Red5;
 import org.red5.server.net.IConnectionManager;
 import org.red5.server.net.rtmp.RTMPConnection;
+import org.red5.server.net.rtmp.event.Aggregate;
+import org.red5.server.net.rtmp.event.AudioData;
+import org.red5.server.net.rtmp.event.IRTMPEvent;
+import org.red5.server.net.rtmp.event.VideoData;
+import org.red5.server.net.rtmp.message.Packet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -69,20 +74,39 @@ public class RTMPMinaProtocolEncoder extends ProtocolEncoderAdapter {
                 //log.trace("Encoder lock acquiring.. {}", conn.getSessionId());
                 lock.acquire();
                 log.trace("Encoder lock acquired {}", conn.getSessionId());
-                // get the buffer
-                final IoBuffer buf = message instanceof IoBuffer ? (IoBuffer) message : encoder.encode(message);
-                if (buf != null) {
-                    int requestedWriteChunkSize = conn.getState().getWriteChunkSize();
-                    log.trace("Requested chunk size: {} target chunk size: {}", requestedWriteChunkSize, targetChunkSize);
-                    if (buf.remaining() <= targetChunkSize * 2) {
-                        log.trace("Writing output data");
-                        out.write(buf);
-                    } else {
-                        int sentChunks = Chunker.chunkAndWrite(out, buf, requestedWriteChunkSize, targetChunkSize);
-                        log.trace("Wrote {} chunks", sentChunks);
+                // batcher gathers small messages into one socket write, null if batching is disabled
+                final WriteBatcher batcher = conn.getWriteBatcher();
+                if (message instanceof WriteBatcher.Batch) {
+                    // batch taken by the connection is already encoded
+                    out.write(message);
+                } else if (message instanceof Packet && encoder.isSharedPacket((Packet) message)) {
+                    // header of this connection and the chunks shared with other subscribers
+                    IoBuffer[] buffers = encoder.encodeSharedPacket((Packet) message);
+                    if (buffers != null) {
+                        for (IoBuffer buffer : buffers) {
+                            if (batcher == null || !batcher.write(out, buffer, false, message)) {
+                                out.write(buffer);
+                            }
+                        }
                     }
                 } else {
-                    log.trace("Response buffer was null after encoding");
+                    // get the buffer
+                    final IoBuffer buf = message instanceof IoBuffer ? (IoBuffer) message : encoder.encode(message);
+                    if (buf != null && batcher != null && batcher.write(out, buf, !isStreamData(message), message)) {
+                        log.trace("Output data is batched");
+                    } else if (buf != null) {
+                        int requestedWriteChunkSize = conn.getState().getWriteChunkSize();
+                        log.trace("Requested chunk size: {} target chunk size: {}", requestedWriteChunkSize, targetChunkSize);
+                        if (buf.remaining() <= targetChunkSize * 2) {
+                            log.trace("Writing output data");
+                            out.write(buf);
+                        } else {
+                            int sentChunks = Chunker.chunkAndWrite(out, buf, requestedWriteChunkSize, targetChunkSize);
+                            log.trace("Wrote {} chunks", sentChunks);
+                        }
+                    } else {
+                        log.trace("Response buffer was null after encoding");
+                    }
                 }
             } catch (InterruptedException ex) {
                 log.error("InterruptedException during encode", ex);
@@ -105,6 +129,21 @@ public class RTMPMinaProtocolEncoder extends ProtocolEncoderAdapter {
         }
     }
 
+    /**
+     * Audio, video and aggregates may wait in a write batch, other messages like status and ping are written with the batch immediately.
+     * 
+     * @param message
+     *            message to encode
+     * @return true if the message is stream data
+     */
+    private static boolean isStreamData(Object message) {
+        if (message instanceof Packet) {
+            IRTMPEvent event = ((Packet) message).getMessage();
+            return event instanceof AudioData || event instanceof VideoData || event instanceof Aggregate;
+        }
+        return false;
+    }
+
     /**
      * Sets an RTMP protocol encoder
      * 
@@ -144,6 +183,16 @@ public class RTMPMinaProtocolEncoder extends ProtocolEncoderAdapter {
         encoder.setDropLiveFuture(dropLiveFuture);
     }
 
+    /**
+     * Setter for directOutput
+     * 
+     * @param directOutput
+     *            encode messages into pooled direct buffers
+     */
+    public void setDirectOutput(boolean directOutput) {
+        encoder.setDirectOutput(directOutput);
+    }
+
     /**
      * @return the targetChunkSize
      */
@@ -22,7 +22,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -97,7 +96,7 @@ public class RTMPProtocolDecoder implements Constants, IEventDecoder {
      *            RTMP connection
      * @param buffer
      *            IoBuffer of data to be decoded
-     * @return a list of decoded objects, may be empty if nothing could be decoded
+     * @return a list of decoded objects, may be empty if nothing could be decoded. List is reused by the next call for the same connection
      */
     public List<Object> decodeBuffer(RTMPConnection conn, IoBuffer buffer) {
         final int position = buffer.position();
@@ -109,10 +108,11 @@ public class RTMPProtocolDecoder implements Constants, IEventDecoder {
         if (conn != null) {
             log.trace("Decoding for connection - session id: {}", conn.getSessionId());
             try {
-                // instance list to hold results
-                result = new LinkedList<Object>();
                 // get the local decode state
                 RTMPDecodeState state = conn.getDecoderState();
+                // reuse the list of the connection to hold results
+                result = state.getDecodedObjects();
+                result.clear();
                 log.trace("RTMP decode state {}", state);
                 if (!conn.getSessionId().equals(state.getSessionId())) {
                     log.warn("Session decode overlap: {} != {}", conn.getSessionId(), state.getSessionId());
@@ -152,7 +152,16 @@ public class RTMPProtocolDecoder implements Constants, IEventDecoder {
                 if (log.isTraceEnabled()) {
                     log.trace("decodeBuffer - post decode input buffer position: {} remaining: {}", buffer.position(), buffer.remaining());
                 }
-                buffer.compact();
+                if (!buffer.hasRemaining()) {
+                    // everything is decoded, nothing to move
+                    buffer.clear();
+                } else if (buffer.position() > 0) {
+                    buffer.compact();
+                } else {
+                    // nothing is consumed, continue appending after the remaining data
+                    buffer.position(buffer.limit());
+                    buffer.limit(buffer.capacity());
+                }
             }
         } else {
             log.error("Decoding buffer failed, no current connection!?");
@@ -271,8 +280,8 @@ public class RTMPProtocolDecoder implements Constants, IEventDecoder {
         // check to see if this is a new packet or continue decoding an existing one
         Packet packet = rtmp.getLastReadPacket(channelId);
         if (packet == null) {
-            // create a new packet
-            packet = new Packet(header.clone());
+            // create a new packet with a reassembly buffer of the channel
+            packet = new Packet(header.clone(), rtmp.getReadBuffer(channelId, header.getSize()));
             // store the packet based on its channel id
             rtmp.setLastReadPacket(channelId, packet);
         }
@@ -291,15 +300,14 @@ public class RTMPProtocolDecoder implements Constants, IEventDecoder {
             in.position(position);
             return null;
         }
-        // get the chunk from our input
-        byte[] chunk = Arrays.copyOfRange(in.array(), in.position(), in.position() + length);
         if (log.isTraceEnabled()) {
-            log.trace("Read chunkSize: {}, length: {}, chunk: {}", readChunkSize, length, Hex.encodeHexString(chunk));
+            log.trace("Read chunkSize: {}, length: {}, chunk: {}", readChunkSize, length, Hex.encodeHexString(Arrays.copyOfRange(in.array(), in.position(), in.position() + length)));
         }
-        // move the position
-        in.skip(length);
-        // put the chunk into the packet
-        buf.put(chunk);
+        // put the chunk into the packet with a bulk copy from our input, it moves the position
+        final int limit = in.limit();
+        in.limit(in.position() + length);
+        buf.put(in);
+        in.limit(limit);
         if (buf.hasRemaining()) {
             log.trace("Packet is incomplete ({},{})", buf.remaining(), buf.limit());
             return null;
@@ -323,6 +331,10 @@ public class RTMPProtocolDecoder implements Constants, IEventDecoder {
             }
             rtmp.setLastReadPacketHeader(channelId, packet.getHeader());
             packet.setMessage(message);
+            if (isReadBufferReusable(conn, message)) {
+                // message does not refer to the packet data, the buffer can be used for the next packets of the channel
+                rtmp.recycleReadBuffer(channelId, packet.detachData());
+            }
             if (message instanceof ChunkSize) {
                 ChunkSize chunkSizeMsg = (ChunkSize) message;
                 rtmp.setReadChunkSize(chunkSizeMsg.getSize());
@@ -342,6 +354,23 @@ public class RTMPProtocolDecoder implements Constants, IEventDecoder {
         return packet;
     }
 
+    /**
+     * Returns whether the message is decoded into its own fields without referring to the packet data. Stream data, aggregates, shared objects and AMF3 messages may keep a view of
+     * the data.
+     * 
+     * @param conn
+     *            Connection
+     * @param message
+     *            Decoded message
+     * @return true if packet data can be reused
+     */
+    protected boolean isReadBufferReusable(RTMPConnection conn, IRTMPEvent message) {
+        if (message instanceof Invoke) {
+            return conn.getEncoding() == Encoding.AMF0;
+        }
+        return message instanceof ChunkSize || message instanceof Abort || message instanceof BytesRead || message instanceof Ping || message instanceof ServerBW || message instanceof ClientBW;
+    }
+
     /**
      * Decodes packet header.
      * 
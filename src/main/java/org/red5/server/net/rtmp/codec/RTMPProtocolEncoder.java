@@ -31,6 +31,7 @@ import org.red5.server.api.IConnection.Encoding;
 import org.red5.server.api.Red5;
 import org.red5.server.api.service.IPendingServiceCall;
 import org.red5.server.api.service.IServiceCall;
+import org.red5.server.api.stream.IClientStream;
 import org.red5.server.exception.ClientDetailsException;
 import org.red5.server.net.ICommand;
 import org.red5.server.net.rtmp.RTMPConnection;
@@ -38,6 +39,7 @@ import org.red5.server.net.rtmp.RTMPUtils;
 import org.red5.server.net.rtmp.codec.RTMP.LiveTimestampMapping;
 import org.red5.server.net.rtmp.event.Aggregate;
 import org.red5.server.net.rtmp.event.AudioData;
+import org.red5.server.net.rtmp.event.BaseEvent;
 import org.red5.server.net.rtmp.event.BytesRead;
 import org.red5.server.net.rtmp.event.ChunkSize;
 import org.red5.server.net.rtmp.event.ClientBW;
@@ -63,6 +65,7 @@ import org.red5.server.net.rtmp.status.StatusObject;
 import org.red5.server.service.Call;
 import org.red5.server.so.ISharedObjectEvent;
 import org.red5.server.so.ISharedObjectMessage;
+import org.red5.server.stream.ICongestionControlledStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -98,6 +101,11 @@ public class RTMPProtocolEncoder implements Constants, IEventEncoder {
      */
     private boolean dropEncoded;
 
+    /**
+     * Whether or not to encode the messages into direct buffers that are written to the socket without another copy
+     */
+    private boolean directOutput;
+
     /**
      * Encodes object with given protocol state to byte buffer
      * 
@@ -167,7 +175,7 @@ public class RTMPProtocolEncoder implements Constants, IEventEncoder {
                 int chunkHeaderSize = 7;
                 int numChunks = (int) Math.ceil(dataLen / (float) chunkSize);
                 int bufSize = dataLen + headerSize + (numChunks > 0 ? (numChunks - 1) * chunkHeaderSize : 0);
-                out = IoBuffer.allocate(bufSize, false);
+                out = allocateOutput(bufSize);
                 // encode the header
                 encodeHeader(header, lastHeader, out);
                 if (numChunks == 1) {
@@ -196,6 +204,92 @@ public class RTMPProtocolEncoder implements Constants, IEventEncoder {
         return out;
     }
 
+    /**
+     * Returns whether the packet carries stream data whose chunks are shared with the other subscribers of the stream.
+     *
+     * @param packet
+     *            RTMP packet
+     * @return true if the packet should be encoded with {@link #encodeSharedPacket(Packet)}
+     */
+    public boolean isSharedPacket(Packet packet) {
+        final IRTMPEvent message = packet.getMessage();
+        if (message instanceof AudioData || message instanceof VideoData || message instanceof Aggregate) {
+            return ((BaseEvent) message).getChunkCache() != null;
+        }
+        return false;
+    }
+
+    /**
+     * Encode a stream data packet whose chunks are shared with the other subscribers. Only the message header is encoded for this connection, payload chunks and the continuation
+     * headers are taken from the chunk cache of the message.
+     *
+     * @param packet
+     *            RTMP packet
+     * @return message header and the shared chunks to write in order or null if the packet is dropped
+     */
+    public IoBuffer[] encodeSharedPacket(Packet packet) {
+        IoBuffer[] out = null;
+        final Header header = packet.getHeader();
+        final int channelId = header.getChannelId();
+        final IRTMPEvent message = packet.getMessage();
+        final EncodedChunkCache chunkCache = ((BaseEvent) message).getChunkCache();
+        if (!dropMessage(channelId, message)) {
+            IoBuffer data = encodeMessage(header, message);
+            if (data != null && chunkCache != null) {
+                RTMP rtmp = ((RTMPConnection) Red5.getConnectionLocal()).getState();
+                if (data.position() != 0) {
+                    data.flip();
+                } else {
+                    data.rewind();
+                }
+                header.setSize(data.limit());
+                Header lastHeader = rtmp.getLastWriteHeader(channelId);
+                rtmp.setLastWriteHeader(channelId, header);
+                rtmp.setLastWritePacket(channelId, packet);
+                // maximum header size with extended timestamp
+                IoBuffer headerBuf = allocateOutput(18);
+                encodeHeader(header, lastHeader, headerBuf);
+                headerBuf.flip();
+                // extended timestamp is known after the header is encoded
+                IoBuffer chunks = chunkCache.getChunks(data, rtmp.getWriteChunkSize(), channelId, header.getExtendedTimestamp(), directOutput);
+                out = new IoBuffer[] { headerBuf, chunks };
+            }
+        } else {
+            log.trace("Dropped: {}", message);
+        }
+        message.release();
+        return out;
+    }
+
+    /**
+     * Allocates a buffer for the encoded output. Buffer is taken from the direct buffer arena in direct output mode, otherwise or if it's too large for the arena it's a heap
+     * buffer.
+     *
+     * @param size
+     *            capacity
+     * @return output buffer
+     */
+    private IoBuffer allocateOutput(int size) {
+        if (directOutput) {
+            IoBuffer buf = DirectBufferArena.allocate(size);
+            if (buf != null) {
+                return buf;
+            }
+        }
+        return IoBuffer.allocate(size, false);
+    }
+
+    /**
+     * @return true if the stream of the channel has a {@link SubscriberCongestionController}
+     */
+    private static boolean isCongestionControlled(RTMPConnection conn, int channelId) {
+        if (conn == null) {
+            return false;
+        }
+        IClientStream stream = conn.getStreamByChannelId(channelId);
+        return stream instanceof ICongestionControlledStream && ((ICongestionControlledStream) stream).getCongestionController() != null;
+    }
+
     /**
      * Determine if this message should be dropped. If the traffic from server to client is congested, then drop LIVE messages to help alleviate congestion.
      * 
@@ -237,6 +331,12 @@ public class RTMPProtocolEncoder implements Constants, IEventEncoder {
         boolean drop = false;
         // we only drop audio or video data
         boolean isDroppable = message instanceof VideoData || message instanceof AudioData;
+        if (isDroppable && isCongestionControlled(conn, channelId)) {
+            // congestion controller of the subscriber drops the video on GOP boundaries and keeps the audio,
+            // a frame dropped here would break the GOP it let through
+            log.trace("Not dropping due to congestion controller of the stream");
+            return false;
+        }
         if (isDroppable) {
             if (message.getTimestamp() == 0) {
                 // never drop initial packages, also this could be the first packet after
@@ -1050,6 +1150,14 @@ public class RTMPProtocolEncoder implements Constants, IEventEncoder {
         this.dropEncoded = dropEncoded;
     }
 
+    public void setDirectOutput(boolean directOutput) {
+        this.directOutput = directOutput;
+    }
+
+    public boolean isDirectOutput() {
+        return directOutput;
+    }
+
     public long getBaseTolerance() {
         return baseTolerance;
     }
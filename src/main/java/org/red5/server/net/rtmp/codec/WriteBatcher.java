@@ -0,0 +1,263 @@
+/*
+ * RED5 Open Source Media Server - https://github.com/Red5/
+ *
+ * Copyright 2006-2016 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.net.rtmp.codec;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.IoBufferWrapper;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+import org.red5.server.net.rtmp.message.Packet;
+
+/**
+ * Gathers the encoded messages of a connection into one buffer so that they are written to the socket with one write request.
+ *
+ * A batch is written when it's older than the flush window, when the next message does not fit in the byte budget or when a message that must not wait is encoded.
+ * Messages that are as large as the budget are not copied; the batch is written before them to keep the order. If no message follows, the connection writes the batch
+ * from the task given to the constructor, which is called when a batch is started.
+ *
+ * The codec reports a packet as sent when its write request is done, which is before the batch holding its bytes is written. Packets in a batch are counted so that
+ * they are reported to the sent listener only after both the packet and the batches holding its bytes are written.
+ *
+ * Methods are called with the encoder lock of the connection held, except {@link #packetWritten(Packet)} and {@link #getBatchedBytes()}.
+ */
+public class WriteBatcher {
+
+    /**
+     * Batch written to the session, it returns its buffer to the arena and reports its packets when it's written
+     */
+    public final class Batch extends IoBufferWrapper {
+
+        private final Packet[] packets;
+
+        private Batch(IoBuffer buf, Packet[] packets) {
+            super(buf);
+            this.packets = packets;
+        }
+
+        /**
+         * Called when the batch is written to the socket
+         */
+        public void written() {
+            DirectBufferArena.release(getParentBuffer());
+            for (Packet packet : packets) {
+                if (packetWritten(packet)) {
+                    sentListener.accept(packet);
+                }
+            }
+        }
+
+    }
+
+    private static final Packet[] NO_PACKETS = new Packet[0];
+
+    private final long flushWindowNanos;
+
+    private final int maxBatchBytes;
+
+    private final Runnable flushScheduler;
+
+    private final Consumer<Packet> sentListener;
+
+    /**
+     * Number of writes each batched packet waits for: its own write request and the batches holding its bytes
+     */
+    private final Map<Packet, Integer> pendingWrites = new IdentityHashMap<>();
+
+    private IoBuffer batch;
+
+    private final List<Packet> batchPackets = new ArrayList<>();
+
+    private long batchStart;
+
+    private int batchMessages;
+
+    /**
+     * Bytes in the current batch, read by other threads for backpressure
+     */
+    private volatile int batchedBytes;
+
+    private volatile long batchCount;
+
+    private volatile long batchedMessageCount;
+
+    /**
+     * @param flushWindowMs
+     *            max time a message waits in a batch in milliseconds
+     * @param maxBatchBytes
+     *            byte budget of a batch
+     * @param flushScheduler
+     *            schedules a flush of the batch after the flush window, it's called when a batch is started
+     * @param sentListener
+     *            called when all the bytes of a batched packet are written
+     */
+    public WriteBatcher(int flushWindowMs, int maxBatchBytes, Runnable flushScheduler, Consumer<Packet> sentListener) {
+        this.flushWindowNanos = TimeUnit.MILLISECONDS.toNanos(flushWindowMs);
+        this.maxBatchBytes = maxBatchBytes;
+        this.flushScheduler = flushScheduler;
+        this.sentListener = sentListener;
+    }
+
+    /**
+     * Adds an encoded message to the batch
+     *
+     * @param out
+     *            encoder output
+     * @param buf
+     *            encoded message
+     * @param flush
+     *            true to write the batch with this message now
+     * @param message
+     *            message that is encoded into the buffer
+     * @return true if the message is copied into the batch and released, false if it's too large for a batch and the caller must write it
+     */
+    public boolean write(ProtocolEncoderOutput out, IoBuffer buf, boolean flush, Object message) {
+        int size = buf.remaining();
+        if (size >= maxBatchBytes) {
+            flush(out);
+            return false;
+        }
+        if (batch != null && batch.remaining() < size) {
+            flush(out);
+        }
+        boolean started = false;
+        if (batch == null) {
+            batch = DirectBufferArena.allocate(maxBatchBytes);
+            if (batch == null) {
+                batch = IoBuffer.allocate(maxBatchBytes);
+            }
+            batchStart = System.nanoTime();
+            started = true;
+        }
+        batch.put(buf);
+        // message is copied, its direct memory can be reused
+        DirectBufferArena.release(buf);
+        if (message instanceof Packet) {
+            addPacket((Packet) message);
+        }
+        batchMessages++;
+        batchedBytes = batch.position();
+        if (flush || System.nanoTime() - batchStart >= flushWindowNanos) {
+            flush(out);
+        } else if (started) {
+            flushScheduler.run();
+        }
+        return true;
+    }
+
+    /**
+     * Writes the batch to the encoder output
+     *
+     * @param out
+     *            encoder output
+     */
+    public void flush(ProtocolEncoderOutput out) {
+        IoBuffer buf = take();
+        if (buf != null) {
+            out.write(buf);
+        }
+    }
+
+    /**
+     * Removes the batch to write it outside of the encoder
+     *
+     * @return batch ready to write or null if it's empty
+     */
+    public Batch take() {
+        if (batch == null || batchMessages == 0) {
+            return null;
+        }
+        Batch buf = new Batch(batch.flip(), batchPackets.isEmpty() ? NO_PACKETS : batchPackets.toArray(NO_PACKETS));
+        batchCount++;
+        batchedMessageCount += batchMessages;
+        batch = null;
+        batchMessages = 0;
+        batchedBytes = 0;
+        batchPackets.clear();
+        return buf;
+    }
+
+    /**
+     * Adds a packet to the current batch, a packet whose bytes are in more than one batch waits for each of them
+     */
+    private void addPacket(Packet packet) {
+        int last = batchPackets.size() - 1;
+        if (last >= 0 && batchPackets.get(last) == packet) {
+            return;
+        }
+        batchPackets.add(packet);
+        synchronized (pendingWrites) {
+            Integer count = pendingWrites.get(packet);
+            pendingWrites.put(packet, count == null ? 2 : count + 1);
+        }
+    }
+
+    /**
+     * Called when the write request of a packet or a batch holding its bytes is done
+     *
+     * @param packet
+     *            written packet
+     * @return true if all the bytes of the packet are written, false if it still waits for a batch
+     */
+    public boolean packetWritten(Packet packet) {
+        synchronized (pendingWrites) {
+            Integer count = pendingWrites.get(packet);
+            if (count == null) {
+                return true;
+            }
+            if (count > 1) {
+                pendingWrites.put(packet, count - 1);
+                return false;
+            }
+            pendingWrites.remove(packet);
+            return true;
+        }
+    }
+
+    /**
+     * @return bytes waiting in the batch
+     */
+    public int getBatchedBytes() {
+        return batchedBytes;
+    }
+
+    /**
+     * @return number of batches written
+     */
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * @return number of messages written in batches
+     */
+    public long getBatchedMessageCount() {
+        return batchedMessageCount;
+    }
+
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+}
@@ -22,9 +22,11 @@ import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.red5.server.api.event.IEventListener;
+import org.red5.server.net.rtmp.codec.EncodedChunkCache;
 import org.red5.server.net.rtmp.message.Constants;
 import org.red5.server.net.rtmp.message.Header;
 import org.slf4j.Logger;
@@ -77,6 +79,16 @@ public abstract class BaseEvent implements Constants, IRTMPEvent, Externalizable
      */
     protected AtomicInteger refcount = new AtomicInteger(1);
 
+    /**
+     * Chunked payload shared by the events that are created from the same stream message for the subscribers
+     */
+    protected volatile EncodedChunkCache chunkCache;
+
+    /**
+     * Aggregate that starts with this event, shared by the subscribers that aggregate the same events
+     */
+    private SharedAggregate sharedAggregate;
+
     public BaseEvent() {
         // set a default type
         this(Type.SERVER, null);
@@ -188,6 +200,12 @@ public abstract class BaseEvent implements Constants, IRTMPEvent, Externalizable
         }
         final int baseCount = refcount.decrementAndGet();
         if (baseCount == 0) {
+            final EncodedChunkCache cache = chunkCache;
+            if (cache != null) {
+                chunkCache = null;
+                cache.release();
+            }
+            setSharedAggregate(null);
             releaseInternal();
         } else if (allocationDebugging && baseCount < 0) {
             throw new RuntimeException("attempt to retain object with invalid ref count");
@@ -199,6 +217,74 @@ public abstract class BaseEvent implements Constants, IRTMPEvent, Externalizable
      */
     protected abstract void releaseInternal();
 
+    /**
+     * Returns the chunk cache of this event, it's created on the first call. Events created for the subscribers should refer to this cache with
+     * {@link #setChunkCache(EncodedChunkCache)}.
+     * 
+     * @return chunk cache
+     */
+    public EncodedChunkCache getSharedChunkCache() {
+        EncodedChunkCache cache = chunkCache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = chunkCache;
+                if (cache == null) {
+                    cache = new EncodedChunkCache();
+                    chunkCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @return chunk cache that this event refers to or null
+     */
+    public EncodedChunkCache getChunkCache() {
+        return chunkCache;
+    }
+
+    /**
+     * Refers to the chunk cache of the source event. Cache is retained until this event is released.
+     * 
+     * @param chunkCache
+     *            chunk cache of the source event
+     */
+    public void setChunkCache(EncodedChunkCache chunkCache) {
+        chunkCache.retain();
+        this.chunkCache = chunkCache;
+    }
+
+    /**
+     * Returns the shared aggregate that starts with this event if it has the same events. Aggregate is retained and the caller should release it.
+     * 
+     * @param events
+     *            events of the aggregate in order, the first one is this event
+     * @return retained aggregate or null if there is no aggregate of these events
+     */
+    public synchronized Aggregate retainSharedAggregate(List<IRTMPEvent> events) {
+        if (sharedAggregate != null && sharedAggregate.matches(events)) {
+            Aggregate aggregate = sharedAggregate.getAggregate();
+            aggregate.retain();
+            return aggregate;
+        }
+        return null;
+    }
+
+    /**
+     * Keeps the aggregate that starts with this event for the other subscribers, the previous one is released.
+     * 
+     * @param sharedAggregate
+     *            aggregate or null to release the current one
+     */
+    public synchronized void setSharedAggregate(SharedAggregate sharedAggregate) {
+        final SharedAggregate previous = this.sharedAggregate;
+        this.sharedAggregate = sharedAggregate;
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
         type = (Type) in.readObject();
         sourceType = in.readByte();
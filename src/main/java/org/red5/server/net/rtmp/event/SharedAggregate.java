@@ -0,0 +1,69 @@
+/*
+ * RED5 Open Source Media Server - https://github.com/Red5/
+ * 
+ * Copyright 2006-2016 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.net.rtmp.event;
+
+import java.util.List;
+
+/**
+ * Aggregate of stream tags that is shared by the subscribers that aggregate the same tags. It's kept by the first event of the aggregate, so a subscriber finds it with the
+ * event it starts its aggregate with and reuses the aggregate and its chunk cache if its tags are the same events.
+ */
+public final class SharedAggregate {
+
+    private final IRTMPEvent[] tags;
+
+    private final Aggregate aggregate;
+
+    /**
+     * @param tags
+     *            events in the aggregate in order
+     * @param aggregate
+     *            aggregate, it's released when this is released
+     */
+    public SharedAggregate(List<IRTMPEvent> tags, Aggregate aggregate) {
+        this.tags = tags.toArray(new IRTMPEvent[tags.size()]);
+        this.aggregate = aggregate;
+    }
+
+    /**
+     * @param events
+     *            events of an aggregate in order
+     * @return true if the aggregate has the same events
+     */
+    public boolean matches(List<IRTMPEvent> events) {
+        if (events.size() != tags.length) {
+            return false;
+        }
+        for (int i = 0; i < tags.length; i++) {
+            if (events.get(i) != tags[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Aggregate getAggregate() {
+        return aggregate;
+    }
+
+    void release() {
+        aggregate.release();
+    }
+
+}
@@ -83,6 +83,22 @@ public class Packet implements Externalizable {
         data = IoBuffer.allocate(header.getSize()).setAutoExpand(true);
     }
 
+    /**
+     * Create packet with given header and data buffer to fill.
+     * 
+     * @param header
+     *            Packet header
+     * @param data
+     *            Packet data
+     */
+    public Packet(Header header, IoBuffer data) {
+        if (log.isTraceEnabled()) {
+            log.trace("Header: {}", header);
+        }
+        this.header = header;
+        this.data = data;
+    }
+
     /**
      * Create packet with given header and event context.
      * 
@@ -183,6 +199,17 @@ public class Packet implements Externalizable {
         }
     }
 
+    /**
+     * Detaches the data buffer from the packet without freeing it, so that it can be reused.
+     * 
+     * @return data buffer or null
+     */
+    public IoBuffer detachData() {
+        IoBuffer buf = data;
+        data = null;
+        return buf;
+    }
+
     /**
      * Return the expiration time.
      * 
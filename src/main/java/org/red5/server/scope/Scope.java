@@ -20,11 +20,14 @@ package org.red5.server.scope;
 
 import java.beans.ConstructorProperties;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -1271,12 +1274,100 @@ public class Scope extends BasicScope implements IScope, IScopeStatistics, Scope
         return true;
     }
 
-    private final class ConcurrentScopeSet extends ConcurrentHashMap<org.red5.server.api.scope.IBasicScope, Boolean> {
+    final class ConcurrentScopeSet extends ConcurrentHashMap<org.red5.server.api.scope.IBasicScope, Boolean> {
 
         private static final long serialVersionUID = -6702012956307490749L;
 
+        /**
+         * Children by name for each scope type so that lookups do not walk the children. The enum map is filled when the set is created or read and not modified
+         * later, so it's read without locking. Children of different classes can have the same type and name, they are kept in the order they are added and the
+         * first one is returned.
+         */
+        private transient Map<ScopeType, ConcurrentHashMap<String, IBasicScope[]>> index;
+
         ConcurrentScopeSet() {
             super(3, 0.9f);
+            index = createIndex();
+        }
+
+        private Map<ScopeType, ConcurrentHashMap<String, IBasicScope[]>> createIndex() {
+            Map<ScopeType, ConcurrentHashMap<String, IBasicScope[]>> index = new EnumMap<>(ScopeType.class);
+            for (ScopeType type : ScopeType.values()) {
+                index.put(type, new ConcurrentHashMap<String, IBasicScope[]>(3, 0.9f));
+            }
+            return index;
+        }
+
+        /**
+         * Rebuilds the index, it's not serialized
+         */
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            index = createIndex();
+            for (IBasicScope child : keySet()) {
+                addToIndex(child);
+            }
+        }
+
+        /**
+         * Returns the children having the same type and name, without the given scope and the children that are removed from the set
+         */
+        private IBasicScope[] retain(IBasicScope[] children, IBasicScope scope, boolean add) {
+            List<IBasicScope> retained = new ArrayList<>(children.length + 1);
+            for (IBasicScope child : children) {
+                if (!child.equals(scope) && containsKey(child)) {
+                    retained.add(child);
+                }
+            }
+            if (add) {
+                retained.add(scope);
+            }
+            return retained.isEmpty() ? null : retained.toArray(new IBasicScope[retained.size()]);
+        }
+
+        /**
+         * Adds the child to the index, it's called after the child is added to the set
+         * 
+         * @param scope
+         *            child scope
+         */
+        private void addToIndex(IBasicScope scope) {
+            String name = scope.getName();
+            ScopeType type = scope.getType();
+            if (name == null || type == null) {
+                return;
+            }
+            index.get(type).compute(name, (key, children) -> children == null ? new IBasicScope[] { scope } : retain(children, scope, true));
+        }
+
+        /**
+         * Removes the child from the index, it's called after the child is removed from the set
+         * 
+         * @param scope
+         *            child scope
+         */
+        private void removeFromIndex(IBasicScope scope) {
+            String name = scope.getName();
+            ScopeType type = scope.getType();
+            if (name == null || type == null) {
+                return;
+            }
+            index.get(type).computeIfPresent(name, (key, children) -> retain(children, scope, false));
+        }
+
+        /**
+         * Returns the first indexed child that is still in the set
+         */
+        private IBasicScope lookup(ScopeType type, String name) {
+            IBasicScope[] children = index.get(type).get(name);
+            if (children != null) {
+                for (IBasicScope child : children) {
+                    if (containsKey(child)) {
+                        return child;
+                    }
+                }
+            }
+            return null;
         }
 
         public boolean add(IBasicScope scope) {
@@ -1303,6 +1394,7 @@ public class Scope extends BasicScope implements IScope, IScopeStatistics, Scope
                         // expected return from put is null; indicating this scope didn't already exist
                         added = (super.put(scope, Boolean.TRUE) == null);
                         if (added) {
+                            addToIndex(scope);
                             subscopeStats.increment();
                         } else {
                             log.debug("Subscope was not added");
@@ -1350,6 +1442,7 @@ public class Scope extends BasicScope implements IScope, IScopeStatistics, Scope
                     // remove the entry, ensure removed value is equal to the given object
                     removed = super.remove(scope).equals(Boolean.TRUE);
                     if (removed) {
+                        removeFromIndex((IBasicScope) scope);
                         subscopeStats.decrement();
                     } else {
                         log.debug("Subscope was not removed");
@@ -1396,11 +1489,7 @@ public class Scope extends BasicScope implements IScope, IScopeStatistics, Scope
                 log.debug("hasName: {}", name);
             }
             if (name != null) {
-                for (IBasicScope child : keySet()) {
-                    if (name.equals(child.getName())) {
-                        return true;
-                    }
-                }
+                return getBasicScope(ScopeType.UNDEFINED, name) != null;
             } else {
                 log.info("Invalid scope name, null is not allowed");
             }
@@ -1417,21 +1506,20 @@ public class Scope extends BasicScope implements IScope, IScopeStatistics, Scope
          * @return scope
          */
         public IBasicScope getBasicScope(ScopeType type, String name) {
-            boolean skipTypeCheck = ScopeType.UNDEFINED.equals(type);
-            if (skipTypeCheck) {
-                for (IBasicScope child : keySet()) {
-                    if (name.equals(child.getName())) {
-                        log.debug("Returning basic scope: {}", child);
-                        return child;
+            IBasicScope child = null;
+            if (ScopeType.UNDEFINED.equals(type)) {
+                for (ScopeType childType : index.keySet()) {
+                    child = lookup(childType, name);
+                    if (child != null) {
+                        break;
                     }
                 }
             } else {
-                for (IBasicScope child : keySet()) {
-                    if (child.getType().equals(type) && name.equals(child.getName())) {
-                        log.debug("Returning basic scope: {}", child);
-                        return child;
-                    }
-                }
+                child = lookup(type, name);
+            }
+            if (child != null) {
+                log.debug("Returning basic scope: {}", child);
+                return child;
             }
             return null;
         }
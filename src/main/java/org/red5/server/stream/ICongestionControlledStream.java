@@ -0,0 +1,32 @@
+/*
+ * RED5 Open Source Media Server - https://github.com/Red5/
+ * 
+ * Copyright 2006-2016 by respective authors (see below). All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.stream;
+
+/**
+ * Subscriber stream whose video frames are dropped by a {@link SubscriberCongestionController}. The encoder of the connection does not drop the messages of such a stream,
+ * since a frame it drops would break the GOP that the controller let through.
+ */
+public interface ICongestionControlledStream {
+
+    /**
+     * @return congestion controller of the stream or null if it's not playing yet
+     */
+    SubscriberCongestionController getCongestionController();
+
+}
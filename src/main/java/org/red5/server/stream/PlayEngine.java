@@ -67,6 +67,7 @@ import org.red5.server.messaging.IPushableConsumer;
 import org.red5.server.messaging.InMemoryPushPushPipe;
 import org.red5.server.messaging.OOBControlMessage;
 import org.red5.server.messaging.PipeConnectionEvent;
+import org.red5.server.net.rtmp.RTMPConnection;
 import org.red5.server.net.rtmp.event.Aggregate;
 import org.red5.server.net.rtmp.event.AudioData;
 import org.red5.server.net.rtmp.event.IRTMPEvent;
@@ -155,6 +156,11 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 	 */
 	private int underrunTrigger = 10;
 
+	/**
+	 * Max bytes queued on the connection, including its write batch, before more VOD data is sent. 0 disables the check
+	 */
+	private long maxPendingWriteBytes = 2 * 1024 * 1024;
+
 	/**
 	 * threshold for number of pending video frames
 	 */
@@ -166,14 +172,9 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 	private int maxSequentialPendingVideoFrames = 40;
 
 	/**
-	 * the number of sequential video frames with > 0 pending frames
-	 */
-	private int numSequentialPendingVideoFrames = 0;
-
-	/**
-	 * State machine for video frame dropping in live streams
+	 * Congestion controller of the subscriber that drops video frames in live streams
 	 */
-	private IFrameDropper videoFrameDropper = new VideoFrameDropper();
+	private final SubscriberCongestionController videoFrameDropper;
 
 	private int timestampOffset = 0;
 
@@ -252,6 +253,10 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 		providerService = builder.providerService;
 		// get the stream id
 		streamId = subscriberStream.getStreamId();
+		IStreamCapableConnection conn = subscriberStream.getConnection();
+		videoFrameDropper = new SubscriberCongestionController(conn instanceof RTMPConnection ? (RTMPConnection) conn : null);
+		videoFrameDropper.setMaxPendingVideoFrames(maxPendingVideoFramesThreshold);
+		videoFrameDropper.setMaxSequentialPendingVideoFrames(maxSequentialPendingVideoFrames);
 	}
 
 	/**
@@ -291,6 +296,14 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 		this.underrunTrigger = underrunTrigger;
 	}
 
+	/**
+	 * @param maxPendingWriteBytes
+	 *            max bytes queued on the connection before more VOD data is sent, 0 disables the check
+	 */
+	public void setMaxPendingWriteBytes(long maxPendingWriteBytes) {
+		this.maxPendingWriteBytes = maxPendingWriteBytes;
+	}
+
 	void setMessageOut(IMessageOutput msgOut) {
 		this.msgOutReference.set(msgOut);
 	}
@@ -812,7 +825,7 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 				}
 			} else {
 				subscriberStream.onChange(StreamState.RESUMED, currentItem, position);
-				videoFrameDropper.reset(VideoFrameDropper.SEND_KEYFRAMES_CHECK);
+				videoFrameDropper.reset(IFrameDropper.SEND_KEYFRAMES_CHECK);
 			}
 			break;
 		default:
@@ -903,6 +916,10 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 				msgInReference.set(null);
 			}
 			subscriberStream.setState(StreamState.CLOSED);
+			if (log.isInfoEnabled() && droppedPacketsCount > 0) {
+				log.info("Congestion stats of sessionId={} stream={}: {}", subscriberStream.getConnection().getSessionId(),
+						subscriberStream.getBroadcastStreamPublishName(), videoFrameDropper);
+			}
 			clearWaitJobs();
 			releasePendingMessage();
 			lastMessageTs = 0;
@@ -954,6 +971,10 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 				// too many messages already queued on the connection
 				return false;
 			}
+			// batched messages are few but large, so the queued bytes are checked too
+			if (maxPendingWriteBytes > 0 && pendingWriteBytes() > maxPendingWriteBytes) {
+				return false;
+			}
 			return true;
 		} else {
 			String itemName = "Undefined";
@@ -1569,45 +1590,32 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 								long pendingVideos = pendingVideoMessages();
 
 								if (log.isTraceEnabled()) {
-									log.trace("Pending messages. sessionId={} pending={} threshold={} sequential={} stream={}, count={}",
+									log.trace("Pending messages. sessionId={} pending={} threshold={} latency={} stream={}, count={}",
 											new Object[] { sessionId, pendingVideos, maxPendingVideoFramesThreshold,
-													numSequentialPendingVideoFrames, subscriberStream.getBroadcastStreamPublishName(),
+													videoFrameDropper.getLatency(), subscriberStream.getBroadcastStreamPublishName(),
 													droppedPacketsCount});
 								}
 
+								// congestion controller drops the rest of the GOP when the subscriber cannot keep up
+								// and resynchronises on the next keyframe
 								if (!videoFrameDropper.canSendPacket(rtmpMessage, pendingVideos)) {
-									// drop frame as it depends on other frames that were dropped before
-									droppedPacketsCount++;
-									if (log.isInfoEnabled() && shouldLogPacketDrop()) {
-										log.info("Frame dropper says to drop packet. sessionId={} stream={} count={}",
-												sessionId, subscriberStream.getBroadcastStreamPublishName(), droppedPacketsCount);
-									}
-									return;
-								}
-								// increment the number of times we had pending video frames sequentially
-								if (pendingVideos > 1) {
-									numSequentialPendingVideoFrames++;
-								} else {
-									// reset number of sequential pending frames if 1 or 0 are pending
-									numSequentialPendingVideoFrames = 0;
-								}
-								if (pendingVideos > maxPendingVideoFramesThreshold || numSequentialPendingVideoFrames > maxSequentialPendingVideoFrames) {
 									droppedPacketsCount++;
 									if (log.isInfoEnabled() && shouldLogPacketDrop()) {
-										log.info("Drop packet. Pending above threshold. sessionId={} pending={} threshold={} sequential={} stream={} count={}",
-												new Object[]{sessionId, pendingVideos, maxPendingVideoFramesThreshold,
-														numSequentialPendingVideoFrames, subscriberStream.getBroadcastStreamPublishName(),
+										log.info("Drop packet. sessionId={} pending={} latency={} bandwidth={} stream={} count={}",
+												new Object[]{sessionId, pendingVideos, videoFrameDropper.getLatency(),
+														videoFrameDropper.getBandwidth(), subscriberStream.getBroadcastStreamPublishName(),
 														droppedPacketsCount});
 									}
 
-									// drop because the client has insufficient bandwidth
-									long now = System.currentTimeMillis();
-									if (bufferCheckInterval > 0 && now >= nextCheckBufferUnderrun) {
-										// notify client about frame dropping (keyframe)
-										sendInsufficientBandwidthStatus(currentItem);
-										nextCheckBufferUnderrun = now + bufferCheckInterval;
+									if (videoFrameDropper.isWaitingForKeyframe()) {
+										// drop because the client has insufficient bandwidth
+										long now = System.currentTimeMillis();
+										if (bufferCheckInterval > 0 && now >= nextCheckBufferUnderrun) {
+											// notify client about frame dropping (keyframe)
+											sendInsufficientBandwidthStatus(currentItem);
+											nextCheckBufferUnderrun = now + bufferCheckInterval;
+										}
 									}
-									videoFrameDropper.dropPacket(rtmpMessage);
 									return;
 								}
 								// we are ok to send, check if we should send buffered frame
@@ -1670,6 +1678,25 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 		return 0;
 	}
 
+	/**
+	 * Get number of bytes queued on the connection to be written to the socket
+	 * 
+	 * @return Number of pending bytes
+	 */
+	private long pendingWriteBytes() {
+		IMessageOutput out = msgOutReference.get();
+		if (out != null) {
+			OOBControlMessage pendingRequest = new OOBControlMessage();
+			pendingRequest.setTarget("ConnectionConsumer");
+			pendingRequest.setServiceName("pendingBytes");
+			out.sendOOBControlMessage(this, pendingRequest);
+			if (pendingRequest.getResult() != null) {
+				return (Long) pendingRequest.getResult();
+			}
+		}
+		return 0;
+	}
+
 	/**
 	 * Get number of pending messages to be sent
 	 * 
@@ -2069,6 +2096,7 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 	 */
 	public void setMaxPendingVideoFrames(int maxPendingVideoFrames) {
 		this.maxPendingVideoFramesThreshold = maxPendingVideoFrames;
+		videoFrameDropper.setMaxPendingVideoFrames(maxPendingVideoFrames);
 	}
 
 	/**
@@ -2077,5 +2105,13 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 	 */
 	public void setMaxSequentialPendingVideoFrames(int maxSequentialPendingVideoFrames) {
 		this.maxSequentialPendingVideoFrames = maxSequentialPendingVideoFrames;
+		videoFrameDropper.setMaxSequentialPendingVideoFrames(maxSequentialPendingVideoFrames);
+	}
+
+	/**
+	 * @return congestion controller of the subscriber
+	 */
+	public SubscriberCongestionController getCongestionController() {
+		return videoFrameDropper;
 	}
 }
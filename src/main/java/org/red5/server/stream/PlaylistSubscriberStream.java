@@ -43,7 +43,7 @@ import org.slf4j.Logger;
 /**
  * Stream of playlist subscriber
  */
-public class PlaylistSubscriberStream extends AbstractClientStream implements IPlaylistSubscriberStream, IPlaylistSubscriberStreamStatistics {
+public class PlaylistSubscriberStream extends AbstractClientStream implements IPlaylistSubscriberStream, IPlaylistSubscriberStreamStatistics, ICongestionControlledStream {
 
     private static final Logger log = Red5LoggerFactory.getLogger(PlaylistSubscriberStream.class);
 
@@ -570,6 +570,12 @@ public class PlaylistSubscriberStream extends AbstractClientStream implements IP
         return currentItemIndex;
     }
 
+    /** {@inheritDoc} */
+    public SubscriberCongestionController getCongestionController() {
+        PlayEngine playEngine = engine;
+        return playEngine != null ? playEngine.getCongestionController() : null;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -41,7 +41,7 @@ import org.slf4j.Logger;
  * 
  * @author Paul Gregoire (mondain@gmail.com)
  */
-public class SingleItemSubscriberStream extends AbstractClientStream implements ISingleItemSubscriberStream {
+public class SingleItemSubscriberStream extends AbstractClientStream implements ISingleItemSubscriberStream, ICongestionControlledStream {
 
     private static final Logger log = Red5LoggerFactory.getLogger(SingleItemSubscriberStream.class);
 
@@ -452,6 +452,12 @@ public class SingleItemSubscriberStream extends AbstractClientStream implements
         schedulingService.removeScheduledJob(jobName);
     }
 
+    /** {@inheritDoc} */
+    public SubscriberCongestionController getCongestionController() {
+        PlayEngine playEngine = engine;
+        return playEngine != null ? playEngine.getCongestionController() : null;
+    }
+
     /**
      * Handles notifications in a separate thread.
      */
@@ -0,0 +1,358 @@
+/*
+ * RED5 Open Source Media Server - https://github.com/Red5/
+ *
+ * Copyright 2006-2016 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.stream;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.red5.server.net.rtmp.RTMPConnection;
+import org.red5.server.net.rtmp.event.IRTMPEvent;
+import org.red5.server.net.rtmp.event.VideoData;
+import org.red5.server.net.rtmp.event.VideoData.FrameType;
+import org.red5.server.stream.message.RTMPMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Congestion controller of a live stream subscriber.
+ * <p>
+ * Outgoing bandwidth is estimated from the progress of the bytes written to the socket and the queueing delay is the bytes waiting to be written divided by this bandwidth.
+ * When the delay exceeds {@link #getMaxLatency()} or too many video frames are pending, the rest of the current GOP is dropped and the stream is resynchronised on the next
+ * keyframe that arrives after the delay falls below {@link #getResumeLatency()}. Dropping whole GOP tails keeps the decoder of the player consistent, so viewers see a short
+ * freeze instead of long artifacts. Disposable interframes are dropped earlier, when the delay exceeds half of the max latency. Audio is never dropped.
+ * <p>
+ * Queueing delay of every video frame and length of every drop run are recorded in histograms.
+ * <p>
+ * The encoder of the connection does not drop the messages of a stream that has a controller, see {@link ICongestionControlledStream}, so every dropped frame is
+ * decided and counted here.
+ */
+public class SubscriberCongestionController implements IFrameDropper {
+
+    protected static Logger log = LoggerFactory.getLogger(SubscriberCongestionController.class);
+
+    /**
+     * Upper bounds of the latency histogram buckets in milliseconds, last bucket is unbounded
+     */
+    public static final long[] LATENCY_BUCKETS_MS = { 50, 100, 250, 500, 1000, 2000, 5000 };
+
+    /**
+     * Upper bounds of the drop run histogram buckets in number of frames, last bucket is unbounded
+     */
+    public static final long[] DROP_RUN_BUCKETS = { 1, 5, 15, 30, 60, 120 };
+
+    /**
+     * Minimum interval between two bandwidth samples
+     */
+    private static final long BANDWIDTH_SAMPLE_INTERVAL_MS = 100;
+
+    /**
+     * Weight of the last sample in the bandwidth average
+     */
+    private static final double BANDWIDTH_SMOOTHING = 0.2;
+
+    private final RTMPConnection conn;
+
+    private long maxLatency = 2000;
+
+    private long resumeLatency = 500;
+
+    private int maxPendingVideoFrames = 40;
+
+    private int maxSequentialPendingVideoFrames = 40;
+
+    /**
+     * Frames are dropped until the next keyframe that can be sent
+     */
+    private boolean waitingForKeyframe = false;
+
+    private int sequentialPendingVideoFrames = 0;
+
+    private int currentDropRun = 0;
+
+    private long lastSampleTime = -1;
+
+    private long lastSampleWrittenBytes;
+
+    /**
+     * Last time that written bytes increased
+     */
+    private long lastProgressTime;
+
+    /**
+     * Bytes per millisecond, 0 until it's measured
+     */
+    private volatile double bandwidth = 0;
+
+    private volatile long lastLatency = 0;
+
+    private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BUCKETS_MS.length + 1);
+
+    private final AtomicLongArray dropRunHistogram = new AtomicLongArray(DROP_RUN_BUCKETS.length + 1);
+
+    /**
+     * Dropped frames by {@link FrameType} ordinal
+     */
+    private final AtomicLongArray droppedFrames = new AtomicLongArray(FrameType.values().length);
+
+    /**
+     * @param conn
+     *            connection of the subscriber, it may be null if write progress cannot be tracked
+     */
+    public SubscriberCongestionController(RTMPConnection conn) {
+        this.conn = conn;
+    }
+
+    /** {@inheritDoc} */
+    public boolean canSendPacket(RTMPMessage message, long pending) {
+        IRTMPEvent packet = message.getBody();
+        if (!(packet instanceof VideoData)) {
+            return true;
+        }
+        FrameType type = ((VideoData) packet).getFrameType();
+        long latency = estimateLatency(currentTimeMillis());
+        record(latencyHistogram, LATENCY_BUCKETS_MS, latency);
+
+        if (pending > 1) {
+            sequentialPendingVideoFrames++;
+        } else {
+            sequentialPendingVideoFrames = 0;
+        }
+        boolean congested = latency > maxLatency || pending > maxPendingVideoFrames || sequentialPendingVideoFrames > maxSequentialPendingVideoFrames;
+
+        if (waitingForKeyframe) {
+            if (type == FrameType.KEYFRAME && !congested && latency <= resumeLatency) {
+                log.debug("Resynchronised on keyframe after {} dropped frames, latency: {}ms", currentDropRun, latency);
+                waitingForKeyframe = false;
+                endDropRun();
+                return true;
+            }
+            drop(type);
+            return false;
+        }
+        if (congested) {
+            log.debug("Congested, dropping the rest of the GOP. latency: {}ms pending: {} sequential: {}", latency, pending, sequentialPendingVideoFrames);
+            waitingForKeyframe = true;
+            drop(type);
+            return false;
+        }
+        if (type == FrameType.DISPOSABLE_INTERFRAME && latency > maxLatency / 2) {
+            // safe to drop, nothing depends on it
+            drop(type);
+            endDropRun();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Estimates the time to write the pending bytes to the socket
+     *
+     * @param now
+     *            current time
+     * @return latency in milliseconds
+     */
+    private long estimateLatency(long now) {
+        long writtenBytes = getWrittenBytes();
+        long pendingBytes = getPendingWriteBytes();
+        if (lastSampleTime < 0) {
+            lastSampleTime = now;
+            lastSampleWrittenBytes = writtenBytes;
+            lastProgressTime = now;
+        } else if (now - lastSampleTime >= BANDWIDTH_SAMPLE_INTERVAL_MS) {
+            double sample = (writtenBytes - lastSampleWrittenBytes) / (double) (now - lastSampleTime);
+            // a sample without progress only counts if there is something to write, otherwise the link is idle
+            if (sample > 0 || pendingBytes > 0) {
+                bandwidth = bandwidth == 0 ? sample : bandwidth + BANDWIDTH_SMOOTHING * (sample - bandwidth);
+            }
+            if (writtenBytes > lastSampleWrittenBytes) {
+                lastProgressTime = now;
+            }
+            lastSampleTime = now;
+            lastSampleWrittenBytes = writtenBytes;
+        }
+        long latency;
+        if (pendingBytes <= 0) {
+            latency = 0;
+        } else if (bandwidth > 0) {
+            latency = (long) (pendingBytes / bandwidth);
+        } else {
+            // nothing is written since the first sample
+            latency = now - lastProgressTime;
+        }
+        lastLatency = latency;
+        return latency;
+    }
+
+    /**
+     * @return bytes written to the socket of the subscriber
+     */
+    protected long getWrittenBytes() {
+        return conn != null ? conn.getWrittenBytes() : 0;
+    }
+
+    /**
+     * @return bytes waiting to be written to the socket of the subscriber
+     */
+    protected long getPendingWriteBytes() {
+        return conn != null ? conn.getPendingWriteBytes() : 0;
+    }
+
+    /**
+     * @return current time in milliseconds
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private void drop(FrameType type) {
+        droppedFrames.incrementAndGet(type.ordinal());
+        currentDropRun++;
+    }
+
+    private void endDropRun() {
+        if (currentDropRun > 0) {
+            record(dropRunHistogram, DROP_RUN_BUCKETS, currentDropRun);
+            currentDropRun = 0;
+        }
+    }
+
+    private static void record(AtomicLongArray histogram, long[] buckets, long value) {
+        int index = 0;
+        while (index < buckets.length && value > buckets[index]) {
+            index++;
+        }
+        histogram.incrementAndGet(index);
+    }
+
+    /** {@inheritDoc} */
+    public void dropPacket(RTMPMessage message) {
+        IRTMPEvent packet = message.getBody();
+        if (packet instanceof VideoData) {
+            FrameType type = ((VideoData) packet).getFrameType();
+            drop(type);
+            if (type == FrameType.DISPOSABLE_INTERFRAME) {
+                endDropRun();
+            } else {
+                // frames up to the next keyframe depend on the dropped frame
+                waitingForKeyframe = true;
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void sendPacket(RTMPMessage message) {
+    }
+
+    /** {@inheritDoc} */
+    public void reset() {
+        reset(SEND_ALL);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Any state other than {@link IFrameDropper#SEND_ALL} waits for the next keyframe.
+     */
+    public void reset(int state) {
+        waitingForKeyframe = state != SEND_ALL;
+        sequentialPendingVideoFrames = 0;
+        endDropRun();
+    }
+
+    public boolean isWaitingForKeyframe() {
+        return waitingForKeyframe;
+    }
+
+    /**
+     * @return estimated bandwidth in bytes per second
+     */
+    public long getBandwidth() {
+        return (long) (bandwidth * 1000);
+    }
+
+    /**
+     * @return last estimated latency in milliseconds
+     */
+    public long getLatency() {
+        return lastLatency;
+    }
+
+    /**
+     * @return counts of the latencies in {@link #LATENCY_BUCKETS_MS}
+     */
+    public long[] getLatencyHistogram() {
+        return toArray(latencyHistogram);
+    }
+
+    /**
+     * @return counts of the drop run lengths in {@link #DROP_RUN_BUCKETS}
+     */
+    public long[] getDropRunHistogram() {
+        return toArray(dropRunHistogram);
+    }
+
+    /**
+     * @param type
+     *            frame type
+     * @return number of dropped frames of the type
+     */
+    public long getDroppedFrames(FrameType type) {
+        return droppedFrames.get(type.ordinal());
+    }
+
+    private static long[] toArray(AtomicLongArray histogram) {
+        long[] values = new long[histogram.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = histogram.get(i);
+        }
+        return values;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    public void setMaxLatency(long maxLatency) {
+        this.maxLatency = maxLatency;
+    }
+
+    public long getResumeLatency() {
+        return resumeLatency;
+    }
+
+    public void setResumeLatency(long resumeLatency) {
+        this.resumeLatency = resumeLatency;
+    }
+
+    public void setMaxPendingVideoFrames(int maxPendingVideoFrames) {
+        this.maxPendingVideoFrames = maxPendingVideoFrames;
+    }
+
+    public void setMaxSequentialPendingVideoFrames(int maxSequentialPendingVideoFrames) {
+        this.maxSequentialPendingVideoFrames = maxSequentialPendingVideoFrames;
+    }
+
+    @Override
+    public String toString() {
+        return "SubscriberCongestionController [bandwidth=" + getBandwidth() + ", latency=" + lastLatency + ", droppedKeyframes=" + getDroppedFrames(FrameType.KEYFRAME) + ", droppedInterframes="
+                + getDroppedFrames(FrameType.INTERFRAME) + ", droppedDisposableInterframes=" + getDroppedFrames(FrameType.DISPOSABLE_INTERFRAME) + ", latencyHistogram="
+                + Arrays.toString(getLatencyHistogram()) + ", dropRunHistogram=" + Arrays.toString(getDropRunHistogram()) + "]";
+    }
+
+}
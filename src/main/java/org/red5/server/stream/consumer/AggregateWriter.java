@@ -0,0 +1,252 @@
+/*
+ * RED5 Open Source Media Server - https://github.com/Red5/
+ *
+ * Copyright 2006-2016 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.stream.consumer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.red5.server.net.rtmp.RTMPUtils;
+import org.red5.server.net.rtmp.event.Aggregate;
+import org.red5.server.net.rtmp.event.BaseEvent;
+import org.red5.server.net.rtmp.event.IRTMPEvent;
+import org.red5.server.net.rtmp.event.SharedAggregate;
+import org.red5.server.net.rtmp.message.Header;
+
+/**
+ * Coalesces the audio and video tags of a subscriber into aggregate messages.
+ *
+ * Each tag is written in FLV tag layout: type, 24 bit size, 24 bit timestamp with the extended byte, 24 bit stream id, payload and 32 bit back pointer. Tag timestamps are
+ * absolute and the aggregate has the timestamp of its first tag, so clients that read tag times as offsets from the aggregate time get the same result.
+ *
+ * Aggregates are aligned to windows of {@link #getWindowMs()} of stream time, so subscribers of a stream aggregate the same events. An aggregate is completed when a tag of
+ * the next window arrives, when its size would exceed {@link #getMaxSize()} or when it's buffered for the window duration in wall clock time, see
+ * {@link #getDeadlineDelayMs()}. The aggregate of a list of events is built once and kept by its first event; other subscribers with the same events reuse it and its shared
+ * chunk cache, so the payload is copied and chunked once for all of them.
+ *
+ * Not thread safe, it's used by the thread pushing the messages of a subscriber.
+ */
+public class AggregateWriter {
+
+    /**
+     * Size of the tag header and the back pointer
+     */
+    private static final int TAG_OVERHEAD = 15;
+
+    private final int windowMs;
+
+    private final int maxSize;
+
+    /**
+     * Buffered events, their data types, timestamps and payloads
+     */
+    private final List<IRTMPEvent> events = new ArrayList<>();
+
+    private final List<IoBuffer> payloads = new ArrayList<>();
+
+    private final List<Byte> dataTypes = new ArrayList<>();
+
+    private final List<Integer> timestamps = new ArrayList<>();
+
+    private int size;
+
+    private int firstTimestamp;
+
+    private int lastTimestamp;
+
+    /**
+     * Wall clock time the first tag is buffered in nanoseconds
+     */
+    private long firstTagNanos;
+
+    private long aggregateCount;
+
+    private long aggregatedTagCount;
+
+    private long sharedAggregateCount;
+
+    /**
+     * @param windowMs
+     *            stream time covered by an aggregate in milliseconds
+     * @param maxSize
+     *            max size of an aggregate in bytes, a single larger tag is sent alone
+     */
+    public AggregateWriter(int windowMs, int maxSize) {
+        this.windowMs = Math.max(windowMs, 1);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Adds a tag to the current aggregate
+     *
+     * @param event
+     *            stream event of the tag, it's used to share the aggregate with the other subscribers
+     * @param dataType
+     *            audio or video data type
+     * @param timestamp
+     *            timestamp of the tag
+     * @param payload
+     *            tag payload, its position is not changed
+     * @return completed aggregate to send or null if the tag is buffered
+     */
+    public Aggregate add(IRTMPEvent event, byte dataType, int timestamp, IoBuffer payload) {
+        Aggregate completed = null;
+        int tagSize = payload.remaining() + TAG_OVERHEAD;
+        if (!events.isEmpty() && (timestamp < lastTimestamp || timestamp / windowMs != firstTimestamp / windowMs || size + tagSize > maxSize)) {
+            // timestamp reset, tag of the next window or aggregate would be too large, send the previous tags first
+            completed = flush();
+        }
+        if (events.isEmpty()) {
+            firstTimestamp = timestamp;
+            firstTagNanos = System.nanoTime();
+        }
+        events.add(event);
+        payloads.add(payload.duplicate());
+        dataTypes.add(dataType);
+        timestamps.add(timestamp);
+        size += tagSize;
+        lastTimestamp = timestamp;
+        return completed;
+    }
+
+    /**
+     * Completes the current aggregate. It's shared with the other subscribers if they have the same events.
+     *
+     * @return aggregate or null if there is no buffered tag
+     */
+    public Aggregate flush() {
+        if (events.isEmpty()) {
+            return null;
+        }
+        final IRTMPEvent first = events.get(0);
+        Aggregate source = null;
+        if (first instanceof BaseEvent) {
+            source = ((BaseEvent) first).retainSharedAggregate(events);
+            if (source != null) {
+                sharedAggregateCount++;
+            } else {
+                source = build();
+                source.retain();
+                ((BaseEvent) first).setSharedAggregate(new SharedAggregate(events, source));
+            }
+        } else {
+            source = build();
+        }
+        // aggregate of this subscriber refers to the shared data and chunks
+        Aggregate aggregate = new Aggregate(source.getData().asReadOnlyBuffer());
+        Header header = new Header();
+        header.setTimerBase(firstTimestamp);
+        aggregate.setHeader(header);
+        aggregate.setTimestamp(firstTimestamp);
+        aggregate.setChunkCache(source.getSharedChunkCache());
+        source.release();
+        aggregateCount++;
+        aggregatedTagCount += events.size();
+        clear();
+        return aggregate;
+    }
+
+    /**
+     * Writes the buffered tags into an aggregate
+     *
+     * @return aggregate
+     */
+    private Aggregate build() {
+        IoBuffer buffer = IoBuffer.allocate(size);
+        for (int i = 0; i < events.size(); i++) {
+            IoBuffer payload = payloads.get(i);
+            int timestamp = timestamps.get(i);
+            int tagSize = payload.remaining();
+            buffer.put(dataTypes.get(i));
+            RTMPUtils.writeMediumInt(buffer, tagSize);
+            RTMPUtils.writeMediumInt(buffer, timestamp & 0xffffff);
+            buffer.put((byte) ((timestamp >>> 24) & 0xff));
+            // stream id is taken from the header of the aggregate
+            RTMPUtils.writeMediumInt(buffer, 0);
+            buffer.put(payload);
+            buffer.putInt(tagSize + 11);
+        }
+        buffer.flip();
+        Aggregate aggregate = new Aggregate(buffer);
+        aggregate.setTimestamp(firstTimestamp);
+        return aggregate;
+    }
+
+    /**
+     * Returns the time until the buffered tags should be sent even if no tag follows them
+     *
+     * @return delay in milliseconds, 0 if the aggregate is due or -1 if there is no buffered tag
+     */
+    public long getDeadlineDelayMs() {
+        if (events.isEmpty()) {
+            return -1;
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - firstTagNanos);
+        return Math.max(windowMs - elapsedMs, 0);
+    }
+
+    /**
+     * Drops the buffered tags
+     */
+    public void clear() {
+        events.clear();
+        payloads.clear();
+        dataTypes.clear();
+        timestamps.clear();
+        size = 0;
+    }
+
+    /**
+     * @return number of tags waiting in the current aggregate
+     */
+    public int getPendingTagCount() {
+        return events.size();
+    }
+
+    /**
+     * @return number of aggregates created
+     */
+    public long getAggregateCount() {
+        return aggregateCount;
+    }
+
+    /**
+     * @return number of tags sent in aggregates, the difference to {@link #getAggregateCount()} is the number of saved messages
+     */
+    public long getAggregatedTagCount() {
+        return aggregatedTagCount;
+    }
+
+    /**
+     * @return number of aggregates that are built by another subscriber and reused
+     */
+    public long getSharedAggregateCount() {
+        return sharedAggregateCount;
+    }
+
+    public int getWindowMs() {
+        return windowMs;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+}
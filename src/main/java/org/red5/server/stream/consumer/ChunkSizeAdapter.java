@@ -0,0 +1,195 @@
+/*
+ * RED5 Open Source Media Server - https://github.com/Red5/
+ *
+ * Copyright 2006-2016 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.stream.consumer;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adapts the write chunk size of a subscriber connection to the bitrate of the stream.
+ *
+ * Chunk size is chosen so that a chunk is sent in about {@link #getChunkDurationMs()} at the stream bitrate; a larger chunk would delay the interleaved audio. The size
+ * is a power of two between the min and max of the policy and it's never lower than the chunk size the client uses itself, since the client is known to handle it.
+ * Bitrate is measured over windows of {@link #WINDOW_MS} stream time. The size grows when the ideal size is at least twice the current size and shrinks when it's less
+ * than half, so it does not oscillate around a boundary.
+ *
+ * Chunks saved compared to the initial chunk size are counted for every connection and for the whole server.
+ */
+public class ChunkSizeAdapter {
+
+    /**
+     * Length of a bitrate measurement window in milliseconds of stream time
+     */
+    public static final int WINDOW_MS = 2000;
+
+    private static final LongAdder totalSavedChunks = new LongAdder();
+
+    private final int minChunkSize;
+
+    private final int maxChunkSize;
+
+    private final int chunkDurationMs;
+
+    private final int baseChunkSize;
+
+    private int clientChunkSize;
+
+    private int chunkSize;
+
+    private long windowStart = -1;
+
+    private long windowBytes;
+
+    private long windowSavedChunks;
+
+    private volatile long bytesPerSecond;
+
+    private volatile long savedChunksPerSecond;
+
+    private volatile long savedChunks;
+
+    /**
+     * @param minChunkSize
+     *            lower bound of the chunk size
+     * @param maxChunkSize
+     *            upper bound of the chunk size
+     * @param chunkDurationMs
+     *            target time to send a chunk at the stream bitrate
+     * @param initialChunkSize
+     *            chunk size before adaptation, saved chunks are counted against it
+     */
+    public ChunkSizeAdapter(int minChunkSize, int maxChunkSize, int chunkDurationMs, int initialChunkSize) {
+        this.minChunkSize = Math.max(minChunkSize, 128);
+        this.maxChunkSize = Math.max(maxChunkSize, this.minChunkSize);
+        this.chunkDurationMs = chunkDurationMs;
+        this.baseChunkSize = initialChunkSize;
+        this.chunkSize = initialChunkSize;
+    }
+
+    /**
+     * Records a message that is sent to the subscriber
+     *
+     * @param size
+     *            payload size
+     * @param timestamp
+     *            stream timestamp of the message
+     * @return new chunk size to send to the subscriber or -1 if it should not change
+     */
+    public int onMessage(int size, int timestamp) {
+        long saved = chunkCount(size, baseChunkSize) - chunkCount(size, chunkSize);
+        windowSavedChunks += saved;
+        if (saved != 0) {
+            savedChunks += saved;
+            totalSavedChunks.add(saved);
+        }
+        windowBytes += size;
+        if (windowStart < 0 || timestamp < windowStart) {
+            // first message or timestamp reset
+            windowStart = timestamp;
+            windowBytes = size;
+            windowSavedChunks = saved;
+            return -1;
+        }
+        long elapsed = timestamp - windowStart;
+        if (elapsed < WINDOW_MS) {
+            return -1;
+        }
+        bytesPerSecond = windowBytes * 1000 / elapsed;
+        savedChunksPerSecond = windowSavedChunks * 1000 / elapsed;
+        windowStart = timestamp;
+        windowBytes = 0;
+        windowSavedChunks = 0;
+
+        long idealChunkSize = bytesPerSecond * chunkDurationMs / 1000;
+        int lowerBound = Math.max(minChunkSize, clientChunkSize);
+        int newChunkSize = chunkSize;
+        if (idealChunkSize >= chunkSize * 2L || idealChunkSize < chunkSize / 2) {
+            newChunkSize = (int) Math.min(Long.highestOneBit(Math.max(idealChunkSize, 1)), maxChunkSize);
+            newChunkSize = Math.max(newChunkSize, lowerBound);
+        }
+        if (newChunkSize != chunkSize) {
+            chunkSize = newChunkSize;
+            return newChunkSize;
+        }
+        return -1;
+    }
+
+    private static long chunkCount(int size, int chunkSize) {
+        return (size + chunkSize - 1) / chunkSize;
+    }
+
+    /**
+     * Sets the chunk size that the client uses for its own messages, chunk size is not adapted below it
+     *
+     * @param clientChunkSize
+     *            chunk size of the client
+     */
+    public void setClientChunkSize(int clientChunkSize) {
+        this.clientChunkSize = Math.min(clientChunkSize, maxChunkSize);
+    }
+
+    /**
+     * Sets the current chunk size when it's changed by another party, like the publisher of the stream
+     *
+     * @param chunkSize
+     *            chunk size
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return current chunk size
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkDurationMs() {
+        return chunkDurationMs;
+    }
+
+    /**
+     * @return bitrate of the stream in the last window in bytes per second
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return chunks saved per second in the last window compared to the initial chunk size
+     */
+    public long getSavedChunksPerSecond() {
+        return savedChunksPerSecond;
+    }
+
+    /**
+     * @return chunks saved by this connection compared to the initial chunk size
+     */
+    public long getSavedChunks() {
+        return savedChunks;
+    }
+
+    /**
+     * @return chunks saved by all subscriber connections
+     */
+    public static long getTotalSavedChunks() {
+        return totalSavedChunks.sum();
+    }
+
+}
@@ -18,9 +18,12 @@
 
 package org.red5.server.stream.consumer;
 
+import java.util.Date;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.red5.server.api.scope.IScope;
 import org.red5.server.api.stream.IClientStream;
 import org.red5.server.messaging.IMessage;
 import org.red5.server.messaging.IMessageComponent;
@@ -30,7 +33,9 @@ import org.red5.server.messaging.IPushableConsumer;
 import org.red5.server.messaging.OOBControlMessage;
 import org.red5.server.messaging.PipeConnectionEvent;
 import org.red5.server.net.rtmp.Channel;
+import org.red5.server.net.rtmp.ConnectionTimer;
 import org.red5.server.net.rtmp.RTMPConnection;
+import org.red5.server.net.rtmp.event.Aggregate;
 import org.red5.server.net.rtmp.event.AudioData;
 import org.red5.server.net.rtmp.event.BytesRead;
 import org.red5.server.net.rtmp.event.ChunkSize;
@@ -46,6 +51,9 @@ import org.red5.server.stream.message.ResetMessage;
 import org.red5.server.stream.message.StatusMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationContext;
+
+import io.antmedia.AppSettings;
 
 /**
  * RTMP connection consumer.
@@ -59,6 +67,11 @@ public class ConnectionConsumer implements IPushableConsumer, IPipeConnectionLis
      */
     public static final String KEY = ConnectionConsumer.class.getName();
 
+    /**
+     * Connect parameter of a player to ask for aggregate messages (true) or refuse them (false) regardless of its flashVer
+     */
+    public static final String AGGREGATES_PARAM = "aggregates";
+
     /**
      * Connection object
      */
@@ -89,6 +102,21 @@ public class ConnectionConsumer implements IPushableConsumer, IPipeConnectionLis
      */
     private AtomicBoolean chunkSizeSent = new AtomicBoolean(false);
 
+    /**
+     * Adapts the chunk size to the stream bitrate, null if adaptive chunk size is disabled
+     */
+    private ChunkSizeAdapter chunkSizeAdapter;
+
+    /**
+     * Coalesces audio and video into aggregate messages, null if aggregates are disabled or the client does not support them
+     */
+    private AggregateWriter aggregateWriter;
+
+    /**
+     * True while a flush of the buffered tags is scheduled
+     */
+    private final AtomicBoolean deadlineFlushScheduled = new AtomicBoolean(false);
+
     /**
      * Create RTMP connection consumer for given connection and channels.
      * 
@@ -107,6 +135,85 @@ public class ConnectionConsumer implements IPushableConsumer, IPipeConnectionLis
         this.video = videoChannel;
         this.audio = audioChannel;
         this.data = dataChannel;
+        AppSettings appSettings = getAppSettings(conn);
+        if (appSettings != null) {
+            this.chunkSizeAdapter = createChunkSizeAdapter(conn, appSettings);
+            this.aggregateWriter = createAggregateWriter(conn, appSettings);
+        }
+    }
+
+    /**
+     * @param conn
+     *            RTMP connection
+     * @return app settings of the connection's scope or null if there is none
+     */
+    private static AppSettings getAppSettings(RTMPConnection conn) {
+        IScope scope = conn.getScope();
+        if (scope == null || scope.getContext() == null) {
+            return null;
+        }
+        ApplicationContext applicationContext = scope.getContext().getApplicationContext();
+        if (applicationContext == null || !applicationContext.containsBean(AppSettings.BEAN_NAME)) {
+            return null;
+        }
+        return (AppSettings) applicationContext.getBean(AppSettings.BEAN_NAME);
+    }
+
+    /**
+     * Creates the chunk size adapter with the policy in the app settings of the connection's scope
+     *
+     * @param conn
+     *            RTMP connection
+     * @param appSettings
+     *            app settings
+     * @return adapter or null if adaptive chunk size is not enabled
+     */
+    private ChunkSizeAdapter createChunkSizeAdapter(RTMPConnection conn, AppSettings appSettings) {
+        if (!appSettings.isRtmpAdaptiveChunkSizeEnabled()) {
+            return null;
+        }
+        ChunkSizeAdapter adapter = new ChunkSizeAdapter(appSettings.getRtmpMinChunkSize(), appSettings.getRtmpMaxChunkSize(), appSettings.getRtmpChunkDurationMS(), chunkSize);
+        // client handles the chunk size it sends with
+        adapter.setClientChunkSize(conn.getState().getReadChunkSize());
+        return adapter;
+    }
+
+    /**
+     * Creates the aggregate writer if aggregates are enabled for the client. A player can ask for aggregates or refuse them with the {@link #AGGREGATES_PARAM} connect
+     * parameter. Otherwise the flashVer of the player is matched against the configured prefixes; Flash Player, librtmp and ffmpeg send a flashVer that starts with the
+     * platform, and "*" matches any player. Others fall back to a message per tag.
+     *
+     * @param conn
+     *            RTMP connection
+     * @param appSettings
+     *            app settings
+     * @return writer or null if aggregates are not sent to this client
+     */
+    private static AggregateWriter createAggregateWriter(RTMPConnection conn, AppSettings appSettings) {
+        if (appSettings.getRtmpAggregateWindowMS() <= 0) {
+            return null;
+        }
+        Map<String, Object> connectParams = conn.getConnectParams();
+        Object flashVer = connectParams != null ? connectParams.get("flashVer") : null;
+        Object requested = connectParams != null ? connectParams.get(AGGREGATES_PARAM) : null;
+        boolean enabled = false;
+        if (requested != null) {
+            enabled = Boolean.parseBoolean(String.valueOf(requested));
+        } else if (flashVer instanceof String && appSettings.getRtmpAggregateClients() != null) {
+            for (String prefix : appSettings.getRtmpAggregateClients().split(",")) {
+                prefix = prefix.trim();
+                if ("*".equals(prefix) || (!prefix.isEmpty() && ((String) flashVer).startsWith(prefix))) {
+                    enabled = true;
+                    break;
+                }
+            }
+        }
+        if (enabled) {
+            log.debug("Aggregate messages are enabled for client: {} window: {}ms", flashVer, appSettings.getRtmpAggregateWindowMS());
+            return new AggregateWriter(appSettings.getRtmpAggregateWindowMS(), appSettings.getRtmpAggregateMaxSize());
+        }
+        log.debug("Aggregate messages are not sent to client: {}", flashVer);
+        return null;
     }
 
     /**
@@ -129,8 +236,10 @@ public class ConnectionConsumer implements IPushableConsumer, IPipeConnectionLis
     public void pushMessage(IPipe pipe, IMessage message) {
         //log.trace("pushMessage - type: {}", message.getMessageType());
         if (message instanceof ResetMessage) {
-            //ignore
+            // tags of the previous timeline are not sent
+            clearAggregate();
         } else if (message instanceof StatusMessage) {
+            flushAggregate();
             StatusMessage statusMsg = (StatusMessage) message;
             data.sendStatus(statusMsg.getBody());
         } else if (message instanceof RTMPMessage) {
@@ -149,6 +258,10 @@ public class ConnectionConsumer implements IPushableConsumer, IPipeConnectionLis
             // get the data type
             byte dataType = msg.getDataType();
             log.trace("Data type: {}", dataType);
+            if (dataType != Constants.TYPE_AUDIO_DATA && dataType != Constants.TYPE_VIDEO_DATA) {
+                // keep the order of the buffered tags and the other messages
+                flushAggregate();
+            }
             // create a new header for the consumer
             final Header header = new Header();
             header.setTimerBase(eventTime);
@@ -162,13 +275,19 @@ public class ConnectionConsumer implements IPushableConsumer, IPipeConnectionLis
                 case Constants.TYPE_AUDIO_DATA:
                     log.trace("Audio data");
                     buf = ((AudioData) msg).getData();
-                    if (buf != null) {
+                    if (buf != null && aggregateWriter != null) {
+                        writeAggregated(msg, dataType, eventTime, buf);
+                        adaptChunkSize(buf.remaining(), eventTime);
+                    } else if (buf != null) {
                         AudioData audioData = new AudioData(buf.asReadOnlyBuffer());
                         audioData.setHeader(header);
                         audioData.setTimestamp(header.getTimer());
                         log.trace("Source type: {}", ((AudioData) msg).getSourceType());
                         audioData.setSourceType(((AudioData) msg).getSourceType());
+                        // payload is chunked once for all subscribers
+                        audioData.setChunkCache(((AudioData) msg).getSharedChunkCache());
                         audio.write(audioData);
+                        adaptChunkSize(buf.remaining(), eventTime);
                     } else {
                         log.warn("Audio data was not found");
                     }
@@ -176,13 +295,19 @@ public class ConnectionConsumer implements IPushableConsumer, IPipeConnectionLis
                 case Constants.TYPE_VIDEO_DATA:
                     log.trace("Video data");
                     buf = ((VideoData) msg).getData();
-                    if (buf != null) {
+                    if (buf != null && aggregateWriter != null) {
+                        writeAggregated(msg, dataType, eventTime, buf);
+                        adaptChunkSize(buf.remaining(), eventTime);
+                    } else if (buf != null) {
                         VideoData videoData = new VideoData(buf.asReadOnlyBuffer());
                         videoData.setHeader(header);
                         videoData.setTimestamp(header.getTimer());
                         log.trace("Source type: {}", ((VideoData) msg).getSourceType());
                         videoData.setSourceType(((VideoData) msg).getSourceType());
+                        // payload is chunked once for all subscribers
+                        videoData.setChunkCache(((VideoData) msg).getSharedChunkCache());
                         video.write(videoData);
+                        adaptChunkSize(buf.remaining(), eventTime);
                     } else {
                         log.warn("Video data was not found");
                     }
@@ -240,6 +365,7 @@ public class ConnectionConsumer implements IPushableConsumer, IPipeConnectionLis
     /** {@inheritDoc} */
     public void onPipeConnectionEvent(PipeConnectionEvent event) {
         if (event.getType().equals(PipeConnectionEvent.EventType.PROVIDER_DISCONNECT)) {
+            flushAggregate();
             closeChannels();
         }
     }
@@ -251,6 +377,9 @@ public class ConnectionConsumer implements IPushableConsumer, IPipeConnectionLis
             log.trace("Service name: {}", serviceName);
             if ("pendingCount".equals(serviceName)) {
                 oobCtrlMsg.setResult(conn.getPendingMessages());
+            } else if ("pendingBytes".equals(serviceName)) {
+                // bytes queued in the session and its write batch
+                oobCtrlMsg.setResult(conn.getPendingWriteBytes());
             } else if ("pendingVideoCount".equals(serviceName)) {
                 IClientStream stream = conn.getStreamByChannelId(video.getId());
                 if (stream != null) {
@@ -269,13 +398,162 @@ public class ConnectionConsumer implements IPushableConsumer, IPipeConnectionLis
                 int newSize = (Integer) oobCtrlMsg.getServiceParamMap().get("chunkSize");
                 if (newSize != chunkSize) {
                     chunkSize = newSize;
+                    if (chunkSizeAdapter != null) {
+                        chunkSizeAdapter.setChunkSize(newSize);
+                    }
                     chunkSizeSent.set(false);
                     sendChunkSize();
                 }
+            } else if ("savedChunksPerSecond".equals(serviceName)) {
+                oobCtrlMsg.setResult(chunkSizeAdapter != null ? chunkSizeAdapter.getSavedChunksPerSecond() : 0L);
+            } else if ("aggregatedMessages".equals(serviceName)) {
+                if (aggregateWriter != null) {
+                    synchronized (aggregateWriter) {
+                        oobCtrlMsg.setResult(new Long[] { aggregateWriter.getAggregatedTagCount(), aggregateWriter.getAggregateCount() });
+                    }
+                } else {
+                    oobCtrlMsg.setResult(new Long[] { 0L, 0L });
+                }
             }
         }
     }
 
+    /**
+     * Sends a new chunk size if the adapter decides to change it for the stream bitrate
+     *
+     * @param size
+     *            payload size of the message
+     * @param timestamp
+     *            timestamp of the message
+     */
+    private void adaptChunkSize(int size, int timestamp) {
+        if (chunkSizeAdapter != null) {
+            int newSize = chunkSizeAdapter.onMessage(size, timestamp);
+            if (newSize > 0) {
+                log.debug("Adapting chunk size from {} to {}, stream bitrate: {} bytes/s", chunkSize, newSize, chunkSizeAdapter.getBytesPerSecond());
+                chunkSize = newSize;
+                chunkSizeSent.set(false);
+                sendChunkSize();
+            }
+        }
+    }
+
+    /**
+     * Adds the tag to the aggregate and sends the aggregate when it's complete
+     *
+     * @param event
+     *            stream event of the tag
+     * @param dataType
+     *            audio or video data type
+     * @param timestamp
+     *            timestamp of the tag
+     * @param payload
+     *            tag payload
+     */
+    private void writeAggregated(IRTMPEvent event, byte dataType, int timestamp, IoBuffer payload) {
+        long deadlineDelayMs;
+        // aggregates are written in the lock to keep their order with a concurrent flush
+        synchronized (aggregateWriter) {
+            Aggregate aggregate = aggregateWriter.add(event, dataType, timestamp, payload);
+            if (aggregate != null) {
+                data.write(aggregate);
+            }
+            deadlineDelayMs = aggregateWriter.getDeadlineDelayMs();
+        }
+        if (deadlineDelayMs >= 0) {
+            scheduleDeadlineFlush(deadlineDelayMs);
+        }
+    }
+
+    /**
+     * Schedules a flush of the buffered tags in case no tag follows them in time. There is at most one scheduled flush.
+     *
+     * @param delayMs
+     *            delay in milliseconds
+     */
+    private void scheduleDeadlineFlush(long delayMs) {
+        if (!deadlineFlushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            ConnectionTimer timer = conn.getConnectionTimer();
+            if (timer != null) {
+                timer.schedule(this::deadlineFlush, delayMs);
+            } else if (conn.getScheduler() != null) {
+                conn.getScheduler().schedule(this::deadlineFlush, new Date(System.currentTimeMillis() + delayMs));
+            } else {
+                // tags are sent with the next tag or message
+                deadlineFlushScheduled.set(false);
+            }
+        } catch (Exception e) {
+            deadlineFlushScheduled.set(false);
+            log.warn("Aggregate flush cannot be scheduled, it's sent with the next message", e);
+        }
+    }
+
+    /**
+     * Sends the buffered tags if they're waiting longer than the aggregate window, otherwise schedules itself again
+     */
+    private void deadlineFlush() {
+        deadlineFlushScheduled.set(false);
+        if (conn.isClosed()) {
+            return;
+        }
+        long deadlineDelayMs;
+        synchronized (aggregateWriter) {
+            deadlineDelayMs = aggregateWriter.getDeadlineDelayMs();
+            if (deadlineDelayMs == 0) {
+                Aggregate aggregate = aggregateWriter.flush();
+                if (aggregate != null) {
+                    data.write(aggregate);
+                }
+                return;
+            }
+        }
+        if (deadlineDelayMs > 0) {
+            scheduleDeadlineFlush(deadlineDelayMs);
+        }
+    }
+
+    /**
+     * Sends the buffered tags as an aggregate
+     */
+    private void flushAggregate() {
+        if (aggregateWriter != null) {
+            synchronized (aggregateWriter) {
+                Aggregate aggregate = aggregateWriter.flush();
+                if (aggregate != null) {
+                    data.write(aggregate);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the buffered tags
+     */
+    private void clearAggregate() {
+        if (aggregateWriter != null) {
+            synchronized (aggregateWriter) {
+                aggregateWriter.clear();
+            }
+        }
+    }
+
+    /**
+     * @return aggregate writer or null if aggregates are not sent to this connection
+     */
+    public AggregateWriter getAggregateWriter() {
+        return aggregateWriter;
+    }
+
+    /**
+     * @return chunk size adapter or null if adaptive chunk size is disabled
+     */
+    public ChunkSizeAdapter getChunkSizeAdapter() {
+        return chunkSizeAdapter;
+    }
+
     /**
      * Send the chunk size
      */
@@ -0,0 +1,128 @@
+package io.antmedia.datastore.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.antmedia.datastore.db.types.StreamInfo;
+import io.antmedia.datastore.db.types.TensorFlowObject;
+
+public class TestBatchingAnalyticsDataStore {
+
+	private InMemoryDataStore store;
+
+	private BatchingAnalyticsDataStore dataStore;
+
+	@Before
+	public void setUp() {
+		store = new InMemoryDataStore("test");
+		dataStore = new BatchingAnalyticsDataStore(store, 50, 100, 1000, 100);
+	}
+
+	@After
+	public void tearDown() {
+		dataStore.close();
+	}
+
+	private static StreamInfo streamInfo(String streamId, String host, int videoPort, int audioPort) {
+		StreamInfo streamInfo = new StreamInfo();
+		streamInfo.setStreamId(streamId);
+		streamInfo.setHost(host);
+		streamInfo.setVideoPort(videoPort);
+		streamInfo.setAudioPort(audioPort);
+		return streamInfo;
+	}
+
+	@Test
+	public void testWritesAreBatched() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			dataStore.saveStreamInfo(streamInfo("stream" + i, "host", 5000 + i * 2, 5001 + i * 2));
+		}
+		dataStore.saveDetection("stream0_1", 1000, Arrays.asList(new TensorFlowObject("person", 0.9f, "image1")));
+		assertTrue(dataStore.flush());
+
+		assertEquals(1, dataStore.getStreamInfoList("stream3").size());
+		assertEquals(1, store.getDetection("stream0_1").size());
+		assertEquals(11, dataStore.getWrittenCount());
+		// writes of a batch period are written together
+		assertTrue(dataStore.getBatchCount() < 11);
+	}
+
+	@Test
+	public void testSavedStreamInfoRemovesTheOnesWithSamePorts() throws Exception {
+		dataStore.saveStreamInfo(streamInfo("stream1", "host1", 5000, 5002));
+		dataStore.saveStreamInfo(streamInfo("stream2", "host2", 5000, 5002));
+		CompletableFuture<Void> future = dataStore.saveStreamInfoAsync(streamInfo("stream3", "host1", 6000, 5000));
+		future.get(5, TimeUnit.SECONDS);
+
+		// stream1 was not closed properly and its port is used by stream3 on the same host
+		assertTrue(dataStore.getStreamInfoList("stream1").isEmpty());
+		assertEquals(1, dataStore.getStreamInfoList("stream2").size());
+		assertEquals(1, dataStore.getStreamInfoList("stream3").size());
+	}
+
+	@Test
+	public void testAddedAndSavedStreamInfosKeepTheirOrder() throws Exception {
+		dataStore.addStreamInfoList(Arrays.asList(streamInfo("stream1", "host", 5000, 5002), streamInfo("stream1", "host", 5000, 5002)));
+		dataStore.saveStreamInfoList(Arrays.asList(streamInfo("stream2", "host", 5000, 5010)));
+		dataStore.addStreamInfoList(Arrays.asList(streamInfo("stream3", "host", 5000, 5020)));
+		assertTrue(dataStore.flush());
+
+		// added stream infos are not cleaned, the saved one removes the ones added before it
+		assertTrue(store.getStreamInfoList("stream1").isEmpty());
+		assertEquals(1, store.getStreamInfoList("stream2").size());
+		assertEquals(1, store.getStreamInfoList("stream3").size());
+	}
+
+	@Test
+	public void testWriteIsRejectedWhenQueueIsFull() throws Exception {
+		CountDownLatch writeStarted = new CountDownLatch(1);
+		CountDownLatch releaseWrite = new CountDownLatch(1);
+		InMemoryDataStore slowStore = new InMemoryDataStore("test") {
+			@Override
+			public synchronized void saveStreamInfoList(List<StreamInfo> streamInfoList) {
+				writeStarted.countDown();
+				try {
+					releaseWrite.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.saveStreamInfoList(streamInfoList);
+			}
+		};
+		BatchingAnalyticsDataStore slowDataStore = new BatchingAnalyticsDataStore(slowStore, 10, 1, 1, 10);
+		try {
+			CompletableFuture<Void> first = slowDataStore.saveStreamInfoAsync(streamInfo("stream1", "host", 5000, 5002));
+			assertTrue(writeStarted.await(5, TimeUnit.SECONDS));
+			CompletableFuture<Void> queued = slowDataStore.saveStreamInfoAsync(streamInfo("stream2", "host", 6000, 6002));
+			CompletableFuture<Void> rejected = slowDataStore.saveStreamInfoAsync(streamInfo("stream3", "host", 7000, 7002));
+
+			assertTrue(rejected.isCompletedExceptionally());
+			assertEquals(1, slowDataStore.getRejectedCount());
+			assertFalse(queued.isDone());
+
+			releaseWrite.countDown();
+			first.get(5, TimeUnit.SECONDS);
+			queued.get(5, TimeUnit.SECONDS);
+			// writes before the flush marker are counted when it returns
+			assertTrue(slowDataStore.flush());
+			assertEquals(2, slowDataStore.getWrittenCount());
+		}
+		finally {
+			releaseWrite.countDown();
+			slowDataStore.close();
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+package io.antmedia.datastore.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import io.antmedia.IAppSettingsUpdateListener;
+import io.antmedia.cluster.IBroadcastChangeListener;
+import io.antmedia.cluster.IClusterNotifier;
+import io.antmedia.cluster.IClusterStore;
+import io.antmedia.datastore.db.types.Broadcast;
+import io.antmedia.datastore.db.types.BroadcastStatus;
+
+public class TestCachedBroadcastDataStore {
+
+	/**
+	 * Keeps the notifications and the registered listener
+	 */
+	private static class RecordingClusterNotifier implements IClusterNotifier {
+
+		final List<String> changedStreams = new ArrayList<>();
+		IBroadcastChangeListener listener;
+
+		@Override
+		public IClusterStore getClusterStore() {
+			return null;
+		}
+
+		@Override
+		public void registerSettingUpdateListener(String appName, IAppSettingsUpdateListener listener) {
+		}
+
+		@Override
+		public void registerBroadcastChangeListener(String appName, IBroadcastChangeListener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public void notifyBroadcastChanged(String appName, String streamId) {
+			changedStreams.add(streamId);
+		}
+	}
+
+	private InMemoryDataStore store;
+
+	private CachedBroadcastDataStore dataStore;
+
+	@Before
+	public void setUp() throws Exception {
+		store = new InMemoryDataStore("test");
+		for (int i = 0; i < 10; i++) {
+			Broadcast broadcast = new Broadcast("broadcast" + i);
+			broadcast.setStreamId("stream" + i);
+			store.save(broadcast);
+		}
+		dataStore = new CachedBroadcastDataStore(store, 4, 60000);
+	}
+
+	@Test
+	public void testReadsReturnCopies() {
+		Broadcast broadcast = dataStore.get("stream0");
+		assertEquals(1, dataStore.getMissCount());
+		broadcast.setName("changed");
+
+		Broadcast cached = dataStore.get("stream0");
+		assertEquals(1, dataStore.getHitCount());
+		assertEquals("broadcast0", cached.getName());
+		assertNotSame(cached, dataStore.get("stream0"));
+		assertNull(dataStore.get("unknown"));
+		assertEquals(1, dataStore.getSize());
+	}
+
+	@Test
+	public void testChangeInvalidatesInCluster() {
+		RecordingClusterNotifier clusterNotifier = new RecordingClusterNotifier();
+		dataStore.setClusterNotifier(clusterNotifier, "app");
+		assertSame(dataStore, clusterNotifier.listener);
+
+		dataStore.get("stream0");
+		assertTrue(dataStore.updateStatus("stream0", BroadcastStatus.LIVE_NOW));
+		assertEquals(BroadcastStatus.LIVE_NOW, dataStore.get("stream0").getStatus());
+		assertEquals(1, dataStore.getInvalidationCount());
+		assertEquals(1, clusterNotifier.changedStreams.size());
+
+		// change on another node
+		store.get("stream0").setName("changed");
+		clusterNotifier.listener.broadcastChanged("stream0");
+		assertEquals("changed", dataStore.get("stream0").getName());
+	}
+
+	@Test
+	public void testViewerCountsUpdateCachedBroadcast() {
+		RecordingClusterNotifier clusterNotifier = new RecordingClusterNotifier();
+		dataStore.setClusterNotifier(clusterNotifier, "app");
+		dataStore.get("stream1");
+
+		assertTrue(dataStore.updateViewerCounts("stream1", 2, 3, 1));
+		dataStore.updateWebRTCViewerCount("stream1", false);
+		dataStore.updateHLSViewerCount("stream1", 1);
+
+		Broadcast broadcast = dataStore.get("stream1");
+		assertEquals(3, broadcast.getHlsViewerCount());
+		assertEquals(2, broadcast.getWebRTCViewerCount());
+		assertEquals(1, broadcast.getRtmpViewerCount());
+		// broadcast is not dropped and other nodes are not notified
+		assertEquals(0, dataStore.getInvalidationCount());
+		assertEquals(1, dataStore.getMissCount());
+		assertTrue(clusterNotifier.changedStreams.isEmpty());
+	}
+
+	@Test
+	public void testCacheIsBounded() {
+		// stream0 is read in every round, so it's not evicted
+		for (int round = 0; round < 3; round++) {
+			for (int i = 1; i < 10; i++) {
+				dataStore.get("stream0");
+				dataStore.get("stream" + i);
+				assertTrue(dataStore.getSize() <= dataStore.getMaxSize());
+			}
+		}
+		assertTrue(dataStore.getEvictionCount() > 0);
+		long missCount = dataStore.getMissCount();
+		dataStore.get("stream0");
+		assertEquals(missCount, dataStore.getMissCount());
+	}
+
+	@Test
+	public void testExpiredBroadcastIsLoadedAgain() throws InterruptedException {
+		dataStore = new CachedBroadcastDataStore(store, 4, 20);
+		dataStore.get("stream0");
+		store.get("stream0").setName("changed");
+		Thread.sleep(40);
+		assertEquals("changed", dataStore.get("stream0").getName());
+		assertEquals(1, dataStore.getExpirationCount());
+
+		dataStore.get("stream1");
+		Thread.sleep(40);
+		assertEquals(2, dataStore.removeExpired());
+		assertEquals(0, dataStore.getSize());
+	}
+
+}
@@ -0,0 +1,157 @@
+package io.antmedia.datastore.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import io.antmedia.datastore.db.types.VoD;
+
+public class TestVoDListAfter {
+
+	/**
+	 * Data store that sorts VoDs on the key only, so VoDs with the same key are in the order they're added
+	 * like in a data store that has no index on the id. Pages after a cursor are read with the default seek
+	 */
+	private static class KeySortedDataStore extends InMemoryDataStore {
+
+		final List<VoD> vods = new ArrayList<>();
+
+		int readCount = 0;
+
+		KeySortedDataStore() {
+			super("test");
+		}
+
+		@Override
+		public synchronized String addVod(VoD vod) {
+			vods.add(vod);
+			return vod.getVodId();
+		}
+
+		@Override
+		public synchronized boolean deleteVod(String id) {
+			return vods.removeIf(vod -> id.equals(vod.getVodId()));
+		}
+
+		@Override
+		public synchronized long getTotalVodNumber() {
+			return vods.size();
+		}
+
+		@Override
+		public synchronized List<VoD> getVodList(int offset, int size, String sortBy, String orderBy) {
+			readCount++;
+			List<VoD> sorted = new ArrayList<>(vods);
+			sorted.sort((vod1, vod2) -> VoDSortIndex.keyOrder(sortBy, orderBy).compare(new VoDSortIndex.SortKey(vod1), new VoDSortIndex.SortKey(vod2)));
+			return new ArrayList<>(sorted.subList(Math.min(offset, sorted.size()), Math.min(offset + size, sorted.size())));
+		}
+
+		@Override
+		public synchronized List<VoD> getVodListAfter(VoD lastVod, int size, String sortBy, String orderBy) {
+			return VoDSortIndex.getListAfter(this, lastVod, size, sortBy, orderBy);
+		}
+	}
+
+	private KeySortedDataStore dataStore;
+
+	private static VoD vod(String name, long date, String id) {
+		return new VoD("stream", "streamId", "path", name, date, 0, 0, VoD.STREAM_VOD, id);
+	}
+
+	private List<VoD> readAll(int size, String sortBy, String orderBy) {
+		List<VoD> all = new ArrayList<>();
+		VoD last = null;
+		List<VoD> page;
+		do {
+			page = dataStore.getVodListAfter(last, size, sortBy, orderBy);
+			assertTrue(page.size() <= size);
+			all.addAll(page);
+			if (!page.isEmpty()) {
+				last = page.get(page.size() - 1);
+			}
+		} while (!page.isEmpty());
+		return all;
+	}
+
+	private static List<String> ids(List<VoD> vods) {
+		List<String> ids = new ArrayList<>();
+		for (VoD vod : vods) {
+			ids.add(vod.getVodId());
+		}
+		return ids;
+	}
+
+	@Before
+	public void setUp() {
+		dataStore = new KeySortedDataStore();
+	}
+
+	@Test
+	public void testSameKeysAreOrderedById() {
+		// ids are added in reverse order, 7 VoDs share each date
+		for (int i = 99; i >= 0; i--) {
+			dataStore.addVod(vod("vod" + (i % 3), i / 7, String.format("id%03d", i)));
+		}
+		for (int size : new int[] { 1, 3, 7, 10, 50 }) {
+			List<String> ids = ids(readAll(size, "date", "asc"));
+			assertEquals(100, ids.size());
+			for (int i = 0; i < 100; i++) {
+				assertEquals(String.format("id%03d", i), ids.get(i));
+			}
+		}
+
+		// 34 VoDs share the first name
+		List<VoD> byName = readAll(5, "name", "desc");
+		assertEquals(100, new HashSet<>(ids(byName)).size());
+		for (int i = 1; i < byName.size(); i++) {
+			VoDSortIndex.SortKey previous = new VoDSortIndex.SortKey(byName.get(i - 1));
+			VoDSortIndex.SortKey current = new VoDSortIndex.SortKey(byName.get(i));
+			assertTrue(VoDSortIndex.cursorOrder("name", "desc").compare(previous, current) < 0);
+		}
+	}
+
+	@Test
+	public void testDeletedCursor() {
+		for (int i = 0; i < 10; i++) {
+			dataStore.addVod(vod("vod", i, "id" + i));
+		}
+		List<VoD> page = dataStore.getVodListAfter(null, 4, "date", "desc");
+		assertEquals(ids(page), List.of("id9", "id8", "id7", "id6"));
+		assertTrue(dataStore.deleteVod("id6"));
+		assertEquals(List.of("id5", "id4", "id3"), ids(dataStore.getVodListAfter(page.get(3), 3, "date", "desc")));
+	}
+
+	@Test
+	public void testCursorWithoutId() {
+		dataStore.addVod(vod("vod", 1, "id1"));
+		dataStore.addVod(vod("vod", 2, "id2"));
+		VoD cursor = vod("vod", 1, null);
+		assertEquals(List.of("id1", "id2"), ids(dataStore.getVodListAfter(cursor, 10, "date", "asc")));
+		assertEquals(List.of("id2"), ids(dataStore.getVodListAfter(vod("vod", 1, "id1"), 10, null, null)));
+	}
+
+	@Test
+	public void testCursorIsSeeked() {
+		for (int i = 0; i < 5000; i++) {
+			dataStore.addVod(vod("vod" + i, i, "id" + i));
+		}
+		dataStore.readCount = 0;
+		List<VoD> page = dataStore.getVodListAfter(vod("vod4000", 4000, "id4000"), 20, "date", "asc");
+		assertEquals(20, page.size());
+		assertEquals("id4001", page.get(0).getVodId());
+		assertEquals("id4020", page.get(19).getVodId());
+		// a scan would read 100 pages
+		assertTrue("read " + dataStore.readCount + " pages", dataStore.readCount < 20);
+
+		Set<String> all = new HashSet<>(ids(readAll(50, "name", "asc")));
+		assertEquals(5000, all.size());
+	}
+
+}
@@ -0,0 +1,207 @@
+package io.antmedia.datastore.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.antmedia.datastore.db.types.Broadcast;
+import io.antmedia.datastore.db.types.BroadcastStatus;
+
+public class TestWriteBehindViewerCountDataStore {
+
+	/**
+	 * Flush period is long enough not to flush during a test
+	 */
+	private static final long FLUSH_PERIOD_MS = 3600000;
+
+	private InMemoryDataStore store;
+
+	private WriteBehindViewerCountDataStore dataStore;
+
+	@Before
+	public void setUp() throws Exception {
+		store = new InMemoryDataStore("test");
+		for (int i = 0; i < 3; i++) {
+			Broadcast broadcast = new Broadcast("broadcast" + i);
+			broadcast.setStreamId("stream" + i);
+			store.save(broadcast);
+		}
+		dataStore = new WriteBehindViewerCountDataStore(store, FLUSH_PERIOD_MS, 0);
+	}
+
+	@After
+	public void tearDown() {
+		dataStore.close();
+	}
+
+	@Test
+	public void testChangesAreWrittenInOneUpdate() {
+		for (int i = 0; i < 5; i++) {
+			dataStore.updateWebRTCViewerCount("stream0", true);
+			dataStore.updateRtmpViewerCount("stream0", true);
+		}
+		dataStore.updateWebRTCViewerCount("stream0", false);
+		dataStore.updateHLSViewerCount("stream0", 3);
+
+		// changes are not written yet but they're seen through the layer
+		assertEquals(0, store.get("stream0").getWebRTCViewerCount());
+		Broadcast broadcast = dataStore.get("stream0");
+		assertEquals(4, broadcast.getWebRTCViewerCount());
+		assertEquals(5, broadcast.getRtmpViewerCount());
+		assertEquals(3, broadcast.getHlsViewerCount());
+		assertEquals(1, dataStore.getPendingStreamCount());
+
+		// pending changes are added to a copy
+		assertEquals(0, store.get("stream0").getWebRTCViewerCount());
+
+		dataStore.flush();
+		assertEquals(0, dataStore.getPendingStreamCount());
+		broadcast = store.get("stream0");
+		assertEquals(4, broadcast.getWebRTCViewerCount());
+		assertEquals(5, broadcast.getRtmpViewerCount());
+		assertEquals(3, broadcast.getHlsViewerCount());
+		assertEquals(4, dataStore.get("stream0").getWebRTCViewerCount());
+	}
+
+	@Test
+	public void testPendingChangesAreAddedToLists() {
+		dataStore.updateViewerCounts("stream1", 2, 0, 1);
+
+		List<Broadcast> list = dataStore.getBroadcastList(0, 10);
+		assertEquals(3, list.size());
+		for (Broadcast broadcast : list) {
+			int expected = "stream1".equals(broadcast.getStreamId()) ? 2 : 0;
+			assertEquals(expected, broadcast.getHlsViewerCount());
+		}
+		assertEquals(0, store.get("stream1").getHlsViewerCount());
+	}
+
+	@Test
+	public void testMaxPendingDeltaFlushesEarly() throws InterruptedException {
+		WriteBehindViewerCountDataStore earlyFlushingDataStore = new WriteBehindViewerCountDataStore(store, FLUSH_PERIOD_MS, 10);
+		for (int i = 0; i < 10; i++) {
+			earlyFlushingDataStore.updateWebRTCViewerCount("stream0", true);
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (store.get("stream0").getWebRTCViewerCount() < 10 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(10, store.get("stream0").getWebRTCViewerCount());
+		earlyFlushingDataStore.close();
+	}
+
+	@Test
+	public void testIdleAndEndedStreamsAreDropped() {
+		dataStore.updateHLSViewerCount("stream0", 1);
+		dataStore.updateHLSViewerCount("stream1", 1);
+		assertEquals(2, dataStore.getStreamCount());
+
+		// changes of an ended stream are written right away
+		dataStore.updateStatus("stream1", BroadcastStatus.LIVE_STOPPED);
+		assertEquals(1, store.get("stream1").getHlsViewerCount());
+
+		dataStore.flush();
+		assertEquals(1, store.get("stream0").getHlsViewerCount());
+		// stream that has no change since the last flush is dropped
+		dataStore.flush();
+		assertEquals(0, dataStore.getStreamCount());
+
+		// a dropped stream is kept again with the next change
+		dataStore.updateHLSViewerCount("stream0", -1);
+		assertEquals(1, dataStore.getStreamCount());
+		dataStore.flush();
+		assertEquals(0, store.get("stream0").getHlsViewerCount());
+	}
+
+	@Test
+	public void testChangesOfDeletedStreamAreNotWritten() {
+		dataStore.updateHLSViewerCount("stream2", 5);
+		assertTrue(dataStore.delete("stream2"));
+		assertEquals(0, dataStore.getStreamCount());
+		dataStore.flush();
+		assertNull(dataStore.get("stream2"));
+
+		// changes of a stream that does not exist are dropped after the flush
+		dataStore.updateHLSViewerCount("unknown", 1);
+		dataStore.flush();
+		assertEquals(0, dataStore.getStreamCount());
+		assertFalse(store.updateViewerCountsLocal("unknown", 1, 0, 0));
+	}
+
+	@Test
+	public void testChangesAreWrittenWhenClosed() throws Exception {
+		int[] countAtClose = new int[1];
+		InMemoryDataStore closingStore = new InMemoryDataStore("test") {
+			@Override
+			public synchronized void close() {
+				countAtClose[0] = get("stream0").getRtmpViewerCount();
+				super.close();
+			}
+		};
+		Broadcast broadcast = new Broadcast("broadcast0");
+		broadcast.setStreamId("stream0");
+		closingStore.save(broadcast);
+		WriteBehindViewerCountDataStore closingDataStore = new WriteBehindViewerCountDataStore(closingStore, FLUSH_PERIOD_MS, 0);
+
+		closingDataStore.updateRtmpViewerCount("stream0", true);
+		closingDataStore.close();
+		assertEquals(1, countAtClose[0]);
+	}
+
+	@Test
+	public void testConcurrentChangesAreNotLostWhileFlushing() throws Exception {
+		final int threadCount = 8;
+		final int joinCount = 20000;
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < threadCount; i++) {
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				for (int j = 0; j < joinCount; j++) {
+					dataStore.updateWebRTCViewerCount("stream0", true);
+					if (j % 2 == 0) {
+						dataStore.updateRtmpViewerCount("stream0", true);
+						dataStore.updateRtmpViewerCount("stream0", false);
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		AtomicBoolean running = new AtomicBoolean(true);
+		// flushes drop the delta of the stream whenever a flush finds no change
+		Thread flusher = new Thread(() -> {
+			while (running.get()) {
+				dataStore.flush();
+			}
+		});
+		flusher.start();
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		running.set(false);
+		flusher.join();
+		dataStore.flush();
+
+		assertEquals(threadCount * joinCount, store.get("stream0").getWebRTCViewerCount());
+		assertEquals(0, store.get("stream0").getRtmpViewerCount());
+		assertEquals(threadCount * joinCount, dataStore.get("stream0").getWebRTCViewerCount());
+	}
+
+}
@@ -0,0 +1,92 @@
+package io.antmedia.muxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.red5.server.net.rtmp.event.VideoData;
+
+/**
+ * Compares framing of packets into the read buffer with {@link MuxAdaptor#getFLVFrame}
+ * and {@link FLVTagFramer}. Direct buffer stands for the native AVIO buffer.
+ *
+ * Run with main method or with JMH runner in test classpath
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FLVFramingBenchmark {
+
+	@Param({"128", "1024", "16384", "131072"})
+	public int packetSize;
+
+	private VideoData packet;
+
+	private ByteBuffer avioBuffer;
+
+	private FLVTagFramer framer;
+
+	@Setup
+	public void setup() {
+		byte[] body = new byte[packetSize];
+		Arrays.fill(body, (byte) 1);
+		packet = new VideoData(IoBuffer.wrap(body));
+		packet.setTimestamp(1000);
+		avioBuffer = ByteBuffer.allocateDirect(MuxAdaptor.BUFFER_SIZE);
+		framer = new FLVTagFramer();
+	}
+
+	@Benchmark
+	public int copyFLVFrame() throws IOException {
+		byte[] flvFrame = MuxAdaptor.getFLVFrame(packet);
+		int total = 0;
+		int startIndex = 0;
+		while (startIndex < flvFrame.length) {
+			int copySize = Math.min(MuxAdaptor.BUFFER_SIZE, flvFrame.length - startIndex);
+			byte[] data = Arrays.copyOfRange(flvFrame, startIndex, startIndex + copySize);
+			avioBuffer.clear();
+			avioBuffer.put(data, 0, data.length);
+			total += copySize;
+			startIndex += copySize;
+		}
+		return total;
+	}
+
+	@Benchmark
+	public int frameDirectly() {
+		int total = 0;
+		framer.reset(packet);
+		while (!framer.isDone()) {
+			avioBuffer.clear();
+			total += framer.writeTo(avioBuffer);
+		}
+		framer.clear();
+		return total;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(FLVFramingBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+
+}
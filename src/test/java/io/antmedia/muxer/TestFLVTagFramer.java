@@ -0,0 +1,157 @@
+package io.antmedia.muxer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.junit.Test;
+import org.red5.server.api.stream.IStreamPacket;
+import org.red5.server.net.rtmp.event.AudioData;
+import org.red5.server.net.rtmp.event.VideoData;
+
+public class TestFLVTagFramer {
+
+	private static byte[] body(int length) {
+		byte[] body = new byte[length];
+		for (int i = 0; i < length; i++) {
+			body[i] = (byte) (i * 7 + 3);
+		}
+		return body;
+	}
+
+	private static VideoData video(IoBuffer data, int timestamp) {
+		VideoData packet = new VideoData(data);
+		packet.setTimestamp(timestamp);
+		return packet;
+	}
+
+	private static AudioData audio(IoBuffer data, int timestamp) {
+		AudioData packet = new AudioData(data);
+		packet.setTimestamp(timestamp);
+		return packet;
+	}
+
+	/**
+	 * Frames the packet with destinations that have the given room
+	 */
+	private static byte[] frame(IStreamPacket packet, int room, boolean direct) {
+		FLVTagFramer framer = new FLVTagFramer();
+		framer.reset(packet);
+		ByteBuffer tag = ByteBuffer.allocate(framer.getTotalSize());
+		ByteBuffer destination = direct ? ByteBuffer.allocateDirect(room) : ByteBuffer.allocate(room);
+		while (!framer.isDone()) {
+			destination.clear();
+			int written = framer.writeTo(destination);
+			assertEquals(destination.position(), written);
+			destination.flip();
+			tag.put(destination);
+		}
+		assertEquals(0, tag.remaining());
+		return tag.array();
+	}
+
+	private static void assertSameAsFLVFrame(IStreamPacket packet) throws IOException {
+		int position = packet.getData().position();
+		int limit = packet.getData().limit();
+		for (boolean direct : new boolean[] { false, true }) {
+			for (int room : new int[] { 1, 5, 11, 100, 65536 }) {
+				byte[] tag = frame(packet, room, direct);
+				// data is shared with the other listeners of the stream
+				assertEquals(position, packet.getData().position());
+				assertEquals(limit, packet.getData().limit());
+				assertArrayEquals("room: " + room + " direct: " + direct, MuxAdaptor.getFLVFrame(packet), tag);
+				packet.getData().position(position);
+			}
+		}
+	}
+
+	@Test
+	public void testVideo() throws IOException {
+		assertSameAsFLVFrame(video(IoBuffer.wrap(body(1000)), 40));
+	}
+
+	@Test
+	public void testAudio() throws IOException {
+		assertSameAsFLVFrame(audio(IoBuffer.wrap(body(200)), 23));
+	}
+
+	@Test
+	public void testExtendedTimestamp() throws IOException {
+		// timestamp does not fit in 24 bits, upper 8 bits are in the extended byte
+		assertSameAsFLVFrame(video(IoBuffer.wrap(body(300)), 0x12345678));
+		byte[] tag = frame(video(IoBuffer.wrap(body(300)), 0x12345678), 100, false);
+		assertEquals(0x34, tag[4]);
+		assertEquals(0x56, tag[5]);
+		assertEquals(0x78, tag[6]);
+		assertEquals(0x12, tag[7]);
+	}
+
+	@Test
+	public void testEmptyBody() throws IOException {
+		IoBuffer data = IoBuffer.allocate(0);
+		byte[] tag = frame(video(data, 10), 100, false);
+		assertEquals(FLVTagFramer.TAG_HEADER_LENGTH + FLVTagFramer.PREVIOUS_TAG_SIZE_LENGTH, tag.length);
+		assertArrayEquals(MuxAdaptor.getFLVFrame(video(data, 10)), tag);
+	}
+
+	@Test
+	public void testSlicedBuffer() throws IOException {
+		byte[] array = body(2000);
+		// index 0 of the slice is at offset 500 of the array
+		IoBuffer slice = IoBuffer.wrap(array, 500, 1000).slice();
+		assertEquals(500, slice.arrayOffset());
+		assertSameAsFLVFrame(video(slice, 1000));
+
+		// position of the data is not used like in getFLVFrame
+		slice.position(10);
+		byte[] tag = frame(video(slice, 1000), 100, true);
+		assertEquals(10, slice.position());
+		assertEquals(array[500], tag[FLVTagFramer.TAG_HEADER_LENGTH]);
+		slice.position(0);
+		assertArrayEquals(MuxAdaptor.getFLVFrame(video(slice, 1000)), tag);
+	}
+
+	@Test
+	public void testDirectBuffer() throws IOException {
+		IoBuffer data = IoBuffer.allocate(1500, true);
+		data.put(body(1500));
+		data.flip();
+		assertTrue(data.isDirect());
+		assertSameAsFLVFrame(video(data, 2000));
+
+		// slice of a direct buffer
+		data.position(100);
+		IoBuffer slice = data.slice();
+		data.position(0);
+		assertSameAsFLVFrame(audio(slice, 3000));
+	}
+
+	@Test
+	public void testReadOnlyBuffer() throws IOException {
+		assertSameAsFLVFrame(video(IoBuffer.wrap(body(700)).asReadOnlyBuffer(), 50));
+	}
+
+	@Test
+	public void testCopyBody() {
+		byte[] array = body(100);
+		IoBuffer heap = IoBuffer.wrap(array, 20, 60).slice();
+		IoBuffer direct = IoBuffer.allocate(60, true);
+		direct.put(array, 20, 60);
+		direct.flip();
+		for (IoBuffer data : new IoBuffer[] { heap, direct }) {
+			ByteBuffer destination = ByteBuffer.allocate(10);
+			destination.put((byte) -1);
+			FLVTagFramer.copyBody(data, 5, 8, destination);
+			assertEquals(9, destination.position());
+			assertEquals(0, data.position());
+			for (int i = 0; i < 8; i++) {
+				assertEquals(array[25 + i], destination.get(1 + i));
+			}
+		}
+	}
+
+}
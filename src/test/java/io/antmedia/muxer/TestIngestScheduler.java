@@ -0,0 +1,77 @@
+package io.antmedia.muxer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestIngestScheduler {
+
+	@Test
+	public void testWorkerSurvivesErrorInJob() throws InterruptedException {
+		IngestScheduler scheduler = new IngestScheduler(1);
+		try {
+			AtomicInteger failingRuns = new AtomicInteger();
+			IngestScheduler.Registration failing = scheduler.register("failing", () -> {
+				failingRuns.incrementAndGet();
+				throw new AssertionError("job error");
+			});
+			CountDownLatch ran = new CountDownLatch(1);
+			IngestScheduler.Registration other = scheduler.register("other", ran::countDown);
+			assertEquals(failing.getWorkerIndex(), other.getWorkerIndex());
+
+			failing.wakeup();
+			other.wakeup();
+			assertTrue("worker ended with the error of a job", ran.await(5, TimeUnit.SECONDS));
+
+			// failing job can be woken up again
+			failing.wakeup();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (failingRuns.get() < 2 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(2, failingRuns.get());
+		}
+		finally {
+			scheduler.shutdown();
+		}
+	}
+
+	@Test
+	public void testShutdownStopsWorkers() throws InterruptedException {
+		IngestScheduler scheduler = new IngestScheduler(2);
+		AtomicInteger runs = new AtomicInteger();
+		IngestScheduler.Registration registration = scheduler.register("stream1", runs::incrementAndGet);
+		assertTrue(scheduler.isRunning());
+
+		scheduler.shutdown();
+
+		assertFalse(scheduler.isRunning());
+		assertTrue(registration.isCancelled());
+		registration.wakeup();
+		Thread.sleep(50);
+		assertEquals(0, runs.get());
+	}
+
+	@Test
+	public void testSharedInstanceIsCreatedAgainAfterShutdown() {
+		IngestScheduler scheduler = IngestScheduler.getInstance();
+		assertSame(scheduler, IngestScheduler.getInstance());
+
+		IngestScheduler.shutdownInstance();
+		assertFalse(scheduler.isRunning());
+
+		IngestScheduler newScheduler = IngestScheduler.getInstance();
+		assertNotSame(scheduler, newScheduler);
+		assertTrue(newScheduler.isRunning());
+		IngestScheduler.shutdownInstance();
+	}
+
+}
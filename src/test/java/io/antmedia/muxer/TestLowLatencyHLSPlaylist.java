@@ -0,0 +1,147 @@
+package io.antmedia.muxer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestLowLatencyHLSPlaylist {
+
+	private static void addParts(LowLatencyHLSPlaylist playlist, int count, long durationMs) {
+		for (int i = 0; i < count; i++) {
+			playlist.addPart(playlist.getPartUri(playlist.getCurrentSequence(), playlist.getCurrentPartCount()), durationMs, i == 0);
+		}
+	}
+
+	private static void addSegment(LowLatencyHLSPlaylist playlist, int partCount, long partDurationMs) {
+		addParts(playlist, partCount, partDurationMs);
+		playlist.completeSegment(playlist.getSegmentUri(playlist.getCurrentSequence()));
+	}
+
+	@Test
+	public void testEmptyPlaylist() {
+		LowLatencyHLSPlaylist playlist = new LowLatencyHLSPlaylist("stream1.m3u8", "stream1_init.mp4", 500, 5);
+		assertEquals("#EXTM3U\n"
+				+ "#EXT-X-VERSION:9\n"
+				+ "#EXT-X-TARGETDURATION:1\n"
+				+ "#EXT-X-SERVER-CONTROL:PART-HOLD-BACK=1.500\n"
+				+ "#EXT-X-PART-INF:PART-TARGET=0.500\n"
+				+ "#EXT-X-MEDIA-SEQUENCE:0\n"
+				+ "#EXT-X-MAP:URI=\"stream1_init.mp4\"\n", playlist.getPlaylist());
+	}
+
+	@Test
+	public void testPartsAndSegmentsAreRendered() {
+		LowLatencyHLSPlaylist playlist = new LowLatencyHLSPlaylist("stream1.m3u8", "stream1_init.mp4", 500, 5);
+		addSegment(playlist, 4, 500);
+		addParts(playlist, 2, 480);
+
+		assertEquals("#EXTM3U\n"
+				+ "#EXT-X-VERSION:9\n"
+				+ "#EXT-X-TARGETDURATION:2\n"
+				+ "#EXT-X-SERVER-CONTROL:PART-HOLD-BACK=1.500\n"
+				+ "#EXT-X-PART-INF:PART-TARGET=0.500\n"
+				+ "#EXT-X-MEDIA-SEQUENCE:0\n"
+				+ "#EXT-X-MAP:URI=\"stream1_init.mp4\"\n"
+				+ "#EXT-X-PART:DURATION=0.500,URI=\"stream1_0_0.m4s\",INDEPENDENT=YES\n"
+				+ "#EXT-X-PART:DURATION=0.500,URI=\"stream1_0_1.m4s\"\n"
+				+ "#EXT-X-PART:DURATION=0.500,URI=\"stream1_0_2.m4s\"\n"
+				+ "#EXT-X-PART:DURATION=0.500,URI=\"stream1_0_3.m4s\"\n"
+				+ "#EXTINF:2.000,\n"
+				+ "stream1_0.m4s\n"
+				+ "#EXT-X-PART:DURATION=0.480,URI=\"stream1_1_0.m4s\",INDEPENDENT=YES\n"
+				+ "#EXT-X-PART:DURATION=0.480,URI=\"stream1_1_1.m4s\"\n", playlist.getPlaylist());
+		assertEquals(1, playlist.getCurrentSequence());
+		assertEquals(2, playlist.getCurrentPartCount());
+	}
+
+	@Test
+	public void testBlockingReloadIsNotAdvertised() {
+		LowLatencyHLSPlaylist playlist = new LowLatencyHLSPlaylist("stream1.m3u8", "stream1_init.mp4", 500, 5);
+		addSegment(playlist, 2, 500);
+		addParts(playlist, 1, 500);
+		assertFalse(playlist.getPlaylist().contains("CAN-BLOCK-RELOAD"));
+		assertFalse(playlist.getPlaylist().contains("#EXT-X-PRELOAD-HINT"));
+	}
+
+	@Test
+	public void testTargetDurationIsRoundedUp() {
+		LowLatencyHLSPlaylist playlist = new LowLatencyHLSPlaylist("stream1.m3u8", "stream1_init.mp4", 1000, 5);
+		addSegment(playlist, 2, 1001);
+		assertTrue(playlist.getPlaylist().contains("#EXT-X-TARGETDURATION:3\n"));
+		assertTrue(playlist.getPlaylist().contains("#EXTINF:2.002,\nstream1_0.m4s\n"));
+	}
+
+	@Test
+	public void testOldSegmentsAreRemoved() {
+		LowLatencyHLSPlaylist playlist = new LowLatencyHLSPlaylist("stream1.m3u8", "stream1_init.mp4", 500, 2);
+		addSegment(playlist, 2, 500);
+		addSegment(playlist, 2, 500);
+		addParts(playlist, 2, 500);
+		List<String> removed = playlist.completeSegment(playlist.getSegmentUri(playlist.getCurrentSequence()));
+
+		assertEquals(Arrays.asList("stream1_0.m4s", "stream1_0_0.m4s", "stream1_0_1.m4s"), removed);
+		String rendered = playlist.getPlaylist();
+		assertTrue(rendered.contains("#EXT-X-MEDIA-SEQUENCE:1\n"));
+		assertFalse(rendered.contains("stream1_0.m4s"));
+		assertTrue(rendered.contains("stream1_1.m4s\n"));
+		assertTrue(rendered.contains("stream1_2.m4s\n"));
+	}
+
+	@Test
+	public void testPartsOfOldSegmentsAreRemoved() {
+		LowLatencyHLSPlaylist playlist = new LowLatencyHLSPlaylist("stream1.m3u8", "stream1_init.mp4", 500, 0);
+		for (int i = 0; i < LowLatencyHLSPlaylist.PART_SEGMENT_COUNT + 1; i++) {
+			addSegment(playlist, 2, 500);
+		}
+
+		// parts are kept for the last segments together with the current segment
+		List<String> removed = playlist.removeOldParts();
+		assertEquals(Arrays.asList("stream1_0_0.m4s", "stream1_0_1.m4s", "stream1_1_0.m4s", "stream1_1_1.m4s"), removed);
+		assertTrue(playlist.removeOldParts().isEmpty());
+
+		String rendered = playlist.getPlaylist();
+		assertFalse(rendered.contains("stream1_0_0.m4s"));
+		assertFalse(rendered.contains("stream1_1_1.m4s"));
+		assertTrue(rendered.contains("#EXTINF:1.000,\nstream1_0.m4s\n"));
+		assertTrue(rendered.contains("URI=\"stream1_2_0.m4s\""));
+		assertTrue(rendered.contains("URI=\"stream1_3_1.m4s\""));
+	}
+
+	@Test
+	public void testEndList() {
+		LowLatencyHLSPlaylist playlist = new LowLatencyHLSPlaylist("stream1.m3u8", "stream1_init.mp4", 500, 5);
+		addSegment(playlist, 2, 500);
+		playlist.end();
+		assertTrue(playlist.getPlaylist().endsWith("stream1_0.m4s\n#EXT-X-ENDLIST\n"));
+	}
+
+	@Test
+	public void testPlaylistsAreRegisteredPerApplication() {
+		LowLatencyHLSPlaylist playlist1 = new LowLatencyHLSPlaylist("stream1.m3u8", "stream1_init.mp4", 500, 5);
+		LowLatencyHLSPlaylist playlist2 = new LowLatencyHLSPlaylist("stream1.m3u8", "stream1_init.mp4", 500, 5);
+		LowLatencyHLSPlaylist.register("app1", playlist1);
+		LowLatencyHLSPlaylist.register("app2", playlist2);
+		try {
+			assertSame(playlist1, LowLatencyHLSPlaylist.getPlaylist("app1", "stream1.m3u8"));
+			assertSame(playlist2, LowLatencyHLSPlaylist.getPlaylist("app2", "stream1.m3u8"));
+
+			// a playlist of another application does not unregister it
+			LowLatencyHLSPlaylist.unregister("app1", playlist2);
+			assertSame(playlist1, LowLatencyHLSPlaylist.getPlaylist("app1", "stream1.m3u8"));
+		}
+		finally {
+			LowLatencyHLSPlaylist.unregister("app1", playlist1);
+			LowLatencyHLSPlaylist.unregister("app2", playlist2);
+		}
+		assertNull(LowLatencyHLSPlaylist.getPlaylist("app1", "stream1.m3u8"));
+		assertNull(LowLatencyHLSPlaylist.getPlaylist("app2", "stream1.m3u8"));
+	}
+
+}
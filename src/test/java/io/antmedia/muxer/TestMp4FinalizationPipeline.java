@@ -0,0 +1,315 @@
+package io.antmedia.muxer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.antmedia.muxer.Mp4FinalizationPipeline.FinalizationJob;
+import io.antmedia.muxer.Mp4FinalizationPipeline.Stage;
+import io.antmedia.storage.StorageClient;
+
+public class TestMp4FinalizationPipeline {
+
+	/**
+	 * Pipeline that does not use FFmpeg, remux copies the temp file and duration is the file length
+	 */
+	private static class TestPipeline extends Mp4FinalizationPipeline {
+
+		final AtomicInteger remuxCount = new AtomicInteger();
+
+		final AtomicInteger durationFailures = new AtomicInteger();
+
+		TestPipeline() {
+			super(2);
+		}
+
+		@Override
+		protected void remux(File tmpFile, File file, int rotation) {
+			remuxCount.incrementAndGet();
+			try {
+				Files.copy(tmpFile.toPath(), file.toPath());
+			}
+			catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		protected long getDurationInMs(File file, String streamId) throws IOException {
+			if (durationFailures.getAndDecrement() > 0) {
+				throw new IOException("duration cannot be read");
+			}
+			return file.length();
+		}
+
+		@Override
+		protected long getRetryDelayMs(int attempt) {
+			return 1;
+		}
+
+		void awaitJobs() throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (getActiveJobCount() > 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(0, getActiveJobCount());
+		}
+	}
+
+	private static class TestStreamHandler implements IAntMediaStreamHandler {
+
+		final List<String> finishedFiles = new CopyOnWriteArrayList<>();
+
+		volatile long duration = -1;
+
+		@Override
+		public void muxingFinished(String id, File file, long duration, int resolution) {
+			finishedFiles.add(file.getName());
+			this.duration = duration;
+		}
+
+		@Override
+		public void setQualityParameters(String id, String quality, double speed, int pendingPacketSize) {
+			//not used
+		}
+
+		@Override
+		public void muxAdaptorAdded(MuxAdaptor muxAdaptor) {
+			//not used
+		}
+
+		@Override
+		public void muxAdaptorRemoved(MuxAdaptor muxAdaptor) {
+			//not used
+		}
+	}
+
+	private static class TestStorageClient extends StorageClient {
+
+		final List<String> savedFiles = new CopyOnWriteArrayList<>();
+
+		final List<String> abortedUploads = new CopyOnWriteArrayList<>();
+
+		@Override
+		public void delete(String fileName, FileType type) {
+			//not used
+		}
+
+		@Override
+		public void save(File file, FileType type) {
+			savedFiles.add(file.getName());
+			file.delete();
+		}
+
+		@Override
+		public boolean fileExist(String fileName, FileType type) {
+			return false;
+		}
+
+		@Override
+		public void abortUploadSession(String key, String uploadId) {
+			abortedUploads.add(key + "/" + uploadId);
+		}
+	}
+
+	private File directory;
+
+	private TestPipeline pipeline;
+
+	private TestStreamHandler streamHandler;
+
+	private TestStorageClient storageClient;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("recordings").toFile();
+		pipeline = new TestPipeline();
+		streamHandler = new TestStreamHandler();
+		storageClient = new TestStorageClient();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private File createFile(String name, int length) throws IOException {
+		File file = new File(directory, name);
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(new byte[length]);
+		}
+		return file;
+	}
+
+	private FinalizationJob createJob(String streamId, boolean avcConversionRequired) throws IOException {
+		File tmpFile = createFile(streamId + ".mp4.tmp_extension", 100);
+		FinalizationJob job = new FinalizationJob(streamId, tmpFile, new File(directory, streamId + ".mp4"), 720, 0, avcConversionRequired);
+		job.setStreamHandler(streamHandler);
+		job.setStorageClient(storageClient);
+		return job;
+	}
+
+	private File getJournalFile(String streamId) {
+		return new File(directory, streamId + ".mp4" + Mp4FinalizationPipeline.JOURNAL_EXTENSION);
+	}
+
+	private void writeJournal(String streamId, Stage stage, boolean notified, String uploadId) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("streamId", streamId);
+		properties.setProperty("tmpFile", new File(directory, streamId + ".mp4.tmp_extension").getAbsolutePath());
+		properties.setProperty("file", new File(directory, streamId + ".mp4").getAbsolutePath());
+		properties.setProperty("resolution", "720");
+		properties.setProperty("stage", stage.name());
+		properties.setProperty("durationMs", "100");
+		properties.setProperty("notified", String.valueOf(notified));
+		if (uploadId != null) {
+			properties.setProperty("uploadKey", "streams/" + streamId + ".mp4");
+			properties.setProperty("uploadId", uploadId);
+		}
+		try (OutputStream out = new FileOutputStream(getJournalFile(streamId))) {
+			properties.store(out, null);
+		}
+	}
+
+	@Test
+	public void testStages() throws IOException, InterruptedException {
+		FinalizationJob job = createJob("stream1", false);
+		pipeline.submit(job);
+		pipeline.awaitJobs();
+
+		assertEquals(Stage.DONE, job.getStage());
+		assertEquals(0, pipeline.remuxCount.get());
+		assertFalse(new File(directory, "stream1.mp4.tmp_extension").exists());
+		assertEquals(100, job.getDurationMs());
+		assertEquals(List.of("stream1.mp4"), streamHandler.finishedFiles);
+		assertEquals(100, streamHandler.duration);
+		assertEquals(List.of("stream1.mp4"), storageClient.savedFiles);
+		assertFalse("journal is deleted", getJournalFile("stream1").exists());
+		for (Stage stage : new Stage[] { Stage.REMUX, Stage.MOVE, Stage.DURATION, Stage.NOTIFY, Stage.UPLOAD }) {
+			assertEquals(1, pipeline.getStageStats().get(stage).getCount());
+			assertEquals(0, pipeline.getStageStats().get(stage).getFailureCount());
+		}
+	}
+
+	@Test
+	public void testRemuxStage() throws IOException, InterruptedException {
+		FinalizationJob job = createJob("stream1", true);
+		job.setStorageClient(null);
+		pipeline.submit(job);
+		pipeline.awaitJobs();
+
+		assertEquals(1, pipeline.remuxCount.get());
+		assertFalse("temp file is deleted after remux", new File(directory, "stream1.mp4.tmp_extension").exists());
+		assertTrue(job.getFile().exists());
+		assertEquals(List.of("stream1.mp4"), streamHandler.finishedFiles);
+	}
+
+	@Test
+	public void testFailedStageIsRetried() throws IOException, InterruptedException {
+		pipeline.durationFailures.set(2);
+		FinalizationJob job = createJob("stream1", false);
+		pipeline.submit(job);
+		pipeline.awaitJobs();
+
+		assertEquals(Stage.DONE, job.getStage());
+		assertEquals(2, pipeline.getStageStats().get(Stage.DURATION).getFailureCount());
+		assertEquals(1, pipeline.getStageStats().get(Stage.DURATION).getCount());
+		assertEquals(List.of("stream1.mp4"), streamHandler.finishedFiles);
+	}
+
+	@Test
+	public void testJournalIsResumedFromFailedStage() throws IOException, InterruptedException {
+		pipeline.durationFailures.set(Mp4FinalizationPipeline.MAX_ATTEMPTS);
+		FinalizationJob job = createJob("stream1", false);
+		pipeline.submit(job);
+		pipeline.awaitJobs();
+
+		assertEquals(Stage.DURATION, job.getStage());
+		assertTrue("journal is kept to be resumed", getJournalFile("stream1").exists());
+		assertTrue(streamHandler.finishedFiles.isEmpty());
+
+		// restart
+		TestPipeline restartedPipeline = new TestPipeline();
+		restartedPipeline.resumePending(directory, streamHandler, storageClient);
+		restartedPipeline.awaitJobs();
+
+		assertEquals(0, restartedPipeline.getStageStats().get(Stage.MOVE).getCount());
+		assertEquals(1, restartedPipeline.getStageStats().get(Stage.DURATION).getCount());
+		assertEquals(List.of("stream1.mp4"), streamHandler.finishedFiles);
+		assertEquals(List.of("stream1.mp4"), storageClient.savedFiles);
+		assertFalse(getJournalFile("stream1").exists());
+	}
+
+	@Test
+	public void testStartedNotificationIsNotRepeated() throws IOException, InterruptedException {
+		createFile("stream1.mp4", 100);
+		writeJournal("stream1", Stage.NOTIFY, true, null);
+
+		pipeline.resumePending(directory, streamHandler, storageClient);
+		pipeline.awaitJobs();
+
+		assertTrue(streamHandler.finishedFiles.isEmpty());
+		assertEquals(List.of("stream1.mp4"), storageClient.savedFiles);
+		assertFalse(getJournalFile("stream1").exists());
+	}
+
+	@Test
+	public void testUploadStartedBeforeRestartIsAborted() throws IOException, InterruptedException {
+		createFile("stream1.mp4", 100);
+		writeJournal("stream1", Stage.UPLOAD, true, "upload1");
+
+		pipeline.resumePending(directory, streamHandler, storageClient);
+		pipeline.awaitJobs();
+
+		assertEquals(List.of("streams/stream1.mp4/upload1"), storageClient.abortedUploads);
+		assertEquals(List.of("stream1.mp4"), storageClient.savedFiles);
+	}
+
+	@Test
+	public void testDirectoryIsResumedOnce() throws IOException, InterruptedException {
+		createFile("stream1.mp4", 100);
+		writeJournal("stream1", Stage.NOTIFY, false, null);
+		pipeline.resumePending(directory, streamHandler, storageClient);
+		pipeline.awaitJobs();
+
+		writeJournal("stream1", Stage.NOTIFY, false, null);
+		pipeline.resumePending(directory, streamHandler, storageClient);
+		pipeline.awaitJobs();
+
+		assertEquals(List.of("stream1.mp4"), streamHandler.finishedFiles);
+		assertTrue(getJournalFile("stream1").exists());
+	}
+
+	@Test
+	public void testCorruptJournalIsSkipped() throws IOException, InterruptedException {
+		Files.write(getJournalFile("broken").toPath(), "stage=UNKNOWN".getBytes());
+		createFile("stream1.mp4", 100);
+		writeJournal("stream1", Stage.DURATION, false, null);
+
+		pipeline.resumePending(directory, streamHandler, storageClient);
+		pipeline.awaitJobs();
+
+		assertEquals(List.of("stream1.mp4"), streamHandler.finishedFiles);
+	}
+
+}
@@ -0,0 +1,313 @@
+package io.antmedia.muxer;
+
+import static org.bytedeco.javacpp.avcodec.AV_PKT_FLAG_KEY;
+import static org.bytedeco.javacpp.avcodec.av_packet_alloc;
+import static org.bytedeco.javacpp.avcodec.av_packet_free;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bytedeco.javacpp.avcodec.AVCodec;
+import org.bytedeco.javacpp.avcodec.AVCodecContext;
+import org.bytedeco.javacpp.avcodec.AVPacket;
+import org.bytedeco.javacpp.avformat.AVFormatContext;
+import org.bytedeco.javacpp.avformat.AVStream;
+import org.junit.Test;
+
+public class TestMuxerFanout {
+
+	/**
+	 * Keeps the pts of the written packets, it can be blocked to simulate a slow endpoint
+	 */
+	private static class RecordingMuxer extends Muxer {
+
+		final List<Long> writtenPts = Collections.synchronizedList(new ArrayList<>());
+		final AtomicInteger trailerCount = new AtomicInteger();
+		final AtomicInteger concurrentWrites = new AtomicInteger();
+		volatile boolean overlapped = false;
+		volatile CountDownLatch blocker;
+		volatile long writeDelayMs;
+		final boolean blockingSink;
+
+		RecordingMuxer() {
+			this(false);
+		}
+
+		RecordingMuxer(boolean blockingSink) {
+			super(null);
+			this.blockingSink = blockingSink;
+		}
+
+		@Override
+		public boolean isBlockingSink() {
+			return blockingSink;
+		}
+
+		@Override
+		public boolean prepare(AVFormatContext inputFormatContext) {
+			return true;
+		}
+
+		@Override
+		public boolean addStream(AVCodec codec, AVCodecContext codecContext, int streamIndex) {
+			return true;
+		}
+
+		@Override
+		public boolean prepareIO() {
+			return true;
+		}
+
+		@Override
+		public void writeTrailer() {
+			trailerCount.incrementAndGet();
+		}
+
+		@Override
+		public void writePacket(AVPacket avpacket, AVStream inStream) {
+			if (concurrentWrites.incrementAndGet() > 1) {
+				overlapped = true;
+			}
+			try {
+				CountDownLatch latch = blocker;
+				if (latch != null) {
+					latch.await();
+				}
+				if (writeDelayMs > 0) {
+					Thread.sleep(writeDelayMs);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			writtenPts.add(avpacket.pts());
+			concurrentWrites.decrementAndGet();
+		}
+
+		@Override
+		public void writePacket(AVPacket pkt) {
+			writePacket(pkt, null);
+		}
+	}
+
+	private static void writePackets(MuxerFanout fanout, int from, int count) {
+		writePackets(fanout, from, count, 0);
+	}
+
+	/**
+	 * @param intervalMs time between packets so that a muxer that is not blocked keeps up
+	 */
+	private static void writePackets(MuxerFanout fanout, int from, int count, long intervalMs) {
+		for (int i = from; i < from + count; i++) {
+			if (intervalMs > 0) {
+				try {
+					Thread.sleep(intervalMs);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			AVPacket pkt = av_packet_alloc();
+			pkt.pts(i);
+			// every 10th packet is a key frame
+			pkt.flags(i % 10 == 0 ? AV_PKT_FLAG_KEY : 0);
+			fanout.writePacket(pkt, null, true);
+			// fan-out keeps its own reference
+			av_packet_free(pkt);
+		}
+	}
+
+	private static void assertInOrder(List<Long> ptsList) {
+		for (int i = 1; i < ptsList.size(); i++) {
+			assertTrue(ptsList.get(i - 1) < ptsList.get(i));
+		}
+	}
+
+	@Test
+	public void testPacketsAreWrittenInOrder() {
+		// queues are large enough not to drop any packet
+		MuxerFanout fanout = new MuxerFanout("stream1", 128, MuxerFanout.LagPolicy.DROP);
+		RecordingMuxer muxer1 = new RecordingMuxer();
+		RecordingMuxer muxer2 = new RecordingMuxer();
+		muxer2.writeDelayMs = 1;
+		fanout.addMuxer(muxer1);
+		fanout.addMuxer(muxer2);
+
+		writePackets(fanout, 0, 100);
+		fanout.removeAll();
+
+		assertTrue(fanout.getChannels().isEmpty());
+		for (RecordingMuxer muxer : new RecordingMuxer[] {muxer1, muxer2}) {
+			assertFalse("packets of a muxer are written concurrently", muxer.overlapped);
+			assertEquals(100, muxer.writtenPts.size());
+			assertInOrder(muxer.writtenPts);
+		}
+	}
+
+	@Test
+	public void testSlowMuxerDoesNotBlockOtherMuxers() {
+		MuxerFanout fanout = new MuxerFanout("stream1", 4, MuxerFanout.LagPolicy.DROP);
+		RecordingMuxer slowMuxer = new RecordingMuxer();
+		slowMuxer.blocker = new CountDownLatch(1);
+		RecordingMuxer fastMuxer = new RecordingMuxer();
+		fanout.addMuxer(slowMuxer);
+		fanout.addMuxer(fastMuxer);
+
+		writePackets(fanout, 0, 50, 2);
+		MuxerFanout.MuxerChannel slowChannel = fanout.getChannels().get(0);
+		assertTrue("packets of the slow muxer are dropped", slowChannel.getDroppedPacketCount() > 0);
+
+		slowMuxer.blocker.countDown();
+		fanout.removeAll();
+
+		assertEquals(50, fastMuxer.writtenPts.size());
+		assertTrue(slowMuxer.writtenPts.size() < 50);
+		assertInOrder(slowMuxer.writtenPts);
+		// writing is resumed with a key frame after the drops
+		for (int i = 1; i < slowMuxer.writtenPts.size(); i++) {
+			long pts = slowMuxer.writtenPts.get(i);
+			if (pts != slowMuxer.writtenPts.get(i - 1) + 1) {
+				assertEquals(0, pts % 10);
+			}
+		}
+	}
+
+	@Test
+	public void testLaggingMuxerIsDetached() throws InterruptedException {
+		MuxerFanout fanout = new MuxerFanout("stream1", 2, MuxerFanout.LagPolicy.DETACH);
+		AtomicReference<Muxer> detached = new AtomicReference<>();
+		fanout.setDetachListener(detached::set);
+		RecordingMuxer slowMuxer = new RecordingMuxer();
+		slowMuxer.blocker = new CountDownLatch(1);
+		RecordingMuxer fastMuxer = new RecordingMuxer();
+		fanout.addMuxer(slowMuxer);
+		fanout.addMuxer(fastMuxer);
+
+		writePackets(fanout, 0, 20, 2);
+		assertSame(slowMuxer, detached.get());
+		assertEquals(1, fanout.getChannels().size());
+		assertEquals(0, slowMuxer.trailerCount.get());
+
+		// trailer is written after the worker leaves the muxer
+		slowMuxer.blocker.countDown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (slowMuxer.trailerCount.get() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, slowMuxer.trailerCount.get());
+
+		fanout.removeAll();
+		assertEquals(20, fastMuxer.writtenPts.size());
+	}
+
+	@Test
+	public void testRemoveMuxerWaitsForQueuedPackets() {
+		MuxerFanout fanout = new MuxerFanout("stream1", 64, MuxerFanout.LagPolicy.DROP);
+		RecordingMuxer muxer = new RecordingMuxer();
+		muxer.writeDelayMs = 2;
+		fanout.addMuxer(muxer);
+
+		writePackets(fanout, 0, 40);
+		assertTrue(fanout.removeMuxer(muxer));
+
+		assertEquals(40, muxer.writtenPts.size());
+		assertFalse(fanout.removeMuxer(muxer));
+		// packets are not queued to a removed muxer
+		writePackets(fanout, 40, 10);
+		assertEquals(40, muxer.writtenPts.size());
+	}
+
+	@Test
+	public void testRemoveMuxerReturnsAfterBlockedWriteIsDiscarded() throws InterruptedException {
+		MuxerFanout fanout = new MuxerFanout("stream1", 64, MuxerFanout.LagPolicy.DROP);
+		RecordingMuxer muxer = new RecordingMuxer();
+		muxer.blocker = new CountDownLatch(1);
+		fanout.addMuxer(muxer);
+		writePackets(fanout, 0, 10);
+		MuxerFanout.MuxerChannel channel = fanout.getChannels().get(0);
+
+		Thread releaser = new Thread(() -> {
+			try {
+				Thread.sleep(MuxerFanout.DRAIN_TIMEOUT_MS + 500);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			muxer.blocker.countDown();
+		});
+		releaser.start();
+		long start = System.currentTimeMillis();
+		assertTrue(fanout.removeMuxer(muxer));
+		// it waits for the write in progress but the rest of the queue is discarded
+		assertTrue(System.currentTimeMillis() - start >= MuxerFanout.DRAIN_TIMEOUT_MS);
+		assertEquals(1, muxer.writtenPts.size());
+		assertEquals(9, channel.getDroppedPacketCount());
+		assertTrue(fanout.getChannels().isEmpty());
+		releaser.join();
+	}
+
+	@Test
+	public void testBlockedSinksDoNotHoldSharedWorkers() throws InterruptedException {
+		CountDownLatch blocker = new CountDownLatch(1);
+		List<MuxerFanout> blockedFanouts = new ArrayList<>();
+		// more blocked sinks than shared workers
+		for (int i = 0; i < MuxerFanout.WORKER_COUNT + 2; i++) {
+			MuxerFanout fanout = new MuxerFanout("blocked" + i, 8, MuxerFanout.LagPolicy.DROP);
+			RecordingMuxer sink = new RecordingMuxer(true);
+			sink.blocker = blocker;
+			fanout.addMuxer(sink);
+			assertTrue(fanout.getChannels().get(0).hasDedicatedWorker());
+			writePackets(fanout, 0, 4);
+			blockedFanouts.add(fanout);
+		}
+
+		MuxerFanout fanout = new MuxerFanout("stream1", 64, MuxerFanout.LagPolicy.DROP);
+		RecordingMuxer localMuxer = new RecordingMuxer();
+		fanout.addMuxer(localMuxer);
+		assertFalse(fanout.getChannels().get(0).hasDedicatedWorker());
+		writePackets(fanout, 0, 30);
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (localMuxer.writtenPts.size() < 30 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals("shared workers are held by blocked sinks", 30, localMuxer.writtenPts.size());
+		fanout.removeAll();
+
+		blocker.countDown();
+		for (MuxerFanout blockedFanout : blockedFanouts) {
+			MuxerFanout.MuxerChannel channel = blockedFanout.getChannels().get(0);
+			RecordingMuxer sink = (RecordingMuxer) channel.getMuxer();
+			blockedFanout.removeAll();
+			assertEquals(4, sink.writtenPts.size());
+			assertInOrder(sink.writtenPts);
+		}
+	}
+
+	@Test
+	public void testDedicatedWorkerWritesInOrderAfterRemoval() {
+		MuxerFanout fanout = new MuxerFanout("stream1", 128, MuxerFanout.LagPolicy.DROP);
+		RecordingMuxer sink = new RecordingMuxer(true);
+		sink.writeDelayMs = 1;
+		fanout.addMuxer(sink);
+
+		writePackets(fanout, 0, 50);
+		assertTrue(fanout.removeMuxer(sink));
+
+		assertEquals(50, sink.writtenPts.size());
+		assertFalse(sink.overlapped);
+		assertInOrder(sink.writtenPts);
+		// packets after removal are ignored by the ended worker
+		writePackets(fanout, 50, 10);
+		assertEquals(50, sink.writtenPts.size());
+	}
+
+}
@@ -0,0 +1,184 @@
+package io.antmedia.muxer;
+
+import static org.bytedeco.javacpp.avcodec.av_packet_alloc;
+import static org.bytedeco.javacpp.avcodec.av_packet_free;
+import static org.bytedeco.javacpp.avcodec.av_packet_unref;
+import static org.bytedeco.javacpp.avformat.av_find_input_format;
+import static org.bytedeco.javacpp.avformat.av_read_frame;
+import static org.bytedeco.javacpp.avformat.avformat_alloc_context;
+import static org.bytedeco.javacpp.avformat.avformat_close_input;
+import static org.bytedeco.javacpp.avformat.avformat_open_input;
+import static org.bytedeco.javacpp.avformat.avio_alloc_context;
+import static org.bytedeco.javacpp.avutil.AVERROR_EAGAIN;
+import static org.bytedeco.javacpp.avutil.av_free;
+import static org.bytedeco.javacpp.avutil.av_malloc;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.avcodec.AVPacket;
+import org.bytedeco.javacpp.avformat.AVFormatContext;
+import org.bytedeco.javacpp.avformat.AVIOContext;
+import org.bytedeco.javacpp.avformat.Read_packet_Pointer_BytePointer_int;
+import org.bytedeco.javacpp.avutil.AVDictionary;
+import org.junit.Test;
+
+/**
+ * Reads a FLV stream with FFmpeg the way {@link MuxAdaptor} does on an ingest worker. Read callback returns
+ * EAGAIN at every tag boundary until the next tag arrives, and the end of file flag of the IO context is cleared
+ * like {@link MuxAdaptor} does before the demuxer is read again. Every tag should be read once and in order.
+ */
+public class TestNonBlockingFLVRead {
+
+	private static final int BUFFER_SIZE = 4096;
+
+	private static final int TAG_COUNT = 50;
+
+	/**
+	 * Audio tag flags: linear PCM little endian, 44 kHz, 16 bit, mono. FLV demuxer does not parse PCM,
+	 * so every tag is a packet
+	 */
+	private static final int PCM_FLAGS = (3 << 4) | (3 << 2) | (1 << 1);
+
+	private static class Input {
+		final byte[] data;
+		int position;
+		/**
+		 * End of the data that has arrived so far, it's always at a tag boundary
+		 */
+		int available;
+		boolean wouldBlock;
+
+		Input(byte[] data, int available) {
+			this.data = data;
+			this.available = available;
+		}
+	}
+
+	private static Map<Pointer, Input> inputs = new ConcurrentHashMap<>();
+
+	private static Read_packet_Pointer_BytePointer_int readCallback = new Read_packet_Pointer_BytePointer_int() {
+		@Override
+		public int call(Pointer opaque, BytePointer buf, int bufSize) {
+			Input input = inputs.get(opaque);
+			if (input.position == input.available) {
+				input.wouldBlock = true;
+				return AVERROR_EAGAIN();
+			}
+			int length = Math.min(bufSize, input.available - input.position);
+			buf.put(input.data, input.position, length);
+			input.position += length;
+			return length;
+		}
+	};
+
+	private static void writeTag(ByteArrayOutputStream out, int timestamp, int bodySize, int index) {
+		int tagSize = 11 + bodySize;
+		out.write(8);
+		out.write(bodySize >> 16);
+		out.write(bodySize >> 8);
+		out.write(bodySize);
+		out.write(timestamp >> 16);
+		out.write(timestamp >> 8);
+		out.write(timestamp);
+		// extended timestamp
+		out.write(timestamp >> 24);
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		out.write(PCM_FLAGS);
+		for (int i = 1; i < bodySize; i++) {
+			out.write(index + i);
+		}
+		out.write(tagSize >> 24);
+		out.write(tagSize >> 16);
+		out.write(tagSize >> 8);
+		out.write(tagSize);
+	}
+
+	private static int getTimestamp(int index) {
+		// last tags have extended timestamps
+		return index < TAG_COUNT - 5 ? index * 23 : 0x01000000 + index * 23;
+	}
+
+	private static int getBodySize(int index) {
+		// some tags are larger than the IO buffer
+		return index % 10 == 9 ? BUFFER_SIZE * 2 + 7 : 100 + index;
+	}
+
+	@Test
+	public void testDemuxerResumesAtTagBoundaries() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		// header with audio flag and PreviousTagSize0
+		out.write(new byte[] {'F', 'L', 'V', 1, 4, 0, 0, 0, 9, 0, 0, 0, 0}, 0, 13);
+		List<Integer> tagEnds = new ArrayList<>();
+		for (int i = 0; i < TAG_COUNT; i++) {
+			writeTag(out, getTimestamp(i), getBodySize(i), i);
+			tagEnds.add(out.size());
+		}
+
+		AVFormatContext inputFormatContext = avformat_alloc_context();
+		AVIOContext pb = avio_alloc_context(new BytePointer(av_malloc(BUFFER_SIZE)), BUFFER_SIZE, 0,
+				inputFormatContext, readCallback, null, null);
+		inputFormatContext.pb(pb);
+		// header and the first tag are there when the input is opened
+		Input input = new Input(out.toByteArray(), tagEnds.get(0));
+		inputs.put(inputFormatContext, input);
+
+		// context is freed if it cannot be opened
+		assertTrue(avformat_open_input(inputFormatContext, (String) null, av_find_input_format("flv"), (AVDictionary) null) >= 0);
+		AVPacket pkt = av_packet_alloc();
+		try {
+			List<Long> ptsList = new ArrayList<>();
+			List<Integer> sizeList = new ArrayList<>();
+			int arrivedTagCount = 1;
+			int eagainCount = 0;
+			while (ptsList.size() < TAG_COUNT) {
+				input.wouldBlock = false;
+				int ret = av_read_frame(inputFormatContext, pkt);
+				if (input.wouldBlock) {
+					// same as MuxAdaptor.resumeInput
+					pb.eof_reached(0);
+					pb.error(0);
+				}
+				if (ret >= 0) {
+					ptsList.add(pkt.pts());
+					sizeList.add(pkt.size());
+					av_packet_unref(pkt);
+				}
+				else {
+					assertTrue("demuxer failed with " + ret, input.wouldBlock);
+					assertTrue("demuxer does not read the arrived tags", arrivedTagCount < TAG_COUNT);
+					eagainCount++;
+					// next tag arrives
+					input.available = tagEnds.get(arrivedTagCount++);
+				}
+			}
+
+			assertTrue(eagainCount >= TAG_COUNT - 1);
+			for (int i = 0; i < TAG_COUNT; i++) {
+				assertEquals(getTimestamp(i), (long) ptsList.get(i));
+				assertEquals(getBodySize(i) - 1, (int) sizeList.get(i));
+			}
+		}
+		finally {
+			av_packet_free(pkt);
+			inputs.remove(inputFormatContext);
+			if (pb.buffer() != null) {
+				av_free(pb.buffer());
+				pb.buffer(null);
+			}
+			inputFormatContext.pb(null);
+			avformat_close_input(inputFormatContext);
+			av_free(pb);
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+package io.antmedia.muxer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPacketChannel {
+
+	private PacketChannel<String> channel;
+
+	private List<String> dropped;
+
+	@Before
+	public void setUp() {
+		channel = new PacketChannel<>(4, PacketChannel.OverflowPolicy.DROP_OLDEST_NON_KEYFRAME);
+		dropped = Collections.synchronizedList(new ArrayList<>());
+		channel.setDropListener(dropped::add);
+	}
+
+	private List<String> drain() {
+		List<String> frames = new ArrayList<>();
+		String frame;
+		while ((frame = channel.poll()) != null) {
+			frames.add(frame);
+		}
+		return frames;
+	}
+
+	@Test
+	public void testDropOldestDroppableFrame() {
+		assertTrue(channel.offer("key1", false));
+		assertTrue(channel.offer("p1", true));
+		assertTrue(channel.offer("p2", true));
+		assertTrue(channel.offer("p3", true));
+
+		assertTrue(channel.offer("p4", true));
+
+		assertEquals(4, channel.size());
+		assertEquals(Collections.singletonList("p1"), dropped);
+		assertEquals(1, channel.getDroppedFrameCount());
+		assertEquals(Arrays.asList("key1", "p2", "p3", "p4"), drain());
+		assertTrue(channel.isEmpty());
+	}
+
+	@Test
+	public void testKeyFramesAndAudioAreKept() {
+		assertTrue(channel.offer("key1", false));
+		assertTrue(channel.offer("audio1", false));
+		assertTrue(channel.offer("p1", true));
+		assertTrue(channel.offer("audio2", false));
+
+		assertTrue(channel.offer("key2", false));
+
+		assertEquals(Collections.singletonList("p1"), dropped);
+		assertEquals(Arrays.asList("key1", "audio1", "audio2", "key2"), drain());
+	}
+
+	@Test
+	public void testRejectWhenThereIsNoDroppableFrame() {
+		for (int i = 0; i < 4; i++) {
+			assertTrue(channel.offer("key" + i, false));
+		}
+
+		assertFalse(channel.offer("key4", false));
+		assertEquals(1, channel.getRejectedFrameCount());
+
+		// droppable frame is dropped but not counted as rejected
+		assertFalse(channel.offer("p1", true));
+		assertEquals(1, channel.getRejectedFrameCount());
+		assertEquals(2, channel.getDroppedFrameCount());
+
+		assertEquals(Arrays.asList("key4", "p1"), dropped);
+		assertEquals(Arrays.asList("key0", "key1", "key2", "key3"), drain());
+	}
+
+	@Test
+	public void testTombstonesAreSkippedAfterWrapAround() {
+		int next = 0;
+		List<String> consumed = new ArrayList<>();
+		for (int round = 0; round < 100; round++) {
+			// a key frame at the head makes the channel drop the frames behind it
+			for (int i = 0; i < 6; i++) {
+				String frame = "f" + (next++);
+				channel.offer(frame, i != 0);
+			}
+			assertEquals(4, channel.size());
+			consumed.addAll(drain());
+			assertTrue(channel.isEmpty());
+			assertNull(channel.poll());
+		}
+
+		assertEquals(next, consumed.size() + dropped.size());
+		Set<String> all = new HashSet<>(consumed);
+		all.addAll(dropped);
+		assertEquals(next, all.size());
+		for (int i = 1; i < consumed.size(); i++) {
+			assertTrue(index(consumed.get(i - 1)) < index(consumed.get(i)));
+		}
+	}
+
+	@Test
+	public void testFrameIsEitherConsumedOrDroppedConcurrently() throws Exception {
+		channel = new PacketChannel<>(64, PacketChannel.OverflowPolicy.DROP_OLDEST_NON_KEYFRAME);
+		channel.setDropListener(dropped::add);
+		int frameCount = 200000;
+
+		Thread producer = new Thread(() -> {
+			for (int i = 0; i < frameCount; i++) {
+				channel.offer("f" + i, i % 10 != 0);
+			}
+			channel.close();
+		});
+		List<String> consumed = new ArrayList<>();
+		producer.start();
+		while (!channel.isClosed() || !channel.isEmpty()) {
+			String frame = channel.poll();
+			if (frame != null) {
+				consumed.add(frame);
+			}
+		}
+		producer.join();
+		consumed.addAll(drain());
+
+		Set<String> all = new HashSet<>(consumed);
+		assertEquals("a frame is consumed twice", consumed.size(), all.size());
+		for (String frame : dropped) {
+			assertTrue("a frame is consumed and dropped " + frame, all.add(frame));
+		}
+		assertEquals(frameCount, all.size());
+		for (int i = 1; i < consumed.size(); i++) {
+			assertTrue(index(consumed.get(i - 1)) < index(consumed.get(i)));
+		}
+	}
+
+	private static int index(String frame) {
+		return Integer.parseInt(frame.substring(1));
+	}
+
+}
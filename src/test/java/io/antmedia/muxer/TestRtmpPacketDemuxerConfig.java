@@ -0,0 +1,123 @@
+package io.antmedia.muxer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class TestRtmpPacketDemuxerConfig {
+
+	/**
+	 * AVCDecoderConfigurationRecord of a 1280x720 High profile level 3.1 stream of x264
+	 */
+	private static final byte[] AVC_CONFIG_720P = toBytes("01 64 00 1f ff e1 00 1a"
+			+ " 67 64 00 1f ac d9 40 50 05 bb 01 10 00 00 03 00 10 00 00 03 03 c0 f1 83 19 60"
+			+ " 01 00 06 68 eb e3 cb 22 c0");
+
+	/**
+	 * AVCDecoderConfigurationRecord of a 1920x1080 High profile level 4.0 stream of x264,
+	 * coded height is 1088 and 8 lines are cropped
+	 */
+	private static final byte[] AVC_CONFIG_1080P = toBytes("01 64 00 28 ff e1 00 1b"
+			+ " 67 64 00 28 ac d9 40 78 02 27 e5 c0 44 00 00 03 00 04 00 00 03 00 f0 3c 60 c6 58"
+			+ " 01 00 06 68 eb e3 cb 22 c0");
+
+	/**
+	 * AVCDecoderConfigurationRecord of a 320x240 Baseline profile level 1.3 stream, SPS is built field by field.
+	 * It has no chroma format, pic order count type 1 and a large offset_for_non_ref_pic so that
+	 * there are emulation prevention bytes before the frame size
+	 */
+	private static final byte[] AVC_CONFIG_BASELINE = toBytes("01 42 c0 0d ff e1 00 11"
+			+ " 67 42 c0 0d d0 00 00 03 02 00 00 03 03 a0 50 7c 40"
+			+ " 01 00 04 68 ce 3c 80");
+
+	/**
+	 * AVCDecoderConfigurationRecord of a 720x576 interlaced Main profile level 3.0 stream, SPS is built field by field.
+	 * Height is in field macroblock pairs
+	 */
+	private static final byte[] AVC_CONFIG_INTERLACED = toBytes("01 4d 40 1e ff e1 00 09"
+			+ " 67 4d 40 1e ed 81 68 49 90"
+			+ " 01 00 04 68 ee 3c 80");
+
+	private static byte[] toBytes(String hex) {
+		String[] values = hex.trim().split(" ");
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(values[i], 16);
+		}
+		return bytes;
+	}
+
+	@Test
+	public void testResolutionOfHighProfile() {
+		assertArrayEquals(new int[] {1280, 720}, RtmpPacketDemuxer.H264SpsParser.getResolution(AVC_CONFIG_720P));
+	}
+
+	@Test
+	public void testResolutionIsCropped() {
+		assertArrayEquals(new int[] {1920, 1080}, RtmpPacketDemuxer.H264SpsParser.getResolution(AVC_CONFIG_1080P));
+	}
+
+	@Test
+	public void testResolutionOfBaselineProfile() {
+		assertArrayEquals(new int[] {320, 240}, RtmpPacketDemuxer.H264SpsParser.getResolution(AVC_CONFIG_BASELINE));
+	}
+
+	@Test
+	public void testResolutionOfInterlacedStream() {
+		assertArrayEquals(new int[] {720, 576}, RtmpPacketDemuxer.H264SpsParser.getResolution(AVC_CONFIG_INTERLACED));
+	}
+
+	@Test
+	public void testInvalidAVCConfig() {
+		// no SPS
+		assertNull(RtmpPacketDemuxer.H264SpsParser.getResolution(toBytes("01 64 00 1f ff e0 01 00 06 68 eb e3 cb 22 c0")));
+		// SPS is longer than the config
+		assertNull(RtmpPacketDemuxer.H264SpsParser.getResolution(toBytes("01 64 00 1f ff e1 00 1a 67 64 00 1f ac d9")));
+		// SPS ends before the frame size
+		assertNull(RtmpPacketDemuxer.H264SpsParser.getResolution(toBytes("01 64 00 1f ff e1 00 06 67 64 00 1f ac d9")));
+	}
+
+	@Test
+	public void testAudioSpecificConfig() {
+		// AAC LC, 44.1 kHz, stereo
+		RtmpPacketDemuxer.AudioSpecificConfig config = RtmpPacketDemuxer.AudioSpecificConfig.parse(toBytes("12 10"));
+		assertEquals(2, config.objectType);
+		assertEquals(44100, config.sampleRate);
+		assertEquals(2, config.channels);
+
+		// AAC LC, 48 kHz, stereo
+		config = RtmpPacketDemuxer.AudioSpecificConfig.parse(toBytes("11 90"));
+		assertEquals(2, config.objectType);
+		assertEquals(48000, config.sampleRate);
+		assertEquals(2, config.channels);
+
+		// AAC LC, 8 kHz, mono
+		config = RtmpPacketDemuxer.AudioSpecificConfig.parse(toBytes("15 88"));
+		assertEquals(2, config.objectType);
+		assertEquals(8000, config.sampleRate);
+		assertEquals(1, config.channels);
+
+		// HE-AAC with explicit SBR signalling, 24 kHz core, stereo and 48 kHz extension
+		config = RtmpPacketDemuxer.AudioSpecificConfig.parse(toBytes("2b 11 88 00"));
+		assertEquals(5, config.objectType);
+		assertEquals(24000, config.sampleRate);
+		assertEquals(2, config.channels);
+	}
+
+	@Test
+	public void testAudioSpecificConfigWithEscapes() {
+		// object type 31 is followed by 6 bits, ER AAC ELD(39), frequency index 15 is followed by 24 bits,
+		// 44.1 kHz, mono
+		RtmpPacketDemuxer.AudioSpecificConfig config = RtmpPacketDemuxer.AudioSpecificConfig.parse(toBytes("f8 fe 01 58 88 20"));
+		assertEquals(39, config.objectType);
+		assertEquals(44100, config.sampleRate);
+		assertEquals(1, config.channels);
+
+		// sampling frequency is cut
+		assertNull(RtmpPacketDemuxer.AudioSpecificConfig.parse(toBytes("f8 fe 01")));
+		assertNull(RtmpPacketDemuxer.AudioSpecificConfig.parse(toBytes("12")));
+	}
+
+}
@@ -0,0 +1,262 @@
+package io.antmedia.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+import io.antmedia.storage.StorageClient.FileType;
+
+/**
+ * Runs the multipart upload of {@link AmazonS3StorageClient} against a local S3 stand-in that keeps the objects in memory
+ * and checks the multipart upload rules of S3: part numbers, ETags of the completed parts and the minimum part size.
+ */
+public class TestAmazonS3UploadSession {
+
+	/**
+	 * Multipart upload API of S3 in memory
+	 */
+	private static class LocalS3 extends AbstractAmazonS3 {
+
+		private static class MultipartUpload {
+			final String key;
+			final Map<Integer, byte[]> parts = new ConcurrentSkipListMap<>();
+			final Map<Integer, String> eTags = new ConcurrentHashMap<>();
+
+			MultipartUpload(String key) {
+				this.key = key;
+			}
+		}
+
+		final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+		final Map<String, MultipartUpload> uploads = new ConcurrentHashMap<>();
+		volatile int failAtPart = -1;
+
+		@Override
+		public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+			assertEquals(BUCKET, request.getBucketName());
+			assertEquals(CannedAccessControlList.PublicRead, request.getCannedACL());
+			String uploadId = UUID.randomUUID().toString();
+			uploads.put(uploadId, new MultipartUpload(request.getKey()));
+			InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+			result.setBucketName(request.getBucketName());
+			result.setKey(request.getKey());
+			result.setUploadId(uploadId);
+			return result;
+		}
+
+		@Override
+		public UploadPartResult uploadPart(UploadPartRequest request) {
+			MultipartUpload upload = getUpload(request.getUploadId(), request.getKey());
+			if (request.getPartNumber() == failAtPart) {
+				throw new AmazonS3Exception("part cannot be uploaded");
+			}
+			if (request.getPartNumber() < 1 || request.getPartNumber() > 10000) {
+				throw error("InvalidArgument");
+			}
+			byte[] data = new byte[(int) request.getPartSize()];
+			try (InputStream in = request.getInputStream()) {
+				int offset = 0;
+				while (offset < data.length) {
+					int read = in.read(data, offset, data.length - offset);
+					if (read < 0) {
+						throw error("IncompleteBody");
+					}
+					offset += read;
+				}
+			}
+			catch (IOException e) {
+				throw new AmazonS3Exception("part cannot be read", e);
+			}
+			String eTag = UUID.randomUUID().toString();
+			upload.parts.put(request.getPartNumber(), data);
+			upload.eTags.put(request.getPartNumber(), eTag);
+			UploadPartResult result = new UploadPartResult();
+			result.setPartNumber(request.getPartNumber());
+			result.setETag(eTag);
+			return result;
+		}
+
+		@Override
+		public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+			MultipartUpload upload = getUpload(request.getUploadId(), request.getKey());
+			List<PartETag> partETags = new ArrayList<>(request.getPartETags());
+			if (partETags.isEmpty()) {
+				throw error("MalformedXML");
+			}
+			// parts may be listed in any order, S3 SDK sorts them before sending
+			partETags.sort((part1, part2) -> Integer.compare(part1.getPartNumber(), part2.getPartNumber()));
+			ByteArrayOutputStream object = new ByteArrayOutputStream();
+			for (int i = 0; i < partETags.size(); i++) {
+				PartETag partETag = partETags.get(i);
+				byte[] part = upload.parts.get(partETag.getPartNumber());
+				if (part == null || !partETag.getETag().equals(upload.eTags.get(partETag.getPartNumber()))) {
+					throw error("InvalidPart");
+				}
+				if (i < partETags.size() - 1 && part.length < AmazonS3StorageClient.MIN_PART_SIZE) {
+					throw error("EntityTooSmall");
+				}
+				object.write(part, 0, part.length);
+			}
+			uploads.remove(request.getUploadId());
+			objects.put(upload.key, object.toByteArray());
+			CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+			result.setBucketName(request.getBucketName());
+			result.setKey(request.getKey());
+			return result;
+		}
+
+		@Override
+		public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+			getUpload(request.getUploadId(), request.getKey());
+			uploads.remove(request.getUploadId());
+		}
+
+		private MultipartUpload getUpload(String uploadId, String key) {
+			MultipartUpload upload = uploadId != null ? uploads.get(uploadId) : null;
+			if (upload == null || !upload.key.equals(key)) {
+				throw error("NoSuchUpload");
+			}
+			return upload;
+		}
+
+		private static AmazonS3Exception error(String errorCode) {
+			AmazonS3Exception exception = new AmazonS3Exception(errorCode);
+			exception.setErrorCode(errorCode);
+			exception.setStatusCode(400);
+			return exception;
+		}
+	}
+
+	private static final String BUCKET = "test-bucket";
+
+	private LocalS3 s3;
+
+	private AmazonS3StorageClient storageClient;
+
+	private File file;
+
+	private ByteArrayOutputStream written;
+
+	@Before
+	public void setUp() throws IOException {
+		s3 = new LocalS3();
+		storageClient = new AmazonS3StorageClient();
+		storageClient.setStorageName(BUCKET);
+		storageClient.setAmazonS3(s3);
+		file = File.createTempFile("upload", ".mp4");
+		written = new ByteArrayOutputStream();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	private void write(int length) throws IOException {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) ((written.size() + i) * 31);
+		}
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			out.write(data);
+		}
+		written.write(data, 0, length);
+	}
+
+	private String getKey() {
+		return FileType.TYPE_STREAM.getValue() + "/" + file.getName();
+	}
+
+	@Test
+	public void testFileIsUploadedInParts() throws IOException {
+		UploadSession session = storageClient.openUploadSession(file, FileType.TYPE_STREAM);
+		assertNotNull(session);
+		assertEquals(getKey(), session.getKey());
+		assertEquals(1, s3.uploads.size());
+
+		write(AmazonS3StorageClient.MIN_PART_SIZE + 1000);
+		session.append(file);
+		write(AmazonS3StorageClient.MIN_PART_SIZE);
+		session.append(file);
+		session.awaitAppends();
+		assertEquals(written.size(), session.getUploadedLength());
+		assertNull("object is not visible before the upload is completed", s3.objects.get(getKey()));
+
+		write(123);
+		assertTrue(session.complete(file));
+		assertArrayEquals(written.toByteArray(), s3.objects.get(getKey()));
+		assertTrue(s3.uploads.isEmpty());
+		assertFalse("local file is deleted after upload", file.exists());
+	}
+
+	@Test
+	public void testSmallFileIsUploadedInOnePart() throws IOException {
+		UploadSession session = storageClient.openUploadSession(file, FileType.TYPE_STREAM);
+		write(1000);
+		session.append(file);
+		write(10);
+		assertTrue(session.complete(file));
+		assertArrayEquals(written.toByteArray(), s3.objects.get(getKey()));
+	}
+
+	@Test
+	public void testUploadIsAbortedIfPartFails() throws IOException {
+		s3.failAtPart = 2;
+		UploadSession session = storageClient.openUploadSession(file, FileType.TYPE_STREAM);
+		write(2 * AmazonS3StorageClient.MIN_PART_SIZE + 10);
+		session.append(file);
+		session.awaitAppends();
+		assertTrue(session.isFailed());
+
+		assertFalse(session.complete(file));
+		assertTrue("multipart upload is aborted", s3.uploads.isEmpty());
+		assertTrue(s3.objects.isEmpty());
+		assertTrue("local file is kept to be saved again", file.exists());
+	}
+
+	@Test
+	public void testAbortedUploadIsNotCompleted() throws IOException {
+		UploadSession session = storageClient.openUploadSession(file, FileType.TYPE_STREAM);
+		write(AmazonS3StorageClient.MIN_PART_SIZE);
+		session.append(file);
+		session.awaitAppends();
+		session.abort();
+		assertTrue(s3.uploads.isEmpty());
+
+		assertFalse(session.complete(file));
+		assertTrue(s3.objects.isEmpty());
+		assertTrue(file.exists());
+	}
+
+}
@@ -0,0 +1,167 @@
+package io.antmedia.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestUploadSession {
+
+	/**
+	 * Keeps the uploaded parts in memory
+	 */
+	private static class InMemoryUploadSession extends UploadSession {
+
+		final List<byte[]> parts = new ArrayList<>();
+		final List<Boolean> lastParts = new ArrayList<>();
+		int failAtPart = -1;
+		boolean completed = false;
+		boolean aborted = false;
+
+		InMemoryUploadSession(int partSize, ExecutorService executor) {
+			super("streams/test.mp4", partSize, executor);
+		}
+
+		@Override
+		protected void uploadPart(int partNumber, byte[] data, int length, boolean lastPart) throws Exception {
+			if (partNumber == failAtPart) {
+				throw new IOException("part cannot be uploaded");
+			}
+			assertEquals(parts.size() + 1, partNumber);
+			byte[] part = new byte[length];
+			System.arraycopy(data, 0, part, 0, length);
+			parts.add(part);
+			lastParts.add(lastPart);
+		}
+
+		@Override
+		protected void completeUpload() {
+			completed = true;
+		}
+
+		@Override
+		protected void abortUpload() {
+			aborted = true;
+		}
+
+		byte[] uploadedContent() {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for (byte[] part : parts) {
+				out.write(part, 0, part.length);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	private ExecutorService executor;
+
+	private File file;
+
+	private ByteArrayOutputStream written;
+
+	@Before
+	public void setUp() throws IOException {
+		executor = Executors.newSingleThreadExecutor();
+		file = File.createTempFile("upload", ".mp4");
+		written = new ByteArrayOutputStream();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+		file.delete();
+	}
+
+	private void write(int length) throws IOException {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (written.size() + i);
+		}
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			out.write(data);
+		}
+		written.write(data, 0, length);
+	}
+
+	@Test
+	public void testAppendedBytesAreUploadedInParts() throws IOException {
+		InMemoryUploadSession session = new InMemoryUploadSession(10, executor);
+		write(7);
+		session.append(file);
+		write(18);
+		session.append(file);
+		session.awaitAppends();
+
+		// parts are uploaded only when they're full
+		assertEquals(2, session.parts.size());
+		assertEquals(25, session.getUploadedLength());
+		write(3);
+
+		assertTrue(session.complete(file));
+		assertTrue(session.completed);
+		assertFalse(session.aborted);
+		assertEquals(3, session.parts.size());
+		assertEquals(8, session.parts.get(2).length);
+		assertEquals(Boolean.TRUE, session.lastParts.get(2));
+		assertArrayEquals(written.toByteArray(), session.uploadedContent());
+		assertFalse("local file is deleted after upload", file.exists());
+	}
+
+	@Test
+	public void testCompleteReadsTheMovedFile() throws IOException {
+		InMemoryUploadSession session = new InMemoryUploadSession(10, executor);
+		write(15);
+		session.append(file);
+		write(5);
+		session.awaitAppends();
+
+		File movedFile = new File(file.getAbsolutePath() + ".moved");
+		assertTrue(file.renameTo(movedFile));
+		try {
+			assertTrue(session.complete(movedFile));
+			assertArrayEquals(written.toByteArray(), session.uploadedContent());
+		}
+		finally {
+			movedFile.delete();
+		}
+	}
+
+	@Test
+	public void testUploadIsAbortedIfPartFails() throws IOException {
+		InMemoryUploadSession session = new InMemoryUploadSession(10, executor);
+		session.failAtPart = 2;
+		write(25);
+		session.append(file);
+		session.awaitAppends();
+		assertTrue(session.isFailed());
+
+		write(5);
+		session.append(file);
+		assertFalse(session.complete(file));
+		assertFalse(session.completed);
+		assertTrue(session.aborted);
+		assertTrue("local file is kept to be saved again", file.exists());
+	}
+
+	@Test
+	public void testEmptyUploadIsNotCompleted() {
+		InMemoryUploadSession session = new InMemoryUploadSession(10, executor);
+		assertFalse(session.complete(file));
+		assertFalse(session.completed);
+		assertTrue(session.aborted);
+	}
+
+}
@@ -0,0 +1,125 @@
+package org.red5.server.net.rtmp;
+
+import java.security.KeyPair;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.red5.server.net.rtmp.message.Constants;
+
+/**
+ * Measures server side handshakes per second for the plain, digest and RTMPE handshake types. Every handshake validates the same client request (C1) and creates
+ * the server response (S1) like an inbound handshake does.
+ *
+ * Run with main method or with JMH runner in test classpath
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTMPHandshakeBenchmark {
+
+    /**
+     * Server end of the handshake with the steps of the inbound handshake
+     */
+    static class ServerHandshake extends RTMPHandshake {
+
+        private static final Random random = new Random(1);
+
+        ServerHandshake(byte handshakeType) {
+            super(handshakeType);
+        }
+
+        @Override
+        protected void createHandshakeBytes() {
+            handshakeBytes = new byte[Constants.HANDSHAKE_SIZE];
+            random.nextBytes(handshakeBytes);
+        }
+
+        @Override
+        public boolean validate(byte[] handshake) {
+            int digestPos = getDigestOffset(algorithm, handshake, 0);
+            return verifyDigest(digestPos, handshake, GENUINE_FP_KEY, 30);
+        }
+
+        void signResponse() {
+            int digestPos = getDigestOffset(algorithm, handshakeBytes, 0);
+            calculateDigest(digestPos, handshakeBytes, 0, GENUINE_FMS_KEY, 36, handshakeBytes, digestPos);
+        }
+
+        void exchangeKeys(byte[] clientPublicKey) {
+            KeyPair keyPair = generateKeyPair();
+            outgoingPublicKey = getPublicKey(keyPair);
+            incomingPublicKey = clientPublicKey;
+            byte[] sharedSecret = getSharedSecret(clientPublicKey, keyAgreement);
+            initRC4Encryption(sharedSecret);
+        }
+
+    }
+
+    private byte[] clientRequest;
+
+    private byte[] clientPublicKey;
+
+    @Setup
+    public void setup() {
+        ServerHandshake client = new ServerHandshake(RTMPConnection.RTMP_NON_ENCRYPTED);
+        clientRequest = client.handshakeBytes.clone();
+        int digestPos = client.getDigestOffset(client.algorithm, clientRequest, 0);
+        client.calculateDigest(digestPos, clientRequest, 0, RTMPHandshake.GENUINE_FP_KEY, 30, clientRequest, digestPos);
+        if (!client.validate(clientRequest)) {
+            throw new IllegalStateException("Client request is not valid");
+        }
+        clientPublicKey = client.getPublicKey(client.generateKeyPair());
+    }
+
+    @Benchmark
+    public byte[] plain() {
+        ServerHandshake handshake = new ServerHandshake(RTMPConnection.RTMP_NON_ENCRYPTED);
+        // S2 is the echo of C1
+        System.arraycopy(clientRequest, 0, handshake.handshakeBytes, 0, 8);
+        return handshake.handshakeBytes;
+    }
+
+    @Benchmark
+    public byte[] digest() {
+        ServerHandshake handshake = new ServerHandshake(RTMPConnection.RTMP_NON_ENCRYPTED);
+        if (!handshake.validate(clientRequest)) {
+            throw new IllegalStateException("Client request is not valid");
+        }
+        handshake.signResponse();
+        return handshake.handshakeBytes;
+    }
+
+    @Benchmark
+    public Object rtmpe() {
+        ServerHandshake handshake = new ServerHandshake(RTMPConnection.RTMP_ENCRYPTED);
+        if (!handshake.validate(clientRequest)) {
+            throw new IllegalStateException("Client request is not valid");
+        }
+        handshake.exchangeKeys(clientPublicKey);
+        handshake.signResponse();
+        return handshake.getCipherOut();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(RTMPHandshakeBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+
+}
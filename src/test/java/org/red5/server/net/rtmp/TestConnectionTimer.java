@@ -0,0 +1,80 @@
+package org.red5.server.net.rtmp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestConnectionTimer {
+
+    private ConnectionTimer timer;
+
+    @Before
+    public void setUp() {
+        timer = new ConnectionTimer(10, 64);
+    }
+
+    @After
+    public void tearDown() {
+        timer.destroy();
+    }
+
+    @Test
+    public void testTasksAreNotRunOnTimerThread() throws Exception {
+        assertNotNull("there is an executor without a task executor", timer.getTaskExecutor());
+        AtomicReference<Thread> taskThread = new AtomicReference<>();
+        AtomicReference<Thread> timerThread = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        timer.schedule(() -> {
+            taskThread.set(Thread.currentThread());
+            done.countDown();
+        }, 20);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("ConnectionTimer".equals(thread.getName())) {
+                timerThread.set(thread);
+            }
+        }
+        assertNotSame(timerThread.get(), taskThread.get());
+    }
+
+    @Test
+    public void testBlockedTaskDoesNotDelayOtherTimeouts() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch fired = new CountDownLatch(1);
+        timer.schedule(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 10);
+        timer.schedule(fired::countDown, 50);
+        try {
+            assertTrue("timeout is delayed by a blocked task", fired.await(2, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testCancelledTaskIsNotRun() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        ConnectionTimer.Timeout timeout = timer.schedule(runs::incrementAndGet, 50);
+        assertTrue(timeout.cancel(false));
+        CountDownLatch later = new CountDownLatch(1);
+        timer.schedule(later::countDown, 100);
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertFalse(runs.get() > 0);
+    }
+
+}
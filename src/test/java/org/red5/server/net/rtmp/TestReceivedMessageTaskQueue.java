@@ -0,0 +1,237 @@
+package org.red5.server.net.rtmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.red5.server.net.rtmp.message.Header;
+import org.red5.server.net.rtmp.message.Packet;
+
+public class TestReceivedMessageTaskQueue {
+
+    /**
+     * Handler that runs the given action for each packet
+     */
+    private interface PacketAction {
+
+        void run(Packet packet) throws Exception;
+
+    }
+
+    private static class TestHandler implements IRTMPHandler {
+
+        private final PacketAction action;
+
+        TestHandler(PacketAction action) {
+            this.action = action;
+        }
+
+        public void connectionOpened(RTMPConnection conn) {
+        }
+
+        public void messageReceived(RTMPConnection conn, Packet packet) throws Exception {
+            action.run(packet);
+        }
+
+        public void messageSent(RTMPConnection conn, Packet packet) {
+        }
+
+        public void connectionClosed(RTMPConnection conn) {
+        }
+
+    }
+
+    /**
+     * Submits the queue to the executor like the connection does
+     */
+    private class ExecutorListener implements IReceivedMessageTaskQueueListener {
+
+        final AtomicInteger queuedTasks = new AtomicInteger();
+
+        final AtomicInteger submitCount = new AtomicInteger();
+
+        public void onTaskAdded(ReceivedMessageTaskQueue queue) {
+            queuedTasks.incrementAndGet();
+        }
+
+        public void onTaskRemoved(ReceivedMessageTaskQueue queue) {
+            queuedTasks.decrementAndGet();
+        }
+
+        public void onTasksPending(ReceivedMessageTaskQueue queue) {
+            submitCount.incrementAndGet();
+            executor.execute(queue);
+        }
+
+    }
+
+    private static final int THREAD_COUNT = 4;
+
+    private ExecutorService executor;
+
+    private ExecutorListener listener;
+
+    private ReceivedMessageTaskQueue queue;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        listener = new ExecutorListener();
+        queue = new ReceivedMessageTaskQueue(1, listener);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static ReceivedMessageTask newTask(int number, PacketAction action, long maxHandlingTimeout) {
+        ReceivedMessageTask task = new ReceivedMessageTask("session", new Packet(new Header()), new TestHandler(action), null);
+        task.setPacketNumber(number);
+        task.setMaxHandlingTimeout(maxHandlingTimeout);
+        return task;
+    }
+
+    @Test
+    public void testTasksAreProcessedInOrderAndNotConcurrently() throws Exception {
+        int taskCount = ReceivedMessageTaskQueue.MAX_BATCH_SIZE * 10;
+        List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+        AtomicInteger running = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(taskCount);
+        for (int i = 0; i < taskCount; i++) {
+            final int number = i;
+            queue.addTask(newTask(i, packet -> {
+                if (running.incrementAndGet() > 1) {
+                    overlapped.set(true);
+                }
+                processed.add(number);
+                running.decrementAndGet();
+                done.countDown();
+            }, 0));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse("tasks of a stream run concurrently", overlapped.get());
+        for (int i = 0; i < taskCount; i++) {
+            assertEquals(i, processed.get(i).intValue());
+        }
+        waitUntilEmpty();
+        assertEquals(0, listener.queuedTasks.get());
+        // queue is resubmitted after each batch, not for each task
+        assertTrue(listener.submitCount.get() < taskCount);
+    }
+
+    @Test
+    public void testTaskWaitingInQueueIsNotExpired() throws Exception {
+        long timeout = 200;
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirst = new CountDownLatch(1);
+        CountDownLatch secondDone = new CountDownLatch(1);
+        AtomicBoolean secondInterrupted = new AtomicBoolean();
+        queue.addTask(newTask(0, packet -> {
+            firstStarted.countDown();
+            releaseFirst.await();
+        }, 0));
+        queue.addTask(newTask(1, packet -> {
+            try {
+                Thread.sleep(timeout / 2);
+            } catch (InterruptedException e) {
+                secondInterrupted.set(true);
+            }
+            secondDone.countDown();
+        }, timeout));
+        assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+        // second task waits in the queue longer than its timeout
+        Thread.sleep(timeout * 2);
+        releaseFirst.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (secondDone.getCount() > 0 && System.currentTimeMillis() < deadline) {
+            assertFalse("task is given up right after it starts", queue.checkDeadlock());
+            Thread.sleep(5);
+        }
+        assertEquals(0, secondDone.getCount());
+        assertFalse(secondInterrupted.get());
+    }
+
+    @Test
+    public void testExpiredTaskIsInterruptedAndGivenUp() throws Exception {
+        // a single thread runs the next task of the stream after the expired one returns
+        executor.shutdownNow();
+        executor = Executors.newSingleThreadExecutor();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        CountDownLatch nextDone = new CountDownLatch(1);
+        AtomicBoolean interruptLeaked = new AtomicBoolean();
+        queue.addTask(newTask(0, packet -> {
+            started.countDown();
+            // returns with the interrupt flag set
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.yield();
+            }
+            interrupted.countDown();
+        }, 50));
+        queue.addTask(newTask(1, packet -> {
+            if (Thread.currentThread().isInterrupted()) {
+                interruptLeaked.set(true);
+            }
+            nextDone.countDown();
+        }, 50));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertFalse("task is not expired yet", queue.checkDeadlock());
+        Thread.sleep(100);
+        assertTrue(queue.checkDeadlock());
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertTrue("next task is processed after the expired one is given up", nextDone.await(5, TimeUnit.SECONDS));
+        assertFalse("interrupt of the guard reached the next task", interruptLeaked.get());
+        waitUntilEmpty();
+        assertEquals(0, listener.queuedTasks.get());
+    }
+
+    @Test
+    public void testCompletedTaskIsNotInterrupted() throws Exception {
+        ReceivedMessageTask task = newTask(0, packet -> {
+        }, 10);
+        task.setProcessing();
+        task.call();
+        Thread.sleep(20);
+        assertFalse(task.isExpired());
+        assertFalse(task.interrupt());
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void testRemoveAllTasks() {
+        ReceivedMessageTaskQueue idleQueue = new ReceivedMessageTaskQueue(2, null);
+        for (int i = 0; i < 5; i++) {
+            idleQueue.addTask(newTask(i, packet -> {
+            }, 0));
+        }
+        assertEquals(5, idleQueue.size());
+        idleQueue.removeAllTasks();
+        assertEquals(0, idleQueue.size());
+    }
+
+    private void waitUntilEmpty() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, queue.size());
+    }
+
+}
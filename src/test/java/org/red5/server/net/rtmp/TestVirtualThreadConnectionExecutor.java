@@ -0,0 +1,126 @@
+package org.red5.server.net.rtmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.red5.server.net.rtmp.message.Header;
+import org.red5.server.net.rtmp.message.Packet;
+
+public class TestVirtualThreadConnectionExecutor {
+
+    private static final int MAX_CONCURRENCY = 2;
+
+    private VirtualThreadConnectionExecutor executor;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = new VirtualThreadConnectionExecutor();
+        executor.setMaxConcurrency(MAX_CONCURRENCY);
+        executor.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.destroy();
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testNotInitializedExecutorRejects() {
+        new VirtualThreadConnectionExecutor().execute(() -> {
+        });
+    }
+
+    @Test
+    public void testConcurrencyIsCapped() throws Exception {
+        int taskCount = 20;
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(taskCount);
+        for (int i = 0; i < taskCount; i++) {
+            executor.execute(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue("tasks waiting for a permit are run", done.await(10, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() <= MAX_CONCURRENCY);
+        assertEquals(0, executor.getQueueLength());
+    }
+
+    @Test
+    public void testMessageQueuesAreDrained() throws Exception {
+        int streamCount = 8;
+        int taskCount = 100;
+        CountDownLatch done = new CountDownLatch(streamCount * taskCount);
+        List<List<Integer>> processed = new ArrayList<>();
+        IReceivedMessageTaskQueueListener listener = new IReceivedMessageTaskQueueListener() {
+
+            public void onTaskAdded(ReceivedMessageTaskQueue queue) {
+            }
+
+            public void onTaskRemoved(ReceivedMessageTaskQueue queue) {
+            }
+
+            public void onTasksPending(ReceivedMessageTaskQueue queue) {
+                executor.execute(queue);
+            }
+
+        };
+        List<ReceivedMessageTaskQueue> queues = new ArrayList<>();
+        for (int stream = 0; stream < streamCount; stream++) {
+            queues.add(new ReceivedMessageTaskQueue(stream, listener));
+            processed.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        for (int i = 0; i < taskCount; i++) {
+            for (int stream = 0; stream < streamCount; stream++) {
+                final List<Integer> streamProcessed = processed.get(stream);
+                final int number = i;
+                IRTMPHandler handler = new IRTMPHandler() {
+
+                    public void connectionOpened(RTMPConnection conn) {
+                    }
+
+                    public void messageReceived(RTMPConnection conn, Packet packet) {
+                        streamProcessed.add(number);
+                        done.countDown();
+                    }
+
+                    public void messageSent(RTMPConnection conn, Packet packet) {
+                    }
+
+                    public void connectionClosed(RTMPConnection conn) {
+                    }
+
+                };
+                queues.get(stream).addTask(new ReceivedMessageTask("session", new Packet(new Header()), handler, null));
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int stream = 0; stream < streamCount; stream++) {
+            List<Integer> streamProcessed = processed.get(stream);
+            assertEquals(taskCount, streamProcessed.size());
+            for (int i = 0; i < taskCount; i++) {
+                assertEquals(i, streamProcessed.get(i).intValue());
+            }
+        }
+    }
+
+}
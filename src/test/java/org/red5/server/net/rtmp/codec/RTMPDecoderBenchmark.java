@@ -0,0 +1,110 @@
+package org.red5.server.net.rtmp.codec;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.red5.io.utils.IOUtils;
+import org.red5.server.net.rtmp.RTMPConnection;
+import org.red5.server.net.rtmp.RTMPMinaConnection;
+import org.red5.server.net.rtmp.RTMPUtils;
+import org.red5.server.net.rtmp.message.Constants;
+
+/**
+ * Measures chunk reassembly of {@link RTMPProtocolDecoder#decodeBuffer(RTMPConnection, IoBuffer)}. Input is the connect command of
+ * {@link TestRTMPProtocolDecoder#testDecodeBufferChunks()} followed by video messages that are chunked with the read chunk size.
+ *
+ * Run with main method or with JMH runner in test classpath
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTMPDecoderBenchmark {
+
+    /**
+     * Connect command chunked at 128 bytes, it's decoded before the chunk size is changed
+     */
+    private static final String CONNECT = "030000000001531400000000020007636f6e6e656374003ff0000000000000030003617070020000000e6f626a656374456e636f64696e6700000000000000000000046670616401000008666c61736856657202001057494e2031312c322c3230322c3233350005746355726c02001b72746d703a2f2f36372e3136372e3136382e3138323a313933352f00c30b617564696f436f646563730040abee000000000000077061676555726c05000b636c7573746572506173730200086368616e67656d65000f70726976617465496e7374616e6365010000087075626c6963497002000d35342e3230392e32342e323138000a7075626c6963506f727400409e3c0000000000000d766964656fc346756e6374696f6e003ff0000000000000000470617468020000000c6361706162696c697469657300402e000000000000000673776655726c05000b766964656f436f64656373000000000000000000000009";
+
+    private static final int VIDEO_CHANNEL_ID = 6;
+
+    private static final int VIDEO_MESSAGE_COUNT = 30;
+
+    private static final int VIDEO_MESSAGE_SIZE = 16384;
+
+    @Param({ "128", "4096" })
+    public int chunkSize;
+
+    private RTMPProtocolDecoder decoder;
+
+    private RTMPConnection conn;
+
+    private byte[] videoMessages;
+
+    private IoBuffer input;
+
+    @Setup
+    public void setup() {
+        decoder = new RTMPProtocolDecoder();
+        conn = new RTMPMinaConnection();
+        conn.getState().setState(RTMP.STATE_CONNECTED);
+
+        IoBuffer connect = IoBuffer.wrap(IOUtils.hexStringToByteArray(CONNECT));
+        List<Object> objects = decoder.decodeBuffer(conn, connect);
+        if (objects.isEmpty()) {
+            throw new IllegalStateException("Connect command is not decoded");
+        }
+        conn.getState().setReadChunkSize(chunkSize);
+
+        byte[] body = new byte[VIDEO_MESSAGE_SIZE];
+        Arrays.fill(body, (byte) 1);
+        body[0] = 0x17;
+        IoBuffer out = IoBuffer.allocate(VIDEO_MESSAGE_COUNT * (VIDEO_MESSAGE_SIZE + 64)).setAutoExpand(true);
+        for (int i = 0; i < VIDEO_MESSAGE_COUNT; i++) {
+            RTMPUtils.encodeHeaderByte(out, Constants.HEADER_NEW, VIDEO_CHANNEL_ID);
+            RTMPUtils.writeMediumInt(out, i * 33);
+            RTMPUtils.writeMediumInt(out, VIDEO_MESSAGE_SIZE);
+            out.put(Constants.TYPE_VIDEO_DATA);
+            RTMPUtils.writeReverseInt(out, 1);
+            out.put(EncodedChunkCache.chunk(IoBuffer.wrap(body), chunkSize, VIDEO_CHANNEL_ID, 0, false));
+        }
+        out.flip();
+        videoMessages = new byte[out.remaining()];
+        out.get(videoMessages);
+        input = IoBuffer.allocate(videoMessages.length).setAutoExpand(true);
+    }
+
+    @Benchmark
+    public int decodeVideoMessages() {
+        // input is appended to the session buffer like RTMPMinaProtocolDecoder does
+        input.clear();
+        input.put(videoMessages);
+        input.flip();
+        return decoder.decodeBuffer(conn, input).size();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(RTMPDecoderBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+
+}
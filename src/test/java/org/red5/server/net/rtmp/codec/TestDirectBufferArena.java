@@ -0,0 +1,108 @@
+package org.red5.server.net.rtmp.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.junit.Test;
+
+public class TestDirectBufferArena {
+
+    @Test
+    public void testLargeRequestIsNotServed() {
+        assertNull(DirectBufferArena.allocate(DirectBufferArena.MAX_ALLOCATION_SIZE + 1));
+        IoBuffer buf = DirectBufferArena.allocate(DirectBufferArena.MAX_ALLOCATION_SIZE);
+        assertNotNull(buf);
+        assertTrue(buf.isDirect());
+        assertEquals(DirectBufferArena.MAX_ALLOCATION_SIZE, buf.remaining());
+        DirectBufferArena.release(buf);
+    }
+
+    @Test
+    public void testShortLivedThreadsDoNotHoldSlabs() throws Exception {
+        // warm up so that an idle arena and pooled slabs exist
+        for (int i = 0; i < 8; i++) {
+            DirectBufferArena.release(DirectBufferArena.allocate(DirectBufferArena.MAX_ALLOCATION_SIZE));
+        }
+        long allocatedBefore = DirectBufferArena.getAllocatedSlabCount();
+        int pooledBefore = DirectBufferArena.getPooledSlabCount();
+
+        // every thread moves to a new slab once and ends, like a virtual thread per task
+        for (int i = 0; i < 1000; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 5; j++) {
+                    DirectBufferArena.release(DirectBufferArena.allocate(DirectBufferArena.MAX_ALLOCATION_SIZE));
+                }
+            });
+            thread.start();
+            thread.join();
+        }
+
+        assertTrue("slabs are allocated for ended threads", DirectBufferArena.getAllocatedSlabCount() - allocatedBefore <= 1);
+        assertTrue("released slabs are not back in the pool", DirectBufferArena.getPooledSlabCount() >= pooledBefore);
+        assertTrue(DirectBufferArena.getIdleArenaCount() <= DirectBufferArena.MAX_IDLE_ARENAS);
+    }
+
+    @Test
+    public void testConcurrentShortLivedThreadsReturnSlabsToPool() throws Exception {
+        final int threadCount = 64;
+        for (int round = 0; round < 20; round++) {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    List<IoBuffer> buffers = new ArrayList<>();
+                    for (int j = 0; j < 6; j++) {
+                        buffers.add(DirectBufferArena.allocate(64 * 1024));
+                    }
+                    for (IoBuffer buf : buffers) {
+                        DirectBufferArena.release(buf);
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        // only idle arenas keep a slab, all other slabs are free
+        assertTrue(DirectBufferArena.getIdleArenaCount() <= DirectBufferArena.MAX_IDLE_ARENAS);
+        long allocatedBefore = DirectBufferArena.getAllocatedSlabCount();
+        int pooledBefore = DirectBufferArena.getPooledSlabCount();
+        for (int i = 0; i < 1000; i++) {
+            Thread thread = new Thread(() -> DirectBufferArena.release(DirectBufferArena.allocate(DirectBufferArena.MAX_ALLOCATION_SIZE)));
+            thread.start();
+            thread.join();
+        }
+        assertEquals("pool is drained by ended threads", allocatedBefore, DirectBufferArena.getAllocatedSlabCount());
+        assertTrue(DirectBufferArena.getPooledSlabCount() >= pooledBefore - 1);
+    }
+
+    @Test
+    public void testSharedRegionKeepsSlabUntilReleased() {
+        IoBuffer buf = DirectBufferArena.allocate(1024);
+        buf.put((byte) 7);
+        buf.flip();
+        IoBuffer shared = DirectBufferArena.share(buf);
+        DirectBufferArena.release(buf);
+        // released twice has no effect
+        DirectBufferArena.release(buf);
+        assertEquals(7, shared.get(0));
+        DirectBufferArena.release(shared);
+    }
+
+}
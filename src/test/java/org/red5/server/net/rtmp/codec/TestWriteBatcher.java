@@ -0,0 +1,222 @@
+package org.red5.server.net.rtmp.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+import org.junit.Before;
+import org.junit.Test;
+import org.red5.server.net.rtmp.message.Packet;
+
+public class TestWriteBatcher {
+
+    private static final int MAX_BATCH_BYTES = 4096;
+
+    private final List<IoBuffer> written = new ArrayList<>();
+
+    private final List<Packet> sent = new ArrayList<>();
+
+    private int scheduledFlushes;
+
+    private final ProtocolEncoderOutput out = new ProtocolEncoderOutput() {
+
+        @Override
+        public void write(Object encodedMessage) {
+            written.add((IoBuffer) encodedMessage);
+        }
+
+        @Override
+        public void mergeAll() {
+        }
+
+        @Override
+        public WriteFuture flush() {
+            return null;
+        }
+
+    };
+
+    private WriteBatcher batcher;
+
+    @Before
+    public void setUp() {
+        batcher = create(1000);
+    }
+
+    private WriteBatcher create(int flushWindowMs) {
+        return new WriteBatcher(flushWindowMs, MAX_BATCH_BYTES, () -> scheduledFlushes++, sent::add);
+    }
+
+    private static IoBuffer message(int size, int seed) {
+        IoBuffer buf = IoBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            buf.put((byte) (seed + i));
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static byte[] toBytes(IoBuffer... buffers) {
+        int size = 0;
+        for (IoBuffer buf : buffers) {
+            size += buf.remaining();
+        }
+        byte[] bytes = new byte[size];
+        int offset = 0;
+        for (IoBuffer buf : buffers) {
+            for (int i = buf.position(); i < buf.limit(); i++) {
+                bytes[offset++] = buf.get(i);
+            }
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testMessagesAreWrittenInOneBatch() {
+        IoBuffer[] messages = { message(100, 0), message(200, 50), message(300, 100) };
+        byte[] expected = toBytes(messages);
+        for (IoBuffer message : messages) {
+            assertTrue(batcher.write(out, message, false, message));
+        }
+        assertTrue(written.isEmpty());
+        assertEquals(600, batcher.getBatchedBytes());
+        // flush is scheduled once when the batch is started
+        assertEquals(1, scheduledFlushes);
+
+        batcher.flush(out);
+        assertEquals(1, written.size());
+        assertTrue(written.get(0) instanceof WriteBatcher.Batch);
+        assertArrayEquals(expected, toBytes(written.get(0)));
+        assertEquals(0, batcher.getBatchedBytes());
+        assertEquals(1, batcher.getBatchCount());
+        assertEquals(3, batcher.getBatchedMessageCount());
+
+        batcher.flush(out);
+        assertNull(batcher.take());
+        assertEquals(1, written.size());
+    }
+
+    @Test
+    public void testMessageThatMustNotWaitWritesTheBatch() {
+        IoBuffer first = message(100, 0);
+        IoBuffer second = message(10, 1);
+        byte[] expected = toBytes(first, second);
+        batcher.write(out, first, false, null);
+        batcher.write(out, second, true, null);
+        assertEquals(1, written.size());
+        assertArrayEquals(expected, toBytes(written.get(0)));
+    }
+
+    @Test
+    public void testBatchIsWrittenWhenBudgetIsExceeded() {
+        batcher.write(out, message(1500, 0), false, null);
+        batcher.write(out, message(1500, 0), false, null);
+        assertTrue(written.isEmpty());
+        batcher.write(out, message(1500, 0), false, null);
+        assertEquals(1, written.size());
+        assertEquals(3000, written.get(0).remaining());
+        assertEquals(1500, batcher.getBatchedBytes());
+        assertEquals(2, scheduledFlushes);
+
+        // message that fills the batch exactly
+        batcher.write(out, message(MAX_BATCH_BYTES - 1500 - 1, 0), false, null);
+        assertEquals(1, written.size());
+        assertEquals(MAX_BATCH_BYTES - 1, batcher.getBatchedBytes());
+    }
+
+    @Test
+    public void testOversizeMessageIsWrittenAfterTheBatch() {
+        IoBuffer small = message(100, 0);
+        byte[] expected = toBytes(small);
+        batcher.write(out, small, false, null);
+
+        IoBuffer large = message(MAX_BATCH_BYTES, 0);
+        assertFalse("large message is not copied", batcher.write(out, large, false, null));
+        // batch is written before the large message to keep the order
+        assertEquals(1, written.size());
+        assertArrayEquals(expected, toBytes(written.get(0)));
+        assertEquals(MAX_BATCH_BYTES, large.remaining());
+        assertEquals(0, batcher.getBatchedBytes());
+
+        // nothing is written if there is no batch
+        assertFalse(batcher.write(out, message(MAX_BATCH_BYTES + 1, 0), false, null));
+        assertEquals(1, written.size());
+        assertEquals(1, batcher.getBatchedMessageCount());
+    }
+
+    @Test
+    public void testFlushWindow() throws InterruptedException {
+        batcher = create(20);
+        batcher.write(out, message(10, 0), false, null);
+        assertTrue(written.isEmpty());
+        Thread.sleep(40);
+        // message that arrives after the window writes the batch
+        batcher.write(out, message(10, 0), false, null);
+        assertEquals(1, written.size());
+        assertEquals(20, written.get(0).remaining());
+        assertEquals(1, scheduledFlushes);
+
+        // nothing waits with zero window
+        batcher = create(0);
+        batcher.write(out, message(10, 0), false, null);
+        assertEquals(2, written.size());
+    }
+
+    @Test
+    public void testPacketIsSentAfterItsWriteAndBatch() {
+        Packet packet = new Packet();
+        batcher.write(out, message(100, 0), false, packet);
+        WriteBatcher.Batch batch = batcher.take();
+
+        // codec reports the packet before the batch is written
+        assertFalse(batcher.packetWritten(packet));
+        assertTrue(sent.isEmpty());
+        batch.written();
+        assertEquals(1, sent.size());
+        assertSame(packet, sent.get(0));
+
+        // batch is written before the write request of the packet is done
+        Packet other = new Packet();
+        batcher.write(out, message(100, 0), false, other);
+        batcher.take().written();
+        assertEquals(1, sent.size());
+        assertTrue(batcher.packetWritten(other));
+    }
+
+    @Test
+    public void testPacketInTwoBatches() {
+        Packet packet = new Packet();
+        // chunks of the same packet in one batch are counted once
+        batcher.write(out, message(100, 0), false, packet);
+        batcher.write(out, message(100, 0), false, packet);
+        WriteBatcher.Batch first = batcher.take();
+        batcher.write(out, message(100, 0), false, packet);
+        WriteBatcher.Batch second = batcher.take();
+
+        assertFalse(batcher.packetWritten(packet));
+        first.written();
+        assertTrue(sent.isEmpty());
+        second.written();
+        assertEquals(1, sent.size());
+        // count is removed, a later write of the packet is not held
+        assertTrue(batcher.packetWritten(packet));
+    }
+
+    @Test
+    public void testUnbatchedPacketIsWritten() {
+        assertTrue(batcher.packetWritten(new Packet()));
+        batcher.write(out, message(10, 0), false, "ping");
+        batcher.take().written();
+        assertTrue(sent.isEmpty());
+    }
+
+}
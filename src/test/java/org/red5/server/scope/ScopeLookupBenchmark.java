@@ -0,0 +1,103 @@
+package org.red5.server.scope;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.red5.server.api.scope.IBasicScope;
+import org.red5.server.api.scope.IScope;
+import org.red5.server.api.scope.ScopeType;
+
+/**
+ * Measures child scope lookups per second of an application scope against its number of broadcast scopes. Lookups are the ones done for every publish and
+ * play: by type and name, by name only and for a name that does not exist.
+ *
+ * Run with main method or with JMH runner in test classpath
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ScopeLookupBenchmark {
+
+    /**
+     * Child scope without handler and persistence like a broadcast scope
+     */
+    static class ChildScope extends BasicScope {
+
+        ChildScope(IScope parent, String name) {
+            super(parent, ScopeType.BROADCAST, name, false);
+        }
+
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        int next;
+
+    }
+
+    @Param({ "10", "1000", "10000", "100000" })
+    public int childCount;
+
+    private org.red5.server.scope.Scope appScope;
+
+    private String[] names;
+
+    @Setup
+    public void setup() {
+        appScope = new org.red5.server.scope.Scope.Builder(null, ScopeType.APPLICATION, "app", false).build();
+        names = new String[childCount];
+        for (int i = 0; i < childCount; i++) {
+            names[i] = "stream" + i;
+            if (!appScope.addChildScope(new ChildScope(appScope, names[i]))) {
+                throw new IllegalStateException("Child scope is not added: " + names[i]);
+            }
+        }
+    }
+
+    private String nextName(Cursor cursor) {
+        int index = cursor.next;
+        cursor.next = (index + 1 == names.length) ? 0 : index + 1;
+        return names[index];
+    }
+
+    @Benchmark
+    public IBasicScope getByTypeAndName(Cursor cursor) {
+        return appScope.getBasicScope(ScopeType.BROADCAST, nextName(cursor));
+    }
+
+    @Benchmark
+    public boolean hasChildByName(Cursor cursor) {
+        return appScope.hasChildScope(nextName(cursor));
+    }
+
+    @Benchmark
+    public IBasicScope getMissing() {
+        return appScope.getBasicScope(ScopeType.BROADCAST, "missing");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(ScopeLookupBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+
+}
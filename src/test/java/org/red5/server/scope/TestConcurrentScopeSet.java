@@ -0,0 +1,221 @@
+package org.red5.server.scope;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.red5.server.api.scope.IScope;
+import org.red5.server.api.scope.ScopeType;
+
+public class TestConcurrentScopeSet {
+
+    /**
+     * Child scope without handler and persistence like a broadcast scope, name and type are serialized because basic scope is not serializable
+     */
+    static class ChildScope extends BasicScope implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        ChildScope() {
+        }
+
+        ChildScope(IScope parent, ScopeType type, String name) {
+            super(parent, type, name, false);
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.writeObject(type);
+            out.writeObject(name);
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            type = (ScopeType) in.readObject();
+            name = (String) in.readObject();
+        }
+
+    }
+
+    /**
+     * Child scope of another class, it's not equal to a child scope with the same type and name
+     */
+    static class OtherChildScope extends ChildScope {
+
+        private static final long serialVersionUID = 1L;
+
+        OtherChildScope() {
+        }
+
+        OtherChildScope(IScope parent, ScopeType type, String name) {
+            super(parent, type, name);
+        }
+
+    }
+
+    static class SerializableScope extends Scope implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        SerializableScope() {
+        }
+
+        SerializableScope(String name) {
+            super(new Scope.Builder(null, ScopeType.APPLICATION, name, false));
+        }
+
+    }
+
+    private Scope appScope;
+
+    @Before
+    public void setUp() {
+        appScope = new SerializableScope("app");
+    }
+
+    private ChildScope child(String name) {
+        return new ChildScope(appScope, ScopeType.BROADCAST, name);
+    }
+
+    private OtherChildScope otherChild(String name) {
+        return new OtherChildScope(appScope, ScopeType.BROADCAST, name);
+    }
+
+    private static Scope.ConcurrentScopeSet getChildren(Scope scope) throws ReflectiveOperationException {
+        Field field = Scope.class.getDeclaredField("children");
+        field.setAccessible(true);
+        return (Scope.ConcurrentScopeSet) field.get(scope);
+    }
+
+    @Test
+    public void testLookup() {
+        ChildScope broadcast = child("stream1");
+        ChildScope room = new ChildScope(appScope, ScopeType.ROOM, "stream1");
+        assertTrue(appScope.addChildScope(broadcast));
+        assertTrue(appScope.addChildScope(room));
+        assertFalse("equal child is not added", appScope.addChildScope(child("stream1")));
+
+        assertSame(broadcast, appScope.getBasicScope(ScopeType.BROADCAST, "stream1"));
+        assertSame(room, appScope.getBasicScope(ScopeType.ROOM, "stream1"));
+        assertNull(appScope.getBasicScope(ScopeType.SHARED_OBJECT, "stream1"));
+        assertNull(appScope.getBasicScope(ScopeType.BROADCAST, "stream2"));
+        assertTrue(appScope.hasChildScope("stream1"));
+        assertTrue(appScope.hasChildScope(ScopeType.ROOM, "stream1"));
+        assertFalse(appScope.hasChildScope("stream2"));
+
+        appScope.removeChildScope(broadcast);
+        assertNull(appScope.getBasicScope(ScopeType.BROADCAST, "stream1"));
+        assertSame(room, appScope.getBasicScope(ScopeType.ROOM, "stream1"));
+        appScope.removeChildScope(room);
+        assertFalse(appScope.hasChildScope("stream1"));
+
+        // scope with the same name is added again
+        ChildScope again = child("stream1");
+        assertTrue(appScope.addChildScope(again));
+        assertSame(again, appScope.getBasicScope(ScopeType.BROADCAST, "stream1"));
+    }
+
+    @Test
+    public void testShadowedChildIsReturnedWhenIndexedChildIsRemoved() {
+        ChildScope first = child("stream1");
+        OtherChildScope second = otherChild("stream1");
+        assertTrue(appScope.addChildScope(first));
+        assertTrue(appScope.addChildScope(second));
+        assertSame(first, appScope.getBasicScope(ScopeType.BROADCAST, "stream1"));
+
+        appScope.removeChildScope(first);
+        assertSame(second, appScope.getBasicScope(ScopeType.BROADCAST, "stream1"));
+        appScope.removeChildScope(second);
+        assertNull(appScope.getBasicScope(ScopeType.BROADCAST, "stream1"));
+
+        // first child is added again after the shadowed one
+        assertTrue(appScope.addChildScope(second));
+        assertTrue(appScope.addChildScope(first));
+        assertSame(second, appScope.getBasicScope(ScopeType.BROADCAST, "stream1"));
+    }
+
+    @Test
+    public void testShadowedChildIsRemoved() {
+        ChildScope first = child("stream1");
+        OtherChildScope second = otherChild("stream1");
+        appScope.addChildScope(first);
+        appScope.addChildScope(second);
+
+        // removing the shadowed child keeps the indexed one
+        appScope.removeChildScope(second);
+        assertSame(first, appScope.getBasicScope(ScopeType.BROADCAST, "stream1"));
+        appScope.removeChildScope(first);
+        assertNull(appScope.getBasicScope(ScopeType.BROADCAST, "stream1"));
+        assertFalse(appScope.hasChildScope("stream1"));
+    }
+
+    @Test
+    public void testIndexIsConsistentWithChildren() throws ReflectiveOperationException {
+        for (int i = 0; i < 100; i++) {
+            appScope.addChildScope(child("stream" + i));
+            if (i % 3 == 0) {
+                appScope.addChildScope(otherChild("stream" + i));
+            }
+        }
+        for (int i = 0; i < 100; i += 2) {
+            appScope.removeChildScope(child("stream" + i));
+        }
+        Scope.ConcurrentScopeSet children = getChildren(appScope);
+        for (int i = 0; i < 100; i++) {
+            String name = "stream" + i;
+            Object child = appScope.getBasicScope(ScopeType.BROADCAST, name);
+            if (i % 2 == 0 && i % 3 == 0) {
+                assertTrue(name, child instanceof OtherChildScope);
+            } else if (i % 2 == 0) {
+                assertNull(name, child);
+                continue;
+            } else {
+                // first added child is returned
+                assertEquals(name, ChildScope.class, child.getClass());
+            }
+            assertTrue(name, children.containsKey(child));
+        }
+        assertEquals(84, children.size());
+    }
+
+    @Test
+    public void testIndexIsRebuiltAfterDeserialization() throws Exception {
+        ChildScope first = child("stream1");
+        OtherChildScope shadowed = otherChild("stream1");
+        appScope.addChildScope(first);
+        appScope.addChildScope(shadowed);
+        appScope.addChildScope(child("stream2"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(getChildren(appScope));
+        }
+        Scope.ConcurrentScopeSet children;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            children = (Scope.ConcurrentScopeSet) in.readObject();
+        }
+
+        assertEquals(3, children.size());
+        assertEquals("stream1", children.getBasicScope(ScopeType.BROADCAST, "stream1").getName());
+        assertEquals("stream2", children.getBasicScope(ScopeType.UNDEFINED, "stream2").getName());
+        assertTrue(children.hasName("stream2"));
+        assertNull(children.getBasicScope(ScopeType.BROADCAST, "stream3"));
+
+        // both children with the same type and name are indexed
+        children.remove(children.getBasicScope(ScopeType.BROADCAST, "stream1"));
+        assertEquals("stream1", children.getBasicScope(ScopeType.BROADCAST, "stream1").getName());
+        children.remove(children.getBasicScope(ScopeType.BROADCAST, "stream1"));
+        assertNull(children.getBasicScope(ScopeType.BROADCAST, "stream1"));
+    }
+
+}
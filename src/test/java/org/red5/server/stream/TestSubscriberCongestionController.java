@@ -0,0 +1,247 @@
+package org.red5.server.stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import org.red5.server.net.rtmp.event.AudioData;
+import org.red5.server.net.rtmp.event.VideoData;
+import org.red5.server.net.rtmp.event.VideoData.FrameType;
+import org.red5.server.stream.message.RTMPMessage;
+
+public class TestSubscriberCongestionController {
+
+    /**
+     * Controller with a fake socket, bandwidth is 100 bytes per millisecond after {@link #measureBandwidth()}
+     */
+    private static class TestController extends SubscriberCongestionController {
+
+        long writtenBytes;
+
+        long pendingBytes;
+
+        long now = 1000;
+
+        TestController() {
+            super(null);
+        }
+
+        @Override
+        protected long getWrittenBytes() {
+            return writtenBytes;
+        }
+
+        @Override
+        protected long getPendingWriteBytes() {
+            return pendingBytes;
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+
+        void measureBandwidth() {
+            assertTrue(canSendPacket(video(FrameType.KEYFRAME), 0));
+            now += 100;
+            writtenBytes += 10000;
+            assertTrue(canSendPacket(video(FrameType.INTERFRAME), 0));
+            assertEquals(100000, getBandwidth());
+        }
+
+        void setLatency(long latency) {
+            pendingBytes = latency * 100;
+        }
+
+    }
+
+    private TestController controller;
+
+    private static RTMPMessage video(FrameType type) {
+        int flag;
+        switch (type) {
+            case KEYFRAME:
+                flag = 0x10;
+                break;
+            case DISPOSABLE_INTERFRAME:
+                flag = 0x30;
+                break;
+            default:
+                flag = 0x20;
+        }
+        // AVC NALU
+        return RTMPMessage.build(new VideoData(IoBuffer.wrap(new byte[] { (byte) (flag | 7), 1, 0, 0, 0, 0 })));
+    }
+
+    private static long[] histogram(long[] buckets, int index, long count) {
+        long[] histogram = new long[buckets.length + 1];
+        histogram[index] = count;
+        return histogram;
+    }
+
+    @Before
+    public void setUp() {
+        controller = new TestController();
+        controller.measureBandwidth();
+    }
+
+    @Test
+    public void testNotCongested() {
+        controller.setLatency(100);
+        assertTrue(controller.canSendPacket(video(FrameType.INTERFRAME), 1));
+        assertTrue(controller.canSendPacket(video(FrameType.DISPOSABLE_INTERFRAME), 1));
+        assertEquals(100, controller.getLatency());
+        assertFalse(controller.isWaitingForKeyframe());
+        assertEquals(0, controller.getDroppedFrames(FrameType.INTERFRAME));
+    }
+
+    @Test
+    public void testCongestionByLatencyDropsRestOfGop() {
+        controller.setLatency(2001);
+        assertFalse(controller.canSendPacket(video(FrameType.INTERFRAME), 1));
+        assertTrue(controller.isWaitingForKeyframe());
+
+        // rest of the GOP is dropped even if the latency is low again
+        controller.setLatency(0);
+        assertFalse(controller.canSendPacket(video(FrameType.INTERFRAME), 1));
+        assertFalse(controller.canSendPacket(video(FrameType.DISPOSABLE_INTERFRAME), 1));
+        assertEquals(2, controller.getDroppedFrames(FrameType.INTERFRAME));
+        assertEquals(1, controller.getDroppedFrames(FrameType.DISPOSABLE_INTERFRAME));
+
+        assertTrue(controller.canSendPacket(video(FrameType.KEYFRAME), 1));
+        assertFalse(controller.isWaitingForKeyframe());
+        assertArrayEquals(histogram(SubscriberCongestionController.DROP_RUN_BUCKETS, 1, 1), controller.getDropRunHistogram());
+    }
+
+    @Test
+    public void testCongestionByPendingFrames() {
+        controller.setMaxPendingVideoFrames(10);
+        assertTrue(controller.canSendPacket(video(FrameType.INTERFRAME), 10));
+        assertFalse(controller.canSendPacket(video(FrameType.INTERFRAME), 11));
+        assertTrue(controller.isWaitingForKeyframe());
+        // keyframe is not sent while frames are still pending
+        assertFalse(controller.canSendPacket(video(FrameType.KEYFRAME), 11));
+        assertEquals(1, controller.getDroppedFrames(FrameType.KEYFRAME));
+        assertTrue(controller.canSendPacket(video(FrameType.KEYFRAME), 1));
+    }
+
+    @Test
+    public void testCongestionBySequentialPendingFrames() {
+        controller.setMaxSequentialPendingVideoFrames(3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(controller.canSendPacket(video(FrameType.INTERFRAME), 2));
+        }
+        assertFalse(controller.canSendPacket(video(FrameType.INTERFRAME), 2));
+        assertTrue(controller.isWaitingForKeyframe());
+    }
+
+    @Test
+    public void testResyncOnlyOnKeyframeBelowResumeLatency() {
+        controller.setLatency(3000);
+        assertFalse(controller.canSendPacket(video(FrameType.INTERFRAME), 1));
+
+        // below max latency but above resume latency
+        controller.setLatency(controller.getResumeLatency() + 1);
+        assertFalse(controller.canSendPacket(video(FrameType.KEYFRAME), 1));
+        assertTrue(controller.isWaitingForKeyframe());
+
+        // below resume latency but not a keyframe
+        controller.setLatency(controller.getResumeLatency());
+        assertFalse(controller.canSendPacket(video(FrameType.INTERFRAME), 1));
+        assertTrue(controller.isWaitingForKeyframe());
+
+        assertTrue(controller.canSendPacket(video(FrameType.KEYFRAME), 1));
+        assertFalse(controller.isWaitingForKeyframe());
+        assertTrue(controller.canSendPacket(video(FrameType.INTERFRAME), 1));
+        assertEquals(2, controller.getDroppedFrames(FrameType.INTERFRAME));
+        assertEquals(1, controller.getDroppedFrames(FrameType.KEYFRAME));
+    }
+
+    @Test
+    public void testDisposableInterframesAreDroppedAboveHalfOfMaxLatency() {
+        controller.setLatency(controller.getMaxLatency() / 2 + 1);
+        assertFalse(controller.canSendPacket(video(FrameType.DISPOSABLE_INTERFRAME), 1));
+        // nothing depends on a disposable interframe
+        assertFalse(controller.isWaitingForKeyframe());
+        assertTrue(controller.canSendPacket(video(FrameType.INTERFRAME), 1));
+        assertEquals(1, controller.getDroppedFrames(FrameType.DISPOSABLE_INTERFRAME));
+        assertArrayEquals(histogram(SubscriberCongestionController.DROP_RUN_BUCKETS, 0, 1), controller.getDropRunHistogram());
+
+        controller.setLatency(controller.getMaxLatency() / 2);
+        assertTrue(controller.canSendPacket(video(FrameType.DISPOSABLE_INTERFRAME), 1));
+    }
+
+    @Test
+    public void testAudioIsNeverDropped() {
+        controller.setLatency(10000);
+        assertFalse(controller.canSendPacket(video(FrameType.INTERFRAME), 100));
+        assertTrue(controller.canSendPacket(RTMPMessage.build(new AudioData(IoBuffer.wrap(new byte[] { (byte) 0xaf, 1, 0 }))), 100));
+        assertTrue(controller.isWaitingForKeyframe());
+    }
+
+    @Test
+    public void testLatencyHistogramBuckets() {
+        controller.setMaxLatency(Long.MAX_VALUE);
+        long[] latencies = { 0, 50, 51, 100, 250, 251, 1000, 2000, 5000, 5001, 60000 };
+        for (long latency : latencies) {
+            controller.setLatency(latency);
+            assertTrue(controller.canSendPacket(video(FrameType.INTERFRAME), 1));
+        }
+        // frames of the bandwidth measurement are in the first bucket
+        assertArrayEquals(new long[] { 4, 2, 1, 1, 1, 1, 1, 2 }, controller.getLatencyHistogram());
+    }
+
+    @Test
+    public void testDropRunHistogramBuckets() {
+        int[] runs = { 1, 2, 5, 6, 120, 121 };
+        for (int run : runs) {
+            controller.setLatency(10000);
+            for (int i = 0; i < run; i++) {
+                assertFalse(controller.canSendPacket(video(FrameType.INTERFRAME), 1));
+            }
+            controller.setLatency(0);
+            assertTrue(controller.canSendPacket(video(FrameType.KEYFRAME), 1));
+        }
+        assertArrayEquals(new long[] { 1, 2, 1, 0, 0, 1, 1 }, controller.getDropRunHistogram());
+        assertEquals(255, controller.getDroppedFrames(FrameType.INTERFRAME));
+    }
+
+    @Test
+    public void testDropPacket() {
+        controller.dropPacket(video(FrameType.DISPOSABLE_INTERFRAME));
+        assertFalse(controller.isWaitingForKeyframe());
+        controller.dropPacket(video(FrameType.INTERFRAME));
+        assertTrue(controller.isWaitingForKeyframe());
+        assertFalse(controller.canSendPacket(video(FrameType.INTERFRAME), 1));
+        assertTrue(controller.canSendPacket(video(FrameType.KEYFRAME), 1));
+        assertArrayEquals(new long[] { 1, 1, 0, 0, 0, 0, 0 }, controller.getDropRunHistogram());
+    }
+
+    @Test
+    public void testReset() {
+        controller.setLatency(10000);
+        assertFalse(controller.canSendPacket(video(FrameType.INTERFRAME), 1));
+        controller.reset();
+        assertFalse(controller.isWaitingForKeyframe());
+        assertArrayEquals(histogram(SubscriberCongestionController.DROP_RUN_BUCKETS, 0, 1), controller.getDropRunHistogram());
+
+        controller.reset(IFrameDropper.SEND_KEYFRAMES_CHECK);
+        assertTrue(controller.isWaitingForKeyframe());
+    }
+
+    @Test
+    public void testLatencyWithoutBandwidth() {
+        TestController controller = new TestController();
+        controller.pendingBytes = 1000;
+        assertTrue(controller.canSendPacket(video(FrameType.KEYFRAME), 1));
+        // nothing is written since the first sample
+        controller.now += 2500;
+        assertFalse(controller.canSendPacket(video(FrameType.INTERFRAME), 1));
+        assertEquals(2500, controller.getLatency());
+    }
+
+}
@@ -0,0 +1,253 @@
+package org.red5.server.stream.consumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import org.red5.server.net.rtmp.event.Aggregate;
+import org.red5.server.net.rtmp.event.AudioData;
+import org.red5.server.net.rtmp.event.IRTMPEvent;
+import org.red5.server.net.rtmp.event.VideoData;
+
+public class TestAggregateWriter {
+
+    private static final byte TYPE_AUDIO = 8;
+
+    private static final byte TYPE_VIDEO = 9;
+
+    /**
+     * Tag header and back pointer
+     */
+    private static final int TAG_OVERHEAD = 15;
+
+    private AggregateWriter writer;
+
+    @Before
+    public void setUp() {
+        writer = new AggregateWriter(100, 65536);
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (seed + i);
+        }
+        return payload;
+    }
+
+    private static VideoData video(int timestamp, byte[] payload) {
+        VideoData video = new VideoData(IoBuffer.wrap(payload));
+        video.setTimestamp(timestamp);
+        return video;
+    }
+
+    private static AudioData audio(int timestamp, byte[] payload) {
+        AudioData audio = new AudioData(IoBuffer.wrap(payload));
+        audio.setTimestamp(timestamp);
+        return audio;
+    }
+
+    private static Aggregate add(AggregateWriter writer, IRTMPEvent event) {
+        byte dataType = event instanceof AudioData ? TYPE_AUDIO : TYPE_VIDEO;
+        IoBuffer payload = event instanceof AudioData ? ((AudioData) event).getData() : ((VideoData) event).getData();
+        return writer.add(event, dataType, event.getTimestamp(), payload);
+    }
+
+    private static byte[] toBytes(Aggregate aggregate) {
+        IoBuffer data = aggregate.getData();
+        byte[] bytes = new byte[data.remaining()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = data.get(data.position() + i);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return FLV tag with the back pointer
+     */
+    private static byte[] tag(byte dataType, int timestamp, byte[] payload) {
+        IoBuffer tag = IoBuffer.allocate(payload.length + TAG_OVERHEAD);
+        tag.put(dataType);
+        tag.put((byte) (payload.length >>> 16));
+        tag.put((byte) (payload.length >>> 8));
+        tag.put((byte) payload.length);
+        tag.put((byte) (timestamp >>> 16));
+        tag.put((byte) (timestamp >>> 8));
+        tag.put((byte) timestamp);
+        tag.put((byte) (timestamp >>> 24));
+        tag.put(new byte[3]);
+        tag.put(payload);
+        tag.putInt(payload.length + 11);
+        return tag.array();
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        int length = 0;
+        for (byte[] array : arrays) {
+            length += array.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] array : arrays) {
+            System.arraycopy(array, 0, result, offset, array.length);
+            offset += array.length;
+        }
+        return result;
+    }
+
+    @Test
+    public void testAggregateLayout() {
+        byte[] videoPayload = payload(5, 1);
+        byte[] audioPayload = payload(3, 100);
+        assertNull(add(writer, video(1000, videoPayload)));
+        assertNull(add(writer, audio(1010, audioPayload)));
+        assertEquals(2, writer.getPendingTagCount());
+
+        Aggregate aggregate = writer.flush();
+        assertNotNull(aggregate);
+        assertEquals(0, writer.getPendingTagCount());
+        assertEquals(1000, aggregate.getTimestamp());
+        assertEquals(1000, aggregate.getHeader().getTimerBase());
+        // tag timestamps are absolute
+        assertArrayEquals(concat(tag(TYPE_VIDEO, 1000, videoPayload), tag(TYPE_AUDIO, 1010, audioPayload)), toBytes(aggregate));
+        assertNull(writer.flush());
+    }
+
+    @Test
+    public void testExtendedTimestamp() {
+        byte[] payload = payload(4, 7);
+        int timestamp = 0x01020304;
+        add(writer, video(timestamp, payload));
+        byte[] bytes = toBytes(writer.flush());
+        assertArrayEquals(tag(TYPE_VIDEO, timestamp, payload), bytes);
+        assertEquals(0x02, bytes[4]);
+        assertEquals(0x03, bytes[5]);
+        assertEquals(0x04, bytes[6]);
+        assertEquals(0x01, bytes[7]);
+    }
+
+    @Test
+    public void testPayloadPositionIsNotChanged() {
+        byte[] payload = payload(10, 0);
+        VideoData video = video(0, payload);
+        video.getData().position(4);
+        add(writer, video);
+        byte[] bytes = toBytes(writer.flush());
+        assertEquals(4, video.getData().position());
+        // tag has the payload from its position
+        assertEquals(6, bytes[3]);
+        assertEquals(4, bytes[11]);
+        assertEquals(6 + 11, bytes[bytes.length - 1]);
+    }
+
+    @Test
+    public void testWindowSplitting() {
+        assertNull(add(writer, video(0, payload(10, 0))));
+        assertNull(add(writer, audio(50, payload(10, 0))));
+        assertNull(add(writer, video(99, payload(10, 0))));
+
+        // tag of the next window completes the aggregate
+        Aggregate aggregate = add(writer, audio(100, payload(10, 0)));
+        assertNotNull(aggregate);
+        assertEquals(0, aggregate.getTimestamp());
+        assertEquals(3 * (10 + TAG_OVERHEAD), aggregate.getData().remaining());
+        assertEquals(1, writer.getPendingTagCount());
+
+        // windows are aligned to stream time, not to the first tag
+        assertNull(add(writer, video(150, payload(10, 0))));
+        aggregate = add(writer, video(210, payload(10, 0)));
+        assertEquals(100, aggregate.getTimestamp());
+        assertEquals(2 * (10 + TAG_OVERHEAD), aggregate.getData().remaining());
+
+        // timestamp reset
+        aggregate = add(writer, video(20, payload(10, 0)));
+        assertEquals(210, aggregate.getTimestamp());
+        assertEquals(1, writer.getPendingTagCount());
+
+        assertEquals(3, writer.getAggregateCount());
+        assertEquals(6, writer.getAggregatedTagCount());
+    }
+
+    @Test
+    public void testSizeSplitting() {
+        writer = new AggregateWriter(100, 2 * (10 + TAG_OVERHEAD));
+        assertNull(add(writer, video(0, payload(10, 0))));
+        assertNull(add(writer, video(1, payload(10, 0))));
+        Aggregate aggregate = add(writer, video(2, payload(10, 0)));
+        assertEquals(2 * (10 + TAG_OVERHEAD), aggregate.getData().remaining());
+
+        // a tag larger than max size is sent alone
+        aggregate = add(writer, video(3, payload(100, 0)));
+        assertEquals(10 + TAG_OVERHEAD, aggregate.getData().remaining());
+        aggregate = add(writer, video(4, payload(10, 0)));
+        assertEquals(100 + TAG_OVERHEAD, aggregate.getData().remaining());
+        assertEquals(1, writer.getPendingTagCount());
+    }
+
+    @Test
+    public void testSharedAggregateIsReused() {
+        VideoData video = video(0, payload(10, 0));
+        AudioData audio = audio(10, payload(5, 0));
+
+        AggregateWriter otherWriter = new AggregateWriter(100, 65536);
+        add(writer, video);
+        add(writer, audio);
+        Aggregate aggregate = writer.flush();
+        add(otherWriter, video);
+        add(otherWriter, audio);
+        Aggregate otherAggregate = otherWriter.flush();
+
+        assertEquals(0, writer.getSharedAggregateCount());
+        assertEquals(1, otherWriter.getSharedAggregateCount());
+        assertNotSame(aggregate, otherAggregate);
+        assertArrayEquals(toBytes(aggregate), toBytes(otherAggregate));
+        // payload is chunked once for all subscribers
+        assertNotNull(aggregate.getChunkCache());
+        assertSame(aggregate.getChunkCache(), otherAggregate.getChunkCache());
+        assertTrue(aggregate.getData().isReadOnly());
+    }
+
+    @Test
+    public void testSharedAggregateIsNotReusedForOtherEvents() {
+        VideoData video = video(0, payload(10, 0));
+        AudioData audio = audio(10, payload(5, 0));
+        add(writer, video);
+        add(writer, audio);
+        Aggregate aggregate = writer.flush();
+
+        // subscriber that joins later or drops a tag has different events
+        AggregateWriter otherWriter = new AggregateWriter(100, 65536);
+        add(otherWriter, video);
+        Aggregate otherAggregate = otherWriter.flush();
+        assertEquals(0, otherWriter.getSharedAggregateCount());
+        assertNotSame(aggregate.getChunkCache(), otherAggregate.getChunkCache());
+        assertEquals(10 + TAG_OVERHEAD, otherAggregate.getData().remaining());
+
+        // last aggregate replaces the shared one of the first event
+        AggregateWriter thirdWriter = new AggregateWriter(100, 65536);
+        add(thirdWriter, video);
+        assertSame(otherAggregate.getChunkCache(), thirdWriter.flush().getChunkCache());
+        assertEquals(1, thirdWriter.getSharedAggregateCount());
+    }
+
+    @Test
+    public void testDeadline() {
+        assertEquals(-1, writer.getDeadlineDelayMs());
+        add(writer, video(0, payload(10, 0)));
+        long delay = writer.getDeadlineDelayMs();
+        assertTrue(delay >= 0 && delay <= 100);
+
+        writer.clear();
+        assertEquals(0, writer.getPendingTagCount());
+        assertEquals(-1, writer.getDeadlineDelayMs());
+        assertNull(writer.flush());
+    }
+
+}
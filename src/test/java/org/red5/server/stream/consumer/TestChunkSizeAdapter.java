@@ -0,0 +1,151 @@
+package org.red5.server.stream.consumer;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestChunkSizeAdapter {
+
+    private static final int CHUNK_DURATION_MS = 100;
+
+    private ChunkSizeAdapter adapter;
+
+    private int timestamp;
+
+    @Before
+    public void setUp() {
+        adapter = create(128, 65536, 128);
+    }
+
+    private ChunkSizeAdapter create(int minChunkSize, int maxChunkSize, int initialChunkSize) {
+        ChunkSizeAdapter adapter = new ChunkSizeAdapter(minChunkSize, maxChunkSize, CHUNK_DURATION_MS, initialChunkSize);
+        timestamp = 0;
+        // starts the first window
+        assertEquals(-1, adapter.onMessage(0, timestamp));
+        return adapter;
+    }
+
+    /**
+     * Ends the current window with one message so that ideal chunk size of the window is the given size
+     *
+     * @return result of the message
+     */
+    private int window(ChunkSizeAdapter adapter, int idealChunkSize) {
+        timestamp += ChunkSizeAdapter.WINDOW_MS;
+        // bytes per second is 10 times the ideal chunk size for 100ms chunk duration
+        return adapter.onMessage(idealChunkSize * ChunkSizeAdapter.WINDOW_MS / CHUNK_DURATION_MS, timestamp);
+    }
+
+    @Test
+    public void testWindowRollover() {
+        assertEquals(-1, adapter.onMessage(10000, 500));
+        assertEquals(-1, adapter.onMessage(10000, 1999));
+        assertEquals(0, adapter.getBytesPerSecond());
+
+        // message at the end of the window is in the window, 40000 bytes in 2 seconds
+        assertEquals(1024, adapter.onMessage(20000, 2000));
+        assertEquals(20000, adapter.getBytesPerSecond());
+        assertEquals(1024, adapter.getChunkSize());
+
+        // next window starts empty at the end of the previous one
+        assertEquals(-1, adapter.onMessage(4000, 3000));
+        assertEquals(256, adapter.onMessage(4000, 4000));
+        assertEquals(4000, adapter.getBytesPerSecond());
+    }
+
+    @Test
+    public void testTimestampResetStartsNewWindow() {
+        assertEquals(-1, window(adapter, 100));
+        assertEquals(-1, adapter.onMessage(100000, timestamp + 1500));
+        // stream is restarted, bytes before the reset are not measured
+        assertEquals(-1, adapter.onMessage(1000, 100));
+        assertEquals(-1, adapter.onMessage(1000, 2099));
+        assertEquals(-1, adapter.onMessage(2000, 2100));
+        assertEquals(2000, adapter.getBytesPerSecond());
+        assertEquals(128, adapter.getChunkSize());
+    }
+
+    @Test
+    public void testHysteresis() {
+        assertEquals(1024, window(adapter, 1024));
+
+        // between half and twice the current size
+        assertEquals(-1, window(adapter, 2047));
+        assertEquals(-1, window(adapter, 512));
+        assertEquals(-1, window(adapter, 1500));
+        assertEquals(1024, adapter.getChunkSize());
+
+        assertEquals(2048, window(adapter, 2048));
+        assertEquals(-1, window(adapter, 1024));
+        assertEquals(512, window(adapter, 1023));
+    }
+
+    @Test
+    public void testChunkSizeChangedByAnotherParty() {
+        adapter.setChunkSize(4096);
+        assertEquals(-1, window(adapter, 2048));
+        assertEquals(1024, window(adapter, 2047));
+    }
+
+    @Test
+    public void testPowerOfTwoBounds() {
+        assertEquals(2048, window(adapter, 3000));
+        assertEquals(65536, window(adapter, 1000000));
+        assertEquals(128, window(adapter, 0));
+        assertEquals(8192, window(adapter, 16383));
+
+        ChunkSizeAdapter bounded = create(1024, 4096, 128);
+        assertEquals(4096, window(bounded, 100000));
+        assertEquals(1024, window(bounded, 1));
+
+        // chunk size is never lower than 128 and max is never lower than min
+        bounded = create(16, 8, 128);
+        assertEquals(-1, window(bounded, 10000));
+        assertEquals(128, bounded.getChunkSize());
+    }
+
+    @Test
+    public void testClientChunkSizeFloor() {
+        adapter.setClientChunkSize(4000);
+        assertEquals(4000, window(adapter, 3000));
+        assertEquals(-1, window(adapter, 10));
+        assertEquals(4000, adapter.getChunkSize());
+        assertEquals(16384, window(adapter, 20000));
+        assertEquals(4000, window(adapter, 10));
+
+        // client chunk size is limited to max
+        ChunkSizeAdapter bounded = create(128, 2048, 128);
+        bounded.setClientChunkSize(10000);
+        assertEquals(2048, window(bounded, 1));
+    }
+
+    @Test
+    public void testSavedChunks() {
+        long totalSavedChunks = ChunkSizeAdapter.getTotalSavedChunks();
+        assertEquals(1024, window(adapter, 1024));
+        assertEquals(0, adapter.getSavedChunks());
+
+        // 8 chunks of 128 bytes are sent in one chunk
+        assertEquals(-1, adapter.onMessage(1024, timestamp + 100));
+        assertEquals(-1, adapter.onMessage(1000, timestamp + 200));
+        assertEquals(14, adapter.getSavedChunks());
+
+        // 160 chunks of 128 bytes are sent in 20 chunks
+        assertEquals(-1, adapter.onMessage(20480, timestamp + ChunkSizeAdapter.WINDOW_MS));
+        assertEquals(154, adapter.getSavedChunks());
+        assertEquals(77, adapter.getSavedChunksPerSecond());
+        assertEquals(154, ChunkSizeAdapter.getTotalSavedChunks() - totalSavedChunks);
+    }
+
+    @Test
+    public void testSmallerChunkSizeIsCountedAsNegative() {
+        ChunkSizeAdapter large = create(128, 65536, 4096);
+        assertEquals(128, window(large, 200));
+        long savedChunks = large.getSavedChunks();
+        // one chunk of 4096 bytes is sent in 32 chunks
+        large.onMessage(4096, timestamp + 100);
+        assertEquals(savedChunks - 31, large.getSavedChunks());
+    }
+
+}